@@ -0,0 +1,66 @@
+package net.logicsquad.pal;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Microbenchmarks for making and copying {@link Data <code>Data</code>}
+ * objects, as returned by the data stacks' public API.
+ *
+ * @author Paul Hoadley &lt;paulh@logicsquad.net&gt;
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DataBenchmark {
+	/** A small integer, which has a shared instance. */
+	public int small = 42;
+
+	/** A large integer, which does not. */
+	public int large = 1000000;
+
+	/** A datum to copy. */
+	private final Data datum = Data.valueOf("datum");
+
+	/**
+	 * Makes a small integer datum.
+	 *
+	 * @return The datum.
+	 */
+	@Benchmark
+	public Data valueOfSmallInt() {
+		return Data.valueOf(small);
+	}
+
+	/**
+	 * Makes a large integer datum.
+	 *
+	 * @return The datum.
+	 */
+	@Benchmark
+	public Data valueOfLargeInt() {
+		return Data.valueOf(large);
+	}
+
+	/**
+	 * Copies a datum.
+	 *
+	 * @return The copy.
+	 */
+	@Benchmark
+	public Object cloneData() {
+		return datum.clone();
+	}
+}
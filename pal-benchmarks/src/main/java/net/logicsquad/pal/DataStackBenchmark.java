@@ -0,0 +1,89 @@
+package net.logicsquad.pal;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Microbenchmarks for the {@link TaggedDataStack <code>TaggedDataStack</code>}
+ * used by the execution engines: pushing and popping, and loading a variable
+ * from a frame some levels out.
+ *
+ * @author Paul Hoadley &lt;paulh@logicsquad.net&gt;
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DataStackBenchmark {
+	/** The number of frames nested inside the main program. */
+	private static final int DEPTH = 8;
+
+	/** The level difference to load variables from. */
+	@Param({ "0", "1", "4" })
+	public int levelDiff;
+
+	/** The stack, with {@link #DEPTH} nested frames. */
+	private TaggedDataStack stack;
+
+	/**
+	 * Builds the nested frames, each with one integer variable.
+	 */
+	@Setup
+	public void setUp() {
+		stack = new TaggedDataStack(0);
+		stack.pushInt(0);
+		for (int i = 1; i <= DEPTH; i++) {
+			stack.markStack(0);
+			stack.enterFrame(stack.getTop());
+			stack.pushInt(i);
+		}
+		return;
+	}
+
+	/**
+	 * Pushes and pops an integer.
+	 *
+	 * @return The value popped.
+	 */
+	@Benchmark
+	public int pushPop() {
+		stack.pushInt(42);
+		return stack.popInt();
+	}
+
+	/**
+	 * Loads a variable as a <code>Data</code> object, through the public
+	 * API.
+	 *
+	 * @return The value loaded.
+	 */
+	@Benchmark
+	public Data get() {
+		return stack.get(levelDiff, 0);
+	}
+
+	/**
+	 * Loads a variable onto the top of the stack, as <code>LDV</code> does,
+	 * and pops it.
+	 *
+	 * @return The value loaded.
+	 */
+	@Benchmark
+	public int loadValue() {
+		stack.pushCopy(stack.getAddress(levelDiff, 0));
+		return stack.popInt();
+	}
+}
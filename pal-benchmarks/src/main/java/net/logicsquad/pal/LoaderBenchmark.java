@@ -0,0 +1,81 @@
+package net.logicsquad.pal;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks for loading programs: looking up mnemonics, and parsing,
+ * decoding and verifying a whole program.
+ *
+ * @author Paul Hoadley &lt;paulh@logicsquad.net&gt;
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LoaderBenchmark {
+	/** Every mnemonic, and one that isn't. */
+	private static final String[] MNEMONICS = { "CAL", "INC", "JIF", "JMP",
+			"LCI", "LCR", "LCS", "LDA", "LDI", "LDU", "LDV", "MST", "OPR",
+			"RDI", "RDR", "REH", "SIG", "STI", "STO", "FOO" };
+
+	/** The source of the largest sample program. */
+	private byte[] source;
+
+	/**
+	 * Reads the sample program.
+	 *
+	 * @throws IOException
+	 *             if the program can't be read.
+	 */
+	@Setup
+	public void setUp() throws IOException {
+		try (InputStream in = LoaderBenchmark.class
+				.getResourceAsStream("/basic/LOCALS")) {
+			source = in.readAllBytes();
+		}
+		return;
+	}
+
+	/**
+	 * Looks up each mnemonic.
+	 *
+	 * @param blackhole
+	 *            Consumes the results.
+	 */
+	@Benchmark
+	public void mnemonicToInt(Blackhole blackhole) {
+		for (String mnemonic : MNEMONICS) {
+			blackhole.consume(Mnemonic.mnemonicToInt(mnemonic));
+		}
+		return;
+	}
+
+	/**
+	 * Loads a program from source.
+	 *
+	 * @return The machine.
+	 * @throws IOException
+	 *             if the program can't be loaded.
+	 */
+	@Benchmark
+	public PAL load() throws IOException {
+		return new PAL(new ByteArrayInputStream(source));
+	}
+}
@@ -0,0 +1,246 @@
+package net.logicsquad.pal;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Microbenchmarks for each family of <code>OPR</code> operations, performed
+ * by the generic {@link PAL#doOperation <code>doOperation</code>} on a
+ * machine's data stack. Each invocation loads the operands, performs every
+ * operation in the family once, and discards the results, so that the stack
+ * is left as it was.
+ *
+ * @author Paul Hoadley &lt;paulh@logicsquad.net&gt;
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class OperationBenchmark {
+	/** The program, which supplies the string constants 0 and 1. */
+	private static final String PROGRAM = "LCS 0 'left'\nLCS 0 'right'\nJMP 0 0\n";
+
+	/** <code>OPR 0 24</code>, which discards the top of the stack. */
+	private static final int DROP = 24;
+
+	/** The machine. */
+	private PAL pal;
+
+	/** The original standard output. */
+	private PrintStream stdout;
+
+	/**
+	 * Makes the machine, with its output discarded.
+	 *
+	 * @throws IOException
+	 *             if the program can't be loaded.
+	 */
+	@Setup
+	public void setUp() throws IOException {
+		stdout = System.out;
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+		pal = new PAL(new ByteArrayInputStream(
+				PROGRAM.getBytes(StandardCharsets.UTF_8)));
+		return;
+	}
+
+	/**
+	 * Restores standard output.
+	 */
+	@TearDown
+	public void tearDown() {
+		System.setOut(stdout);
+		return;
+	}
+
+	/**
+	 * <code>OPR 0 2</code>: negation.
+	 */
+	@Benchmark
+	public void negate() {
+		pal.loadInt(7);
+		pal.doOperation(0, 2);
+		pal.doOperation(0, DROP);
+		return;
+	}
+
+	/**
+	 * <code>OPR 0 3</code> to <code>6</code> on integers.
+	 */
+	@Benchmark
+	public void intArithmetic() {
+		for (int opr = 3; opr <= 6; opr++) {
+			pal.loadInt(1000);
+			pal.loadInt(7);
+			pal.doOperation(0, opr);
+			pal.doOperation(0, DROP);
+		}
+		return;
+	}
+
+	/**
+	 * <code>OPR 0 3</code> to <code>6</code> on reals.
+	 */
+	@Benchmark
+	public void realArithmetic() {
+		for (int opr = 3; opr <= 6; opr++) {
+			pal.loadReal(Float.floatToRawIntBits(1000.5f));
+			pal.loadReal(Float.floatToRawIntBits(7.25f));
+			pal.doOperation(0, opr);
+			pal.doOperation(0, DROP);
+		}
+		return;
+	}
+
+	/**
+	 * <code>OPR 0 7</code>: exponentiation.
+	 */
+	@Benchmark
+	public void power() {
+		pal.loadInt(3);
+		pal.loadInt(5);
+		pal.doOperation(0, 7);
+		pal.doOperation(0, DROP);
+		return;
+	}
+
+	/**
+	 * <code>OPR 0 8</code>: string concatenation.
+	 */
+	@Benchmark
+	public void concatenate() {
+		pal.loadString(0);
+		pal.loadString(1);
+		pal.doOperation(0, 8);
+		pal.doOperation(0, DROP);
+		return;
+	}
+
+	/**
+	 * <code>OPR 0 9</code>: odd.
+	 */
+	@Benchmark
+	public void odd() {
+		pal.loadInt(7);
+		pal.doOperation(0, 9);
+		pal.doOperation(0, DROP);
+		return;
+	}
+
+	/**
+	 * <code>OPR 0 10</code> to <code>15</code> on integers.
+	 */
+	@Benchmark
+	public void intComparison() {
+		for (int opr = 10; opr <= 15; opr++) {
+			pal.loadInt(1000);
+			pal.loadInt(7);
+			pal.doOperation(0, opr);
+			pal.doOperation(0, DROP);
+		}
+		return;
+	}
+
+	/**
+	 * <code>OPR 0 10</code> to <code>15</code> on reals.
+	 */
+	@Benchmark
+	public void realComparison() {
+		for (int opr = 10; opr <= 15; opr++) {
+			pal.loadReal(Float.floatToRawIntBits(1000.5f));
+			pal.loadReal(Float.floatToRawIntBits(7.25f));
+			pal.doOperation(0, opr);
+			pal.doOperation(0, DROP);
+		}
+		return;
+	}
+
+	/**
+	 * <code>OPR 0 16</code> to <code>18</code>, <code>29</code> and
+	 * <code>30</code>: boolean constants and logic.
+	 */
+	@Benchmark
+	public void logic() {
+		pal.doOperation(0, 17);
+		pal.doOperation(0, 18);
+		pal.doOperation(0, 29);
+		pal.doOperation(0, 16);
+		pal.doOperation(0, 18);
+		pal.doOperation(0, 30);
+		pal.doOperation(0, DROP);
+		return;
+	}
+
+	/**
+	 * <code>OPR 0 20</code> and <code>21</code>: printing.
+	 */
+	@Benchmark
+	public void print() {
+		pal.loadInt(12345);
+		pal.doOperation(0, 20);
+		pal.loadString(0);
+		pal.doOperation(0, 20);
+		pal.doOperation(0, 21);
+		return;
+	}
+
+	/**
+	 * <code>OPR 0 22</code> to <code>24</code>: swap, duplicate and drop.
+	 */
+	@Benchmark
+	public void stack() {
+		pal.loadInt(1);
+		pal.loadInt(2);
+		pal.doOperation(0, 22);
+		pal.doOperation(0, 23);
+		pal.doOperation(0, DROP);
+		pal.doOperation(0, DROP);
+		pal.doOperation(0, DROP);
+		return;
+	}
+
+	/**
+	 * <code>OPR 0 25</code> to <code>28</code>: conversions.
+	 */
+	@Benchmark
+	public void convert() {
+		pal.loadInt(12345);
+		pal.doOperation(0, 25);
+		pal.doOperation(0, 26);
+		pal.doOperation(0, 27);
+		pal.doOperation(0, DROP);
+		pal.loadReal(Float.floatToRawIntBits(1.5f));
+		pal.doOperation(0, 28);
+		pal.doOperation(0, DROP);
+		return;
+	}
+
+	/**
+	 * <code>OPR 0 31</code>: exception test.
+	 */
+	@Benchmark
+	public void exceptionTest() {
+		pal.loadInt(1);
+		pal.doOperation(0, 31);
+		pal.doOperation(0, DROP);
+		return;
+	}
+}
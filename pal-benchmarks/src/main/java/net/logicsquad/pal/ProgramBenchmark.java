@@ -0,0 +1,172 @@
+package net.logicsquad.pal;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Macrobenchmarks that load and run whole programs on each execution engine,
+ * with standard input and output redirected to memory. The programs are the
+ * interactive samples from the test suite, with their recorded input, and
+ * some synthetic programs whose size is set by {@link #scale}:
+ *
+ * <ul>
+ * <li><code>LOOP</code>: integer arithmetic and comparisons on local
+ * variables, 100000 &times; <i>scale</i> times;</li>
+ * <li><code>FIB</code>: the naive recursive Fibonacci function of 17 +
+ * <i>scale</i>;</li>
+ * <li><code>CONCAT</code>: building a string 10000 &times; <i>scale</i>
+ * characters long by repeated concatenation.</li>
+ * </ul>
+ *
+ * @author Paul Hoadley &lt;paulh@logicsquad.net&gt;
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ProgramBenchmark {
+	private static final String LOOP = String.join("\n", "INC 0 3",
+			"LCI 0 0", "STO 0 0", "LCI 0 0", "STO 0 1", "LCI 0 7", "STO 0 2",
+			"LDV 0 0", "LCI 0 %d", "OPR 0 12", "JIF 0 25", "LDV 0 1",
+			"LDV 0 0", "LDV 0 2", "OPR 0 5", "OPR 0 3", "LDV 0 2", "OPR 0 4",
+			"STO 0 1", "LDV 0 0", "LCI 0 1", "OPR 0 3", "STO 0 0", "JMP 0 8",
+			"LDV 0 1", "OPR 0 20", "OPR 0 21", "JMP 0 0");
+
+	private static final String FIB = String.join("\n", "JMP 0 20",
+			"LDV 0 0", "LCI 0 2", "OPR 0 12", "JIF 0 8", "LDV 0 0", "OPR 0 1",
+			"MST 1 0", "LDV 0 0", "LCI 0 1", "OPR 0 4", "CAL 1 2", "MST 1 0",
+			"LDV 0 0", "LCI 0 2", "OPR 0 4", "CAL 1 2", "OPR 0 3", "OPR 0 1",
+			"MST 0 0", "LCI 0 %d", "CAL 1 2", "OPR 0 20", "OPR 0 21",
+			"JMP 0 0");
+
+	private static final String CONCAT = String.join("\n", "INC 0 2",
+			"LCI 0 0", "STO 0 0", "LCS 0 ''", "STO 0 1", "LDV 0 0",
+			"LCI 0 %d", "OPR 0 12", "JIF 0 19", "LDV 0 1", "LCS 0 'x'",
+			"OPR 0 8", "STO 0 1", "LDV 0 0", "LCI 0 1", "OPR 0 3", "STO 0 0",
+			"JMP 0 6", "LDV 0 1", "OPR 0 20", "OPR 0 21", "JMP 0 0");
+
+	/** The program to run. */
+	@Param({ "FACTREC", "FACTITER", "LAB", "LOOP", "FIB", "CONCAT" })
+	public String program;
+
+	/** The name of the execution engine. */
+	@Param({ "INTERPRETER", "CLOSURE", "BYTECODE" })
+	public String engineName;
+
+	/** The size of the synthetic programs. */
+	@Param({ "1" })
+	public int scale;
+
+	/** The execution engine. */
+	private PAL.Engine engine;
+
+	/** The source of the program. */
+	private byte[] source;
+
+	/** The program's standard input. */
+	private byte[] input;
+
+	/** The original standard input. */
+	private InputStream stdin;
+
+	/** The original standard output. */
+	private PrintStream stdout;
+
+	/** The original standard error. */
+	private PrintStream stderr;
+
+	/**
+	 * Reads or generates the program, and discards its output.
+	 *
+	 * @throws IOException
+	 *             if a sample program can't be read.
+	 */
+	@Setup
+	public void setUp() throws IOException {
+		engine = PAL.Engine.valueOf(engineName);
+		input = new byte[0];
+		switch (program) {
+		case "LOOP":
+			source = generate(LOOP, 100000 * scale);
+			break;
+		case "FIB":
+			source = generate(FIB, 17 + scale);
+			break;
+		case "CONCAT":
+			source = generate(CONCAT, 10000 * scale);
+			break;
+		default:
+			source = resource("/interactive/" + program);
+			input = resource("/interactive/" + program + ".in");
+		}
+
+		stdin = System.in;
+		stdout = System.out;
+		stderr = System.err;
+		PrintStream sink = new PrintStream(OutputStream.nullOutputStream());
+		System.setOut(sink);
+		System.setErr(sink);
+		return;
+	}
+
+	/**
+	 * Restores the standard streams.
+	 */
+	@TearDown
+	public void tearDown() {
+		System.setIn(stdin);
+		System.setOut(stdout);
+		System.setErr(stderr);
+		return;
+	}
+
+	/**
+	 * Loads and runs the program.
+	 *
+	 * @return The exit status.
+	 * @throws IOException
+	 *             if the program can't be loaded.
+	 */
+	@Benchmark
+	public Object run() throws IOException {
+		System.setIn(new ByteArrayInputStream(input));
+		PAL pal = new PAL(new ByteArrayInputStream(source));
+		return pal.execute(engine);
+	}
+
+	/**
+	 * Fills in the size of a synthetic program.
+	 */
+	private static byte[] generate(String template, int size) {
+		return String.format(template, size).getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Reads a sample program or its input.
+	 */
+	private static byte[] resource(String name) throws IOException {
+		try (InputStream in = ProgramBenchmark.class.getResourceAsStream(name)) {
+			return in.readAllBytes();
+		}
+	}
+}
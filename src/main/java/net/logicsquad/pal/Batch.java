@@ -0,0 +1,417 @@
+package net.logicsquad.pal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Stream;
+
+/**
+ * Runs a batch of programs concurrently, each on its own {@link Machine
+ * <code>Machine</code>} with its own input and output files.
+ *
+ * <p>
+ * The batch is either a directory or a manifest file. In a directory, every
+ * file whose name has no extension, or ends in <code>.pal</code> or
+ * <code>.palc</code>, is a program, and its input is read from the file of
+ * the same name with the extension replaced by <code>.in</code>, if there is
+ * one. A manifest lists one program per line, optionally followed by the name
+ * of its input file, with blank lines and lines starting with <code>#</code>
+ * ignored, and relative names taken to be in the manifest's directory. A
+ * program listed more than once, with different inputs, is loaded only once.
+ * A program with no input sees EOF.
+ * </p>
+ *
+ * <p>
+ * Each program runs on a virtual thread, with at most a given number running
+ * at once. A program's output is written to <code><i>name</i>.out</code> in
+ * the output directory, where <i>name</i> is the name of its file without the
+ * extension, followed for a manifest entry with an input file by
+ * <code>-</code> and the name of that without <code>.in</code>. Any errors
+ * are written to <code><i>name</i>.err</code>. A summary of the
+ * status and time taken by each program is written to
+ * <code>summary.tsv</code>.
+ * </p>
+ *
+ * @author Paul Hoadley &lt;paulh@logicsquad.net&gt;
+ */
+final class Batch {
+	/** The name of the summary file. */
+	static final String SUMMARY = "summary.tsv";
+
+	/** A program to run, and its input. */
+	static final class Job {
+		/** The name of the program's output files. */
+		final String name;
+
+		/** The program file. */
+		final Path program;
+
+		/** The input file, or <code>null</code> if there is no input. */
+		final Path input;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param name
+		 *            The name of the program's output files.
+		 * @param program
+		 *            The program file.
+		 * @param input
+		 *            The input file, or <code>null</code> if there is no
+		 *            input.
+		 */
+		Job(String name, Path program, Path input) {
+			this.name = name;
+			this.program = program;
+			this.input = input;
+			return;
+		}
+	}
+
+	/** The outcome of a job. */
+	static final class Result {
+		/** The job. */
+		final Job job;
+
+		/**
+		 * The status of the machine, or <code>null</code> if the program
+		 * could not be loaded or run.
+		 */
+		final PAL.ExitStatus status;
+
+		/** The time taken to load and run the program, in nanoseconds. */
+		final long nanos;
+
+		private Result(Job job, PAL.ExitStatus status, long nanos) {
+			this.job = job;
+			this.status = status;
+			this.nanos = nanos;
+			return;
+		}
+	}
+
+	/** The execution engine. */
+	private final PAL.Engine engine;
+
+	/** The code memory limit, in lines, or 0 for no limit. */
+	private final int codeSize;
+
+	/** The data stack size limit, or 0 for no limit. */
+	private final int dataSize;
+
+	/** The maximum number of programs to run at once. */
+	private final int parallelism;
+
+	/** The directory to write output to. */
+	private final Path outDir;
+
+	/** The programs loaded so far, by file. */
+	private final ConcurrentHashMap<Path, FutureTask<Program>> programs = new ConcurrentHashMap<Path, FutureTask<Program>>();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param engine
+	 *            The execution engine.
+	 * @param codeSize
+	 *            The code memory limit, in lines, or 0 for no limit.
+	 * @param dataSize
+	 *            The data stack size limit, or 0 for no limit.
+	 * @param parallelism
+	 *            The maximum number of programs to run at once.
+	 * @param outDir
+	 *            The directory to write output to, which is created if
+	 *            necessary.
+	 */
+	Batch(PAL.Engine engine, int codeSize, int dataSize, int parallelism,
+			Path outDir) {
+		this.engine = engine;
+		this.codeSize = codeSize;
+		this.dataSize = dataSize;
+		this.parallelism = parallelism;
+		this.outDir = outDir;
+		return;
+	}
+
+	/**
+	 * Lists the jobs in a directory or manifest.
+	 *
+	 * @param source
+	 *            A directory of programs and inputs, or a manifest file.
+	 * @return The jobs, in order of name for a directory, or in the order
+	 *         listed in a manifest.
+	 * @throws IOException
+	 *             if the directory or manifest cannot be read, or two jobs
+	 *             have the same name.
+	 */
+	static List<Job> jobs(Path source) throws IOException {
+		List<Job> jobs = new ArrayList<Job>();
+
+		if (Files.isDirectory(source)) {
+			try (Stream<Path> files = Files.list(source)) {
+				for (Path file : files.sorted().toList()) {
+					String filename = file.getFileName().toString();
+					if (!Files.isRegularFile(file)
+							|| (filename.indexOf('.') >= 0
+									&& !filename.endsWith(".pal") && !ObjectFile
+										.isObjectFile(filename))) {
+						continue;
+					}
+					Path input = file.resolveSibling(baseName(file) + ".in");
+					jobs.add(new Job(baseName(file), file, Files
+							.isRegularFile(input) ? input : null));
+				}
+			}
+		} else {
+			Path dir = source.toAbsolutePath().getParent();
+			for (String line : Files.readAllLines(source,
+					Charset.defaultCharset())) {
+				StringTokenizer st = new StringTokenizer(line);
+				if (!st.hasMoreTokens() || line.trim().startsWith("#")) {
+					continue;
+				}
+				Path program = dir.resolve(st.nextToken());
+				if (!st.hasMoreTokens()) {
+					jobs.add(new Job(baseName(program), program, null));
+					continue;
+				}
+				// The same program may be listed with several inputs.
+				Path input = dir.resolve(st.nextToken());
+				String inputName = input.getFileName().toString();
+				if (inputName.endsWith(".in")) {
+					inputName = inputName.substring(0, inputName.length() - 3);
+				}
+				jobs.add(new Job(baseName(program) + "-" + inputName, program,
+						input));
+			}
+		}
+
+		Set<String> names = new HashSet<String>();
+		for (Job job : jobs) {
+			if (!names.add(job.name)) {
+				throw new IOException("More than one program would write "
+						+ job.name + ".out");
+			}
+		}
+		return jobs;
+	}
+
+	/**
+	 * Runs the jobs, and writes the summary.
+	 *
+	 * @param jobs
+	 *            The jobs.
+	 * @return The results, in the same order as the jobs.
+	 * @throws IOException
+	 *             if the output directory or summary cannot be written.
+	 * @throws InterruptedException
+	 *             if interrupted while waiting for the jobs.
+	 */
+	List<Result> run(List<Job> jobs) throws IOException, InterruptedException {
+		Files.createDirectories(outDir);
+		Semaphore permits = new Semaphore(parallelism);
+		List<Future<Result>> futures = new ArrayList<Future<Result>>();
+		try (ExecutorService executor = Executors
+				.newVirtualThreadPerTaskExecutor()) {
+			for (Job job : jobs) {
+				futures.add(executor.submit(() -> {
+					permits.acquire();
+					try {
+						return run(job);
+					} finally {
+						permits.release();
+					}
+				}));
+			}
+		}
+
+		List<Result> results = new ArrayList<Result>();
+		for (Future<Result> future : futures) {
+			try {
+				results.add(future.get());
+			} catch (ExecutionException e) {
+				throw new IOException(e.getCause());
+			}
+		}
+		try (Writer summary = Files.newBufferedWriter(outDir.resolve(SUMMARY),
+				Charset.defaultCharset())) {
+			writeSummary(results, summary);
+		}
+		return results;
+	}
+
+	/**
+	 * Runs a job.
+	 *
+	 * @param job
+	 *            The job.
+	 * @return The result.
+	 * @throws IOException
+	 *             if the output cannot be written.
+	 */
+	private Result run(Job job) throws IOException {
+		long start = System.nanoTime();
+		PAL.ExitStatus status = null;
+		StringWriter err = new StringWriter();
+
+		try (Writer out = Files.newBufferedWriter(
+				outDir.resolve(job.name + ".out"), Charset.defaultCharset());
+				InputStream in = job.input == null ? InputStream
+						.nullInputStream() : Files.newInputStream(job.input)) {
+			try {
+				Program program = program(job.program);
+				status = new Machine(program, in, out, err, dataSize)
+						.run(engine);
+			} catch (IOException | OutOfMemoryError
+					| IndexOutOfBoundsException e) {
+				// As the command line reports them.
+				err.write(e.getMessage() + System.lineSeparator());
+			}
+		}
+		long nanos = System.nanoTime() - start;
+
+		Path errFile = outDir.resolve(job.name + ".err");
+		if (err.getBuffer().length() > 0) {
+			Files.writeString(errFile, err.toString(), Charset.defaultCharset());
+		} else {
+			Files.deleteIfExists(errFile);
+		}
+		return new Result(job, status, nanos);
+	}
+
+	/**
+	 * Returns a program, loading it if this is the first job to run it.
+	 *
+	 * @param file
+	 *            The program file.
+	 * @return The program.
+	 * @throws IOException
+	 *             if the program cannot be loaded.
+	 */
+	private Program program(Path file) throws IOException {
+		FutureTask<Program> task = new FutureTask<Program>(() -> load(file));
+		FutureTask<Program> loaded = programs.putIfAbsent(file, task);
+		if (loaded == null) {
+			task.run();
+			loaded = task;
+		}
+		try {
+			return loaded.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw (IOException) e.getCause();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Loads a program from a source or object file.
+	 */
+	private Program load(Path file) throws IOException {
+		String name = file.toString();
+		if (ObjectFile.isObjectFile(name)) {
+			return Program.read(file, name, codeSize);
+		}
+		try (InputStream source = Files.newInputStream(file)) {
+			return Program.load(source, name, codeSize);
+		}
+	}
+
+	/**
+	 * Writes a summary of the results, as tab-separated lines of the name of
+	 * the program, its status (<code>NORMAL</code>, <code>ABNORMAL</code>, or
+	 * <code>ERROR</code> if it could not be loaded or run), and the time taken
+	 * in milliseconds.
+	 *
+	 * @param results
+	 *            The results.
+	 * @param out
+	 *            The destination.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	static void writeSummary(List<Result> results, Appendable out)
+			throws IOException {
+		for (Result result : results) {
+			out.append(result.job.name).append('\t')
+					.append(result.status == null ? "ERROR" : result.status
+							.name()).append('\t')
+					.append(millis(result.nanos)).append('\n');
+		}
+		return;
+	}
+
+	/**
+	 * Writes a one-line count of the results by status, and the total time
+	 * taken.
+	 *
+	 * @param results
+	 *            The results.
+	 * @param nanos
+	 *            The total time taken, in nanoseconds.
+	 * @param out
+	 *            The destination.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	static void writeTotals(List<Result> results, long nanos, Appendable out)
+			throws IOException {
+		int normal = 0;
+		int abnormal = 0;
+		for (Result result : results) {
+			if (result.status == PAL.ExitStatus.NORMAL) {
+				normal++;
+			} else if (result.status == PAL.ExitStatus.ABNORMAL) {
+				abnormal++;
+			}
+		}
+		out.append(results.size() + " programs: " + normal + " normal, "
+				+ abnormal + " abnormal, "
+				+ (results.size() - normal - abnormal) + " errors, in "
+				+ millis(nanos) + " ms.\n");
+		return;
+	}
+
+	/**
+	 * Formats a time in nanoseconds as milliseconds.
+	 *
+	 * @param nanos
+	 *            The time.
+	 * @return The time in milliseconds, to three decimal places.
+	 */
+	static String millis(long nanos) {
+		return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+	}
+
+	/**
+	 * Returns the name of a program file without its extension.
+	 */
+	private static String baseName(Path file) {
+		String filename = file.getFileName().toString();
+		if (filename.endsWith(".pal") || ObjectFile.isObjectFile(filename)) {
+			return filename.substring(0, filename.lastIndexOf('.'));
+		}
+		return filename;
+	}
+}
@@ -0,0 +1,558 @@
+package net.logicsquad.pal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * A minimal writer for JVM class files, sufficient for the code generated by
+ * {@link Compiler <code>Compiler</code>}. It supports only static methods, and
+ * makes a simplifying assumption about stack map frames: at every branch
+ * target the operand stack is empty and the locals are exactly the method's
+ * parameters. Under that assumption every frame is a <code>same_frame</code>,
+ * and no type inference is required.
+ *
+ * @author Paul Hoadley &lt;paulh@logicsquad.net&gt;
+ */
+final class ClassAssembler {
+	// Constant pool tags.
+	private static final int CONSTANT_UTF8 = 1;
+	private static final int CONSTANT_INTEGER = 3;
+	private static final int CONSTANT_CLASS = 7;
+	private static final int CONSTANT_METHODREF = 10;
+	private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+	// Access flags.
+	static final int ACC_PRIVATE = 0x0002;
+	static final int ACC_STATIC = 0x0008;
+	static final int ACC_FINAL = 0x0010;
+	static final int ACC_SUPER = 0x0020;
+
+	// The opcodes we emit.
+	static final int ALOAD_0 = 0x2a;
+	static final int ILOAD_1 = 0x1b;
+	static final int ISTORE_1 = 0x3c;
+	static final int ISHR = 0x7a;
+	static final int POP = 0x57;
+	static final int IFEQ = 0x99;
+	static final int IFNE = 0x9a;
+	static final int IFLT = 0x9b;
+	static final int IFGE = 0x9c;
+	static final int IF_ICMPEQ = 0x9f;
+	static final int IF_ICMPLT = 0xa1;
+	static final int IF_ICMPGE = 0xa2;
+	static final int IRETURN = 0xac;
+	private static final int ICONST_0 = 0x03;
+	private static final int BIPUSH = 0x10;
+	private static final int SIPUSH = 0x11;
+	private static final int LDC_W = 0x13;
+	private static final int GOTO_W = 0xc8;
+	private static final int TABLESWITCH = 0xaa;
+	private static final int INVOKEVIRTUAL = 0xb6;
+	private static final int INVOKESTATIC = 0xb8;
+
+	/** Class file version: Java 8, the first to require stack map frames. */
+	private static final int MAJOR_VERSION = 52;
+
+	/** The constant pool, in serialised form. */
+	private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+
+	/** A <code>DataOutputStream</code> over {@link #pool}. */
+	private final DataOutputStream poolOut = new DataOutputStream(pool);
+
+	/** Constant pool entries already written, keyed by content. */
+	private final Map<String, Integer> poolIndex = new HashMap<String, Integer>();
+
+	/** The next free constant pool index. */
+	private int poolSize = 1;
+
+	/** The internal name of the class. */
+	private final int thisClass;
+
+	/** The internal name of the superclass. */
+	private final int superClass;
+
+	/** The methods, in the order they were added. */
+	private final List<Method> methods = new ArrayList<Method>();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param className
+	 *            The internal name of the class, e.g.
+	 *            <code>net/logicsquad/pal/Foo</code>.
+	 */
+	ClassAssembler(String className) {
+		thisClass = classRef(className);
+		superClass = classRef("java/lang/Object");
+		return;
+	}
+
+	/**
+	 * Adds a method to the class.
+	 *
+	 * @param access
+	 *            The access flags; <code>ACC_STATIC</code> is implied.
+	 * @param name
+	 *            The name of the method.
+	 * @param descriptor
+	 *            The method descriptor.
+	 * @param maxLocals
+	 *            The number of local variable slots.
+	 * @return A <code>Method</code> to write the code into.
+	 */
+	Method method(int access, String name, String descriptor, int maxLocals) {
+		Method m = new Method(access | ACC_STATIC, utf8(name), utf8(descriptor),
+				maxLocals);
+		methods.add(m);
+		return m;
+	}
+
+	/**
+	 * Serialises the class.
+	 *
+	 * @return The class file bytes.
+	 */
+	byte[] toByteArray() {
+		// The stack map attribute name must be in the pool before it is
+		// written out.
+		int codeName = utf8("Code");
+		int stackMapName = utf8("StackMapTable");
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(0xcafebabe);
+			out.writeShort(0);
+			out.writeShort(MAJOR_VERSION);
+			out.writeShort(poolSize);
+			pool.writeTo(out);
+			out.writeShort(ACC_FINAL | ACC_SUPER);
+			out.writeShort(thisClass);
+			out.writeShort(superClass);
+			// No interfaces or fields.
+			out.writeShort(0);
+			out.writeShort(0);
+			out.writeShort(methods.size());
+			for (Method m : methods) {
+				m.writeTo(out, codeName, stackMapName);
+			}
+			// No class attributes.
+			out.writeShort(0);
+			out.flush();
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			// Not possible with a ByteArrayOutputStream.
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Returns the constant pool index of a <code>CONSTANT_Utf8</code> entry,
+	 * adding it if necessary.
+	 */
+	private int utf8(String s) {
+		String key = "U" + s;
+		Integer index = poolIndex.get(key);
+		if (index == null) {
+			try {
+				poolOut.writeByte(CONSTANT_UTF8);
+				poolOut.writeUTF(s);
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+			index = newEntry(key);
+		}
+		return index.intValue();
+	}
+
+	/**
+	 * Returns the constant pool index of a <code>CONSTANT_Class</code> entry,
+	 * adding it if necessary.
+	 */
+	private int classRef(String name) {
+		String key = "C" + name;
+		Integer index = poolIndex.get(key);
+		if (index == null) {
+			int nameIndex = utf8(name);
+			writeEntry(CONSTANT_CLASS, nameIndex);
+			index = newEntry(key);
+		}
+		return index.intValue();
+	}
+
+	/**
+	 * Returns the constant pool index of a <code>CONSTANT_Integer</code>
+	 * entry, adding it if necessary.
+	 */
+	private int integer(int value) {
+		String key = "I" + value;
+		Integer index = poolIndex.get(key);
+		if (index == null) {
+			try {
+				poolOut.writeByte(CONSTANT_INTEGER);
+				poolOut.writeInt(value);
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+			index = newEntry(key);
+		}
+		return index.intValue();
+	}
+
+	/**
+	 * Returns the constant pool index of a <code>CONSTANT_Methodref</code>
+	 * entry, adding it if necessary.
+	 */
+	private int methodRef(String owner, String name, String descriptor) {
+		String key = "M" + owner + "." + name + descriptor;
+		Integer index = poolIndex.get(key);
+		if (index == null) {
+			int classIndex = classRef(owner);
+			int nameIndex = utf8(name);
+			int typeIndex = utf8(descriptor);
+			writeEntry(CONSTANT_NAME_AND_TYPE, nameIndex, typeIndex);
+			int nameAndType = poolSize++;
+			writeEntry(CONSTANT_METHODREF, classIndex, nameAndType);
+			index = newEntry(key);
+		}
+		return index.intValue();
+	}
+
+	/**
+	 * Writes a constant pool entry consisting of a tag and one or more
+	 * two-byte indices.
+	 */
+	private void writeEntry(int tag, int... indices) {
+		try {
+			poolOut.writeByte(tag);
+			for (int index : indices) {
+				poolOut.writeShort(index);
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return;
+	}
+
+	/**
+	 * Records the entry just written under <code>key</code>, and returns its
+	 * index.
+	 */
+	private Integer newEntry(String key) {
+		Integer index = Integer.valueOf(poolSize++);
+		if (poolSize > 0xffff) {
+			throw new IllegalStateException("Constant pool too large.");
+		}
+		poolIndex.put(key, index);
+		return index;
+	}
+
+	/**
+	 * A position in a method's code, which may be used before it is bound.
+	 */
+	static final class Label {
+		/** The bound offset, or -1. */
+		private int offset = -1;
+
+		/** Offsets of instructions referring to this label. */
+		private final List<int[]> fixups = new ArrayList<int[]>();
+	}
+
+	/**
+	 * A method under construction.
+	 */
+	final class Method {
+		/** The access flags. */
+		private final int access;
+
+		/** The constant pool index of the name. */
+		private final int name;
+
+		/** The constant pool index of the descriptor. */
+		private final int descriptor;
+
+		/** The number of local variable slots. */
+		private final int maxLocals;
+
+		/** The greatest operand stack depth reached, tracked by callers. */
+		private int maxStack;
+
+		/** The bytecode. */
+		private byte[] code = new byte[256];
+
+		/** The number of bytes of bytecode. */
+		private int length;
+
+		/** Offsets at which a stack map frame is required. */
+		private final TreeSet<Integer> frames = new TreeSet<Integer>();
+
+		/** The labels used in this method. */
+		private final List<Label> labels = new ArrayList<Label>();
+
+		private Method(int access, int name, int descriptor, int maxLocals) {
+			this.access = access;
+			this.name = name;
+			this.descriptor = descriptor;
+			this.maxLocals = maxLocals;
+			return;
+		}
+
+		/**
+		 * Returns a new, unbound label.
+		 *
+		 * @return The label.
+		 */
+		Label newLabel() {
+			Label l = new Label();
+			labels.add(l);
+			return l;
+		}
+
+		/**
+		 * Binds a label to the current position. A stack map frame is
+		 * recorded here, so the operand stack must be empty.
+		 *
+		 * @param l
+		 *            The label to bind.
+		 */
+		void mark(Label l) {
+			l.offset = length;
+			frames.add(Integer.valueOf(length));
+			return;
+		}
+
+		/**
+		 * Notes that the operand stack reaches at least <code>depth</code>
+		 * entries.
+		 *
+		 * @param depth
+		 *            The depth.
+		 */
+		void stack(int depth) {
+			maxStack = Math.max(maxStack, depth);
+			return;
+		}
+
+		/**
+		 * Emits a single-byte instruction.
+		 *
+		 * @param opcode
+		 *            The opcode.
+		 */
+		void op(int opcode) {
+			u1(opcode);
+			return;
+		}
+
+		/**
+		 * Emits the shortest instruction pushing an <code>int</code>
+		 * constant.
+		 *
+		 * @param value
+		 *            The constant.
+		 */
+		void pushInt(int value) {
+			if (value >= -1 && value <= 5) {
+				u1(ICONST_0 + value);
+			} else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+				u1(BIPUSH);
+				u1(value);
+			} else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+				u1(SIPUSH);
+				u2(value);
+			} else {
+				u1(LDC_W);
+				u2(integer(value));
+			}
+			return;
+		}
+
+		/**
+		 * Emits an <code>invokevirtual</code> instruction.
+		 */
+		void invokeVirtual(String owner, String name, String descriptor) {
+			u1(INVOKEVIRTUAL);
+			u2(methodRef(owner, name, descriptor));
+			return;
+		}
+
+		/**
+		 * Emits an <code>invokestatic</code> instruction.
+		 */
+		void invokeStatic(String owner, String name, String descriptor) {
+			u1(INVOKESTATIC);
+			u2(methodRef(owner, name, descriptor));
+			return;
+		}
+
+		/**
+		 * Emits an unconditional jump.
+		 *
+		 * @param target
+		 *            The destination.
+		 */
+		void jump(Label target) {
+			int at = length;
+			u1(GOTO_W);
+			fixup(target, at, 4);
+			return;
+		}
+
+		/**
+		 * Emits a conditional jump. Since the destination may be more than
+		 * 32K away, this is assembled as the opposite condition skipping over
+		 * an unconditional jump.
+		 *
+		 * @param opcode
+		 *            One of the <code>if</code> opcodes.
+		 * @param target
+		 *            The destination if the condition holds.
+		 */
+		void jump(int opcode, Label target) {
+			// The "if" opcodes come in complementary pairs.
+			int inverse = ((opcode - IFEQ) ^ 1) + IFEQ;
+			u1(inverse);
+			// Skip this instruction (3 bytes) and the goto_w (5 bytes).
+			u2(8);
+			jump(target);
+			frames.add(Integer.valueOf(length));
+			return;
+		}
+
+		/**
+		 * Emits a <code>tableswitch</code> on the <code>int</code> on top of
+		 * the operand stack.
+		 *
+		 * @param low
+		 *            The value corresponding to <code>targets[0]</code>.
+		 * @param targets
+		 *            The destinations for consecutive values.
+		 * @param otherwise
+		 *            The destination for any other value.
+		 */
+		void tableSwitch(int low, Label[] targets, Label otherwise) {
+			int at = length;
+			u1(TABLESWITCH);
+			while (length % 4 != 0) {
+				u1(0);
+			}
+			fixup(otherwise, at, 4);
+			u4(low);
+			u4(low + targets.length - 1);
+			for (Label l : targets) {
+				fixup(l, at, 4);
+			}
+			return;
+		}
+
+		/**
+		 * Returns the number of bytes of code emitted so far.
+		 *
+		 * @return The length of the code.
+		 */
+		int length() {
+			return length;
+		}
+
+		/**
+		 * Records a reference to <code>target</code> from the instruction
+		 * at <code>from</code>, and reserves space for the offset.
+		 */
+		private void fixup(Label target, int from, int size) {
+			target.fixups.add(new int[] { from, length });
+			for (int i = 0; i < size; i++) {
+				u1(0);
+			}
+			return;
+		}
+
+		private void u1(int b) {
+			if (length == code.length) {
+				byte[] bigger = new byte[code.length * 2];
+				System.arraycopy(code, 0, bigger, 0, length);
+				code = bigger;
+			}
+			code[length++] = (byte) b;
+			return;
+		}
+
+		private void u2(int s) {
+			u1(s >> 8);
+			u1(s);
+			return;
+		}
+
+		private void u4(int w) {
+			u2(w >> 16);
+			u2(w);
+			return;
+		}
+
+		/**
+		 * Resolves label references, and writes the method.
+		 */
+		private void writeTo(DataOutputStream out, int codeName,
+				int stackMapName) throws IOException {
+			for (Label l : labels) {
+				if (l.offset < 0 && !l.fixups.isEmpty()) {
+					throw new IllegalStateException("Unbound label.");
+				}
+				for (int[] f : l.fixups) {
+					int delta = l.offset - f[0];
+					code[f[1]] = (byte) (delta >> 24);
+					code[f[1] + 1] = (byte) (delta >> 16);
+					code[f[1] + 2] = (byte) (delta >> 8);
+					code[f[1] + 3] = (byte) delta;
+				}
+			}
+			// A frame may only be recorded at the start of an instruction,
+			// so drop one at the very end of the code.
+			frames.remove(Integer.valueOf(length));
+
+			// Every frame is a same_frame, or same_frame_extended for larger
+			// deltas.
+			ByteArrayOutputStream map = new ByteArrayOutputStream();
+			DataOutputStream mapOut = new DataOutputStream(map);
+			int previous = -1;
+			for (Integer offset : frames) {
+				int delta = offset.intValue() - previous - 1;
+				if (delta < 64) {
+					mapOut.writeByte(delta);
+				} else {
+					mapOut.writeByte(251);
+					mapOut.writeShort(delta);
+				}
+				previous = offset.intValue();
+			}
+
+			out.writeShort(access);
+			out.writeShort(name);
+			out.writeShort(descriptor);
+			out.writeShort(1);
+			out.writeShort(codeName);
+			int mapLength = frames.isEmpty() ? 0 : 8 + map.size();
+			out.writeInt(12 + length + mapLength);
+			out.writeShort(maxStack);
+			out.writeShort(maxLocals);
+			out.writeInt(length);
+			out.write(code, 0, length);
+			// No exception table.
+			out.writeShort(0);
+			if (frames.isEmpty()) {
+				out.writeShort(0);
+			} else {
+				out.writeShort(1);
+				out.writeShort(stackMapName);
+				out.writeInt(2 + map.size());
+				out.writeShort(frames.size());
+				map.writeTo(out);
+			}
+			return;
+		}
+	}
+}
@@ -0,0 +1,314 @@
+package net.logicsquad.pal;
+
+/**
+ * Translates a {@link CodeStore <code>CodeStore</code>} into a handler object
+ * for each instruction, with the instruction's operands already bound, for the
+ * {@link PAL.Engine#CLOSURE <code>CLOSURE</code>} engine. Each handler calls
+ * the corresponding instruction method on {@link PAL <code>PAL</code>}, as
+ * compiled code does, so the semantics (and error reporting) are exactly
+ * those of the interpreter; what is saved is fetching and decoding each
+ * instruction, and the dispatch switch. Nothing is generated or loaded, so a
+ * program is ready to run much sooner than with the
+ * {@link PAL.Engine#BYTECODE <code>BYTECODE</code>} engine, which suits short
+ * runs.
+ *
+ * <p>
+ * The handlers are chained by basic block: when control passes to the next
+ * instruction (or, for a superinstruction that completes, to the instruction
+ * after the sequence), a handler calls the handler for it directly, so that
+ * the JIT compiler can inline along the paths a program actually takes. Any
+ * other transfer of control returns the destination address to a dispatch
+ * loop, which calls the handler there. So that a long run of straight-line
+ * code does not make a deep chain of calls, control also returns to the
+ * dispatch loop at every multiple of {@link #MAX_CHAIN_LENGTH
+ * <code>MAX_CHAIN_LENGTH</code>}.
+ * </p>
+ *
+ * @author Paul Hoadley &lt;paulh@logicsquad.net&gt;
+ */
+final class Closures {
+	/** The greatest number of handlers that call each other in turn. */
+	private static final int MAX_CHAIN_LENGTH = 64;
+
+	/**
+	 * The handler for an instruction.
+	 */
+	interface Handler {
+		/**
+		 * Executes the instruction, and any that follow it in the same chain.
+		 *
+		 * @param m
+		 *            The machine.
+		 * @return The zero-based address at which execution continues, or
+		 *         {@link PAL#STOPPED <code>STOPPED</code>}.
+		 */
+		int execute(PAL m);
+	}
+
+	/** The instructions. */
+	private final CodeStore code;
+
+	/** The handler for each instruction. */
+	private final Handler[] handlers;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param code
+	 *            The instructions.
+	 */
+	private Closures(CodeStore code) {
+		this.code = code;
+		handlers = new Handler[code.size()];
+		// Each handler may refer to those after it.
+		for (int i = handlers.length - 1; i >= 0; i--) {
+			handlers[i] = handler(i);
+		}
+		return;
+	}
+
+	/**
+	 * Translates a program.
+	 *
+	 * @param code
+	 *            The program.
+	 * @return The translated program.
+	 */
+	static Closures build(CodeStore code) {
+		return new Closures(code);
+	}
+
+	/**
+	 * Runs the program on a machine.
+	 *
+	 * @param machine
+	 *            The machine, whose state the program operates on.
+	 * @param pc
+	 *            The zero-based address to start at.
+	 * @return The zero-based address at which control left the code store, or
+	 *         {@link PAL#STOPPED <code>STOPPED</code>}.
+	 */
+	int run(PAL machine, int pc) {
+		final Handler[] handlers = this.handlers;
+
+		while (pc >= 0 && pc < handlers.length) {
+			pc = handlers[pc].execute(machine);
+		}
+		return pc;
+	}
+
+	/**
+	 * Returns the handler to be called directly when control passes to an
+	 * address later in the code.
+	 *
+	 * @param address
+	 *            The zero-based address.
+	 * @return The handler for the instruction there, or one that returns to
+	 *         the dispatch loop if the address ends a chain, or is not in
+	 *         the code store.
+	 */
+	private Handler next(final int address) {
+		if (address < handlers.length && address % MAX_CHAIN_LENGTH != 0) {
+			return handlers[address];
+		}
+		return m -> address;
+	}
+
+	/**
+	 * Makes the handler for an instruction.
+	 *
+	 * @param i
+	 *            The index of the instruction.
+	 * @return The handler.
+	 */
+	private Handler handler(final int i) {
+		final int level = code.levels[i];
+		final int operand = code.operands[i];
+		final int following = i + 1;
+		final Handler next;
+
+		switch (code.opcodes[i]) {
+		case Mnemonic.CAL:
+			return m -> {
+				m.call(level, following);
+				return operand;
+			};
+		case CodeStore.TAIL_CALL:
+			return m -> {
+				m.tailCall(level, following);
+				return operand;
+			};
+		case Mnemonic.INC:
+			next = next(following);
+			return m -> {
+				m.increment(operand);
+				return next.execute(m);
+			};
+		case Mnemonic.JIF:
+			next = next(following);
+			return m -> m.jumpIfFalse(i, true) ? operand : next.execute(m);
+		case CodeStore.JIF_OUTSIDE:
+			// Returns only if the jump is not taken.
+			next = next(following);
+			return m -> {
+				m.jumpIfFalse(i, false);
+				return next.execute(m);
+			};
+		case Mnemonic.JMP:
+			return m -> operand;
+		case CodeStore.JMP_OUTSIDE:
+			return m -> {
+				m.jumpOutside(i);
+				return PAL.STOPPED;
+			};
+		case CodeStore.HALT:
+			// "JMP 0 0" signifies program termination.
+			return m -> PAL.STOPPED;
+		case Mnemonic.LCI:
+			next = next(following);
+			return m -> {
+				m.loadInt(operand);
+				return next.execute(m);
+			};
+		case Mnemonic.LCR:
+			next = next(following);
+			return m -> {
+				m.loadReal(operand);
+				return next.execute(m);
+			};
+		case Mnemonic.LCS:
+			next = next(following);
+			return m -> {
+				m.loadString(operand);
+				return next.execute(m);
+			};
+		case Mnemonic.LDA:
+			next = next(following);
+			return m -> {
+				m.loadAddress(level, operand);
+				return next.execute(m);
+			};
+		case Mnemonic.LDI:
+			next = next(following);
+			return m -> {
+				m.loadIndirect(i);
+				return next.execute(m);
+			};
+		case Mnemonic.LDV:
+			next = next(following);
+			return m -> {
+				m.loadValue(level, operand);
+				return next.execute(m);
+			};
+		case Mnemonic.LDU:
+			next = next(following);
+			return m -> {
+				m.loadUndefined();
+				return next.execute(m);
+			};
+		case Mnemonic.MST:
+			next = next(following);
+			return m -> {
+				m.markStack(level);
+				return next.execute(m);
+			};
+		case Mnemonic.OPR:
+			next = next(following);
+			return m -> {
+				m.doOperation(i, operand);
+				return next.execute(m);
+			};
+		case CodeStore.RETURN:
+			return m -> m.doReturn(operand);
+		case Mnemonic.RDI:
+			// Continues with the next instruction unless an exception is
+			// raised.
+			next = next(following);
+			return m -> {
+				int pc = m.readInt(i, level, operand, following);
+				return pc == following ? next.execute(m) : pc;
+			};
+		case Mnemonic.RDR:
+			next = next(following);
+			return m -> {
+				int pc = m.readReal(i, level, operand, following);
+				return pc == following ? next.execute(m) : pc;
+			};
+		case Mnemonic.REH:
+			next = next(following);
+			return m -> {
+				m.registerHandler(operand);
+				return next.execute(m);
+			};
+		case Mnemonic.SIG:
+			return m -> m.signal(i, operand);
+		case Mnemonic.STI:
+			next = next(following);
+			return m -> {
+				m.storeIndirect(i);
+				return next.execute(m);
+			};
+		case Mnemonic.STO:
+			next = next(following);
+			return m -> {
+				m.store(level, operand);
+				return next.execute(m);
+			};
+		case CodeStore.ILLEGAL:
+			return m -> {
+				m.illegal(i);
+				return PAL.STOPPED;
+			};
+		case CodeStore.ADD_CONSTANT:
+			// Continues after the sequence if it completes, and otherwise
+			// with its second instruction.
+			next = next(i + 4);
+			return m -> {
+				int pc = m.addConstant(i);
+				return pc == i + 4 ? next.execute(m) : pc;
+			};
+		case CodeStore.COMPARE_JUMP:
+			next = next(i + 4);
+			return m -> {
+				int pc = m.compareAndJump(i);
+				return pc == i + 4 ? next.execute(m) : pc;
+			};
+		case CodeStore.STORE_CONSTANT:
+			next = next(i + 2);
+			return m -> {
+				int pc = m.storeConstant(i);
+				return pc == i + 2 ? next.execute(m) : pc;
+			};
+		case CodeStore.INT_ARITHMETIC:
+			next = next(following);
+			return m -> {
+				m.intArithmetic(i, operand);
+				return next.execute(m);
+			};
+		case CodeStore.REAL_ARITHMETIC:
+			next = next(following);
+			return m -> {
+				m.realArithmetic(i, operand);
+				return next.execute(m);
+			};
+		case CodeStore.INT_COMPARISON:
+			next = next(following);
+			return m -> {
+				m.intComparison(i, operand);
+				return next.execute(m);
+			};
+		case CodeStore.REAL_COMPARISON:
+			next = next(following);
+			return m -> {
+				m.realComparison(i, operand);
+				return next.execute(m);
+			};
+		default:
+			next = next(following);
+			return m -> {
+				m.unknown(i);
+				return next.execute(m);
+			};
+		}
+	}
+}
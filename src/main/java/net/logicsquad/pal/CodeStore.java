@@ -0,0 +1,668 @@
+package net.logicsquad.pal;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntFunction;
+
+/**
+ * A linked, pre-decoded representation of a PAL program. The loader produces a
+ * list of {@link Code <code>Code</code>} objects, one per source instruction;
+ * this class turns that list into parallel arrays of opcodes, level fields and
+ * operands, with string constants held in a constant pool. The
+ * interpreter loop can then dispatch on an <code>int</code> and read its
+ * operands without any string handling or unboxing.
+ *
+ * <p>
+ * Instructions whose operands are malformed (for example, <code>LCI</code>
+ * with a string operand) are not rejected here. Instead they are decoded to
+ * an {@link #ILLEGAL <code>ILLEGAL</code>} instruction carrying the error
+ * message the interpreter has always produced, so that the error is still
+ * reported if, and only if, the instruction is executed.
+ * </p>
+ *
+ * <p>
+ * Once decoded, the program is checked by the {@link Verifier
+ * <code>Verifier</code>}, so that the execution engines can trust the
+ * static properties it establishes. Then a few common instruction sequences
+ * are fused into superinstructions, which do the work of the whole sequence
+ * in one dispatch without the intermediate stack traffic. The superinstruction replaces only
+ * the opcode of the first instruction in the sequence: the operands of the
+ * sequence, and the instructions after the first, are left as they are. A
+ * jump into the middle of a sequence therefore still finds the original
+ * instructions there, and a superinstruction that cannot complete as written
+ * (because of a type error, say) executes just its first instruction and
+ * carries on at the second, so that any error is reported by the original
+ * instruction.
+ * </p>
+ *
+ * <p>
+ * Before fusion, arithmetic and comparisons whose operand types can be
+ * inferred are replaced by type-specialised opcodes, and calls in tail
+ * position by {@link #TAIL_CALL <code>TAIL_CALL</code>}: see
+ * {@link TypeInference <code>TypeInference</code>}.
+ * </p>
+ *
+ * @author Philip Roberts &lt;philip.roberts@gmail.com&gt;
+ * @author Paul Hoadley &lt;paulh@logicsquad.net&gt;
+ */
+class CodeStore {
+	// Decoded opcodes beyond those defined in Mnemonic. These never
+	// appear in source files.
+
+	/** Decoded opcode for <code>JMP 0 0</code>, program termination. */
+	static final int HALT = 19;
+
+	/**
+	 * Decoded opcode for an instruction with malformed operands. The operand
+	 * is an index into the constant pool, where the error message is stored.
+	 */
+	static final int ILLEGAL = 20;
+
+	/**
+	 * Decoded opcode for an unrecognised mnemonic. The operand is an index
+	 * into the constant pool, where the diagnostic message is stored.
+	 */
+	static final int UNKNOWN = 21;
+
+	/**
+	 * Decoded opcode for <code>OPR 0 0</code> (procedure return) and
+	 * <code>OPR 0 1</code> (function return). The operand is 0 or 1
+	 * respectively.
+	 */
+	static final int RETURN = 22;
+
+	/**
+	 * Superinstruction for <code>LDV; LCI; OPR 0 3; STO</code> and
+	 * <code>LDV; LCI; OPR 0 4; STO</code>, adding a constant to or subtracting
+	 * it from a variable.
+	 */
+	static final int ADD_CONSTANT = 23;
+
+	/**
+	 * Superinstruction for <code>LDV; LDV; OPR; JIF</code>, where the
+	 * <code>OPR</code> is a comparison (10-15) and the <code>JIF</code>
+	 * destination is inside the code.
+	 */
+	static final int COMPARE_JUMP = 24;
+
+	/** Superinstruction for <code>LCI; STO</code>. */
+	static final int STORE_CONSTANT = 25;
+
+	/**
+	 * Opcode for a <code>JMP</code> to a destination outside the code, as
+	 * rewritten by the {@link Verifier <code>Verifier</code>}.
+	 */
+	static final int JMP_OUTSIDE = 26;
+
+	/**
+	 * Opcode for a <code>JIF</code> to a destination outside the code, as
+	 * rewritten by the {@link Verifier <code>Verifier</code>}.
+	 */
+	static final int JIF_OUTSIDE = 27;
+
+	/**
+	 * Opcode for integer arithmetic (<code>OPR 0 3</code> to <code>6</code>),
+	 * where {@link TypeInference <code>TypeInference</code>} has shown that
+	 * both operands are integers. The operand is the <code>OPR</code> number.
+	 */
+	static final int INT_ARITHMETIC = 28;
+
+	/** As {@link #INT_ARITHMETIC}, for two reals. */
+	static final int REAL_ARITHMETIC = 29;
+
+	/**
+	 * Opcode for a comparison (<code>OPR 0 10</code> to <code>15</code>) of
+	 * two integers, as shown by {@link TypeInference
+	 * <code>TypeInference</code>}. The operand is the <code>OPR</code> number.
+	 */
+	static final int INT_COMPARISON = 30;
+
+	/** As {@link #INT_COMPARISON}, for two reals. */
+	static final int REAL_COMPARISON = 31;
+
+	/**
+	 * Opcode for a <code>CAL</code> immediately followed by a return, where
+	 * the callee returns in the same way, as found by {@link TypeInference
+	 * <code>TypeInference</code>}. If tail calls are enabled, and it can,
+	 * this replaces the current frame with the callee's, which then returns
+	 * straight to the current frame's caller: see
+	 * {@link TaggedDataStack#tailCall <code>TaggedDataStack.tailCall</code>}.
+	 * Otherwise it is an ordinary call.
+	 */
+	static final int TAIL_CALL = 32;
+
+	/** The opcode for each instruction. */
+	final int[] opcodes;
+
+	/** The first (level) field for each instruction. */
+	final int[] levels;
+
+	/**
+	 * The resolved second operand for each instruction. Code addresses are
+	 * converted to zero-based indices into the code store, real constants are
+	 * replaced by their raw bits, and string constants are replaced by an
+	 * index into {@link #constants}.
+	 */
+	final int[] operands;
+
+	/** The constant pool of <code>String</code>s. */
+	final Object[] constants;
+
+	/**
+	 * The original instructions, retained for diagnostics. For a code store
+	 * loaded from an object file these are decoded on demand, and entries are
+	 * <code>null</code> until first requested. Guarded by <code>this</code>,
+	 * since a code store may be shared by many machines.
+	 */
+	private final Code[] source;
+
+	/**
+	 * Decodes original instructions on demand, or <code>null</code> if all of
+	 * {@link #source} is present.
+	 */
+	private final IntFunction<Code> sourceLoader;
+
+	/**
+	 * For an optimised program, the index of the original instruction each
+	 * instruction came from, or <code>null</code>.
+	 */
+	private final int[] origins;
+
+	/**
+	 * For an optimised program, the index of the instruction that replaced
+	 * each original instruction (or, if it was removed, of the next one that
+	 * remains), with one extra entry for the end of the code, or
+	 * <code>null</code>.
+	 */
+	private final int[] addresses;
+
+	/** The problems found by the verifier. */
+	private final List<String> problems;
+
+	/** The number of superinstructions formed. */
+	private int fused;
+
+	/** The number of operations specialised by type. */
+	private int specialised;
+
+	/** The number of calls made tail calls. */
+	private int tailCalls;
+
+	/**
+	 * Constructor. Decodes and links the supplied instructions.
+	 *
+	 * @param code
+	 *            A <code>List</code> of <code>Code</code> objects, in program
+	 *            order.
+	 */
+	CodeStore(List<Code> code) {
+		int size = code.size();
+		source = code.toArray(new Code[size]);
+		opcodes = new int[size];
+		levels = new int[size];
+		operands = new int[size];
+
+		Map<Object, Integer> pool = new LinkedHashMap<Object, Integer>();
+		for (int i = 0; i < size; i++) {
+			decode(i, source[i], pool);
+		}
+		constants = pool.keySet().toArray();
+		sourceLoader = null;
+		origins = null;
+		addresses = null;
+		problems = Verifier.verify(this);
+		ControlFlowGraph graph = ControlFlowGraph.structure(this);
+		specialised = TypeInference.specialise(this, graph);
+		tailCalls = TypeInference.findTailCalls(this, graph);
+		fuse();
+		return;
+	}
+
+	/**
+	 * Constructor for an already decoded program, as read from an
+	 * {@link ObjectFile <code>ObjectFile</code>}.
+	 *
+	 * @param opcodes
+	 *            The opcode for each instruction.
+	 * @param levels
+	 *            The level field for each instruction.
+	 * @param operands
+	 *            The resolved operand for each instruction.
+	 * @param constants
+	 *            The constant pool.
+	 * @param sourceLoader
+	 *            Returns the original instruction at a given index.
+	 */
+	CodeStore(int[] opcodes, int[] levels, int[] operands, Object[] constants,
+			IntFunction<Code> sourceLoader) {
+		this(opcodes, levels, operands, constants, sourceLoader, null, null);
+		return;
+	}
+
+	/**
+	 * Constructor for a program made by the {@link Optimiser
+	 * <code>Optimiser</code>}, whose instructions are numbered differently
+	 * from the original ones.
+	 *
+	 * @param opcodes
+	 *            The opcode for each instruction.
+	 * @param levels
+	 *            The level field for each instruction.
+	 * @param operands
+	 *            The resolved operand for each instruction.
+	 * @param constants
+	 *            The constant pool.
+	 * @param sourceLoader
+	 *            Returns the original instruction for a given index.
+	 * @param origins
+	 *            The original index of each instruction, or <code>null</code>
+	 *            if they are numbered as they were.
+	 * @param addresses
+	 *            The index of the instruction for each original address,
+	 *            including the end of the code, or <code>null</code> if they
+	 *            are numbered as they were.
+	 */
+	CodeStore(int[] opcodes, int[] levels, int[] operands, Object[] constants,
+			IntFunction<Code> sourceLoader, int[] origins, int[] addresses) {
+		this.opcodes = opcodes;
+		this.levels = levels;
+		this.operands = operands;
+		this.constants = constants;
+		this.sourceLoader = sourceLoader;
+		this.origins = origins;
+		this.addresses = addresses;
+		source = new Code[opcodes.length];
+		problems = Verifier.verify(this);
+		ControlFlowGraph graph = ControlFlowGraph.structure(this);
+		specialised = TypeInference.specialise(this, graph);
+		tailCalls = TypeInference.findTailCalls(this, graph);
+		fuse();
+		return;
+	}
+
+	/**
+	 * Decodes a single instruction into slot <code>i</code> of the code store.
+	 *
+	 * @param i
+	 *            The index of the instruction.
+	 * @param inst
+	 *            The instruction to decode.
+	 * @param pool
+	 *            The constant pool under construction.
+	 */
+	private void decode(int i, Code inst, Map<Object, Integer> pool) {
+		String mnemonic = inst.getMnemonic();
+		Object o = inst.getSecond();
+		int opcode = Mnemonic.mnemonicToInt(mnemonic);
+
+		levels[i] = inst.getFirst();
+		opcodes[i] = opcode;
+
+		switch (opcode) {
+		case Mnemonic.CAL:
+			if (!(o instanceof Integer)) {
+				illegal(i, "Argument to CAL must be an integer.", pool);
+			} else {
+				// PAL addresses start at 1, but our code store is indexed
+				// from 0.
+				operands[i] = ((Integer) o).intValue() - 1;
+			}
+			break;
+		case Mnemonic.JIF:
+			if (!(o instanceof Integer)) {
+				illegal(i, "Argument to JIF must be an integer.", pool);
+			} else {
+				operands[i] = ((Integer) o).intValue() - 1;
+			}
+			break;
+		case Mnemonic.JMP:
+			if (!(o instanceof Integer)) {
+				illegal(i, "Argument to JMP must be an integer.", pool);
+			} else if (((Integer) o).intValue() == 0) {
+				// "JMP 0 0" signifies program termination.
+				opcodes[i] = HALT;
+			} else {
+				operands[i] = ((Integer) o).intValue() - 1;
+			}
+			break;
+		case Mnemonic.INC:
+			integerOperand(i, o, "Argument to INC must be an integer.", pool);
+			break;
+		case Mnemonic.LCI:
+			integerOperand(i, o, "Argument to LCI must be an integer.", pool);
+			break;
+		case Mnemonic.LCR:
+			if (o instanceof Integer) {
+				o = Float.valueOf(((Integer) o).floatValue());
+			}
+			if (!(o instanceof Float)) {
+				illegal(i, "Argument to LCR must be a real.", pool);
+			} else {
+				// Reals are carried inline as their bit pattern, which is
+				// also how the data stack stores them.
+				operands[i] = Float.floatToRawIntBits(((Float) o).floatValue());
+			}
+			break;
+		case Mnemonic.LCS:
+			if (!(o instanceof String)) {
+				illegal(i, "Argument to LCS must be a string.", pool);
+			} else {
+				String s = (String) o;
+				if (!(s.startsWith("'") && s.endsWith("'"))) {
+					illegal(i, "String must be delimited by single-quotes.",
+							pool);
+				} else {
+					operands[i] = constant(s.substring(1, s.length() - 1),
+							pool);
+				}
+			}
+			break;
+		case Mnemonic.LDA:
+			integerOperand(i, o, "Argument to LDA must be an integer.", pool);
+			break;
+		case Mnemonic.LDV:
+			integerOperand(i, o, "Argument to LDV must be an integer", pool);
+			break;
+		case Mnemonic.OPR:
+			if (!(o instanceof Integer)) {
+				illegal(i, "Argument to OPR must be an integer.", pool);
+			} else {
+				int opr = ((Integer) o).intValue();
+				if (opr < 0 || opr > 31) {
+					illegal(i, "Argument to OPR must be in range 0-31.", pool);
+				} else {
+					if (opr <= 1) {
+						opcodes[i] = RETURN;
+					}
+					operands[i] = opr;
+				}
+			}
+			break;
+		case Mnemonic.RDI:
+			integerOperand(i, o, "Argument to RDI must be an integer.", pool);
+			break;
+		case Mnemonic.RDR:
+			integerOperand(i, o, "Argument to RDR must be an integer.", pool);
+			break;
+		case Mnemonic.REH:
+			integerOperand(i, o, "Argument to REH must be an integer.", pool);
+			break;
+		case Mnemonic.SIG:
+			integerOperand(i, o, "Argument to SIG must be an integer.", pool);
+			break;
+		case Mnemonic.STO:
+			integerOperand(i, o, "Argument to STO must be an integer.", pool);
+			break;
+		case Mnemonic.LDI:
+		case Mnemonic.LDU:
+		case Mnemonic.MST:
+		case Mnemonic.STI:
+			// No second operand of interest.
+			break;
+		default:
+			opcodes[i] = UNKNOWN;
+			operands[i] = constant(mnemonic + ": not implemented.", pool);
+		}
+		return;
+	}
+
+	/**
+	 * Replaces the first opcode of each recognised instruction sequence with
+	 * the corresponding superinstruction.
+	 */
+	private void fuse() {
+		int size = opcodes.length;
+		for (int i = 0; i < size; i++) {
+			switch (opcodes[i]) {
+			case Mnemonic.LDV:
+				if (i + 3 >= size || !operation(opcodes[i + 2])) {
+					break;
+				}
+				int opr = operands[i + 2];
+				if (opcodes[i + 1] == Mnemonic.LCI && (opr == 3 || opr == 4)
+						&& opcodes[i + 3] == Mnemonic.STO) {
+					opcodes[i] = ADD_CONSTANT;
+					fused++;
+				} else if (opcodes[i + 1] == Mnemonic.LDV && opr >= 10
+						&& opr <= 15 && opcodes[i + 3] == Mnemonic.JIF) {
+					opcodes[i] = COMPARE_JUMP;
+					fused++;
+				}
+				break;
+			case Mnemonic.LCI:
+				if (i + 1 < size && opcodes[i + 1] == Mnemonic.STO) {
+					opcodes[i] = STORE_CONSTANT;
+					fused++;
+				}
+				break;
+			default:
+			}
+		}
+		return;
+	}
+
+	/**
+	 * Tests whether an opcode is an <code>OPR</code>, specialised or not.
+	 */
+	private static boolean operation(int opcode) {
+		switch (opcode) {
+		case Mnemonic.OPR:
+		case INT_ARITHMETIC:
+		case REAL_ARITHMETIC:
+		case INT_COMPARISON:
+		case REAL_COMPARISON:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the opcodes as they were decoded, before verification and the
+	 * formation of superinstructions.
+	 *
+	 * @return A new array of opcodes.
+	 */
+	int[] decodedOpcodes() {
+		int[] result = unfusedOpcodes();
+		for (int i = 0; i < result.length; i++) {
+			switch (result[i]) {
+			case JMP_OUTSIDE:
+				result[i] = Mnemonic.JMP;
+				break;
+			case JIF_OUTSIDE:
+				result[i] = Mnemonic.JIF;
+				break;
+			case INT_ARITHMETIC:
+			case REAL_ARITHMETIC:
+			case INT_COMPARISON:
+			case REAL_COMPARISON:
+				result[i] = Mnemonic.OPR;
+				break;
+			case TAIL_CALL:
+				result[i] = Mnemonic.CAL;
+				break;
+			default:
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the opcodes without superinstructions, so that each instruction
+	 * is executed by its own opcode. The rewriting done by the verifier and
+	 * the type specialisation are kept.
+	 *
+	 * @return A new array of opcodes.
+	 */
+	int[] unfusedOpcodes() {
+		int[] result = opcodes.clone();
+		for (int i = 0; i < result.length; i++) {
+			switch (result[i]) {
+			case ADD_CONSTANT:
+			case COMPARE_JUMP:
+				result[i] = Mnemonic.LDV;
+				break;
+			case STORE_CONSTANT:
+				result[i] = Mnemonic.LCI;
+				break;
+			default:
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the problems found by the {@link Verifier
+	 * <code>Verifier</code>} when the program was loaded.
+	 *
+	 * @return The problems, each in the form
+	 *         <code><i>line</i>:<i>message</i></code>.
+	 */
+	List<String> problems() {
+		return problems;
+	}
+
+	/**
+	 * Returns the number of superinstructions formed.
+	 *
+	 * @return The number of fused instruction sequences.
+	 */
+	int fusedCount() {
+		return fused;
+	}
+
+	/**
+	 * Returns the number of operations specialised by type.
+	 *
+	 * @return The number of operations specialised.
+	 */
+	int specialisedCount() {
+		return specialised;
+	}
+
+	/**
+	 * Returns the number of calls made {@link #TAIL_CALL tail calls}.
+	 *
+	 * @return The number of tail calls.
+	 */
+	int tailCallCount() {
+		return tailCalls;
+	}
+
+	/**
+	 * Decodes an operand that must be an integer, or marks the instruction as
+	 * illegal if it is not.
+	 */
+	private void integerOperand(int i, Object o, String message,
+			Map<Object, Integer> pool) {
+		if (!(o instanceof Integer)) {
+			illegal(i, message, pool);
+		} else {
+			operands[i] = ((Integer) o).intValue();
+		}
+		return;
+	}
+
+	/**
+	 * Marks the instruction at <code>i</code> as illegal, to report
+	 * <code>message</code> when executed.
+	 */
+	private void illegal(int i, String message, Map<Object, Integer> pool) {
+		opcodes[i] = ILLEGAL;
+		operands[i] = constant(message, pool);
+		return;
+	}
+
+	/**
+	 * Adds a value to the constant pool, re-using an existing entry if there
+	 * is an equal one.
+	 *
+	 * @return The index of the value in the pool.
+	 */
+	private static int constant(Object value, Map<Object, Integer> pool) {
+		Integer index = pool.get(value);
+		if (index == null) {
+			index = Integer.valueOf(pool.size());
+			pool.put(value, index);
+		}
+		return index.intValue();
+	}
+
+	/**
+	 * Returns the number of instructions in the code store.
+	 *
+	 * @return The number of instructions.
+	 */
+	int size() {
+		return opcodes.length;
+	}
+
+	/**
+	 * Returns the number of instructions in the program as it was written,
+	 * which differs from {@link #size() <code>size()</code>} for an optimised
+	 * program.
+	 *
+	 * @return The original number of instructions.
+	 */
+	int originalSize() {
+		return addresses == null ? size() : addresses.length - 1;
+	}
+
+	/**
+	 * Translates a zero-based code address into the original numbering, in
+	 * which return points and exception handlers are kept on the data stack.
+	 * An address outside the code store stays the same distance outside it.
+	 *
+	 * @param address
+	 *            A zero-based address in this code store.
+	 * @return The corresponding original address.
+	 */
+	int originalAddress(int address) {
+		if (origins == null || address < 0) {
+			return address;
+		}
+		if (address < origins.length) {
+			return origins[address];
+		}
+		return address - origins.length + originalSize();
+	}
+
+	/**
+	 * Translates a zero-based code address in the original numbering into
+	 * this code store. The inverse of {@link #originalAddress
+	 * <code>originalAddress</code>}.
+	 *
+	 * @param original
+	 *            A zero-based address in the original numbering.
+	 * @return The corresponding address in this code store.
+	 */
+	int address(int original) {
+		if (addresses == null || original < 0) {
+			return original;
+		}
+		if (original < addresses.length) {
+			return addresses[original];
+		}
+		return original - originalSize() + size();
+	}
+
+	/**
+	 * Returns the original instruction at the given index, for use in
+	 * diagnostics. This is synchronised, so that machines sharing the code
+	 * store can decode instructions on demand concurrently.
+	 *
+	 * @param i
+	 *            A zero-based index into the code store.
+	 * @return The corresponding <code>Code</code> object.
+	 */
+	synchronized Code getCode(int i) {
+		Code c = source[i];
+		if (c == null) {
+			c = sourceLoader.apply(i);
+			source[i] = c;
+		}
+		return c;
+	}
+}
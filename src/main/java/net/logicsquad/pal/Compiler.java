@@ -0,0 +1,404 @@
+package net.logicsquad.pal;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * Compiles a {@link CodeStore <code>CodeStore</code>} to JVM bytecode, in a
+ * hidden class defined at runtime. Each PAL instruction becomes a short
+ * sequence of bytecode calling the corresponding instruction method on
+ * {@link PAL <code>PAL</code>}, so the semantics (and error reporting) are
+ * exactly those of the interpreter; what is saved is the dispatch. Static
+ * control transfers become direct jumps, which the JIT can then optimise
+ * across.
+ *
+ * <p>
+ * To stay well inside the JVM's limits on method size (and the smaller limit
+ * above which HotSpot declines to compile a method), the program is split
+ * into chunks of {@link #CHUNK_SIZE <code>CHUNK_SIZE</code>} instructions,
+ * each compiled to its own method <code>int cN(PAL m, int pc)</code>. A chunk
+ * method starts executing at <code>pc</code>, and returns the address at
+ * which execution should continue when control leaves the chunk, or
+ * {@link PAL#STOPPED <code>STOPPED</code>} on program termination. Dynamic
+ * transfers (returns, exceptions and reads, which may raise one) re-enter the
+ * chunk's own dispatch switch. A driver method <code>run</code> passes control
+ * between chunks.
+ * </p>
+ *
+ * @author Paul Hoadley &lt;paulh@logicsquad.net&gt;
+ */
+final class Compiler {
+	/** log2 of the number of instructions compiled into each method. */
+	private static final int CHUNK_SHIFT = 7;
+
+	/** The number of instructions compiled into each method. */
+	private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+
+	/** Internal name of the machine class. */
+	private static final String PAL_CLASS = "net/logicsquad/pal/PAL";
+
+	/** Internal name for the generated class. */
+	private static final String CLASS_NAME = "net/logicsquad/pal/CompiledProgram";
+
+	/** Descriptor of the chunk and driver methods. */
+	private static final String RUN_DESCRIPTOR = "(L" + PAL_CLASS + ";I)I";
+
+	/**
+	 * A compiled program.
+	 */
+	static final class Compiled {
+		/** Handle to the generated <code>run</code> method. */
+		private final MethodHandle run;
+
+		private Compiled(MethodHandle run) {
+			this.run = run;
+			return;
+		}
+
+		/**
+		 * Runs the program on a machine.
+		 *
+		 * @param machine
+		 *            The machine, whose state the program operates on.
+		 * @param pc
+		 *            The zero-based address to start at.
+		 * @return The zero-based address at which control left the code
+		 *         store, or {@link PAL#STOPPED <code>STOPPED</code>}.
+		 */
+		int run(PAL machine, int pc) {
+			try {
+				return (int) run.invokeExact(machine, pc);
+			} catch (RuntimeException | Error e) {
+				throw e;
+			} catch (Throwable t) {
+				// The generated code throws no checked exceptions.
+				throw new IllegalStateException(t);
+			}
+		}
+	}
+
+	private Compiler() {
+		return;
+	}
+
+	/**
+	 * Compiles a program.
+	 *
+	 * @param code
+	 *            The program.
+	 * @return The compiled program, or <code>null</code> if it could not be
+	 *         compiled, in which case the caller should interpret it instead.
+	 */
+	static Compiled compile(CodeStore code) {
+		if (code.size() == 0) {
+			return null;
+		}
+		try {
+			byte[] bytes = generate(code);
+			MethodHandles.Lookup lookup = MethodHandles.lookup()
+					.defineHiddenClass(bytes, true);
+			return new Compiled(lookup.findStatic(lookup.lookupClass(), "run",
+					MethodType.methodType(int.class, PAL.class, int.class)));
+		} catch (IllegalStateException | LinkageError
+				| ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Generates the class file for a program.
+	 *
+	 * @param code
+	 *            The program.
+	 * @return The class file bytes.
+	 */
+	private static byte[] generate(CodeStore code) {
+		ClassAssembler cls = new ClassAssembler(CLASS_NAME);
+		int size = code.size();
+		int chunks = (size + CHUNK_SIZE - 1) / CHUNK_SIZE;
+
+		for (int c = 0; c < chunks; c++) {
+			int start = c * CHUNK_SIZE;
+			int end = Math.min(start + CHUNK_SIZE, size);
+			chunk(cls.method(ClassAssembler.ACC_PRIVATE, "c" + c,
+					RUN_DESCRIPTOR, 2), code, start, end);
+		}
+		driver(cls.method(0, "run", RUN_DESCRIPTOR, 2), size, chunks);
+		return cls.toByteArray();
+	}
+
+	/**
+	 * Generates the driver method, which calls the chunk containing
+	 * <code>pc</code> until control leaves the code store.
+	 */
+	private static void driver(ClassAssembler.Method m, int size, int chunks) {
+		ClassAssembler.Label loop = m.newLabel();
+		ClassAssembler.Label exit = m.newLabel();
+		ClassAssembler.Label[] targets = new ClassAssembler.Label[chunks];
+
+		m.mark(loop);
+		m.op(ClassAssembler.ILOAD_1);
+		m.jump(ClassAssembler.IFLT, exit);
+		m.op(ClassAssembler.ILOAD_1);
+		m.pushInt(size);
+		m.jump(ClassAssembler.IF_ICMPGE, exit);
+		m.op(ClassAssembler.ILOAD_1);
+		m.pushInt(CHUNK_SHIFT);
+		m.op(ClassAssembler.ISHR);
+		for (int c = 0; c < chunks; c++) {
+			targets[c] = m.newLabel();
+		}
+		m.tableSwitch(0, targets, exit);
+		for (int c = 0; c < chunks; c++) {
+			m.mark(targets[c]);
+			m.op(ClassAssembler.ALOAD_0);
+			m.op(ClassAssembler.ILOAD_1);
+			m.invokeStatic(CLASS_NAME, "c" + c, RUN_DESCRIPTOR);
+			m.op(ClassAssembler.ISTORE_1);
+			m.jump(loop);
+		}
+		m.mark(exit);
+		m.op(ClassAssembler.ILOAD_1);
+		m.op(ClassAssembler.IRETURN);
+		m.stack(2);
+		return;
+	}
+
+	/**
+	 * Generates the method for the instructions from <code>start</code>
+	 * (inclusive) to <code>end</code> (exclusive).
+	 */
+	private static void chunk(ClassAssembler.Method m, CodeStore code,
+			int start, int end) {
+		final int[] opcodes = code.opcodes;
+		final int[] levels = code.levels;
+		final int[] operands = code.operands;
+
+		ClassAssembler.Label dispatch = m.newLabel();
+		ClassAssembler.Label exit = m.newLabel();
+		// One label per instruction, and one for falling off the end.
+		ClassAssembler.Label[] labels = new ClassAssembler.Label[end - start
+				+ 1];
+		for (int k = 0; k < labels.length; k++) {
+			labels[k] = m.newLabel();
+		}
+
+		// Entry, and re-entry after a dynamic transfer.
+		m.mark(dispatch);
+		m.op(ClassAssembler.ILOAD_1);
+		ClassAssembler.Label[] targets = new ClassAssembler.Label[end - start];
+		System.arraycopy(labels, 0, targets, 0, targets.length);
+		m.tableSwitch(start, targets, exit);
+		m.mark(exit);
+		m.op(ClassAssembler.ILOAD_1);
+		m.op(ClassAssembler.IRETURN);
+
+		for (int i = start; i < end; i++) {
+			m.mark(labels[i - start]);
+			int level = levels[i];
+			int operand = operands[i];
+
+			switch (opcodes[i]) {
+			case Mnemonic.CAL:
+				call(m, "call", "(II)V", level, i + 1);
+				transfer(m, operand, start, end, labels);
+				break;
+			case CodeStore.TAIL_CALL:
+				call(m, "tailCall", "(II)V", level, i + 1);
+				transfer(m, operand, start, end, labels);
+				break;
+			case Mnemonic.INC:
+				call(m, "increment", "(I)V", operand);
+				break;
+			case Mnemonic.JIF:
+				call(m, "jumpIfFalse", "(IZ)Z", i, 1);
+				m.jump(ClassAssembler.IFEQ, labels[i + 1 - start]);
+				transfer(m, operand, start, end, labels);
+				break;
+			case CodeStore.JIF_OUTSIDE:
+				// Returns only if the jump is not taken.
+				call(m, "jumpIfFalse", "(IZ)Z", i, 0);
+				m.op(ClassAssembler.POP);
+				break;
+			case Mnemonic.JMP:
+				transfer(m, operand, start, end, labels);
+				break;
+			case CodeStore.JMP_OUTSIDE:
+				call(m, "jumpOutside", "(I)V", i);
+				stop(m);
+				break;
+			case CodeStore.HALT:
+				stop(m);
+				break;
+			case Mnemonic.LCI:
+				call(m, "loadInt", "(I)V", operand);
+				break;
+			case Mnemonic.LCR:
+				call(m, "loadReal", "(I)V", operand);
+				break;
+			case Mnemonic.LCS:
+				call(m, "loadString", "(I)V", operand);
+				break;
+			case Mnemonic.LDA:
+				call(m, "loadAddress", "(II)V", level, operand);
+				break;
+			case Mnemonic.LDI:
+				call(m, "loadIndirect", "(I)V", i);
+				break;
+			case Mnemonic.LDV:
+				call(m, "loadValue", "(II)V", level, operand);
+				break;
+			case Mnemonic.LDU:
+				call(m, "loadUndefined", "()V");
+				break;
+			case Mnemonic.MST:
+				call(m, "markStack", "(I)V", level);
+				break;
+			case Mnemonic.OPR:
+				call(m, "doOperation", "(II)V", i, operand);
+				break;
+			case CodeStore.RETURN:
+				call(m, "doReturn", "(I)I", operand);
+				redispatch(m, dispatch);
+				break;
+			case Mnemonic.RDI:
+				call(m, "readInt", "(IIII)I", i, level, operand, i + 1);
+				redispatch(m, dispatch);
+				break;
+			case Mnemonic.RDR:
+				call(m, "readReal", "(IIII)I", i, level, operand, i + 1);
+				redispatch(m, dispatch);
+				break;
+			case Mnemonic.REH:
+				call(m, "registerHandler", "(I)V", operand);
+				break;
+			case Mnemonic.SIG:
+				call(m, "signal", "(II)I", i, operand);
+				redispatch(m, dispatch);
+				break;
+			case Mnemonic.STI:
+				call(m, "storeIndirect", "(I)V", i);
+				break;
+			case Mnemonic.STO:
+				call(m, "store", "(II)V", level, operand);
+				break;
+			case CodeStore.ILLEGAL:
+				call(m, "illegal", "(I)V", i);
+				stop(m);
+				break;
+			case CodeStore.ADD_CONSTANT:
+				call(m, "addConstant", "(I)I", i);
+				branch(m, dispatch, start, end, labels, i + 4, i + 1);
+				break;
+			case CodeStore.COMPARE_JUMP:
+				call(m, "compareAndJump", "(I)I", i);
+				branch(m, dispatch, start, end, labels, i + 4,
+						operands[i + 3], i + 1);
+				break;
+			case CodeStore.STORE_CONSTANT:
+				call(m, "storeConstant", "(I)I", i);
+				branch(m, dispatch, start, end, labels, i + 2, i + 1);
+				break;
+			case CodeStore.INT_ARITHMETIC:
+				call(m, "intArithmetic", "(II)V", i, operand);
+				break;
+			case CodeStore.REAL_ARITHMETIC:
+				call(m, "realArithmetic", "(II)V", i, operand);
+				break;
+			case CodeStore.INT_COMPARISON:
+				call(m, "intComparison", "(II)V", i, operand);
+				break;
+			case CodeStore.REAL_COMPARISON:
+				call(m, "realComparison", "(II)V", i, operand);
+				break;
+			default:
+				call(m, "unknown", "(I)V", i);
+			}
+		}
+
+		// Falling off the end of the chunk.
+		m.mark(labels[end - start]);
+		m.pushInt(end);
+		m.op(ClassAssembler.IRETURN);
+		return;
+	}
+
+	/**
+	 * Emits a call to an instruction method on the machine.
+	 *
+	 * @param m
+	 *            The method being generated.
+	 * @param name
+	 *            The name of the instruction method.
+	 * @param descriptor
+	 *            Its descriptor.
+	 * @param args
+	 *            Its (constant) arguments.
+	 */
+	private static void call(ClassAssembler.Method m, String name,
+			String descriptor, int... args) {
+		m.op(ClassAssembler.ALOAD_0);
+		for (int arg : args) {
+			m.pushInt(arg);
+		}
+		m.stack(args.length + 1);
+		m.invokeVirtual(PAL_CLASS, name, descriptor);
+		return;
+	}
+
+	/**
+	 * Emits a transfer of control to a static destination: a direct jump if
+	 * it is in this chunk, or a return to the driver otherwise.
+	 */
+	private static void transfer(ClassAssembler.Method m, int target,
+			int start, int end, ClassAssembler.Label[] labels) {
+		if (target >= start && target < end) {
+			m.jump(labels[target - start]);
+		} else {
+			m.pushInt(target);
+			m.op(ClassAssembler.IRETURN);
+		}
+		return;
+	}
+
+	/**
+	 * Emits a transfer of control to the address on top of the operand stack.
+	 */
+	private static void redispatch(ClassAssembler.Method m,
+			ClassAssembler.Label dispatch) {
+		m.op(ClassAssembler.ISTORE_1);
+		m.jump(dispatch);
+		return;
+	}
+
+	/**
+	 * Emits a transfer of control to the address on top of the operand stack,
+	 * which is one of a few known destinations: a direct jump for each of
+	 * those in this chunk, and a re-dispatch otherwise.
+	 */
+	private static void branch(ClassAssembler.Method m,
+			ClassAssembler.Label dispatch, int start, int end,
+			ClassAssembler.Label[] labels, int... destinations) {
+		m.op(ClassAssembler.ISTORE_1);
+		for (int d : destinations) {
+			if (d >= start && d < end) {
+				m.op(ClassAssembler.ILOAD_1);
+				m.pushInt(d);
+				m.stack(2);
+				m.jump(ClassAssembler.IF_ICMPEQ, labels[d - start]);
+			}
+		}
+		m.jump(dispatch);
+		return;
+	}
+
+	/**
+	 * Emits program termination.
+	 */
+	private static void stop(ClassAssembler.Method m) {
+		m.pushInt(PAL.STOPPED);
+		m.op(ClassAssembler.IRETURN);
+		return;
+	}
+}
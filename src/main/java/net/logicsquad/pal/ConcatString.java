@@ -0,0 +1,135 @@
+package net.logicsquad.pal;
+
+/**
+ * The result of a string concatenation (<code>OPR 0 8</code>), which is
+ * flattened into a <code>String</code> only when its characters are needed.
+ *
+ * <p>
+ * A <code>ConcatString</code> is a prefix of a <code>StringBuilder</code>
+ * that may be shared with other <code>ConcatString</code>s. Concatenating
+ * onto a value that ends where its builder does appends to the builder in
+ * place, and the result shares it. The values already sharing the builder are
+ * unaffected, since each sees only its own prefix, which is never changed.
+ * So a loop that builds a string by repeatedly appending to it takes time
+ * linear in the length of the result, rather than copying the string on each
+ * iteration. Concatenating onto any other value copies it into a new
+ * builder.
+ * </p>
+ *
+ * <p>
+ * Values are immutable as far as their users can tell, and are shared
+ * between stack slots without copying. Data stacks may be copied between
+ * machines, so appending to and reading from a builder is synchronised on
+ * it.
+ * </p>
+ *
+ * @author Paul Hoadley &lt;paulh@logicsquad.net&gt;
+ */
+final class ConcatString implements CharSequence {
+	/** The builder holding the characters, possibly followed by others. */
+	private final StringBuilder builder;
+
+	/** The number of characters of {@link #builder} in this value. */
+	private final int length;
+
+	/** The flattened value, or <code>null</code> if not yet needed. */
+	private String flat;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param builder
+	 *            The builder holding the characters.
+	 * @param length
+	 *            The number of characters.
+	 */
+	private ConcatString(StringBuilder builder, int length) {
+		this.builder = builder;
+		this.length = length;
+		return;
+	}
+
+	/**
+	 * Concatenates two strings.
+	 *
+	 * @param left
+	 *            The left operand: a <code>String</code> or a
+	 *            <code>ConcatString</code>.
+	 * @param right
+	 *            The right operand: a <code>String</code> or a
+	 *            <code>ConcatString</code>.
+	 * @return The concatenation.
+	 */
+	static ConcatString concat(CharSequence left, CharSequence right) {
+		// Flattening first is no more copying than appending would be, and
+		// the result is kept for next time.
+		String tail = right.toString();
+
+		if (left instanceof ConcatString) {
+			ConcatString prefix = (ConcatString) left;
+			StringBuilder shared = prefix.builder;
+			synchronized (shared) {
+				if (shared.length() == prefix.length) {
+					shared.append(tail);
+					return new ConcatString(shared, shared.length());
+				}
+			}
+		}
+
+		String head = left.toString();
+		StringBuilder builder = new StringBuilder(head.length() + tail.length()
+				+ 16);
+		builder.append(head).append(tail);
+		return new ConcatString(builder, builder.length());
+	}
+
+	/**
+	 * Returns the number of characters.
+	 *
+	 * @return The length of this value.
+	 */
+	public int length() {
+		return length;
+	}
+
+	/**
+	 * Returns a character, flattening this value.
+	 *
+	 * @param index
+	 *            The index of the character.
+	 * @return The character.
+	 */
+	public char charAt(int index) {
+		return toString().charAt(index);
+	}
+
+	/**
+	 * Returns a subsequence, flattening this value.
+	 *
+	 * @param start
+	 *            The index of the first character.
+	 * @param end
+	 *            The index after the last character.
+	 * @return The subsequence.
+	 */
+	public CharSequence subSequence(int start, int end) {
+		return toString().subSequence(start, end);
+	}
+
+	/**
+	 * Returns the characters of this value as a <code>String</code>, which is
+	 * made on the first call, and kept.
+	 *
+	 * @return The value.
+	 */
+	public String toString() {
+		String result = flat;
+		if (result == null) {
+			synchronized (builder) {
+				result = builder.substring(0, length);
+			}
+			flat = result;
+		}
+		return result;
+	}
+}
@@ -0,0 +1,1100 @@
+package net.logicsquad.pal;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The structure of a program, found by static analysis of its
+ * {@link CodeStore <code>CodeStore</code>}: its basic blocks and the
+ * control-flow graph between them, its procedures and their loops, the
+ * height of the stack frame before each instruction, and which of the
+ * variables allocated by <code>INC</code> are live before each instruction.
+ * The graph can be written in the DOT language of Graphviz by
+ * {@link #writeDot <code>writeDot</code>}.
+ *
+ * <p>
+ * A basic block ends at each <code>JMP</code>, <code>JIF</code>,
+ * <code>CAL</code>, <code>REH</code>, <code>SIG</code> and return
+ * (<code>OPR 0 0</code> or <code>OPR 0 1</code>), and starts at each
+ * destination of one, including each return point and exception handler. The
+ * graph is intraprocedural: a <code>CAL</code> leads to its return point, and
+ * the procedure it calls is recorded with its block. A <code>REH</code> leads
+ * to its handler, as well as to the next instruction.
+ * </p>
+ *
+ * <p>
+ * A procedure is entered at the start of the program, or at the destination
+ * of a <code>CAL</code>, and is made up of the blocks reachable from its
+ * entry without a call. Code that can be reached from more than one entry
+ * belongs to each of those procedures. A loop is found wherever a block leads
+ * to one that dominates it in the same procedure.
+ * </p>
+ *
+ * <p>
+ * The frame height counts every slot from the base of the current frame to
+ * the top of the stack: parameters, variables and operands. It is not known
+ * at an exception handler, nor after a call to a procedure that can return
+ * both with and without a value, nor wherever two paths meet with different
+ * heights. Like {@link TypeInference <code>TypeInference</code>}, this
+ * relies on returns and exceptions going where <code>CAL</code> and
+ * <code>REH</code> said they would.
+ * </p>
+ *
+ * <p>
+ * Liveness is conservative. A variable whose address is taken with
+ * <code>LDA</code> is live throughout its procedure. If any instruction reads
+ * another frame, every variable is live across a call. Every variable live at
+ * a handler registered in a procedure is live throughout it, since an
+ * exception can be raised almost anywhere.
+ * </p>
+ *
+ * @author Paul Hoadley &lt;paulh@logicsquad.net&gt;
+ */
+final class ControlFlowGraph {
+	/** The height of a frame that is not known. */
+	static final int UNKNOWN = -1;
+
+	/** The height of a frame at an instruction that is never reached. */
+	private static final int UNREACHED = -2;
+
+	/**
+	 * The greatest frame height tracked, here and by
+	 * {@link TypeInference <code>TypeInference</code>}.
+	 */
+	static final int MAX_HEIGHT = 256;
+
+	/** Returns recorded for a {@link Procedure}. */
+	static final int PROCEDURE = 1;
+	static final int FUNCTION = 2;
+
+	/**
+	 * The kind of an {@link Edge}.
+	 */
+	enum Kind {
+		/** Control passes to the next instruction. */
+		FALL,
+
+		/** A <code>JMP</code>. */
+		JUMP,
+
+		/** A <code>JIF</code> whose condition is false. */
+		BRANCH,
+
+		/** From a <code>CAL</code> to its return point. */
+		CALL,
+
+		/** From a <code>REH</code> to its exception handler. */
+		HANDLER;
+	}
+
+	/**
+	 * An edge between two blocks.
+	 */
+	static final class Edge {
+		/** The block control leaves. */
+		final Block from;
+
+		/** The block control enters. */
+		final Block to;
+
+		/** The kind of transfer. */
+		final Kind kind;
+
+		private Edge(Block from, Block to, Kind kind) {
+			this.from = from;
+			this.to = to;
+			this.kind = kind;
+			return;
+		}
+	}
+
+	/**
+	 * A basic block: a sequence of instructions that control enters only at
+	 * the first, and leaves only after the last.
+	 */
+	static final class Block {
+		/** The position of the block in {@link #blocks()}. */
+		final int index;
+
+		/** The zero-based address of the first instruction. */
+		final int start;
+
+		/** The zero-based address after the last instruction. */
+		int end;
+
+		/**
+		 * The zero-based address of the procedure called by the last
+		 * instruction, or -1 if it is not a <code>CAL</code>.
+		 */
+		int callee = -1;
+
+		/** The edges out of the block. */
+		final List<Edge> successors = new ArrayList<Edge>();
+
+		/** The edges into the block. */
+		final List<Edge> predecessors = new ArrayList<Edge>();
+
+		private Block(int index, int start) {
+			this.index = index;
+			this.start = start;
+			return;
+		}
+	}
+
+	/**
+	 * A procedure: the blocks reachable from an entry point.
+	 */
+	static final class Procedure {
+		/** The entry block. */
+		final Block entry;
+
+		/**
+		 * The number of parameters, as given by the first <code>CAL</code>
+		 * to it, or 0 for the main program.
+		 */
+		final int params;
+
+		/** The indices of its blocks. */
+		final BitSet blocks = new BitSet();
+
+		/**
+		 * The kinds of return it executes: a combination of
+		 * {@link ControlFlowGraph#PROCEDURE} and
+		 * {@link ControlFlowGraph#FUNCTION}.
+		 */
+		int returns;
+
+		/** The frame slots allocated by its <code>INC</code>s. */
+		final BitSet variables = new BitSet();
+
+		/** Its loops, outermost first. */
+		final List<Loop> loops = new ArrayList<Loop>();
+
+		private Procedure(Block entry, int params) {
+			this.entry = entry;
+			this.params = params;
+			return;
+		}
+	}
+
+	/**
+	 * A natural loop: a header block, and the blocks that can reach one of
+	 * its back edges without passing through it.
+	 */
+	static final class Loop {
+		/** The header, which dominates every block in the loop. */
+		final Block header;
+
+		/** The indices of its blocks, including the header. */
+		final BitSet blocks = new BitSet();
+
+		private Loop(Block header) {
+			this.header = header;
+			blocks.set(header.index);
+			return;
+		}
+	}
+
+	/** The program. */
+	private final CodeStore code;
+
+	/** The number of instructions. */
+	private final int size;
+
+	/** The opcode of each instruction, undoing fusion and specialisation. */
+	private final int[] opcodes;
+
+	/** The blocks, in program order. */
+	private final List<Block> blocks = new ArrayList<Block>();
+
+	/** The block containing each instruction. */
+	private final Block[] blockOf;
+
+	/** The procedures, in program order of their entries. */
+	private final List<Procedure> procedures = new ArrayList<Procedure>();
+
+	/** The procedure entered at each instruction, if any. */
+	private final Procedure[] procedureAt;
+
+	/** The frame height before each instruction. */
+	private final int[] heights;
+
+	/**
+	 * The variables live before each instruction, or <code>null</code> if it
+	 * is in no procedure.
+	 */
+	private final BitSet[] live;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param code
+	 *            The program.
+	 */
+	private ControlFlowGraph(CodeStore code) {
+		this.code = code;
+		size = code.size();
+		opcodes = code.decodedOpcodes();
+		blockOf = new Block[size];
+		procedureAt = new Procedure[size];
+		heights = new int[size];
+		Arrays.fill(heights, UNREACHED);
+		live = new BitSet[size];
+		return;
+	}
+
+	/**
+	 * Analyses a program.
+	 *
+	 * @param code
+	 *            The program.
+	 * @return Its control-flow graph.
+	 */
+	static ControlFlowGraph build(CodeStore code) {
+		ControlFlowGraph graph = structure(code);
+		if (graph.size > 0) {
+			for (Procedure procedure : graph.procedures) {
+				graph.findLoops(procedure);
+			}
+			graph.findHeights();
+			graph.findLiveness();
+		}
+		return graph;
+	}
+
+	/**
+	 * Finds just the blocks and procedures of a program, as
+	 * {@link TypeInference <code>TypeInference</code>} needs when a program
+	 * is loaded. The procedures have no loops, and no frame heights or live
+	 * variables are known.
+	 *
+	 * @param code
+	 *            The program.
+	 * @return Its control-flow graph.
+	 */
+	static ControlFlowGraph structure(CodeStore code) {
+		ControlFlowGraph graph = new ControlFlowGraph(code);
+		if (graph.size > 0) {
+			graph.findBlocks();
+			graph.findProcedures();
+		}
+		return graph;
+	}
+
+	/**
+	 * Returns the basic blocks.
+	 *
+	 * @return The blocks, in program order.
+	 */
+	List<Block> blocks() {
+		return Collections.unmodifiableList(blocks);
+	}
+
+	/**
+	 * Returns the block containing an instruction.
+	 *
+	 * @param i
+	 *            The zero-based address of the instruction.
+	 * @return The block.
+	 */
+	Block block(int i) {
+		return blockOf[i];
+	}
+
+	/**
+	 * Returns the procedures.
+	 *
+	 * @return The procedures, the main program first.
+	 */
+	List<Procedure> procedures() {
+		return Collections.unmodifiableList(procedures);
+	}
+
+	/**
+	 * Returns the opcode of an instruction as it was decoded, before
+	 * verification, specialisation and the formation of superinstructions.
+	 *
+	 * @param i
+	 *            The zero-based address of the instruction.
+	 * @return The opcode.
+	 */
+	int opcode(int i) {
+		return opcodes[i];
+	}
+
+	/**
+	 * Returns the procedure entered at an address.
+	 *
+	 * @param entry
+	 *            The zero-based address of the start of the program, or of
+	 *            the destination of a <code>CAL</code>.
+	 * @return The procedure.
+	 * @throws IllegalArgumentException
+	 *             if no procedure is entered there.
+	 */
+	Procedure procedure(int entry) {
+		Procedure procedure = inCode(entry) ? procedureAt[entry] : null;
+		if (procedure == null) {
+			throw new IllegalArgumentException("No procedure at " + entry);
+		}
+		return procedure;
+	}
+
+	/**
+	 * Returns the instructions executed in the frame of a procedure,
+	 * including its exception handlers, but not the procedures it calls.
+	 *
+	 * @param procedure
+	 *            The procedure.
+	 * @return The zero-based addresses of the instructions.
+	 */
+	BitSet body(Procedure procedure) {
+		BitSet result = new BitSet(size);
+		for (int b = procedure.blocks.nextSetBit(0); b >= 0; b = procedure.blocks.nextSetBit(b + 1)) {
+			Block block = blocks.get(b);
+			result.set(block.start, block.end);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the height of the stack frame before an instruction: the number
+	 * of slots from the base of the current frame to the top of the stack.
+	 *
+	 * @param i
+	 *            The zero-based address of the instruction.
+	 * @return The height, or {@link #UNKNOWN} if it is not known, or the
+	 *         instruction cannot be reached.
+	 */
+	int height(int i) {
+		return heights[i] < 0 ? UNKNOWN : heights[i];
+	}
+
+	/**
+	 * Returns the variables allocated by <code>INC</code> that may be read
+	 * before they are next written, starting at an instruction.
+	 *
+	 * @param i
+	 *            The zero-based address of the instruction.
+	 * @return The frame offsets of the live variables.
+	 */
+	BitSet liveVariables(int i) {
+		return live[i] == null ? new BitSet() : (BitSet) live[i].clone();
+	}
+
+	/**
+	 * Divides the program into basic blocks, and links them.
+	 */
+	private void findBlocks() {
+		final int[] operands = code.operands;
+		BitSet leaders = new BitSet(size);
+
+		leaders.set(0);
+		for (int i = 0; i < size; i++) {
+			int destination = destination(i);
+			if (destination >= 0) {
+				leaders.set(destination);
+			}
+			if (endsBlock(opcodes[i]) && i + 1 < size) {
+				leaders.set(i + 1);
+			}
+		}
+
+		for (int i = leaders.nextSetBit(0); i >= 0; i = leaders.nextSetBit(i + 1)) {
+			Block block = new Block(blocks.size(), i);
+			int end = leaders.nextSetBit(i + 1);
+			block.end = end < 0 ? size : end;
+			Arrays.fill(blockOf, block.start, block.end, block);
+			blocks.add(block);
+		}
+
+		for (Block block : blocks) {
+			int last = block.end - 1;
+			int destination = destination(last);
+			switch (opcodes[last]) {
+			case Mnemonic.JMP:
+				link(block, destination, Kind.JUMP);
+				break;
+			case Mnemonic.JIF:
+				link(block, destination, Kind.BRANCH);
+				link(block, block.end, Kind.FALL);
+				break;
+			case Mnemonic.CAL:
+				block.callee = destination;
+				link(block, block.end, Kind.CALL);
+				break;
+			case Mnemonic.REH:
+				link(block, destination, Kind.HANDLER);
+				link(block, block.end, Kind.FALL);
+				break;
+			default:
+				if (fallsThrough(opcodes[last])) {
+					link(block, block.end, Kind.FALL);
+				}
+			}
+		}
+		return;
+	}
+
+	/**
+	 * Returns the destination of a <code>JMP</code>, <code>JIF</code> or
+	 * <code>CAL</code>, or the handler registered by a <code>REH</code>.
+	 *
+	 * @param i
+	 *            The zero-based address of the instruction.
+	 * @return The zero-based address of the destination, or -1 if there is
+	 *         none in the code.
+	 */
+	private int destination(int i) {
+		int operand = code.operands[i];
+		switch (opcodes[i]) {
+		case Mnemonic.CAL:
+		case Mnemonic.JIF:
+		case Mnemonic.JMP:
+			return inCode(operand) ? operand : -1;
+		case Mnemonic.REH:
+			// The handler address is one-based, with 0 meaning none.
+			return inCode(operand - 1) ? operand - 1 : -1;
+		default:
+			return -1;
+		}
+	}
+
+	/**
+	 * Adds an edge from a block to the one starting at an address, if there
+	 * is one.
+	 */
+	private void link(Block from, int address, Kind kind) {
+		if (!inCode(address)) {
+			return;
+		}
+		Edge edge = new Edge(from, blockOf[address], kind);
+		from.successors.add(edge);
+		edge.to.predecessors.add(edge);
+		return;
+	}
+
+	/**
+	 * Finds the procedures, and the kinds of return each executes.
+	 */
+	private void findProcedures() {
+		final int[] levels = code.levels;
+		int[] params = new int[size];
+		BitSet entries = new BitSet(size);
+
+		entries.set(0);
+		for (int i = size - 1; i >= 0; i--) {
+			if (opcodes[i] == Mnemonic.CAL && inCode(code.operands[i])) {
+				// The first call wins.
+				entries.set(code.operands[i]);
+				params[code.operands[i]] = levels[i];
+			}
+		}
+		// A jump back to the start of the main program is not a call.
+		params[0] = 0;
+
+		for (int e = entries.nextSetBit(0); e >= 0; e = entries.nextSetBit(e + 1)) {
+			Procedure procedure = new Procedure(blockOf[e], Math.max(0, params[e]));
+			int[] pending = new int[blocks.size()];
+			int count = 0;
+			procedure.blocks.set(procedure.entry.index);
+			pending[count++] = procedure.entry.index;
+			while (count > 0) {
+				Block block = blocks.get(pending[--count]);
+				int last = block.end - 1;
+				if (opcodes[last] == CodeStore.RETURN) {
+					procedure.returns |= code.operands[last] == 0 ? PROCEDURE
+							: FUNCTION;
+				}
+				for (Edge edge : block.successors) {
+					if (!procedure.blocks.get(edge.to.index)) {
+						procedure.blocks.set(edge.to.index);
+						pending[count++] = edge.to.index;
+					}
+				}
+			}
+			procedureAt[e] = procedure;
+			procedures.add(procedure);
+		}
+		return;
+	}
+
+	/**
+	 * Finds the natural loops in a procedure, from the back edges to blocks
+	 * that dominate their source. Loops with the same header are merged.
+	 */
+	private void findLoops(Procedure procedure) {
+		final BitSet members = procedure.blocks;
+		BitSet[] dominators = new BitSet[blocks.size()];
+
+		for (int b = members.nextSetBit(0); b >= 0; b = members.nextSetBit(b + 1)) {
+			dominators[b] = (BitSet) members.clone();
+		}
+		dominators[procedure.entry.index] = new BitSet();
+		dominators[procedure.entry.index].set(procedure.entry.index);
+
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int b = members.nextSetBit(0); b >= 0; b = members.nextSetBit(b + 1)) {
+				if (b == procedure.entry.index) {
+					continue;
+				}
+				BitSet dominated = (BitSet) members.clone();
+				for (Edge edge : blocks.get(b).predecessors) {
+					if (members.get(edge.from.index)) {
+						dominated.and(dominators[edge.from.index]);
+					}
+				}
+				dominated.set(b);
+				if (!dominated.equals(dominators[b])) {
+					dominators[b] = dominated;
+					changed = true;
+				}
+			}
+		}
+
+		Loop[] byHeader = new Loop[blocks.size()];
+		for (int b = members.nextSetBit(0); b >= 0; b = members.nextSetBit(b + 1)) {
+			for (Edge edge : blocks.get(b).successors) {
+				int h = edge.to.index;
+				if (!dominators[b].get(h)) {
+					continue;
+				}
+				if (byHeader[h] == null) {
+					byHeader[h] = new Loop(edge.to);
+				}
+				addToLoop(byHeader[h], edge.from, members);
+			}
+		}
+		for (Loop loop : byHeader) {
+			if (loop != null) {
+				procedure.loops.add(loop);
+			}
+		}
+		// An enclosing loop has more blocks than any loop inside it.
+		procedure.loops.sort((a, b) -> b.blocks.cardinality()
+				- a.blocks.cardinality());
+		return;
+	}
+
+	/**
+	 * Adds a block, and every block in the procedure that reaches it without
+	 * passing through the loop's header, to a loop.
+	 */
+	private void addToLoop(Loop loop, Block from, BitSet members) {
+		List<Block> pending = new ArrayList<Block>();
+		if (!loop.blocks.get(from.index)) {
+			loop.blocks.set(from.index);
+			pending.add(from);
+		}
+		while (!pending.isEmpty()) {
+			Block block = pending.remove(pending.size() - 1);
+			for (Edge edge : block.predecessors) {
+				int p = edge.from.index;
+				if (members.get(p) && !loop.blocks.get(p)) {
+					loop.blocks.set(p);
+					pending.add(edge.from);
+				}
+			}
+		}
+		return;
+	}
+
+	/**
+	 * Computes the frame height before each instruction, by dataflow
+	 * analysis to a fixed point.
+	 */
+	private void findHeights() {
+		BitSet work = new BitSet(size);
+
+		for (Procedure procedure : procedures) {
+			merge(procedure.entry.start, procedure.params, work);
+		}
+		for (Block block : blocks) {
+			for (Edge edge : block.successors) {
+				if (edge.kind == Kind.HANDLER) {
+					merge(edge.to.start, UNKNOWN, work);
+				}
+			}
+		}
+
+		for (int i = work.nextSetBit(0); i >= 0; i = work.nextSetBit(0)) {
+			work.clear(i);
+			flow(i, heights[i], work);
+		}
+		return;
+	}
+
+	/**
+	 * Propagates the frame height before instruction <code>i</code> to its
+	 * successors.
+	 */
+	private void flow(int i, int height, BitSet work) {
+		final int level = code.levels[i];
+		final int operand = code.operands[i];
+		final int opcode = opcodes[i];
+		int out;
+
+		switch (opcode) {
+		case Mnemonic.CAL:
+			if (!inCode(operand)) {
+				return;
+			}
+			int returns = procedure(operand).returns;
+			int mark = height - level - 4;
+			if (returns == 0) {
+				// The call never returns.
+				return;
+			}
+			if (height < 0 || returns == (PROCEDURE | FUNCTION) || mark < 0) {
+				out = UNKNOWN;
+			} else {
+				out = returns == FUNCTION ? mark + 1 : mark;
+			}
+			merge(i + 1, out, work);
+			return;
+		case Mnemonic.JIF:
+			out = adjust(height, 1, 0);
+			merge(operand, out, work);
+			merge(i + 1, out, work);
+			return;
+		case Mnemonic.JMP:
+			merge(operand, height, work);
+			return;
+		case Mnemonic.INC:
+			out = operand < 0 ? adjust(height, -operand, 0) : adjust(height,
+					0, operand);
+			break;
+		case Mnemonic.LCI:
+		case Mnemonic.LCR:
+		case Mnemonic.LCS:
+		case Mnemonic.LDA:
+		case Mnemonic.LDU:
+		case Mnemonic.LDV:
+			out = adjust(height, 0, 1);
+			break;
+		case Mnemonic.LDI:
+			out = adjust(height, 1, 1);
+			break;
+		case Mnemonic.MST:
+			out = adjust(height, 0, 4);
+			break;
+		case Mnemonic.OPR:
+			out = adjust(height, pops(operand), pushes(operand));
+			break;
+		case Mnemonic.STI:
+			out = adjust(height, 2, 0);
+			break;
+		case Mnemonic.STO:
+			out = adjust(height, 1, 0);
+			break;
+		default:
+			// RDI, RDR, REH and unknown mnemonics don't change the stack;
+			// everything else transfers control elsewhere or stops.
+			if (!fallsThrough(opcode)) {
+				return;
+			}
+			out = height;
+		}
+		merge(i + 1, out, work);
+		return;
+	}
+
+	/**
+	 * Returns the frame height after popping <code>n</code> slots and
+	 * pushing <code>m</code>. Popping slots below the frame, or an operation
+	 * with an unknown effect, leaves the height unknown.
+	 */
+	private static int adjust(int height, int n, int m) {
+		if (height < 0 || n < 0 || m < 0 || height < n
+				|| height - n + m > MAX_HEIGHT) {
+			return UNKNOWN;
+		}
+		return height - n + m;
+	}
+
+	/**
+	 * Returns the number of values an <code>OPR</code> other than a return
+	 * pops, or -1 if it is not a valid operation.
+	 *
+	 * @param opr
+	 *            The operation number.
+	 * @return The number of values.
+	 */
+	static int pops(int opr) {
+		switch (opr) {
+		case 17:
+		case 18:
+		case 19:
+		case 21:
+			return 0;
+		case 2:
+		case 9:
+		case 16:
+		case 20:
+		case 23:
+		case 24:
+		case 25:
+		case 26:
+		case 27:
+		case 28:
+		case 31:
+			return 1;
+		case 3:
+		case 4:
+		case 5:
+		case 6:
+		case 7:
+		case 8:
+		case 10:
+		case 11:
+		case 12:
+		case 13:
+		case 14:
+		case 15:
+		case 22:
+		case 29:
+		case 30:
+			return 2;
+		default:
+			return -1;
+		}
+	}
+
+	/**
+	 * Returns the number of values an <code>OPR</code> other than a return
+	 * pushes, or -1 if it is not a valid operation.
+	 *
+	 * @param opr
+	 *            The operation number.
+	 * @return The number of values.
+	 */
+	static int pushes(int opr) {
+		switch (opr) {
+		case 20:
+		case 21:
+		case 24:
+			return 0;
+		case 22:
+		case 23:
+			return 2;
+		default:
+			return pops(opr) < 0 ? -1 : 1;
+		}
+	}
+
+	/**
+	 * Merges a frame height into that of instruction <code>i</code>, and
+	 * queues the instruction if it changes.
+	 */
+	private void merge(int i, int height, BitSet work) {
+		if (!inCode(i)) {
+			return;
+		}
+		int old = heights[i];
+		int merged;
+		if (old == UNREACHED) {
+			merged = height;
+		} else if (old == height || old == UNKNOWN) {
+			return;
+		} else {
+			merged = UNKNOWN;
+		}
+		heights[i] = merged;
+		work.set(i);
+		return;
+	}
+
+	/**
+	 * Finds the variables allocated by each procedure, and computes which are
+	 * live before each instruction, by backward dataflow analysis to a fixed
+	 * point.
+	 */
+	private void findLiveness() {
+		boolean nonLocalReads = false;
+		for (int i = 0; i < size; i++) {
+			if ((opcodes[i] == Mnemonic.LDV || opcodes[i] == Mnemonic.LDA)
+					&& code.levels[i] > 0) {
+				nonLocalReads = true;
+			}
+		}
+		for (Procedure procedure : procedures) {
+			liveness(procedure, nonLocalReads);
+		}
+		return;
+	}
+
+	/**
+	 * Computes liveness within one procedure.
+	 *
+	 * @param procedure
+	 *            The procedure.
+	 * @param nonLocalReads
+	 *            Whether any instruction reads a frame other than the
+	 *            current one.
+	 */
+	private void liveness(Procedure procedure, boolean nonLocalReads) {
+		final int[] levels = code.levels;
+		final int[] operands = code.operands;
+		final BitSet members = procedure.blocks;
+		final BitSet variables = procedure.variables;
+		BitSet escaped = new BitSet();
+		List<Block> handlers = new ArrayList<Block>();
+		BitSet[] in = new BitSet[size];
+
+		for (int b = members.nextSetBit(0); b >= 0; b = members.nextSetBit(b + 1)) {
+			Block block = blocks.get(b);
+			for (int i = block.start; i < block.end; i++) {
+				in[i] = new BitSet();
+				if (opcodes[i] == Mnemonic.INC && operands[i] > 0
+						&& heights[i] >= 0) {
+					variables.set(heights[i], Math.min(heights[i] + operands[i],
+							MAX_HEIGHT));
+				}
+			}
+			for (Edge edge : block.successors) {
+				if (edge.kind == Kind.HANDLER) {
+					handlers.add(edge.to);
+				}
+			}
+		}
+		for (int b = members.nextSetBit(0); b >= 0; b = members.nextSetBit(b + 1)) {
+			Block block = blocks.get(b);
+			for (int i = block.start; i < block.end; i++) {
+				if (opcodes[i] == Mnemonic.LDA && levels[i] <= 0
+						&& operands[i] >= 0 && variables.get(operands[i])) {
+					escaped.set(operands[i]);
+				}
+			}
+		}
+
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			BitSet caught = new BitSet();
+			for (Block handler : handlers) {
+				caught.or(in[handler.start]);
+			}
+			for (int b = members.previousSetBit(blocks.size()); b >= 0; b = members
+					.previousSetBit(b - 1)) {
+				Block block = blocks.get(b);
+				for (int i = block.end - 1; i >= block.start; i--) {
+					BitSet out = (BitSet) caught.clone();
+					out.or(escaped);
+					if (i + 1 < block.end) {
+						out.or(in[i + 1]);
+					} else {
+						for (Edge edge : block.successors) {
+							if (members.get(edge.to.index)) {
+								out.or(in[edge.to.start]);
+							}
+						}
+					}
+					transfer(i, out, variables, nonLocalReads);
+					if (!out.equals(in[i])) {
+						in[i] = out;
+						changed = true;
+					}
+				}
+			}
+		}
+
+		for (int i = 0; i < size; i++) {
+			if (in[i] == null) {
+				continue;
+			}
+			if (live[i] == null) {
+				live[i] = in[i];
+			} else {
+				live[i].or(in[i]);
+			}
+		}
+		return;
+	}
+
+	/**
+	 * Turns the variables live after an instruction into those live before
+	 * it.
+	 */
+	private void transfer(int i, BitSet live, BitSet variables,
+			boolean nonLocalReads) {
+		final int level = code.levels[i];
+		final int operand = code.operands[i];
+
+		switch (opcodes[i]) {
+		case Mnemonic.CAL:
+			if (nonLocalReads) {
+				live.or(variables);
+			}
+			break;
+		case Mnemonic.LDV:
+			if (level <= 0 && operand >= 0 && variables.get(operand)) {
+				live.set(operand);
+			}
+			break;
+		case Mnemonic.RDI:
+		case Mnemonic.RDR:
+		case Mnemonic.STO:
+			if (level <= 0 && operand >= 0) {
+				live.clear(operand);
+			}
+			break;
+		default:
+		}
+		return;
+	}
+
+	/**
+	 * Writes the graph in the DOT language. Each procedure is a cluster of
+	 * blocks, labelled with the line of its entry. Each block lists its
+	 * instructions with their line numbers and the frame height before each,
+	 * and the variables live on entry. A branch is labelled with the
+	 * condition under which it is taken, a call with the line of the
+	 * procedure called, and the edge to an exception handler is dashed. A
+	 * block that belongs to more than one procedure is drawn in the first.
+	 *
+	 * @param out
+	 *            The destination.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	void writeDot(Appendable out) throws IOException {
+		BitSet drawn = new BitSet(blocks.size());
+
+		out.append("digraph PAL {\n");
+		out.append("\tnode [shape=box, fontname=monospace];\n");
+		for (int p = 0; p < procedures.size(); p++) {
+			Procedure procedure = procedures.get(p);
+			out.append("\tsubgraph cluster_").append(Integer.toString(p))
+					.append(" {\n");
+			out.append("\t\tlabel=\"")
+					.append(p == 0 ? "main" : "procedure at line "
+							+ line(procedure.entry.start)).append("\";\n");
+			BitSet members = procedure.blocks;
+			for (int b = members.nextSetBit(0); b >= 0; b = members.nextSetBit(b + 1)) {
+				if (!drawn.get(b)) {
+					drawn.set(b);
+					writeBlock(out, blocks.get(b));
+				}
+			}
+			out.append("\t}\n");
+		}
+		for (Block block : blocks) {
+			if (!drawn.get(block.index)) {
+				writeBlock(out, block);
+			}
+		}
+		for (Block block : blocks) {
+			for (Edge edge : block.successors) {
+				out.append("\tb").append(Integer.toString(block.index))
+						.append(" -> b").append(Integer.toString(edge.to.index));
+				switch (edge.kind) {
+				case JUMP:
+					break;
+				case BRANCH:
+					out.append(" [label=\"false\"]");
+					break;
+				case CALL:
+					out.append(" [label=\"call ")
+							.append(block.callee < 0 ? "?" : Integer
+									.toString(line(block.callee)))
+							.append("\"]");
+					break;
+				case HANDLER:
+					out.append(" [style=dashed, label=\"handler\"]");
+					break;
+				default:
+					if (opcodes[block.end - 1] == Mnemonic.JIF) {
+						out.append(" [label=\"true\"]");
+					}
+				}
+				out.append(";\n");
+			}
+		}
+		out.append("}\n");
+		return;
+	}
+
+	/**
+	 * Writes a block as a node.
+	 */
+	private void writeBlock(Appendable out, Block block) throws IOException {
+		out.append("\t\tb").append(Integer.toString(block.index))
+				.append(" [label=\"");
+		for (int i = block.start; i < block.end; i++) {
+			int height = height(i);
+			out.append(Integer.toString(line(i))).append(": ")
+					.append(escape(code.getCode(i).toString())).append(" [")
+					.append(height == UNKNOWN ? "?" : Integer.toString(height))
+					.append("]\\l");
+		}
+		BitSet entry = liveVariables(block.start);
+		if (!entry.isEmpty()) {
+			out.append("live: ").append(entry.toString()).append("\\l");
+		}
+		out.append("\"];\n");
+		return;
+	}
+
+	/**
+	 * Escapes a string for a DOT label.
+	 */
+	private static String escape(String s) {
+		return s.replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+
+	/**
+	 * Returns the source line of an instruction.
+	 */
+	private int line(int i) {
+		return code.getCode(i).getLineNo();
+	}
+
+	/**
+	 * Tests whether a block ends after an instruction.
+	 */
+	private static boolean endsBlock(int opcode) {
+		switch (opcode) {
+		case Mnemonic.CAL:
+		case Mnemonic.JIF:
+		case Mnemonic.REH:
+			return true;
+		default:
+			return !fallsThrough(opcode);
+		}
+	}
+
+	/**
+	 * Tests whether an instruction can continue at the next one, other than
+	 * by a return from a <code>CAL</code>.
+	 *
+	 * @param opcode
+	 *            The opcode, as decoded.
+	 * @return <code>true</code> if control can pass to the next instruction.
+	 */
+	static boolean fallsThrough(int opcode) {
+		switch (opcode) {
+		case Mnemonic.CAL:
+		case Mnemonic.JMP:
+		case Mnemonic.SIG:
+		case CodeStore.HALT:
+		case CodeStore.ILLEGAL:
+		case CodeStore.RETURN:
+			return false;
+		default:
+			return true;
+		}
+	}
+
+	/**
+	 * Tests whether an address is in the code.
+	 */
+	private boolean inCode(int address) {
+		return address >= 0 && address < size;
+	}
+}
@@ -2,13 +2,20 @@ package net.logicsquad.pal;
 
 /**
  * A class to represent a tagged datum.
+ *
+ * <p>
+ * A <code>Data</code> object is immutable, so it can be shared freely, and a
+ * store replaces a value rather than changing it. The <code>valueOf</code>
+ * factory methods return canonical instances for booleans, the undefined
+ * value and small integers, and should be preferred to the constructor.
+ * </p>
  * 
  * @author Philip Roberts &lt;philip.roberts@gmail.com&gt;
  * @author Paul Hoadley &lt;paulh@logicsquad.net&gt;
  */
 public class Data implements Cloneable {
 	/** The type of this datum. */
-	private int type;
+	private final int type;
 
 	/** Constant to represent integer data type. */
 	public static final int INT = 0;
@@ -25,8 +32,32 @@ public class Data implements Cloneable {
 	/** Constant to represent undefined data type. */
 	public static final int UNDEF = 4;
 
+	/** The boolean true. */
+	public static final Data TRUE = new Data(BOOL, Boolean.TRUE);
+
+	/** The boolean false. */
+	public static final Data FALSE = new Data(BOOL, Boolean.FALSE);
+
+	/** The undefined value. */
+	public static final Data UNDEFINED = new Data(UNDEF, null);
+
+	/** The least integer with a cached instance. */
+	private static final int CACHE_LOW = -128;
+
+	/** The greatest integer with a cached instance. */
+	private static final int CACHE_HIGH = 1023;
+
+	/** Cached instances for integers from {@link #CACHE_LOW} to {@link #CACHE_HIGH}. */
+	private static final Data[] SMALL_INTS = new Data[CACHE_HIGH - CACHE_LOW + 1];
+
+	static {
+		for (int i = 0; i < SMALL_INTS.length; i++) {
+			SMALL_INTS[i] = new Data(INT, Integer.valueOf(CACHE_LOW + i));
+		}
+	}
+
 	/** The value of this datum. */
-	private Object value;
+	private final Object value;
 
 	/**
 	 * Constructor.
@@ -44,68 +75,80 @@ public class Data implements Cloneable {
 	}
 
 	/**
-	 * Method to duplicate this object.
-	 * 
-	 * @return A duplicate of this object.
+	 * Returns an integer datum.
+	 *
+	 * @param value
+	 *            The value.
+	 * @return A datum of type {@link #INT}, shared if the value is small.
 	 */
-	public Object clone() {
-		Object valCopy = null;
-
-		if (value == null) {
-			valCopy = null;
-		} else if (value instanceof Integer) {
-			valCopy = new Integer(((Integer) value).intValue());
-		} else if (value instanceof Float) {
-			valCopy = new Float(((Float) value).floatValue());
-		} else if (value instanceof Boolean) {
-			valCopy = new Boolean(((Boolean) value).booleanValue());
-		} else if (value instanceof String) {
-			valCopy = new String(value.toString());
+	public static Data valueOf(int value) {
+		if (value >= CACHE_LOW && value <= CACHE_HIGH) {
+			return SMALL_INTS[value - CACHE_LOW];
 		}
+		return new Data(INT, Integer.valueOf(value));
+	}
 
-		return new Data(this.type, valCopy);
+	/**
+	 * Returns a real datum.
+	 *
+	 * @param value
+	 *            The value.
+	 * @return A datum of type {@link #REAL}.
+	 */
+	public static Data valueOf(float value) {
+		return new Data(REAL, Float.valueOf(value));
 	}
 
 	/**
-	 * Returns the type of this datum.
-	 * 
-	 * @return The type of this datum.
+	 * Returns a boolean datum.
+	 *
+	 * @param value
+	 *            The value.
+	 * @return {@link #TRUE} or {@link #FALSE}.
 	 */
-	public int getType() {
-		return type;
+	public static Data valueOf(boolean value) {
+		return value ? TRUE : FALSE;
 	}
 
 	/**
-	 * Returns the value of this datum.
+	 * Returns a string datum.
+	 *
+	 * @param value
+	 *            The value.
+	 * @return A datum of type {@link #STRING}.
+	 */
+	public static Data valueOf(String value) {
+		return new Data(STRING, value);
+	}
+
+	/**
+	 * Method to duplicate this object. Since a <code>Data</code> object is
+	 * immutable, a copy is indistinguishable from the original, and the
+	 * original is returned.
 	 * 
-	 * @return The value of this datum.
-	 * @see Code#Code
+	 * @return This object.
 	 */
-	public Object getValue() {
-		return value;
+	public Object clone() {
+		return this;
 	}
 
 	/**
-	 * Sets the type of this datum.
+	 * Returns the type of this datum.
 	 * 
-	 * @param type
-	 *            An <code>int</code> representing the type of this datum.
+	 * @return The type of this datum.
 	 */
-	public void setType(int type) {
-		this.type = type;
-		return;
+	public int getType() {
+		return type;
 	}
 
 	/**
-	 * Sets the value of this datum.
+	 * Returns the value of this datum.
 	 * 
-	 * @param value
-	 *            An <code>Object</code> representing the value of this datum.
+	 * @return The value of this datum.
 	 * @see Code#Code
 	 */
-	public void setValue(Object value) {
-		this.value = value;
-		return;
+	public Object getValue() {
+		return value;
 	}
 
 	/**
@@ -9,7 +9,7 @@ import java.util.List;
  * @author Philip Roberts &lt;philip.roberts@gmail.com&gt;
  * @author Paul Hoadley &lt;paulh@logicsquad.net&gt;
  */
-public class DataStack {
+public final class DataStack {
 	/** A container for the <code>Data</code> objects. */
 	private List<Data> data;
 
@@ -141,7 +141,7 @@ public class DataStack {
 		}
 
 		for (int i = 0; i < amount; i++) {
-			data.add(new Data(Data.UNDEF, null));
+			data.add(Data.UNDEFINED);
 			top++;
 		}
 	}
@@ -161,15 +161,15 @@ public class DataStack {
 	 */
 	public void markStack(int staticLink, int dynamicLink)
 			throws OutOfMemoryError {
-		push(new Data(Data.INT, new Integer(staticLink)));
-		push(new Data(Data.INT, new Integer(dynamicLink)));
+		push(Data.valueOf(staticLink));
+		push(Data.valueOf(dynamicLink));
 
 		// Leave space for return point.
-		push(new Data(Data.INT, new Integer(0)));
+		push(Data.valueOf(0));
 
 		// Dummy exception handler address - indicates that no handler
 		// is registered.
-		push(new Data(Data.INT, new Integer(0)));
+		push(Data.valueOf(0));
 	}
 
 	/**
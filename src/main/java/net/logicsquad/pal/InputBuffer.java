@@ -0,0 +1,376 @@
+package net.logicsquad.pal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * The machine's standard input, for <code>RDI</code>, <code>RDR</code> and
+ * <code>OPR 19</code>. Input is read in large blocks into a byte buffer, and
+ * lines of input are parsed as integers or reals directly from the buffer
+ * where possible, without creating a <code>String</code>.
+ *
+ * <p>
+ * The behaviour is that of a <code>BufferedReader</code> reading lines from a
+ * <code>PushbackReader</code>, with <code>OPR 19</code> testing for EOF by
+ * reading and pushing back a single character from the
+ * <code>PushbackReader</code>, as the machine used to be implemented. In
+ * particular, lines may be terminated by a line feed, a carriage return, or
+ * both; and after a carriage return, a following line feed is only skipped by
+ * the next {@link #nextLine <code>nextLine</code>}, so that it is not EOF as
+ * far as {@link #atEOF <code>atEOF</code>} is concerned.
+ * </p>
+ *
+ * <p>
+ * Line terminators are found in the undecoded bytes, which is safe for any
+ * charset in which they are single bytes that cannot occur inside a multi-byte
+ * character, such as UTF-8. A line is only decoded if it cannot be parsed
+ * directly, so that the exact semantics of <code>Integer.parseInt</code> and
+ * <code>Float.parseFloat</code> apply to anything unusual.
+ * </p>
+ *
+ * @author Paul Hoadley &lt;paulh@logicsquad.net&gt;
+ */
+final class InputBuffer {
+	/** The initial size of the buffer. */
+	private static final int BUFFER_SIZE = 65536;
+
+	/**
+	 * The powers of ten that are exactly representable as a
+	 * <code>float</code>.
+	 */
+	private static final float[] POWERS_OF_TEN = { 1e0f, 1e1f, 1e2f, 1e3f,
+			1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f, 1e10f };
+
+	/** The largest integer all of whose predecessors are exact floats. */
+	private static final int MAX_EXACT_FLOAT = 1 << 24;
+
+	/** The underlying stream. */
+	private final InputStream in;
+
+	/** The charset for decoding lines that can't be parsed directly. */
+	private final Charset charset;
+
+	/** The buffer. */
+	private byte[] buffer = new byte[BUFFER_SIZE];
+
+	/** The index of the next unread byte. */
+	private int position;
+
+	/** The index one past the last valid byte. */
+	private int limit;
+
+	/** The start of the current line. */
+	private int lineStart;
+
+	/** The end of the current line, excluding its terminator. */
+	private int lineEnd;
+
+	/** Whether to skip a line feed immediately following a carriage return. */
+	private boolean skipLF;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param in
+	 *            The underlying stream.
+	 */
+	InputBuffer(InputStream in) {
+		this.in = in;
+		this.charset = Charset.defaultCharset();
+		return;
+	}
+
+	/**
+	 * Constructor, to continue reading where another buffer left off, as
+	 * recorded by {@link #unread <code>unread</code>} and {@link #skipsLF
+	 * <code>skipsLF</code>}.
+	 *
+	 * @param in
+	 *            The underlying stream, to be read after the unread bytes.
+	 * @param unread
+	 *            The bytes the other buffer had read but not consumed.
+	 * @param skipLF
+	 *            Whether to skip a line feed at the start of the input.
+	 */
+	InputBuffer(InputStream in, byte[] unread, boolean skipLF) {
+		this(in);
+		if (unread.length > buffer.length) {
+			buffer = new byte[unread.length];
+		}
+		System.arraycopy(unread, 0, buffer, 0, unread.length);
+		limit = unread.length;
+		this.skipLF = skipLF;
+		return;
+	}
+
+	/**
+	 * Returns the bytes that have been read from the underlying stream, but
+	 * not yet consumed.
+	 *
+	 * @return A copy of the bytes.
+	 */
+	byte[] unread() {
+		return Arrays.copyOfRange(buffer, position, limit);
+	}
+
+	/**
+	 * Tests whether the last line read ended in a carriage return, so that a
+	 * line feed at the start of the unread input will be skipped.
+	 *
+	 * @return <code>true</code> if a line feed will be skipped.
+	 */
+	boolean skipsLF() {
+		return skipLF;
+	}
+
+	/**
+	 * Tests whether there is no more input, blocking if necessary until there
+	 * is some input or EOF.
+	 *
+	 * @return <code>true</code> if the input is at EOF.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	boolean atEOF() throws IOException {
+		return position == limit && !fill();
+	}
+
+	/**
+	 * Tests whether the next {@link #nextLine <code>nextLine</code>} or
+	 * {@link #atEOF <code>atEOF</code>} can complete without blocking. Only
+	 * an {@link InputQueue <code>InputQueue</code>} can say so: for any other
+	 * stream, this is always <code>true</code>, and the read may block.
+	 *
+	 * @param line
+	 *            <code>true</code> for <code>nextLine</code>, or
+	 *            <code>false</code> for <code>atEOF</code>.
+	 * @return <code>false</code> if the read would block.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	boolean ready(boolean line) throws IOException {
+		if (!(in instanceof InputQueue)) {
+			return true;
+		}
+		InputQueue queue = (InputQueue) in;
+		while (!(line ? hasLine() : position < limit)) {
+			if (queue.available() == 0) {
+				// Unless we are at EOF.
+				return queue.isClosed();
+			}
+			fill();
+		}
+		return true;
+	}
+
+	/**
+	 * Tests whether there is a whole line in the buffer.
+	 *
+	 * @return <code>true</code> if there is a line terminator after any line
+	 *         feed that would be skipped.
+	 */
+	private boolean hasLine() {
+		int scan = position;
+		if (skipLF && scan < limit && buffer[scan] == '\n') {
+			scan++;
+		}
+		for (; scan < limit; scan++) {
+			if (buffer[scan] == '\n' || buffer[scan] == '\r') {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Reads the next line of input, which can then be parsed with
+	 * {@link #parseInt <code>parseInt</code>} or {@link #parseFloat
+	 * <code>parseFloat</code>}.
+	 *
+	 * @return <code>false</code> if the input was already at EOF.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	boolean nextLine() throws IOException {
+		if (skipLF) {
+			skipLF = false;
+			if (!atEOF() && buffer[position] == '\n') {
+				position++;
+			}
+		}
+
+		int scan = position;
+		while (true) {
+			final byte[] b = buffer;
+			while (scan < limit) {
+				byte c = b[scan];
+				if (c == '\n' || c == '\r') {
+					lineStart = position;
+					lineEnd = scan;
+					position = scan + 1;
+					skipLF = c == '\r';
+					return true;
+				}
+				scan++;
+			}
+
+			// We need more input to find the end of the line. Filling may
+			// move the unread bytes to the start of the buffer.
+			int scanned = scan - position;
+			boolean more = fill();
+			scan = position + scanned;
+			if (!more) {
+				if (scanned == 0) {
+					return false;
+				}
+				// The last line has no terminator.
+				lineStart = position;
+				lineEnd = scan;
+				position = scan;
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Parses the current line as an integer, exactly as
+	 * <code>Integer.parseInt</code> would.
+	 *
+	 * @return The value.
+	 * @throws NumberFormatException
+	 *             if the line is not an integer.
+	 */
+	int parseInt() throws NumberFormatException {
+		final byte[] b = buffer;
+		int i = lineStart;
+		int end = lineEnd;
+		boolean negative = false;
+
+		if (i < end && (b[i] == '-' || b[i] == '+')) {
+			negative = b[i] == '-';
+			i++;
+		}
+		if (i == end || end - i > 10) {
+			// Empty, or possibly too long: let the library decide.
+			return Integer.parseInt(line());
+		}
+
+		// Accumulate negatively, as the library does, so that
+		// Integer.MIN_VALUE can be represented.
+		long result = 0;
+		for (; i < end; i++) {
+			int digit = b[i] - '0';
+			if (digit < 0 || digit > 9) {
+				// Not a plain ASCII digit, but it might be some other
+				// Unicode digit.
+				return Integer.parseInt(line());
+			}
+			result = result * 10 - digit;
+		}
+		if (!negative) {
+			result = -result;
+		}
+		if (result < Integer.MIN_VALUE || result > Integer.MAX_VALUE) {
+			throw new NumberFormatException("For input string: \"" + line()
+					+ "\"");
+		}
+		return (int) result;
+	}
+
+	/**
+	 * Parses the current line as a real, exactly as
+	 * <code>Float.parseFloat</code> would.
+	 *
+	 * <p>
+	 * A line consisting of an optional sign, and digits with an optional
+	 * decimal point, is parsed directly if its digits form an integer
+	 * <i>m</i> &lt;= 2<sup>24</sup> with at most 10 of them after the point.
+	 * Both <i>m</i> and the power of ten are then exact <code>float</code>s,
+	 * and since floating-point division is correctly rounded, dividing one by
+	 * the other gives the correctly rounded result, as
+	 * <code>Float.parseFloat</code> does. Anything else is passed to
+	 * <code>Float.parseFloat</code>.
+	 * </p>
+	 *
+	 * @return The value.
+	 * @throws NumberFormatException
+	 *             if the line is not a real.
+	 */
+	float parseFloat() throws NumberFormatException {
+		final byte[] b = buffer;
+		int i = lineStart;
+		int end = lineEnd;
+		boolean negative = false;
+
+		if (i < end && (b[i] == '-' || b[i] == '+')) {
+			negative = b[i] == '-';
+			i++;
+		}
+
+		int mantissa = 0;
+		int digits = 0;
+		int point = -1;
+		for (; i < end; i++) {
+			int c = b[i];
+			if (c == '.' && point < 0) {
+				point = digits;
+				continue;
+			}
+			int digit = c - '0';
+			if (digit < 0 || digit > 9 || mantissa > MAX_EXACT_FLOAT / 10) {
+				return Float.parseFloat(line());
+			}
+			mantissa = mantissa * 10 + digit;
+			digits++;
+		}
+		int scale = point < 0 ? 0 : digits - point;
+		if (digits == 0 || mantissa > MAX_EXACT_FLOAT
+				|| scale >= POWERS_OF_TEN.length) {
+			return Float.parseFloat(line());
+		}
+
+		float result = mantissa / POWERS_OF_TEN[scale];
+		return negative ? -result : result;
+	}
+
+	/**
+	 * Decodes the current line.
+	 *
+	 * @return The current line.
+	 */
+	private String line() {
+		return new String(buffer, lineStart, lineEnd - lineStart, charset);
+	}
+
+	/**
+	 * Reads more input into the buffer, blocking until at least one byte is
+	 * available. The unread bytes are first moved to the start of the buffer,
+	 * which is grown if they fill it.
+	 *
+	 * @return <code>false</code> at EOF.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	private boolean fill() throws IOException {
+		if (position > 0) {
+			System.arraycopy(buffer, position, buffer, 0, limit - position);
+			limit -= position;
+			position = 0;
+		}
+		if (limit == buffer.length) {
+			buffer = Arrays.copyOf(buffer, buffer.length * 2);
+		}
+
+		int n;
+		do {
+			n = in.read(buffer, limit, buffer.length - limit);
+		} while (n == 0);
+		if (n < 0) {
+			return false;
+		}
+		limit += n;
+		return true;
+	}
+}
@@ -0,0 +1,151 @@
+package net.logicsquad.pal;
+
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * An input stream whose bytes are supplied by another party, a block at a
+ * time, for a {@link Machine <code>Machine</code>} that is not given an input
+ * stream. Reading blocks until input is supplied or the queue is closed, but
+ * {@link InputBuffer#ready <code>InputBuffer.ready</code>} can tell from
+ * {@link #available <code>available</code>} and {@link #isClosed
+ * <code>isClosed</code>} whether a read would block, so that a machine being
+ * stepped can wait for input without blocking its thread.
+ *
+ * <p>
+ * The methods are synchronised, so input may be supplied from any thread.
+ * </p>
+ *
+ * @author Paul Hoadley &lt;paulh@logicsquad.net&gt;
+ */
+final class InputQueue extends InputStream {
+	/** The buffer. */
+	private byte[] bytes = new byte[256];
+
+	/** The index of the next unread byte. */
+	private int start;
+
+	/** The index one past the last supplied byte. */
+	private int end;
+
+	/** Whether there will be no more input. */
+	private boolean closed;
+
+	/**
+	 * Adds bytes to the end of the queue.
+	 *
+	 * @param b
+	 *            The bytes.
+	 * @throws IllegalStateException
+	 *             if the queue has been closed.
+	 */
+	synchronized void supply(byte[] b) {
+		if (closed) {
+			throw new IllegalStateException("The input has been closed.");
+		}
+		if (end + b.length > bytes.length) {
+			System.arraycopy(bytes, start, bytes, 0, end - start);
+			end -= start;
+			start = 0;
+			if (end + b.length > bytes.length) {
+				byte[] grown = new byte[Math.max(bytes.length * 2, end
+						+ b.length)];
+				System.arraycopy(bytes, 0, grown, 0, end);
+				bytes = grown;
+			}
+		}
+		System.arraycopy(b, 0, bytes, end, b.length);
+		end += b.length;
+		notifyAll();
+		return;
+	}
+
+	/**
+	 * Marks the end of the input. Reads return EOF once the bytes already
+	 * supplied have been read.
+	 */
+	public synchronized void close() {
+		closed = true;
+		notifyAll();
+		return;
+	}
+
+	/**
+	 * Tests whether the queue has been closed.
+	 *
+	 * @return <code>true</code> if there will be no more input.
+	 */
+	synchronized boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Returns the number of bytes that can be read without blocking.
+	 *
+	 * @return The number of bytes supplied and not yet read.
+	 */
+	public synchronized int available() {
+		return end - start;
+	}
+
+	/**
+	 * Reads a byte, blocking until one is supplied or the queue is closed.
+	 *
+	 * @return The byte, or -1 at EOF.
+	 * @throws InterruptedIOException
+	 *             if interrupted while waiting.
+	 */
+	public synchronized int read() throws InterruptedIOException {
+		if (!await()) {
+			return -1;
+		}
+		return bytes[start++] & 0xff;
+	}
+
+	/**
+	 * Reads up to <code>len</code> bytes, blocking until at least one is
+	 * supplied or the queue is closed.
+	 *
+	 * @param b
+	 *            The destination.
+	 * @param off
+	 *            The offset in <code>b</code> to read into.
+	 * @param len
+	 *            The maximum number of bytes to read.
+	 * @return The number of bytes read, or -1 at EOF.
+	 * @throws InterruptedIOException
+	 *             if interrupted while waiting.
+	 */
+	public synchronized int read(byte[] b, int off, int len)
+			throws InterruptedIOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (!await()) {
+			return -1;
+		}
+		int n = Math.min(len, end - start);
+		System.arraycopy(bytes, start, b, off, n);
+		start += n;
+		return n;
+	}
+
+	/**
+	 * Waits until there is input to read, or the queue is closed.
+	 *
+	 * @return <code>false</code> at EOF.
+	 * @throws InterruptedIOException
+	 *             if interrupted while waiting.
+	 */
+	private boolean await() throws InterruptedIOException {
+		while (start == end && !closed) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+		}
+		return start < end;
+	}
+}
@@ -0,0 +1,40 @@
+package net.logicsquad.pal;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a program cannot be loaded, because its source does not have
+ * the prescribed form, or it exceeds the code memory limit.
+ *
+ * @author Paul Hoadley &lt;paulh@logicsquad.net&gt;
+ * @see Program
+ */
+public class LoadException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	/** The line number at which loading failed. */
+	private final int lineNo;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param message
+	 *            The message, which includes the line number.
+	 * @param lineNo
+	 *            The line number at which loading failed.
+	 */
+	LoadException(String message, int lineNo) {
+		super(message);
+		this.lineNo = lineNo;
+		return;
+	}
+
+	/**
+	 * Returns the line number at which loading failed.
+	 *
+	 * @return The line number.
+	 */
+	public int getLineNo() {
+		return lineNo;
+	}
+}
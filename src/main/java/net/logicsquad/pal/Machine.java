@@ -0,0 +1,410 @@
+package net.logicsquad.pal;
+
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+/**
+ * A PAL machine, which runs a {@link Program <code>Program</code>} once, with
+ * its own data stack and I/O streams. Any number of machines may run the same
+ * program, concurrently or otherwise, without affecting each other. A single
+ * machine is not safe for use by more than one thread at a time, except that
+ * input may be supplied from any thread.
+ *
+ * <p>
+ * The program's input (for <code>RDI</code>, <code>RDR</code> and
+ * <code>OPR 19</code>) is read from the given <code>InputStream</code>, or if
+ * none is given, from the input supplied by {@link #supplyInput(byte[])
+ * <code>supplyInput</code>}. Its output (from <code>OPR 20</code> and
+ * <code>OPR 21</code>) is written to the given <code>Writer</code>. Runtime
+ * errors are reported to a separate <code>Writer</code>, which may be the
+ * same one. Output is buffered, and both writers are flushed when the program
+ * terminates, but neither stream is closed.
+ * </p>
+ *
+ * <p>
+ * A program can be run to termination with {@link #run <code>run</code>},
+ * or a slice at a time with {@link #step <code>step</code>}, so that a
+ * scheduler can share a few threads fairly between many machines. A machine
+ * being stepped whose input is supplied, rather than read from a stream,
+ * does not block its thread waiting for input: it reports that it is
+ * {@link State#BLOCKED_ON_INPUT <code>BLOCKED_ON_INPUT</code>} instead.
+ * </p>
+ *
+ * <p>
+ * The state of a machine part way through a program can be recorded in a
+ * {@link Snapshot <code>Snapshot</code>} by {@link #snapshot
+ * <code>snapshot</code>}, and new machines forked from it to continue from
+ * there.
+ * </p>
+ *
+ * @author Paul Hoadley &lt;paulh@logicsquad.net&gt;
+ */
+public final class Machine {
+	/** The state of a machine after a {@link Machine#step step}. */
+	public enum State {
+		/** The program can continue. */
+		RUNNING,
+
+		/** The program is waiting for more input to be supplied. */
+		BLOCKED_ON_INPUT,
+
+		/** The program has terminated. */
+		TERMINATED;
+	}
+
+	/** The machine state. */
+	private final PAL pal;
+
+	/**
+	 * The program's input, if it is supplied by {@link #supplyInput(byte[])
+	 * <code>supplyInput</code>}, or <code>null</code>.
+	 */
+	private final InputQueue queue;
+
+	/** Whether the program has been run to termination by {@link #run}. */
+	private boolean started;
+
+	/** Whether the program has been stepped. */
+	private boolean stepped;
+
+	/** The status of the machine, once the program has terminated. */
+	private PAL.ExitStatus status;
+
+	/**
+	 * Constructor, with the default data stack size limit of
+	 * {@value PAL#DATASIZE} locations.
+	 *
+	 * @param program
+	 *            The program to run.
+	 * @param in
+	 *            The program's input.
+	 * @param out
+	 *            The program's output.
+	 * @param err
+	 *            The destination for runtime error reports.
+	 */
+	public Machine(Program program, InputStream in, Writer out, Writer err) {
+		this(program, in, out, err, PAL.DATASIZE);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param program
+	 *            The program to run.
+	 * @param in
+	 *            The program's input.
+	 * @param out
+	 *            The program's output.
+	 * @param err
+	 *            The destination for runtime error reports.
+	 * @param dataSize
+	 *            The data stack size limit, or 0 for no limit.
+	 */
+	public Machine(Program program, InputStream in, Writer out, Writer err,
+			int dataSize) {
+		this(program, in, null, out, err, dataSize);
+	}
+
+	/**
+	 * Constructor, for a machine whose input is supplied by
+	 * {@link #supplyInput(byte[]) <code>supplyInput</code>}.
+	 *
+	 * @param program
+	 *            The program to run.
+	 * @param out
+	 *            The program's output.
+	 * @param err
+	 *            The destination for runtime error reports.
+	 * @param dataSize
+	 *            The data stack size limit, or 0 for no limit.
+	 */
+	public Machine(Program program, Writer out, Writer err, int dataSize) {
+		this(program, null, new InputQueue(), out, err, dataSize);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param program
+	 *            The program to run.
+	 * @param in
+	 *            The program's input, or <code>null</code> if it is supplied.
+	 * @param queue
+	 *            The queue of supplied input, or <code>null</code>.
+	 * @param out
+	 *            The program's output.
+	 * @param err
+	 *            The destination for runtime error reports.
+	 * @param dataSize
+	 *            The data stack size limit, or 0 for no limit.
+	 */
+	private Machine(Program program, InputStream in, InputQueue queue,
+			Writer out, Writer err, int dataSize) {
+		this.queue = queue;
+		pal = new PAL(program, queue == null ? in : queue, printWriter(out,
+				false), printWriter(err, true), dataSize);
+		return;
+	}
+
+	/**
+	 * Constructor, for a machine forked from a snapshot.
+	 *
+	 * @param snapshot
+	 *            The snapshot.
+	 * @param in
+	 *            The program's input.
+	 * @param out
+	 *            The program's output.
+	 * @param err
+	 *            The destination for runtime error reports.
+	 * @see Snapshot#fork(InputStream, Writer, Writer)
+	 */
+	Machine(Snapshot snapshot, InputStream in, Writer out, Writer err) {
+		this(snapshot, in, null, out, err);
+	}
+
+	/**
+	 * Constructor, for a machine forked from a snapshot, whose input is
+	 * supplied by {@link #supplyInput(byte[]) <code>supplyInput</code>}.
+	 *
+	 * @param snapshot
+	 *            The snapshot.
+	 * @param out
+	 *            The program's output.
+	 * @param err
+	 *            The destination for runtime error reports.
+	 * @see Snapshot#fork(Writer, Writer)
+	 */
+	Machine(Snapshot snapshot, Writer out, Writer err) {
+		this(snapshot, null, new InputQueue(), out, err);
+	}
+
+	/**
+	 * Constructor, for a machine forked from a snapshot.
+	 *
+	 * @param snapshot
+	 *            The snapshot.
+	 * @param in
+	 *            The program's input, or <code>null</code> if it is supplied.
+	 * @param queue
+	 *            The queue of supplied input, or <code>null</code>.
+	 * @param out
+	 *            The program's output.
+	 * @param err
+	 *            The destination for runtime error reports.
+	 */
+	private Machine(Snapshot snapshot, InputStream in, InputQueue queue,
+			Writer out, Writer err) {
+		this.queue = queue;
+		pal = new PAL(snapshot, queue == null ? in : queue, printWriter(out,
+				false), printWriter(err, true));
+		return;
+	}
+
+	/**
+	 * Supplies input to the program, to be read after any already supplied.
+	 * This may be called from any thread.
+	 *
+	 * @param bytes
+	 *            The input.
+	 * @throws IllegalStateException
+	 *             if the machine reads its input from a stream, or the input
+	 *             has been closed.
+	 */
+	public void supplyInput(byte[] bytes) {
+		if (queue == null) {
+			throw new IllegalStateException("The input is read from a stream.");
+		}
+		queue.supply(bytes.clone());
+		return;
+	}
+
+	/**
+	 * Supplies input to the program, encoded in the default charset.
+	 *
+	 * @param text
+	 *            The input.
+	 * @throws IllegalStateException
+	 *             if the machine reads its input from a stream, or the input
+	 *             has been closed.
+	 * @see #supplyInput(byte[])
+	 */
+	public void supplyInput(String text) {
+		supplyInput(text.getBytes(Charset.defaultCharset()));
+		return;
+	}
+
+	/**
+	 * Marks the end of the supplied input. Once it has all been read, the
+	 * program sees EOF. This may be called from any thread.
+	 *
+	 * @throws IllegalStateException
+	 *             if the machine reads its input from a stream.
+	 */
+	public void closeInput() {
+		if (queue == null) {
+			throw new IllegalStateException("The input is read from a stream.");
+		}
+		queue.close();
+		return;
+	}
+
+	/**
+	 * Runs the program with the interpreter.
+	 *
+	 * @return The status of the machine when the program terminated.
+	 * @throws IllegalStateException
+	 *             if the program has already been run on this machine.
+	 * @throws OutOfMemoryError
+	 *             if the data stack size limit is exceeded.
+	 */
+	public PAL.ExitStatus run() {
+		return run(PAL.Engine.INTERPRETER);
+	}
+
+	/**
+	 * Runs the program with the specified execution engine.
+	 *
+	 * @param engine
+	 *            The engine to use.
+	 * @return The status of the machine when the program terminated.
+	 * @throws IllegalStateException
+	 *             if the program has already been run on this machine.
+	 * @throws OutOfMemoryError
+	 *             if the data stack size limit is exceeded.
+	 */
+	public PAL.ExitStatus run(PAL.Engine engine) {
+		if (started || stepped) {
+			throw new IllegalStateException("The program has already been run.");
+		}
+		started = true;
+		status = pal.execute(engine);
+		return status;
+	}
+
+	/**
+	 * Runs the program, with the interpreter, for at most
+	 * <code>maxInstructions</code> instructions, starting where the last step
+	 * left off. The machine stops early if the program terminates, or if it
+	 * would have to wait for supplied input. Output is flushed before this
+	 * returns.
+	 *
+	 * @param maxInstructions
+	 *            The maximum number of instructions to execute.
+	 * @return The state of the machine.
+	 * @throws IllegalStateException
+	 *             if the program has been run by {@link #run
+	 *             <code>run</code>}.
+	 * @throws OutOfMemoryError
+	 *             if the data stack size limit is exceeded.
+	 */
+	public State step(int maxInstructions) {
+		if (started) {
+			throw new IllegalStateException("The program has already been run.");
+		}
+		stepped = true;
+		if (status != null) {
+			return State.TERMINATED;
+		}
+		State state = pal.resume(maxInstructions);
+		if (state == State.TERMINATED) {
+			status = pal.exitStatus();
+		}
+		return state;
+	}
+
+	/**
+	 * Limits the stack dump reported with a runtime error to the uppermost
+	 * <code>topFrames</code> and lowermost <code>bottomFrames</code> frames
+	 * of the stack, each headed by its number and the address of its stack
+	 * mark, with the slots of the mark annotated, and the frames in between
+	 * summarised in a single line. By default, every slot is shown, without
+	 * annotation.
+	 *
+	 * @param topFrames
+	 *            The number of frames to show at the top of the stack.
+	 * @param bottomFrames
+	 *            The number of frames to show at the bottom of the stack.
+	 * @throws IllegalArgumentException
+	 *             if either number is negative.
+	 */
+	public void setStackDump(int topFrames, int bottomFrames) {
+		if (topFrames < 0 || bottomFrames < 0) {
+			throw new IllegalArgumentException("Negative number of frames.");
+		}
+		pal.setStackDump(topFrames, bottomFrames);
+		return;
+	}
+
+	/**
+	 * Enables or disables tail calls. When enabled, a <code>CAL</code>
+	 * immediately followed by a return replaces the calling frame with the
+	 * callee's, where no <code>LDA</code> could have taken the address of the
+	 * calling frame, so that tail-recursive programs run in constant stack
+	 * space, whatever the data stack size limit. The only other difference is
+	 * that the replaced frames are missing from a runtime error's stack dump.
+	 * Tail calls are disabled by default.
+	 *
+	 * @param enabled
+	 *            <code>true</code> to enable tail calls.
+	 */
+	public void setTailCalls(boolean enabled) {
+		pal.setTailCalls(enabled);
+		return;
+	}
+
+	/**
+	 * Records the state of the machine, so that other machines can be
+	 * {@link Snapshot#fork forked} from it. The machine itself is unaffected,
+	 * and can continue to be stepped.
+	 *
+	 * <p>
+	 * The usual place to take a snapshot is where the program first reads
+	 * its input, after any initialisation it does first. A machine whose
+	 * input is supplied stops there if it is stepped before any input is
+	 * supplied, reporting that it is
+	 * {@link State#BLOCKED_ON_INPUT <code>BLOCKED_ON_INPUT</code>}. A snapshot
+	 * can also be taken after any number of instructions, by stepping that
+	 * many first.
+	 * </p>
+	 *
+	 * @return The snapshot.
+	 * @throws IllegalStateException
+	 *             if the program has been run by {@link #run
+	 *             <code>run</code>}, or has terminated.
+	 */
+	public Snapshot snapshot() {
+		if (started) {
+			throw new IllegalStateException("The program has already been run.");
+		}
+		Snapshot snapshot = pal.snapshot();
+		if (snapshot == null) {
+			throw new IllegalStateException("The program has terminated.");
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Returns the status of the machine once the program has terminated.
+	 *
+	 * @return The status, or <code>null</code> if the program has not
+	 *         terminated.
+	 */
+	public PAL.ExitStatus getExitStatus() {
+		return status;
+	}
+
+	/**
+	 * Wraps a <code>Writer</code> in a <code>PrintWriter</code>, unless it is
+	 * one already.
+	 */
+	private static PrintWriter printWriter(Writer writer, boolean autoFlush) {
+		if (writer instanceof PrintWriter) {
+			return (PrintWriter) writer;
+		}
+		return new PrintWriter(writer, autoFlush);
+	}
+}
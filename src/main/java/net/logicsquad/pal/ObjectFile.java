@@ -0,0 +1,255 @@
+package net.logicsquad.pal;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reads and writes PAL object files (conventionally with a <code>.palc</code>
+ * extension), which hold a program already decoded into a
+ * {@link CodeStore <code>CodeStore</code>}. Loading an object file skips the
+ * lexical analysis of the source entirely: the file is memory-mapped, and the
+ * instruction arrays are copied out in bulk.
+ *
+ * <p>
+ * An object file consists of the following sections. All values are
+ * big-endian 32-bit integers unless stated otherwise.
+ * </p>
+ *
+ * <ul>
+ * <li>A header: the magic number <code>PALC</code>, a 16-bit major and minor
+ * version, the number of instructions <i>n</i>, the number of constants
+ * <i>c</i>, and the number of strings in the string pool <i>p</i>.</li>
+ * <li>The code: <i>n</i> opcodes, then <i>n</i> level fields, then <i>n</i>
+ * operands, as decoded by the <code>CodeStore</code>.</li>
+ * <li>The line table: for each instruction, its source line number, mnemonic
+ * (as an index into the string pool), first operand, the type of its second
+ * operand (0 integer, 1 real, 2 string), and the second operand itself (the
+ * value, the raw bits of the real, or an index into the string pool). This
+ * section is only read to report runtime errors.</li>
+ * <li>The string pool: for each string, its length in bytes followed by its
+ * UTF-8 encoding. The first <i>c</i> strings are the
+ * <code>CodeStore</code>'s constant pool.</li>
+ * </ul>
+ *
+ * @author Paul Hoadley &lt;paulh@logicsquad.net&gt;
+ */
+final class ObjectFile {
+	/** The magic number, "PALC" in ASCII. */
+	private static final int MAGIC = 0x50414c43;
+
+	/** The major version of the format. */
+	private static final int MAJOR_VERSION = 1;
+
+	/** The minor version of the format. */
+	private static final int MINOR_VERSION = 0;
+
+	/** The size of the header in bytes. */
+	private static final int HEADER_SIZE = 20;
+
+	/** The number of <code>int</code>s per instruction in the line table. */
+	private static final int LINE_ENTRY_SIZE = 5;
+
+	// Types of second operand in the line table.
+	private static final int INTEGER = 0;
+	private static final int REAL = 1;
+	private static final int STRING = 2;
+
+	private ObjectFile() {
+		return;
+	}
+
+	/**
+	 * Writes a program to an object file.
+	 *
+	 * @param code
+	 *            The program.
+	 * @param path
+	 *            The file to write.
+	 * @throws IOException
+	 *             if the file cannot be written.
+	 */
+	static void write(CodeStore code, Path path) throws IOException {
+		int n = code.size();
+
+		// The string pool begins with the constants, followed by any other
+		// strings the line table needs.
+		Map<String, Integer> pool = new LinkedHashMap<String, Integer>();
+		for (Object constant : code.constants) {
+			pool.put((String) constant, Integer.valueOf(pool.size()));
+		}
+		int constantCount = pool.size();
+
+		int[] lines = new int[n * LINE_ENTRY_SIZE];
+		for (int i = 0; i < n; i++) {
+			Code c = code.getCode(i);
+			int j = i * LINE_ENTRY_SIZE;
+			lines[j] = c.getLineNo();
+			lines[j + 1] = intern(c.getMnemonic(), pool);
+			lines[j + 2] = c.getFirst();
+			Object second = c.getSecond();
+			if (second instanceof Integer) {
+				lines[j + 3] = INTEGER;
+				lines[j + 4] = ((Integer) second).intValue();
+			} else if (second instanceof Float) {
+				lines[j + 3] = REAL;
+				lines[j + 4] = Float.floatToRawIntBits(((Float) second)
+						.floatValue());
+			} else {
+				lines[j + 3] = STRING;
+				lines[j + 4] = intern(String.valueOf(second), pool);
+			}
+		}
+
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(Files.newOutputStream(path)))) {
+			out.writeInt(MAGIC);
+			out.writeShort(MAJOR_VERSION);
+			out.writeShort(MINOR_VERSION);
+			out.writeInt(n);
+			out.writeInt(constantCount);
+			out.writeInt(pool.size());
+			// Verification and superinstructions are redone when the file
+			// is read.
+			writeInts(out, code.decodedOpcodes());
+			writeInts(out, code.levels);
+			writeInts(out, code.operands);
+			writeInts(out, lines);
+			for (String s : pool.keySet()) {
+				byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+				out.writeInt(bytes.length);
+				out.write(bytes);
+			}
+		}
+		return;
+	}
+
+	/**
+	 * Reads a program from an object file, which is memory-mapped.
+	 *
+	 * @param path
+	 *            The file to read.
+	 * @return The program.
+	 * @throws IOException
+	 *             if the file cannot be read, or is not a valid object file.
+	 */
+	static CodeStore read(Path path) throws IOException {
+		ByteBuffer buffer;
+		try (FileChannel channel = FileChannel.open(path,
+				StandardOpenOption.READ)) {
+			// The mapping remains valid after the channel is closed.
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+					channel.size());
+		}
+
+		try {
+			if (buffer.getInt() != MAGIC) {
+				throw new IOException(path + ": not a PAL object file.");
+			}
+			int major = buffer.getShort();
+			buffer.getShort();
+			if (major != MAJOR_VERSION) {
+				throw new IOException(path
+						+ ": unsupported object file version " + major + ".");
+			}
+			int n = buffer.getInt();
+			int constantCount = buffer.getInt();
+			int poolCount = buffer.getInt();
+			if (n < 0 || constantCount < 0 || poolCount < constantCount) {
+				throw new IOException(path + ": corrupt object file header.");
+			}
+
+			IntBuffer ints = buffer.asIntBuffer();
+			int[] opcodes = new int[n];
+			int[] levels = new int[n];
+			int[] operands = new int[n];
+			ints.get(opcodes);
+			ints.get(levels);
+			ints.get(operands);
+			IntBuffer lines = ints.slice(3 * n, n * LINE_ENTRY_SIZE);
+
+			buffer.position(HEADER_SIZE + 4 * n * (3 + LINE_ENTRY_SIZE));
+			String[] strings = new String[poolCount];
+			for (int i = 0; i < poolCount; i++) {
+				byte[] bytes = new byte[buffer.getInt()];
+				buffer.get(bytes);
+				strings[i] = new String(bytes, StandardCharsets.UTF_8);
+			}
+			Object[] constants = new Object[constantCount];
+			System.arraycopy(strings, 0, constants, 0, constantCount);
+
+			return new CodeStore(opcodes, levels, operands, constants,
+					i -> source(lines, strings, i));
+		} catch (RuntimeException e) {
+			// BufferUnderflowException, IndexOutOfBoundsException,
+			// NegativeArraySizeException and so on: the file is truncated
+			// or otherwise damaged.
+			throw new IOException(path + ": corrupt object file.", e);
+		}
+	}
+
+	/**
+	 * Reconstructs the original instruction at index <code>i</code> from the
+	 * line table.
+	 */
+	private static Code source(IntBuffer lines, String[] strings, int i) {
+		int j = i * LINE_ENTRY_SIZE;
+		Object second;
+		switch (lines.get(j + 3)) {
+		case INTEGER:
+			second = Integer.valueOf(lines.get(j + 4));
+			break;
+		case REAL:
+			second = Float.valueOf(Float.intBitsToFloat(lines.get(j + 4)));
+			break;
+		default:
+			second = strings[lines.get(j + 4)];
+		}
+		return new Code(strings[lines.get(j + 1)], lines.get(j + 2), second,
+				lines.get(j));
+	}
+
+	/**
+	 * Adds a string to the pool if necessary, and returns its index.
+	 */
+	private static int intern(String s, Map<String, Integer> pool) {
+		Integer index = pool.get(s);
+		if (index == null) {
+			index = Integer.valueOf(pool.size());
+			pool.put(s, index);
+		}
+		return index.intValue();
+	}
+
+	/**
+	 * Writes an array of <code>int</code>s.
+	 */
+	private static void writeInts(DataOutputStream out, int[] values)
+			throws IOException {
+		for (int v : values) {
+			out.writeInt(v);
+		}
+		return;
+	}
+
+	/**
+	 * Tests whether a file name names an object file, by its extension.
+	 *
+	 * @param filename
+	 *            The file name.
+	 * @return <code>true</code> if <code>filename</code> ends with
+	 *         <code>.palc</code>.
+	 */
+	static boolean isObjectFile(String filename) {
+		return filename.endsWith(".palc");
+	}
+}
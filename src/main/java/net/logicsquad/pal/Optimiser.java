@@ -0,0 +1,719 @@
+package net.logicsquad.pal;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An optimiser for a loaded program, which rewrites its decoded instructions
+ * into a new {@link CodeStore <code>CodeStore</code>}. It folds operations on
+ * constants (arithmetic, comparisons, conversions, boolean operations and
+ * concatenation) into a single constant, removes a constant pushed only to be
+ * dropped, replaces a <code>JIF</code> on a constant with a <code>JMP</code>
+ * or nothing, makes jumps to jumps go straight to the final destination,
+ * removes jumps to the next instruction, and removes instructions that can
+ * never be reached. The passes are repeated until none of them changes
+ * anything. Jump, call and <code>REH</code> destinations are then renumbered.
+ *
+ * <p>
+ * The behaviour of the program is unchanged. An operation is only folded if
+ * it would succeed, so that any runtime error is still reported by the
+ * instruction that caused it, and the new code store maps each instruction
+ * back to the original one it came from, so that errors are reported against
+ * the original line. Return points and exception handler addresses are kept
+ * on the data stack in the original numbering, and translated as they are
+ * used (see {@link CodeStore#originalAddress
+ * <code>originalAddress</code>}), so that stack dumps are unchanged, and a
+ * program that stores a code address into a stack mark still works. An
+ * instruction whose address is an integer constant stored straight into a
+ * stack mark (or through an address) is assumed to be such a destination, and
+ * is kept. The one visible difference
+ * is that a folded program may need fewer data stack locations.
+ * </p>
+ *
+ * <p>
+ * A program with problems found by the {@link Verifier
+ * <code>Verifier</code>} is not optimised, so that they are reported just as
+ * they would be otherwise.
+ * </p>
+ *
+ * @author Paul Hoadley &lt;paulh@logicsquad.net&gt;
+ */
+final class Optimiser {
+	/** The greatest number of times the passes are repeated. */
+	private static final int MAX_ROUNDS = 32;
+
+	/**
+	 * An instruction being optimised.
+	 */
+	private static final class Instruction {
+		/** The opcode, as decoded. */
+		int opcode;
+
+		/** The level field. */
+		int level;
+
+		/**
+		 * The operand. For an instruction with a {@link #target}, it is
+		 * replaced by the target's address when the program is renumbered.
+		 */
+		int operand;
+
+		/**
+		 * The destination of a <code>JMP</code>, <code>JIF</code> or
+		 * <code>CAL</code>, or the handler registered by <code>REH</code>, or
+		 * <code>null</code>.
+		 */
+		Instruction target;
+
+		/** The index of the original instruction this one came from. */
+		final int origin;
+
+		/**
+		 * Whether control may reach this instruction by a return or
+		 * exception, rather than from the previous instruction or a static
+		 * transfer: the first instruction, every return point, and any
+		 * instruction whose address is stored into a stack mark as an
+		 * integer constant.
+		 */
+		boolean entry;
+
+		/**
+		 * Whether control may reach this instruction other than from the
+		 * previous instruction, so that it must not be merged with it.
+		 */
+		boolean leader;
+
+		/** Whether this instruction can be reached. */
+		boolean reachable;
+
+		/** The instruction's current position in the program. */
+		int index;
+
+		Instruction(int opcode, int level, int operand, int origin) {
+			this.opcode = opcode;
+			this.level = level;
+			this.operand = operand;
+			this.origin = origin;
+			return;
+		}
+	}
+
+	/** The program being optimised. */
+	private final CodeStore original;
+
+	/** The instructions, in program order. */
+	private List<Instruction> code;
+
+	/** The constant pool, with any strings made by folding added. */
+	private final List<Object> constants;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param original
+	 *            The program to optimise.
+	 */
+	private Optimiser(CodeStore original) {
+		this.original = original;
+		int size = original.size();
+		int[] opcodes = original.decodedOpcodes();
+		code = new ArrayList<Instruction>(size);
+		for (int i = 0; i < size; i++) {
+			code.add(new Instruction(opcodes[i], original.levels[i],
+					original.operands[i], i));
+		}
+		constants = new ArrayList<Object>(List.of(original.constants));
+		link();
+		return;
+	}
+
+	/**
+	 * Optimises a program.
+	 *
+	 * @param code
+	 *            The program.
+	 * @return The optimised program, or <code>code</code> itself if it
+	 *         cannot be optimised.
+	 */
+	static CodeStore optimise(CodeStore code) {
+		if (code.size() == 0 || !code.problems().isEmpty()) {
+			return code;
+		}
+		CodeStore optimised = new Optimiser(code).run();
+		// The optimised program should always pass, but be sure.
+		return optimised.problems().isEmpty() ? optimised : code;
+	}
+
+	/**
+	 * Runs the passes until nothing changes, and makes the new code store.
+	 *
+	 * @return The optimised program.
+	 */
+	private CodeStore run() {
+		for (int round = 0; round < MAX_ROUNDS; round++) {
+			boolean changed = fold();
+			changed |= thread();
+			changed |= removeJumpsToNext();
+			changed |= removeUnreachable();
+			if (!changed) {
+				break;
+			}
+		}
+		return renumber();
+	}
+
+	/**
+	 * Resolves the destination of each instruction, and finds the entries.
+	 * The verifier has checked that destinations are in the code.
+	 */
+	private void link() {
+		int size = code.size();
+		code.get(0).entry = true;
+		for (Instruction insn : code) {
+			switch (insn.opcode) {
+			case Mnemonic.CAL:
+				insn.target = code.get(insn.operand);
+				if (insn.origin + 1 < size) {
+					code.get(insn.origin + 1).entry = true;
+				}
+				break;
+			case Mnemonic.JIF:
+			case Mnemonic.JMP:
+				insn.target = code.get(insn.operand);
+				break;
+			case Mnemonic.REH:
+				// The handler address is one-based, with 0 meaning none.
+				if (insn.operand > 0) {
+					insn.target = code.get(insn.operand - 1);
+				}
+				break;
+			case Mnemonic.LCI:
+				// Possibly a return point or handler address, if it is
+				// stored straight into a stack mark, or through an address.
+				if (insn.origin + 1 == size
+						|| !storesToMark(code.get(insn.origin + 1))) {
+					break;
+				}
+				int value = insn.operand;
+				if (value >= 0 && value < size) {
+					code.get(value).entry = true;
+				}
+				if (value >= 1 && value <= size) {
+					code.get(value - 1).entry = true;
+				}
+				break;
+			default:
+			}
+		}
+		return;
+	}
+
+	/**
+	 * Tests whether an instruction may store into a stack mark: a
+	 * <code>STO</code> to a negative offset, or any <code>STI</code>.
+	 */
+	private static boolean storesToMark(Instruction insn) {
+		return insn.opcode == Mnemonic.STO && insn.operand < 0
+				|| insn.opcode == Mnemonic.STI;
+	}
+
+	/**
+	 * Marks the leaders: the entries, and the destination of every jump,
+	 * call and handler.
+	 */
+	private void markLeaders() {
+		for (Instruction insn : code) {
+			insn.leader = insn.entry;
+		}
+		for (Instruction insn : code) {
+			if (insn.target != null) {
+				insn.target.leader = true;
+			}
+		}
+		return;
+	}
+
+	/**
+	 * Folds operations on constants, and branches on constant booleans.
+	 *
+	 * @return <code>true</code> if anything changed.
+	 */
+	private boolean fold() {
+		boolean changed = false;
+		markLeaders();
+		List<Instruction> result = new ArrayList<Instruction>(code.size());
+		for (Instruction insn : code) {
+			result.add(insn);
+			while (reduce(result)) {
+				changed = true;
+			}
+		}
+		code = result;
+		return changed;
+	}
+
+	/**
+	 * Folds the instructions at the end of a straight-line sequence, if they
+	 * are an operation on constants that would succeed.
+	 *
+	 * @param result
+	 *            The instructions so far.
+	 * @return <code>true</code> if the sequence was shortened.
+	 */
+	private boolean reduce(List<Instruction> result) {
+		int n = result.size();
+		if (n < 2) {
+			return false;
+		}
+		Instruction last = result.get(n - 1);
+		Instruction previous = result.get(n - 2);
+		if (last.leader || !isConstant(previous)) {
+			return false;
+		}
+
+		if (last.opcode == Mnemonic.JIF && previous.opcode == Mnemonic.OPR) {
+			if (previous.operand == 18) {
+				// Always jumps.
+				previous.opcode = Mnemonic.JMP;
+				previous.level = 0;
+				previous.target = last.target;
+				result.remove(n - 1);
+				return true;
+			}
+			if (previous.operand == 17 && !previous.leader) {
+				// Never jumps.
+				result.remove(n - 1);
+				result.remove(n - 2);
+				return true;
+			}
+			return false;
+		}
+		if (last.opcode != Mnemonic.OPR) {
+			return false;
+		}
+		if (last.operand == 24) {
+			// A constant pushed only to be dropped.
+			if (previous.leader) {
+				return false;
+			}
+			result.remove(n - 1);
+			result.remove(n - 2);
+			return true;
+		}
+
+		Object folded = unary(last.operand, value(previous));
+		if (folded != null) {
+			setConstant(previous, folded);
+			result.remove(n - 1);
+			return true;
+		}
+		if (n < 3 || previous.leader || !isConstant(result.get(n - 3))) {
+			return false;
+		}
+		Instruction first = result.get(n - 3);
+		folded = binary(last.operand, value(first), value(previous));
+		if (folded != null) {
+			setConstant(first, folded);
+			result.remove(n - 1);
+			result.remove(n - 2);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Tests whether an instruction pushes a constant.
+	 */
+	private static boolean isConstant(Instruction insn) {
+		switch (insn.opcode) {
+		case Mnemonic.LCI:
+		case Mnemonic.LCR:
+		case Mnemonic.LCS:
+			return true;
+		case Mnemonic.OPR:
+			return insn.operand == 17 || insn.operand == 18;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the constant an instruction pushes: an <code>Integer</code>,
+	 * <code>Float</code>, <code>String</code> or <code>Boolean</code>.
+	 */
+	private Object value(Instruction insn) {
+		switch (insn.opcode) {
+		case Mnemonic.LCI:
+			return Integer.valueOf(insn.operand);
+		case Mnemonic.LCR:
+			return Float.valueOf(Float.intBitsToFloat(insn.operand));
+		case Mnemonic.LCS:
+			return constants.get(insn.operand);
+		default:
+			return Boolean.valueOf(insn.operand == 17);
+		}
+	}
+
+	/**
+	 * Makes an instruction push a constant instead.
+	 */
+	private void setConstant(Instruction insn, Object value) {
+		insn.level = 0;
+		if (value instanceof Integer) {
+			insn.opcode = Mnemonic.LCI;
+			insn.operand = ((Integer) value).intValue();
+		} else if (value instanceof Float) {
+			insn.opcode = Mnemonic.LCR;
+			insn.operand = Float.floatToRawIntBits(((Float) value)
+					.floatValue());
+		} else if (value instanceof String) {
+			insn.opcode = Mnemonic.LCS;
+			int index = constants.indexOf(value);
+			if (index < 0) {
+				index = constants.size();
+				constants.add(value);
+			}
+			insn.operand = index;
+		} else {
+			insn.opcode = Mnemonic.OPR;
+			insn.operand = ((Boolean) value).booleanValue() ? 17 : 18;
+		}
+		return;
+	}
+
+	/**
+	 * Evaluates an operation on one constant, exactly as
+	 * {@link PAL#doOperation <code>doOperation</code>} would.
+	 *
+	 * @param opr
+	 *            The operation number.
+	 * @param a
+	 *            The operand.
+	 * @return The result, or <code>null</code> if the operation is not
+	 *         folded, or would fail.
+	 */
+	private static Object unary(int opr, Object a) {
+		switch (opr) {
+		case 2:
+			if (a instanceof Integer) {
+				return Integer.valueOf(-((Integer) a).intValue());
+			}
+			if (a instanceof Float) {
+				return Float.valueOf(-((Float) a).floatValue());
+			}
+			return null;
+		case 9:
+			if (a instanceof Integer) {
+				return Boolean.valueOf(Math.abs(((Integer) a).intValue() % 2) == 1);
+			}
+			return null;
+		case 16:
+			if (a instanceof Boolean) {
+				return Boolean.valueOf(!((Boolean) a).booleanValue());
+			}
+			return null;
+		case 25:
+			if (a instanceof Integer) {
+				return Float.valueOf((float) ((Integer) a).intValue());
+			}
+			return null;
+		case 26:
+			if (a instanceof Float) {
+				return Integer.valueOf((int) ((Float) a).floatValue());
+			}
+			return null;
+		case 27:
+			if (a instanceof Integer) {
+				return Integer.toString(((Integer) a).intValue());
+			}
+			return null;
+		case 28:
+			if (a instanceof Float) {
+				return Float.toString(((Float) a).floatValue());
+			}
+			return null;
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Evaluates an operation on two constants, exactly as
+	 * {@link PAL#doOperation <code>doOperation</code>} would.
+	 *
+	 * @param opr
+	 *            The operation number.
+	 * @param a
+	 *            The left operand, pushed first.
+	 * @param b
+	 *            The right operand, on top of the stack.
+	 * @return The result, or <code>null</code> if the operation is not
+	 *         folded, or would fail.
+	 */
+	private static Object binary(int opr, Object a, Object b) {
+		if (opr >= 3 && opr <= 6 || opr >= 10 && opr <= 15) {
+			if (a instanceof Integer && b instanceof Integer) {
+				int int1 = ((Integer) a).intValue();
+				int int2 = ((Integer) b).intValue();
+				switch (opr) {
+				case 3:
+					return Integer.valueOf(int1 + int2);
+				case 4:
+					return Integer.valueOf(int1 - int2);
+				case 5:
+					return Integer.valueOf(int1 * int2);
+				case 6:
+					return int2 == 0 ? null : Integer.valueOf(int1 / int2);
+				default:
+					return Boolean.valueOf(compare(opr, Integer.compare(int1,
+							int2)));
+				}
+			}
+			if (a instanceof Float && b instanceof Float) {
+				float flt1 = ((Float) a).floatValue();
+				float flt2 = ((Float) b).floatValue();
+				switch (opr) {
+				case 3:
+					return Float.valueOf(flt1 + flt2);
+				case 4:
+					return Float.valueOf(flt1 - flt2);
+				case 5:
+					return Float.valueOf(flt1 * flt2);
+				case 6:
+					return flt2 == 0 ? null : Float.valueOf(flt1 / flt2);
+				default:
+					return Boolean.valueOf(compare(opr, flt1, flt2));
+				}
+			}
+			return null;
+		}
+		switch (opr) {
+		case 8:
+			if (a instanceof String && b instanceof String) {
+				return (String) a + (String) b;
+			}
+			return null;
+		case 29:
+		case 30:
+			if (a instanceof Boolean && b instanceof Boolean) {
+				boolean bool1 = ((Boolean) a).booleanValue();
+				boolean bool2 = ((Boolean) b).booleanValue();
+				return Boolean.valueOf(opr == 29 ? bool1 && bool2 : bool1
+						|| bool2);
+			}
+			return null;
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Applies an integer comparison, <code>OPR 0 10</code> to
+	 * <code>15</code>, to the sign of the difference of its operands.
+	 */
+	private static boolean compare(int opr, int sign) {
+		switch (opr) {
+		case 10:
+			return sign == 0;
+		case 11:
+			return sign != 0;
+		case 12:
+			return sign < 0;
+		case 13:
+			return sign >= 0;
+		case 14:
+			return sign > 0;
+		default:
+			return sign <= 0;
+		}
+	}
+
+	/**
+	 * Applies a real comparison, <code>OPR 0 10</code> to <code>15</code>,
+	 * with the semantics of the Java operators, NaN and all.
+	 */
+	private static boolean compare(int opr, float flt1, float flt2) {
+		switch (opr) {
+		case 10:
+			return flt1 == flt2;
+		case 11:
+			return flt1 != flt2;
+		case 12:
+			return flt1 < flt2;
+		case 13:
+			return flt1 >= flt2;
+		case 14:
+			return flt1 > flt2;
+		default:
+			return flt1 <= flt2;
+		}
+	}
+
+	/**
+	 * Makes each jump, conditional jump and call whose destination is a
+	 * <code>JMP</code> go to that jump's destination instead, and each jump
+	 * to <code>JMP 0 0</code> terminate the program itself. Exception
+	 * handlers are left alone, since their addresses are visible on the
+	 * stack.
+	 *
+	 * @return <code>true</code> if anything changed.
+	 */
+	private boolean thread() {
+		boolean changed = false;
+		for (Instruction insn : code) {
+			if (insn.opcode != Mnemonic.JMP && insn.opcode != Mnemonic.JIF
+					&& insn.opcode != Mnemonic.CAL) {
+				continue;
+			}
+			Instruction target = insn.target;
+			// Bounded, in case the jumps form a loop.
+			for (int k = 0; k < code.size() && target.opcode == Mnemonic.JMP
+					&& target != insn; k++) {
+				target = target.target;
+			}
+			if (target != insn.target && target != insn) {
+				insn.target = target;
+				changed = true;
+			}
+			if (insn.opcode == Mnemonic.JMP
+					&& insn.target.opcode == CodeStore.HALT) {
+				insn.opcode = CodeStore.HALT;
+				insn.operand = 0;
+				insn.target = null;
+				changed = true;
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * Removes each <code>JMP</code> to the instruction after it, unless
+	 * something else may transfer control to it.
+	 *
+	 * @return <code>true</code> if anything changed.
+	 */
+	private boolean removeJumpsToNext() {
+		boolean changed = false;
+		markLeaders();
+		List<Instruction> result = new ArrayList<Instruction>(code.size());
+		for (int i = 0; i < code.size(); i++) {
+			Instruction insn = code.get(i);
+			if (insn.opcode == Mnemonic.JMP && !insn.leader
+					&& i + 1 < code.size() && insn.target == code.get(i + 1)) {
+				changed = true;
+				continue;
+			}
+			result.add(insn);
+		}
+		code = result;
+		return changed;
+	}
+
+	/**
+	 * Removes the instructions that cannot be reached from an entry.
+	 *
+	 * @return <code>true</code> if anything changed.
+	 */
+	private boolean removeUnreachable() {
+		int size = code.size();
+		int[] work = new int[size];
+		int pending = 0;
+
+		for (int i = 0; i < size; i++) {
+			Instruction insn = code.get(i);
+			insn.reachable = false;
+			insn.index = i;
+		}
+		for (int i = 0; i < size; i++) {
+			Instruction insn = code.get(i);
+			if (insn.entry) {
+				insn.reachable = true;
+				work[pending++] = i;
+			}
+		}
+		while (pending > 0) {
+			int i = work[--pending];
+			Instruction insn = code.get(i);
+			if (insn.target != null && !insn.target.reachable) {
+				insn.target.reachable = true;
+				work[pending++] = insn.target.index;
+			}
+			if (continues(insn.opcode) && i + 1 < size
+					&& !code.get(i + 1).reachable) {
+				code.get(i + 1).reachable = true;
+				work[pending++] = i + 1;
+			}
+		}
+
+		List<Instruction> result = new ArrayList<Instruction>(size);
+		for (Instruction insn : code) {
+			if (insn.reachable) {
+				result.add(insn);
+			}
+		}
+		boolean changed = result.size() < size;
+		code = result;
+		return changed;
+	}
+
+	/**
+	 * Tests whether control can pass from an instruction to the next one. A
+	 * call's return point is an entry in its own right.
+	 */
+	private static boolean continues(int opcode) {
+		switch (opcode) {
+		case Mnemonic.JMP:
+		case Mnemonic.CAL:
+		case Mnemonic.SIG:
+		case CodeStore.HALT:
+		case CodeStore.RETURN:
+			return false;
+		default:
+			return true;
+		}
+	}
+
+	/**
+	 * Numbers the instructions, and makes the new code store.
+	 *
+	 * @return The optimised program.
+	 */
+	private CodeStore renumber() {
+		int size = code.size();
+		int originalSize = original.size();
+		int[] opcodes = new int[size];
+		int[] levels = new int[size];
+		int[] operands = new int[size];
+		int[] origins = new int[size];
+		// Each original address maps to the instruction that replaced it,
+		// or if it was removed, to the next one that remains.
+		int[] addresses = new int[originalSize + 1];
+
+		for (int i = 0; i < size; i++) {
+			code.get(i).index = i;
+		}
+		int next = size;
+		addresses[originalSize] = size;
+		for (int i = size - 1, o = originalSize - 1; o >= 0; o--) {
+			if (i >= 0 && code.get(i).origin == o) {
+				next = i--;
+			}
+			addresses[o] = next;
+		}
+
+		for (int i = 0; i < size; i++) {
+			Instruction insn = code.get(i);
+			opcodes[i] = insn.opcode;
+			levels[i] = insn.level;
+			operands[i] = insn.operand;
+			origins[i] = insn.origin;
+			if (insn.target != null) {
+				int target = insn.target.index;
+				operands[i] = insn.opcode == Mnemonic.REH ? target + 1 : target;
+			}
+		}
+		final CodeStore source = original;
+		return new CodeStore(opcodes, levels, operands, constants.toArray(),
+				k -> source.getCode(origins[k]), origins, addresses);
+	}
+}
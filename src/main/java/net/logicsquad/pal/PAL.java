@@ -1,16 +1,14 @@
 package net.logicsquad.pal;
 
-import java.io.BufferedReader;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.PushbackReader;
-import java.util.ArrayList;
-import java.util.NoSuchElementException;
-import java.util.StringTokenizer;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
 
 /**
  * The PAL abstract machine simulator.
@@ -19,43 +17,84 @@ import java.util.StringTokenizer;
  * @author Paul Hoadley &lt;paulh@logicsquad.net&gt;
  */
 public class PAL {
-	/** The filename containing the program. */
-	private static String filename = "CODE";
+	/** The default code memory limit. */
+	static final int CODESIZE = 1000;
 
-	/** A constant for code memory limit. */
-	private final int CODESIZE = 1000;
+	/** The default data stack size limit. */
+	static final int DATASIZE = 500;
 
-	/** A constant for data stack size limit. */
-	private final int DATASIZE = 500;
+	/** The program being run. */
+	private final Program program;
 
-	/** Memory for the instructions. */
-	private ArrayList<Code> codeMem;
+	/** Memory for the instructions, decoded and linked by the loader. */
+	private final CodeStore code;
 
 	/** Stack for data. */
-	private DataStack dataStack;
+	private TaggedDataStack dataStack;
 
-	/** The program counter. */
-	private int pc;
+	/** Standard input, for <code>RDI</code>, <code>RDR</code> and OPR 19. */
+	private InputBuffer input;
 
-	/** Input reader. */
-	private BufferedReader inputReader;
+	/** The profile being recorded, or <code>null</code> if not profiling. */
+	private Profile profile;
 
 	/**
-	 * Wrapper to enable pushback of bytes into the input stream, for OPR 19.
+	 * Buffered program output, for <code>OPR 20</code> and <code>OPR 21</code>.
+	 * It is flushed when the program terminates, before any read from the
+	 * input (so that prompts appear), and before a runtime error is reported
+	 * (so that standard output and standard error are interleaved as if there
+	 * were no buffer).
 	 */
-	private PushbackReader pushBack;
+	private PrintWriter output;
+
+	/** The destination for runtime error reports. */
+	private PrintWriter err;
 
 	/** The number of the present exception. */
 	private int currentException;
 
+	/**
+	 * The number of frames at the top of the stack to show in a runtime
+	 * error's stack dump, or -1 to show every slot without annotation.
+	 */
+	private int dumpTopFrames = -1;
+
+	/** The number of frames at the bottom of the stack to show. */
+	private int dumpBottomFrames;
+
+	/** Whether calls in tail position replace the current frame. */
+	private boolean tailCalls;
+
+	/**
+	 * The zero-based address of the next instruction, between calls to
+	 * {@link #resume <code>resume</code>}, or where execution is to start.
+	 */
+	private int pc;
+
+	/**
+	 * The status of the machine once {@link #resume <code>resume</code>} has
+	 * run the program to termination, or <code>null</code> until then.
+	 */
+	private ExitStatus exitStatus;
+
 	/** Constants representing the predefined exception types. */
 	private static final int reraise = 0;
 	private static final int programAbort = 1;
 	private static final int typeMismatch = 3;
 	private static final int reachedEOF = 4;
 
-	private enum ExitStatus {
+	/**
+	 * A sentinel code address, returned by compiled code when the machine has
+	 * executed a termination instruction.
+	 */
+	static final int STOPPED = Integer.MIN_VALUE;
+
+	/** The status of a machine when its program terminates. */
+	public enum ExitStatus {
+		/** The program terminated normally. */
 		NORMAL(0),
+
+		/** The program terminated with a runtime error, or by halting. */
 		ABNORMAL(1);
 
 		private final int exitCode;
@@ -64,38 +103,288 @@ public class PAL {
 			this.exitCode = exitCode;
 			return;
 		}
+
+		/**
+		 * Returns the process exit code for this status.
+		 *
+		 * @return The exit code.
+		 */
+		public int getExitCode() {
+			return exitCode;
+		}
+	}
+
+	/** The available execution engines. */
+	public enum Engine {
+		/** Interpret the code store one instruction at a time. */
+		INTERPRETER,
+
+		/**
+		 * Translate the code store into pre-bound handler objects, chained
+		 * into basic blocks, and run those.
+		 */
+		CLOSURE,
+
+		/** Compile the code store to JVM bytecode, and run that. */
+		BYTECODE;
+	}
+
+	/**
+	 * Thrown to stop execution once a runtime error has been reported. Since
+	 * it is used only for control flow, a single instance without a stack
+	 * trace is shared.
+	 */
+	static final class Abort extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		/** The shared instance. */
+		static final Abort INSTANCE = new Abort();
+
+		private Abort() {
+			super(null, null, false, false);
+			return;
+		}
 	}
 
 	/**
 	 * Main method for command line operation.
 	 * 
 	 * @param args
-	 *            Command line options are limited to a single filename.
+	 *            Command line options are:
+	 *            <ul>
+	 *            <li><code>-engine interpreter|closure|bytecode</code> to
+	 *            select the execution engine;</li>
+	 *            <li><code>-o</code> followed by the name of an object file to
+	 *            write instead of executing the program;</li>
+	 *            <li><code>-codesize</code> and <code>-datasize</code>, each
+	 *            followed by a limit (0 for no limit) on the code memory and
+	 *            data stack respectively;</li>
+	 *            <li><code>-stats</code> to print memory statistics after
+	 *            execution;</li>
+	 *            <li><code>-verify</code> to report every static problem
+	 *            with the program, and not run it if there are any;</li>
+	 *            <li><code>-profile</code> followed by a name, to run the
+	 *            program with the interpreter while recording a profile, and
+	 *            then write it to <code><i>name</i>.json</code>, and as an
+	 *            annotated listing of the source to
+	 *            <code><i>name</i>.lst</code>;</li>
+	 *            <li><code>-batch</code> to run every program in a directory
+	 *            or manifest concurrently, as described in {@link Batch},
+	 *            instead of a single program;</li>
+	 *            <li><code>-outdir</code> followed by the directory for the
+	 *            output of a batch, by default the current directory;</li>
+	 *            <li><code>-threads</code> followed by the maximum number of
+	 *            programs in a batch to run at once, by default the number of
+	 *            processors;</li>
+	 *            <li><code>-snapshot</code> followed by a filename, to run the
+	 *            program until it first reads from its input, and then write
+	 *            a {@link Snapshot} of the machine to that file and
+	 *            stop;</li>
+	 *            <li><code>-restore</code> followed by the name of a snapshot
+	 *            file written by <code>-snapshot</code>, to continue running
+	 *            the program from that point, with the data stack size limit
+	 *            it was taken with;</li>
+	 *            <li><code>-stackdump</code> followed by <i>top</i> or
+	 *            <i>top</i><code>,</code><i>bottom</i>, to show only that
+	 *            many frames at the top and bottom of the stack dump
+	 *            reported with a runtime error (by default, the same number
+	 *            at each end), with stack marks annotated;</li>
+	 *            <li><code>-tailcalls</code> to make a call immediately
+	 *            followed by a return replace the calling frame where it can,
+	 *            so that tail recursion runs in constant stack space;</li>
+	 *            <li><code>-optimise</code> to run the program after folding
+	 *            operations on constants and removing unreachable code, as
+	 *            described in {@link Program#optimise};</li>
+	 *            <li><code>-cfg</code> followed by the name of a file to
+	 *            write the program's {@link ControlFlowGraph control-flow
+	 *            graph} to, in the DOT language, instead of executing
+	 *            it;</li>
+	 *            </ul>
+	 *            followed by a single filename. A filename ending in
+	 *            <code>.palc</code> is loaded as an object file.
 	 */
 	public static void main(String[] args) {
-		if (args.length > 1) {
+		String filename = Program.DEFAULT_NAME;
+		Engine engine = Engine.INTERPRETER;
+		String objectFile = null;
+		String graphFile = null;
+		int codeSize = CODESIZE;
+		int dataSize = DATASIZE;
+		boolean stats = false;
+		boolean verify = false;
+		String profileName = null;
+		boolean batch = false;
+		String outDir = ".";
+		String snapshotFile = null;
+		String restoreFile = null;
+		int dumpTop = -1;
+		int dumpBottom = 0;
+		boolean tailCalls = false;
+		boolean optimise = false;
+		int threads = Runtime.getRuntime().availableProcessors();
+		int argc = 0;
+		while (argc < args.length && args[argc].startsWith("-")) {
+			String option = args[argc++];
+			if (option.equals("-stats")) {
+				stats = true;
+				continue;
+			}
+			if (option.equals("-verify")) {
+				verify = true;
+				continue;
+			}
+			if (option.equals("-batch")) {
+				batch = true;
+				continue;
+			}
+			if (option.equals("-tailcalls")) {
+				tailCalls = true;
+				continue;
+			}
+			if (option.equals("-optimise")) {
+				optimise = true;
+				continue;
+			}
+			if (argc >= args.length) {
+				usage();
+				System.exit(1);
+			}
+			String value = args[argc++];
+			try {
+				if (option.equals("-engine")) {
+					engine = Engine.valueOf(value.toUpperCase());
+				} else if (option.equals("-o")) {
+					objectFile = value;
+				} else if (option.equals("-cfg")) {
+					graphFile = value;
+				} else if (option.equals("-profile")) {
+					profileName = value;
+				} else if (option.equals("-codesize")) {
+					codeSize = Integer.parseInt(value);
+					if (codeSize < 0) {
+						throw new IllegalArgumentException();
+					}
+				} else if (option.equals("-datasize")) {
+					dataSize = Integer.parseInt(value);
+					if (dataSize < 0) {
+						throw new IllegalArgumentException();
+					}
+				} else if (option.equals("-outdir")) {
+					outDir = value;
+				} else if (option.equals("-snapshot")) {
+					snapshotFile = value;
+				} else if (option.equals("-restore")) {
+					restoreFile = value;
+				} else if (option.equals("-stackdump")) {
+					int comma = value.indexOf(',');
+					dumpTop = Integer.parseInt(comma < 0 ? value : value
+							.substring(0, comma));
+					dumpBottom = comma < 0 ? dumpTop : Integer.parseInt(value
+							.substring(comma + 1));
+					if (dumpTop < 0 || dumpBottom < 0) {
+						throw new IllegalArgumentException();
+					}
+				} else if (option.equals("-threads")) {
+					threads = Integer.parseInt(value);
+					if (threads < 1) {
+						throw new IllegalArgumentException();
+					}
+				} else {
+					usage();
+					System.exit(1);
+				}
+			} catch (IllegalArgumentException e) {
+				// Includes NumberFormatException.
+				usage();
+				System.exit(1);
+			}
+		}
+		if (args.length > argc + 1) {
 			usage();
 			System.exit(1);
-		} else if (args.length == 1) {
-			filename = args[0];
+		} else if (args.length == argc + 1) {
+			filename = args[argc];
+		}
+
+		if (batch) {
+			System.exit(runBatch(Path.of(filename), new Batch(engine, codeSize,
+					dataSize, threads, Path.of(outDir))));
 		}
 
 		// Make a machine and load the code.
 
 		// Execute.
 		ExitStatus status = null;
+		PAL machine = null;
 		try {
-			PAL machine = new PAL(new FileInputStream(filename));
-			status = machine.execute();
+			Program program;
+			if (ObjectFile.isObjectFile(filename)) {
+				program = Program.read(Path.of(filename), filename, codeSize);
+			} else {
+				try (InputStream source = new FileInputStream(filename)) {
+					program = Program.load(source, filename, codeSize);
+				}
+			}
+			if (verify && !program.getProblems().isEmpty()) {
+				for (String problem : program.getProblems()) {
+					System.err.println(filename + ":" + problem);
+				}
+				System.exit(ExitStatus.ABNORMAL.exitCode);
+			}
+			if (objectFile != null) {
+				program.write(Path.of(objectFile));
+				return;
+			}
+			if (graphFile != null) {
+				try (Writer dot = Files.newBufferedWriter(Path.of(graphFile))) {
+					ControlFlowGraph.build(program.code).writeDot(dot);
+				}
+				return;
+			}
+			if (optimise) {
+				program = program.optimise();
+			}
+			if (snapshotFile != null) {
+				status = snapshot(program, dataSize, dumpTop, dumpBottom,
+						tailCalls, Path.of(snapshotFile));
+				if (status == null) {
+					return;
+				}
+			} else if (restoreFile != null) {
+				machine = new PAL(Snapshot.read(Path.of(restoreFile), program));
+			} else {
+				machine = new PAL(program, dataSize);
+			}
+			if (machine != null && dumpTop >= 0) {
+				machine.setStackDump(dumpTop, dumpBottom);
+			}
+			if (machine != null) {
+				machine.setTailCalls(tailCalls);
+			}
+			if (machine == null) {
+				// The program terminated before a snapshot could be taken.
+			} else if (profileName != null) {
+				Profile profile = machine.newProfile();
+				status = machine.execute(profile);
+				writeProfile(profile, profileName, filename);
+			} else {
+				status = machine.execute(engine);
+			}
+		} catch (LoadException e) {
+			System.err.println(e.getMessage());
+			System.exit(ExitStatus.ABNORMAL.exitCode);
 		} catch (OutOfMemoryError e) {
 			System.err.println(e.getMessage());
 			System.exit(1);
 		} catch (IndexOutOfBoundsException e) {
 			System.err.println(e.getMessage());
 			System.exit(1);
-		} catch (FileNotFoundException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+		} catch (IOException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}
+		if (stats && machine != null) {
+			System.err.println(machine.statistics());
 		}
 		if (status == null || status == ExitStatus.ABNORMAL) {
 			System.exit(ExitStatus.ABNORMAL.exitCode);
@@ -104,561 +393,1566 @@ public class PAL {
 	}
 
 	/**
-	 * Constructor. Reads all of the statements in {@link PAL#filename
-	 * <code>filename</code>} into {@link Code <code>Code</code>} objects, and
-	 * stores these objects in {@link PAL#codeMem <code>codeMem</code>}. The
-	 * lexical analysis of the source file is quite rigid. Any deviation from
-	 * the prescribed format for source files causes the machine to stop.
+	 * Runs a program on the standard streams until it first reads from its
+	 * input, and writes a snapshot of the machine at that point.
+	 *
+	 * @param program
+	 *            The program.
+	 * @param dataSize
+	 *            The data stack size limit, or 0 for no limit.
+	 * @param dumpTop
+	 *            The number of frames at the top of the stack to show in a
+	 *            stack dump, or -1 for the default dump.
+	 * @param dumpBottom
+	 *            The number of frames at the bottom of the stack to show.
+	 * @param tailCalls
+	 *            Whether to enable tail calls.
+	 * @param file
+	 *            The file to write the snapshot to.
+	 * @return <code>null</code> if the snapshot was written, or the status of
+	 *         the machine if the program terminated without reading any
+	 *         input.
+	 * @throws IOException
+	 *             if the snapshot cannot be written.
 	 */
-	PAL(InputStream is) {
-		// Create the code memory.
-		codeMem = new ArrayList<Code>(CODESIZE);
-		dataStack = new DataStack(DATASIZE);
+	private static ExitStatus snapshot(Program program, int dataSize,
+			int dumpTop, int dumpBottom, boolean tailCalls, Path file)
+			throws IOException {
+		Machine machine = new Machine(program, new PrintWriter(System.out,
+				false, System.out.charset()), new PrintWriter(System.err, true,
+				System.err.charset()), dataSize);
+		if (dumpTop >= 0) {
+			machine.setStackDump(dumpTop, dumpBottom);
+		}
+		machine.setTailCalls(tailCalls);
+		Machine.State state;
+		do {
+			state = machine.step(Integer.MAX_VALUE);
+		} while (state == Machine.State.RUNNING);
+		if (state == Machine.State.TERMINATED) {
+			return machine.getExitStatus();
+		}
+		machine.snapshot().write(file);
+		return null;
+	}
 
+	/**
+	 * Runs a batch of programs, and prints the summary.
+	 *
+	 * @param source
+	 *            The directory or manifest listing the programs.
+	 * @param batch
+	 *            The batch runner.
+	 * @return The exit code: 0 if every program could be loaded and run,
+	 *         whatever its exit status.
+	 */
+	private static int runBatch(Path source, Batch batch) {
 		try {
-			BufferedReader br = new BufferedReader(new InputStreamReader(is));
-			int lineno = 1;
-			String line = br.readLine();
-			String mnemonic = "";
-			int first = 0;
-			Object second = null;
-			StringTokenizer st;
-
-			while (line != null) {
-				if (lineno > CODESIZE) {
-					System.err.println("Exceeded code storage limit at line "
-							+ lineno);
-					System.exit(ExitStatus.ABNORMAL.exitCode);
+			long start = System.nanoTime();
+			List<Batch.Result> results = batch.run(Batch.jobs(source));
+			long nanos = System.nanoTime() - start;
+			Batch.writeSummary(results, System.out);
+			Batch.writeTotals(results, nanos, System.out);
+			for (Batch.Result result : results) {
+				if (result.status == null) {
+					return ExitStatus.ABNORMAL.exitCode;
 				}
-				st = new StringTokenizer(line);
-
-				// It seems reasonable to allow blank lines in the
-				// source.
-				if (!(st.hasMoreTokens())) {
-					line = br.readLine();
-					lineno++;
-					continue;
-				}
-
-				// May not come in groups of three, in which case,
-				// catch the error.
-				try {
-					mnemonic = st.nextToken();
-					first = Integer.parseInt(st.nextToken());
-					String s = st.nextToken();
-					if (s.startsWith("'")) {
-						int start = line.indexOf('\'');
-						int end = line.indexOf('\'', start + 1);
-						second = line.substring(start, end + 1);
-					} else {
-						second = makeObject(s);
-						if (second instanceof String) {
-							System.err.println("Unrecognised second operand"
-									+ " on line " + lineno);
-							System.exit(ExitStatus.ABNORMAL.exitCode);
-						}
-					}
-				} catch (NoSuchElementException e) {
-					System.err.println("Not enough tokens on line " + lineno);
-					System.exit(ExitStatus.ABNORMAL.exitCode);
-				} catch (NumberFormatException e) {
-					System.err.println("First operand non-integer on line "
-							+ lineno);
-					System.exit(ExitStatus.ABNORMAL.exitCode);
-				}
-				codeMem.add(new Code(mnemonic, first, second, lineno));
-				line = br.readLine();
-				lineno++;
 			}
-
-			// Set up the input reader.
-			pushBack = new PushbackReader(new InputStreamReader(System.in));
-			// Note: the internal buffer of the BufferedReader is set
-			// to 1 (the smallest possible) so that it won't buffer up
-			// to EOF, thereby confusing OPR 19.
-			inputReader = new BufferedReader(pushBack, 1);
-		} catch (FileNotFoundException e) {
-			usage();
-			System.exit(1);
+			return ExitStatus.NORMAL.exitCode;
 		} catch (IOException e) {
-			System.err.println(e);
-			System.exit(1);
+			System.err.println(e.getMessage());
+			return 1;
+		} catch (InterruptedException e) {
+			return 1;
 		}
+	}
 
-		currentException = 0;
-
+	/**
+	 * Writes a profile as JSON to <code><i>name</i>.json</code>, and as an
+	 * annotated listing to <code><i>name</i>.lst</code>.
+	 *
+	 * @param profile
+	 *            The profile.
+	 * @param name
+	 *            The name of the files, without extension.
+	 * @param source
+	 *            The name of the program's source file, or of an object file,
+	 *            in which case the listing is of the instructions loaded from
+	 *            it.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	private static void writeProfile(Profile profile, String name,
+			String source) throws IOException {
+		try (Writer json = Files.newBufferedWriter(Path.of(name + ".json"))) {
+			profile.writeJson(json);
+		}
+		List<String> lines = null;
+		if (!ObjectFile.isObjectFile(source)) {
+			lines = Files.readAllLines(Path.of(source), Charset.defaultCharset());
+		}
+		try (Writer listing = Files.newBufferedWriter(Path.of(name + ".lst"))) {
+			profile.writeListing(listing, lines);
+		}
 		return;
 	}
 
 	/**
-	 * Execute the instructions in the machine's code memory. The instructions
-	 * are implemented in accordance with the specification found here: <a
-	 * href="http://www.cs.adelaide.edu.au/users/third/cc/handouts/pal.pdf">The
-	 * PAL Machine</a>.
+	 * Constructor. Loads a program from its source, as {@link Program#load
+	 * <code>Program.load</code>} does, to run with the default memory limits,
+	 * on the standard streams.
+	 *
+	 * @param is
+	 *            The program source.
+	 * @throws IOException
+	 *             if the program cannot be loaded.
 	 */
-	ExitStatus execute() {
-		// Initialise program counter.
-		pc = 0;
+	PAL(InputStream is) throws IOException {
+		this(is, CODESIZE, DATASIZE);
+	}
+
+	/**
+	 * Constructor, with the specified memory limits.
+	 *
+	 * @param is
+	 *            The program source.
+	 * @param codeSize
+	 *            The code memory limit, in lines, or 0 for no limit.
+	 * @param dataSize
+	 *            The data stack size limit, or 0 for no limit.
+	 * @throws IOException
+	 *             if the program cannot be loaded.
+	 * @see PAL#PAL(InputStream)
+	 */
+	PAL(InputStream is, int codeSize, int dataSize) throws IOException {
+		this(Program.load(is, Program.DEFAULT_NAME, codeSize), dataSize);
+	}
 
-		Code currInst;
+	/**
+	 * Constructor. Loads a program from an object file previously written by
+	 * {@link Program#write <code>Program.write</code>}, without re-parsing the
+	 * source.
+	 *
+	 * @param objectFile
+	 *            The object file.
+	 * @throws IOException
+	 *             if the file cannot be read, or is not a valid object file.
+	 * @see ObjectFile
+	 */
+	PAL(Path objectFile) throws IOException {
+		this(objectFile, CODESIZE, DATASIZE);
+	}
 
-		while (pc < codeMem.size()) {
-			currInst = codeMem.get(pc);
+	/**
+	 * Constructor. Loads a program from an object file, with the specified
+	 * memory limits.
+	 *
+	 * @param objectFile
+	 *            The object file.
+	 * @param codeSize
+	 *            The code memory limit, in lines, or 0 for no limit.
+	 * @param dataSize
+	 *            The data stack size limit, or 0 for no limit.
+	 * @throws IOException
+	 *             if the file cannot be read, or is not a valid object file.
+	 * @see PAL#PAL(Path)
+	 */
+	PAL(Path objectFile, int codeSize, int dataSize) throws IOException {
+		this(Program.read(objectFile, Program.DEFAULT_NAME, codeSize),
+				dataSize);
+	}
 
-			// Bump the program counter.
-			pc++;
+	/**
+	 * Constructor, to run a program on the standard streams.
+	 *
+	 * @param program
+	 *            The program.
+	 * @param dataSize
+	 *            The data stack size limit, or 0 for no limit.
+	 */
+	private PAL(Program program, int dataSize) {
+		this(program, System.in, new PrintWriter(System.out, false,
+				System.out.charset()), new PrintWriter(System.err, true,
+				System.err.charset()), dataSize);
+	}
 
-			// Object to pull out of currInst.second.
-			Object o = currInst.getSecond();
+	/**
+	 * Constructor, to continue running a program from a snapshot on the
+	 * standard streams.
+	 *
+	 * @param snapshot
+	 *            The snapshot.
+	 */
+	private PAL(Snapshot snapshot) {
+		this(snapshot, System.in, new PrintWriter(System.out, false,
+				System.out.charset()), new PrintWriter(System.err, true,
+				System.err.charset()));
+	}
 
-			Data tos, ntos, returnPoint, loadedVal;
+	/**
+	 * Constructor. Sets up the initial machine state to run a program.
+	 *
+	 * @param program
+	 *            The program.
+	 * @param in
+	 *            Standard input, for <code>RDI</code>, <code>RDR</code> and
+	 *            <code>OPR 19</code>.
+	 * @param out
+	 *            Standard output, for <code>OPR 20</code> and
+	 *            <code>OPR 21</code>.
+	 * @param err
+	 *            The destination for runtime error reports.
+	 * @param dataSize
+	 *            The data stack size limit, or 0 for no limit.
+	 * @see Machine
+	 */
+	PAL(Program program, InputStream in, PrintWriter out, PrintWriter err,
+			int dataSize) {
+		this.program = program;
+		code = program.code;
+		dataStack = new TaggedDataStack(dataSize);
+		input = new InputBuffer(in);
+		output = out;
+		this.err = err;
+		currentException = 0;
+		return;
+	}
 
-			switch (Mnemonic.mnemonicToInt(currInst.getMnemonic())) {
-			case Mnemonic.CAL:
-				// Procedure/function call.
+	/**
+	 * Constructor. Sets up the machine state recorded in a snapshot, to
+	 * continue running its program from that point.
+	 *
+	 * @param snapshot
+	 *            The snapshot.
+	 * @param in
+	 *            Standard input, to be read after any input the snapshot
+	 *            had read but not consumed.
+	 * @param out
+	 *            Standard output.
+	 * @param err
+	 *            The destination for runtime error reports.
+	 * @see Snapshot#fork
+	 */
+	PAL(Snapshot snapshot, InputStream in, PrintWriter out, PrintWriter err) {
+		this.program = snapshot.program;
+		code = program.code;
+		dataStack = new TaggedDataStack(snapshot.stack);
+		input = new InputBuffer(in, snapshot.unread, snapshot.skipLF);
+		output = out;
+		this.err = err;
+		currentException = snapshot.currentException;
+		pc = snapshot.pc;
+		return;
+	}
 
-				// Set return point field in stack mark.
-				returnPoint = dataStack.get(dataStack.getTop()
-						- currInst.getFirst() - 2);
-				returnPoint.setType(Data.INT);
-				returnPoint.setValue(new Integer(pc));
+	/**
+	 * Records the state of the machine between calls to {@link #resume
+	 * <code>resume</code>}.
+	 *
+	 * @return The snapshot, or <code>null</code> if the program has
+	 *         terminated.
+	 */
+	Snapshot snapshot() {
+		if (pc == STOPPED) {
+			return null;
+		}
+		return new Snapshot(program, new TaggedDataStack(dataStack), pc,
+				currentException, input.unread(), input.skipsLF());
+	}
 
-				// Set new frame base.
-				dataStack.setBase(dataStack.getTop() - currInst.getFirst());
+	/**
+	 * Limits the stack dump reported with a runtime error to the uppermost
+	 * and lowermost frames, with stack marks annotated, as described by
+	 * {@link TaggedDataStack#dump(Appendable, int, int)}. By default, every
+	 * slot is shown without annotation.
+	 *
+	 * @param topFrames
+	 *            The number of frames to show at the top of the stack.
+	 * @param bottomFrames
+	 *            The number of frames to show at the bottom of the stack.
+	 */
+	void setStackDump(int topFrames, int bottomFrames) {
+		dumpTopFrames = topFrames;
+		dumpBottomFrames = bottomFrames;
+		return;
+	}
 
-				// Jump to procedure/function code. Note that while
-				// the PAL instructions start from 1, our code store
-				// is indexed from 0.
-				pc = ((Integer) currInst.getSecond()).intValue() - 1;
+	/**
+	 * Enables or disables tail calls. When enabled, a call immediately
+	 * followed by a return replaces the current frame with the callee's
+	 * where it can, so that tail-recursive programs run in constant stack
+	 * space. The program's behaviour is otherwise unchanged, except that the
+	 * replaced frames are missing from a runtime error's stack dump. They are
+	 * disabled by default.
+	 *
+	 * @param enabled
+	 *            <code>true</code> to enable tail calls.
+	 * @see TaggedDataStack#tailCall
+	 */
+	void setTailCalls(boolean enabled) {
+		tailCalls = enabled;
+		return;
+	}
 
-				break;
-			case Mnemonic.INC:
-				// Push space onto the stack.
+	/**
+	 * Returns a summary of the machine's memory use: the size of the code
+	 * store, and the data stack's high water mark, capacity and growth.
+	 *
+	 * @return A one-line summary.
+	 */
+	String statistics() {
+		final TaggedDataStack stack = dataStack;
+		return "Code: " + code.size() + " instructions"
+				+ (code.originalSize() != code.size() ? " (optimised from "
+						+ code.originalSize() + ")" : "") + ", "
+				+ code.fusedCount() + " superinstructions, "
+				+ code.specialisedCount() + " specialised operations, "
+				+ code.tailCallCount() + " tail calls. Data"
+				+ " stack: high"
+				+ " water mark " + stack.getHighWaterMark() + ", capacity "
+				+ stack.getCapacity() + ", grown " + stack.getGrowthCount()
+				+ " times, " + stack.getCopiedSlots() + " slots copied.";
+	}
 
-				if (!(o instanceof Integer)) {
-					error(currInst, "Argument to INC must be an integer.");
-					return ExitStatus.ABNORMAL;
-				} else {
-					dataStack.incTop(((Integer) o).intValue());
-				}
-				break;
-			case Mnemonic.JIF:
-				// Jump if false.
+	/**
+	 * Returns the problems found by the verifier when the program was loaded.
+	 *
+	 * @return The problems, each in the form
+	 *         <code><i>line</i>:<i>message</i></code>.
+	 * @see Program#getProblems()
+	 */
+	List<String> problems() {
+		return program.getProblems();
+	}
 
-				if (!(o instanceof Integer)) {
-					error(currInst, "Argument to JIF must be an integer.");
-					return ExitStatus.ABNORMAL;
-				}
+	/**
+	 * Writes the loaded program to an object file, which can later be
+	 * loaded with {@link PAL#PAL(Path)}.
+	 *
+	 * @param objectFile
+	 *            The file to write.
+	 * @throws IOException
+	 *             if the file cannot be written.
+	 * @see Program#write
+	 */
+	void writeObjectFile(Path objectFile) throws IOException {
+		program.write(objectFile);
+		return;
+	}
 
-				tos = dataStack.pop();
+	/**
+	 * Execute the instructions in the machine's code memory. The instructions
+	 * are implemented in accordance with the specification found here: <a
+	 * href="http://www.cs.adelaide.edu.au/users/third/cc/handouts/pal.pdf">The
+	 * PAL Machine</a>.
+	 */
+	ExitStatus execute() {
+		return execute(Engine.INTERPRETER);
+	}
 
-				if (tos.getType() != Data.BOOL) {
-					dataStack.push(tos);
-					error(currInst, "JIF - top of stack not a boolean.");
-					return ExitStatus.ABNORMAL;
+	/**
+	 * Execute the instructions in the machine's code memory, using the
+	 * specified execution engine.
+	 *
+	 * @param engine
+	 *            The engine to use.
+	 * @see PAL#execute()
+	 */
+	ExitStatus execute(Engine engine) {
+		try {
+			switch (engine) {
+			case BYTECODE:
+				Compiler.Compiled compiled = program.compiled();
+				if (compiled != null) {
+					return leave(compiled.run(this, this.pc));
 				}
+				// The program could not be compiled, so fall back to
+				// the interpreter.
+				return interpret();
+			case CLOSURE:
+				return leave(program.closures().run(this, this.pc));
+			default:
+				return interpret();
+			}
+		} catch (Abort a) {
+			return ExitStatus.ABNORMAL;
+		} finally {
+			output.flush();
+			err.flush();
+		}
+	}
 
-				if (!((Boolean) tos.getValue()).booleanValue()) {
-					int destination = ((Integer) o).intValue();
+	/**
+	 * Execute the instructions in the machine's code memory with the
+	 * interpreter, recording a profile of the execution. This uses a separate
+	 * interpreter loop, so that there is no cost to profiling when it is not
+	 * in use.
+	 *
+	 * @param profile
+	 *            The profile to record into, made for this machine's program
+	 *            by {@link #newProfile <code>newProfile</code>}.
+	 * @see PAL#execute()
+	 */
+	ExitStatus execute(Profile profile) {
+		this.profile = profile;
+		try {
+			return interpret(profile);
+		} catch (Abort a) {
+			return ExitStatus.ABNORMAL;
+		} finally {
+			this.profile = null;
+			output.flush();
+			err.flush();
+		}
+	}
 
-					if (destination < 1 || destination > codeMem.size()) {
-						dataStack.push(tos);
-						error(currInst, "JIF - attempt to jump outside code.");
-						return ExitStatus.ABNORMAL;
-					}
+	/**
+	 * Returns a new, empty, profile for this machine's program.
+	 *
+	 * @return The profile.
+	 */
+	Profile newProfile() {
+		return new Profile(code);
+	}
 
-					// Our code store uses zero-based indexing. For
-					// compatibility reasons, addresses start at 1.
-					pc = destination - 1;
-				}
+	/**
+	 * Interpret the instructions in the machine's code memory, dispatching on
+	 * each decoded opcode in turn.
+	 *
+	 * @exception Abort
+	 *                if execution stops with a runtime error.
+	 */
+	private ExitStatus interpret() throws Abort {
+		final int[] opcodes = code.opcodes;
+		final int[] levels = code.levels;
+		final int[] operands = code.operands;
+		final int size = code.size();
+		final TaggedDataStack stack = dataStack;
 
-				break;
-			case Mnemonic.JMP:
-				// Unconditional jump.
+		// Initialise program counter: the start of the program, unless the
+		// machine was restored from a snapshot.
+		int pc = this.pc;
+		int i;
 
-				if (!(o instanceof Integer)) {
-					error(currInst, "Argument to JMP must be an integer.");
-					return ExitStatus.ABNORMAL;
-				}
+		while (pc < size) {
+			i = pc;
 
-				int destination = ((Integer) o).intValue();
+			// Bump the program counter.
+			pc++;
 
-				if (destination == 0) {
-					// "JMP 0 0" signifies program termination.
-					return ExitStatus.ABNORMAL;
-				}
+			switch (opcodes[i]) {
+			case Mnemonic.CAL:
+				// Procedure/function call.
+				call(levels[i], pc);
 
-				if (destination < 1 || destination > codeMem.size()) {
-					error(currInst, "JMP - attempt to jump outside code.");
-					return ExitStatus.ABNORMAL;
+				// Jump to procedure/function code.
+				pc = operands[i];
+				break;
+			case CodeStore.TAIL_CALL:
+				// Call in place of the current frame, if possible.
+				tailCall(levels[i], pc);
+				pc = operands[i];
+				break;
+			case Mnemonic.INC:
+				// Push space onto the stack.
+				stack.incTop(operands[i]);
+				break;
+			case Mnemonic.JIF:
+				// Jump if false. The verifier has checked the destination.
+				if (jumpIfFalse(i, true)) {
+					pc = operands[i];
 				}
-
-				// Our code store uses zero-based indexing. For
-				// compatibility reasons, addresses start at 1.
-				pc = destination - 1;
-
 				break;
+			case CodeStore.JIF_OUTSIDE:
+				// Only an error if the jump is taken.
+				jumpIfFalse(i, false);
+				break;
+			case Mnemonic.JMP:
+				// Unconditional jump. The verifier has checked the
+				// destination.
+				pc = operands[i];
+				break;
+			case CodeStore.JMP_OUTSIDE:
+				jumpOutside(i);
+				break;
+			case CodeStore.HALT:
+				// "JMP 0 0" signifies program termination.
+				return ExitStatus.ABNORMAL;
 			case Mnemonic.LCI:
 				// Load an integer constant onto the stack.
-
-				if (!(o instanceof Integer)) {
-					error(currInst, "Argument to LCI must be an integer.");
-					return ExitStatus.ABNORMAL;
-				} else {
-					dataStack.push(new Data(Data.INT, o));
-				}
+				stack.pushInt(operands[i]);
 				break;
 			case Mnemonic.LCR:
 				// Load a real constant onto the stack.
-
-				if (o instanceof Integer) {
-					o = new Float(((Integer) o).floatValue());
-				}
-
-				if (!(o instanceof Float)) {
-					error(currInst, "Argument to LCR must be a real.");
-					return ExitStatus.ABNORMAL;
-				} else {
-					dataStack.push(new Data(Data.REAL, o));
-				}
+				loadReal(operands[i]);
 				break;
 			case Mnemonic.LCS:
 				// Load a string constant onto the stack.
-
-				if (!(o instanceof String)) {
-					error(currInst, "Argument to LCS must be a string.");
-					return ExitStatus.ABNORMAL;
-				} else {
-					if (!(((String) o).startsWith("'") && (((String) o)
-							.endsWith("'")))) {
-						error(currInst,
-								"String must be delimited by single-quotes.");
-						return ExitStatus.ABNORMAL;
-					} else {
-						String oS = (String) o;
-						oS = oS.substring(1, oS.length() - 1);
-						dataStack.push(new Data(Data.STRING, oS));
-					}
-				}
+				loadString(operands[i]);
 				break;
 			case Mnemonic.LDA:
 				// Load the address of a stack location onto the top
 				// of the stack.
-
-				if (!(o instanceof Integer)) {
-					error(currInst, "Argument to LDA must be an integer.");
-					return ExitStatus.ABNORMAL;
-				}
-
-				int address = dataStack.getAddress(currInst.getFirst(),
-						((Integer) o).intValue());
-
-				dataStack.push(new Data(Data.INT, new Integer(address)));
-
+				loadAddress(levels[i], operands[i]);
 				break;
 			case Mnemonic.LDI:
 				// Load the value addressed by the top of stack.
-
-				tos = dataStack.pop();
-
-				if (tos.getType() != Data.INT) {
-					dataStack.push(tos);
-					error(currInst, "LDI - top of stack must be an integer.");
-					return ExitStatus.ABNORMAL;
-				}
-
-				address = ((Integer) tos.getValue()).intValue();
-
-				loadedVal = dataStack.get(address);
-
-				dataStack.push((Data) loadedVal.clone());
-
+				loadIndirect(i);
 				break;
 			case Mnemonic.LDV:
 				// Load a value from elsewhere in the stack onto the
 				// top.
-
-				if (!(o instanceof Integer)) {
-					error(currInst, "Argument to LDV must be an integer");
-					return ExitStatus.ABNORMAL;
-				}
-
-				loadedVal = dataStack.get(currInst.getFirst(),
-						((Integer) o).intValue());
-
-				dataStack.push((Data) loadedVal.clone());
-
+				loadValue(levels[i], operands[i]);
 				break;
 			case Mnemonic.LDU:
 				// Load an uninitialised value onto the top of the
 				// stack.
-
-				dataStack.push(new Data(Data.UNDEF, null));
-
+				stack.pushUndef();
 				break;
 			case Mnemonic.MST:
 				// Mark the stack in preparation for a
 				// procedure/function call.
-
-				int staticLink = dataStack.getAddress(currInst.getFirst(), 0);
-				int dynamicLink = dataStack.getAddress(0, 0);
-
-				dataStack.markStack(staticLink, dynamicLink);
-
+				markStack(levels[i]);
 				break;
 			case Mnemonic.OPR:
-				ExitStatus status = doOperation(currInst);
-				if (status == ExitStatus.ABNORMAL) {
-					return ExitStatus.ABNORMAL;
-				}
+				doOperation(i, operands[i]);
+				break;
+			case CodeStore.RETURN:
+				// Procedure (OPR 0 0) or function (OPR 0 1) return.
+				pc = doReturn(operands[i]);
 				break;
 			case Mnemonic.RDI:
 				// Read an integer from stdin.
-
-				String intLine = "";
-				try {
-					intLine = inputReader.readLine();
-					if (intLine == null) {
-						// EOF reached.
-						currentException = reachedEOF;
-						ExitStatus exceptionStatus = raiseException(currInst);
-						if (exceptionStatus == ExitStatus.ABNORMAL) {
-							return ExitStatus.ABNORMAL;
-						}
-						break;
-					}
-					int intVal = Integer.parseInt(intLine);
-					// Put the val in the stack.
-					loadedVal = dataStack.get(currInst.getFirst(),
-							((Integer) o).intValue());
-					loadedVal.setType(Data.INT);
-					loadedVal.setValue(new Integer(intVal));
-				} catch (IOException e1) {
-					System.err.println(e1);
-				} catch (NumberFormatException e2) {
-					currentException = typeMismatch;
-					ExitStatus exceptionStatus = raiseException(currInst);
-					if (exceptionStatus == ExitStatus.ABNORMAL) {
-						return ExitStatus.ABNORMAL;
-					}
-				}
+				pc = readInt(i, levels[i], operands[i], pc);
 				break;
 			case Mnemonic.RDR:
 				// Read a real from stdin.
+				pc = readReal(i, levels[i], operands[i], pc);
+				break;
+			case Mnemonic.REH:
+				// Register an exception handler with the current
+				// stack mark.
+				registerHandler(operands[i]);
+				break;
+			case Mnemonic.SIG:
+				// Raise an exception.
+				pc = signal(i, operands[i]);
+				break;
+			case Mnemonic.STI:
+				// Store the value in the top-of-stack - 1 in the
+				// address specified by the number in top-of-stack.
+				storeIndirect(i);
+				break;
+			case Mnemonic.STO:
+				// Store the value on top of the stack in the location
+				// indicated.
+				store(levels[i], operands[i]);
+				break;
+			case CodeStore.ILLEGAL:
+				// An instruction with malformed operands.
+				illegal(i);
+				break;
+			case CodeStore.ADD_CONSTANT:
+				// LDV; LCI; OPR 0 3 or OPR 0 4; STO.
+				pc = addConstant(i);
+				break;
+			case CodeStore.COMPARE_JUMP:
+				// LDV; LDV; OPR 0 10-15; JIF.
+				pc = compareAndJump(i);
+				break;
+			case CodeStore.STORE_CONSTANT:
+				// LCI; STO.
+				pc = storeConstant(i);
+				break;
+			case CodeStore.INT_ARITHMETIC:
+				intArithmetic(i, operands[i]);
+				break;
+			case CodeStore.REAL_ARITHMETIC:
+				realArithmetic(i, operands[i]);
+				break;
+			case CodeStore.INT_COMPARISON:
+				intComparison(i, operands[i]);
+				break;
+			case CodeStore.REAL_COMPARISON:
+				realComparison(i, operands[i]);
+				break;
+			default:
+				unknown(i);
+			}
+		}
+
+		return leave(pc);
+	}
+
+	/**
+	 * Interpret the instructions in the machine's code memory as
+	 * {@link #interpret() <code>interpret</code>} does, counting each
+	 * instruction executed. Superinstructions are not used, so that each
+	 * instruction is counted separately.
+	 *
+	 * @param profile
+	 *            The profile to record into.
+	 * @exception Abort
+	 *                if execution stops with a runtime error.
+	 */
+	private ExitStatus interpret(Profile profile) throws Abort {
+		final int[] opcodes = code.unfusedOpcodes();
+		final long[] counts = profile.counts;
+		final int size = code.size();
+		int pc = this.pc;
+
+		while (pc >= 0 && pc < size) {
+			counts[pc]++;
+			pc = step(opcodes[pc], pc);
+		}
+
+		return leave(pc);
+	}
+
+	/**
+	 * Executes the program for at most <code>maxInstructions</code>
+	 * instructions with the interpreter, starting where the last call left
+	 * off, or at the start of the program. A superinstruction counts as one
+	 * instruction.
+	 *
+	 * <p>
+	 * If the program's input is an {@link InputQueue <code>InputQueue</code>},
+	 * an instruction that would have to wait for input is not executed, and
+	 * the machine is left blocked on input until input is supplied.
+	 * Otherwise, reading input may block as usual.
+	 * </p>
+	 *
+	 * @param maxInstructions
+	 *            The maximum number of instructions to execute.
+	 * @return The state of the machine.
+	 * @see Machine#step
+	 */
+	Machine.State resume(int maxInstructions) {
+		final int[] opcodes = code.opcodes;
+		final int[] operands = code.operands;
+		final int size = code.size();
+		int pc = this.pc;
+		boolean blocked = false;
+
+		try {
+			for (int n = 0; n < maxInstructions && pc >= 0 && pc < size; n++) {
+				int opcode = opcodes[pc];
+				if ((opcode == Mnemonic.RDI || opcode == Mnemonic.RDR
+						|| (opcode == Mnemonic.OPR && operands[pc] == 19))
+						&& !inputReady(opcode != Mnemonic.OPR)) {
+					blocked = true;
+					break;
+				}
+				pc = step(opcode, pc);
+			}
+			if (pc >= 0 && pc < size) {
+				this.pc = pc;
+				return blocked ? Machine.State.BLOCKED_ON_INPUT
+						: Machine.State.RUNNING;
+			}
+			exitStatus = leave(pc);
+		} catch (Abort a) {
+			exitStatus = ExitStatus.ABNORMAL;
+		} finally {
+			output.flush();
+			err.flush();
+		}
+		this.pc = STOPPED;
+		return Machine.State.TERMINATED;
+	}
+
+	/**
+	 * Tests whether a read from the input can complete without blocking.
+	 *
+	 * @param line
+	 *            <code>true</code> for a line, or <code>false</code> for an
+	 *            EOF test.
+	 * @return <code>false</code> if the read would block.
+	 */
+	private boolean inputReady(boolean line) {
+		try {
+			return input.ready(line);
+		} catch (IOException e) {
+			// The instruction will report it when it reads.
+			return true;
+		}
+	}
+
+	/**
+	 * Returns the status of the machine once {@link #resume
+	 * <code>resume</code>} has reported that the program has terminated.
+	 *
+	 * @return The status, or <code>null</code> if the program has not
+	 *         terminated.
+	 */
+	ExitStatus exitStatus() {
+		return exitStatus;
+	}
+
+	/**
+	 * Executes one instruction, for {@link #interpret(Profile)
+	 * <code>interpret(Profile)</code>} and {@link #resume
+	 * <code>resume</code>}. See {@link #interpret() <code>interpret</code>}
+	 * for the details of each opcode.
+	 *
+	 * @param opcode
+	 *            The opcode.
+	 * @param i
+	 *            The index of the instruction.
+	 * @return The zero-based address of the next instruction, or
+	 *         {@link #STOPPED} on program termination.
+	 * @exception Abort
+	 *                if execution stops with a runtime error.
+	 */
+	private int step(int opcode, int i) throws Abort {
+		final int level = code.levels[i];
+		final int operand = code.operands[i];
+		final int next = i + 1;
+
+		switch (opcode) {
+		case Mnemonic.CAL:
+			call(level, next);
+			return operand;
+		case CodeStore.TAIL_CALL:
+			tailCall(level, next);
+			return operand;
+		case Mnemonic.INC:
+			increment(operand);
+			break;
+		case Mnemonic.JIF:
+			return jumpIfFalse(i, true) ? operand : next;
+		case CodeStore.JIF_OUTSIDE:
+			jumpIfFalse(i, false);
+			break;
+		case Mnemonic.JMP:
+			return operand;
+		case CodeStore.JMP_OUTSIDE:
+			jumpOutside(i);
+			break;
+		case CodeStore.HALT:
+			return STOPPED;
+		case Mnemonic.LCI:
+			loadInt(operand);
+			break;
+		case Mnemonic.LCR:
+			loadReal(operand);
+			break;
+		case Mnemonic.LCS:
+			loadString(operand);
+			break;
+		case Mnemonic.LDA:
+			loadAddress(level, operand);
+			break;
+		case Mnemonic.LDI:
+			loadIndirect(i);
+			break;
+		case Mnemonic.LDV:
+			loadValue(level, operand);
+			break;
+		case Mnemonic.LDU:
+			loadUndefined();
+			break;
+		case Mnemonic.MST:
+			markStack(level);
+			break;
+		case Mnemonic.OPR:
+			doOperation(i, operand);
+			break;
+		case CodeStore.RETURN:
+			return doReturn(operand);
+		case Mnemonic.RDI:
+			return readInt(i, level, operand, next);
+		case Mnemonic.RDR:
+			return readReal(i, level, operand, next);
+		case Mnemonic.REH:
+			registerHandler(operand);
+			break;
+		case Mnemonic.SIG:
+			return signal(i, operand);
+		case Mnemonic.STI:
+			storeIndirect(i);
+			break;
+		case Mnemonic.STO:
+			store(level, operand);
+			break;
+		case CodeStore.ILLEGAL:
+			illegal(i);
+			break;
+		case CodeStore.ADD_CONSTANT:
+			return addConstant(i);
+		case CodeStore.COMPARE_JUMP:
+			return compareAndJump(i);
+		case CodeStore.STORE_CONSTANT:
+			return storeConstant(i);
+		case CodeStore.INT_ARITHMETIC:
+			intArithmetic(i, operand);
+			break;
+		case CodeStore.REAL_ARITHMETIC:
+			realArithmetic(i, operand);
+			break;
+		case CodeStore.INT_COMPARISON:
+			intComparison(i, operand);
+			break;
+		case CodeStore.REAL_COMPARISON:
+			realComparison(i, operand);
+			break;
+		default:
+			unknown(i);
+		}
+		return next;
+	}
+
+	// The following methods implement the individual instructions. They
+	// are shared by every execution engine, and are package-private so
+	// that compiled code can call them. Any of them may throw Abort,
+	// having already reported a runtime error.
+
+	/**
+	 * <code>CAL</code>: set the return point in the stack mark, and the new
+	 * frame base. The caller is responsible for the jump itself.
+	 *
+	 * @param params
+	 *            The number of parameters already pushed above the stack mark.
+	 * @param returnPoint
+	 *            The zero-based address to return to.
+	 */
+	void call(int params, int returnPoint) {
+		final TaggedDataStack stack = dataStack;
+
+		// Set return point field in stack mark, numbered as in the original
+		// program.
+		stack.setReturnPoint(stack.getTop() - params - 2,
+				code.originalAddress(returnPoint));
+
+		// Set new frame base.
+		stack.enterFrame(stack.getTop() - params);
+		return;
+	}
+
+	/**
+	 * {@link CodeStore#TAIL_CALL <code>TAIL_CALL</code>}: a
+	 * <code>CAL</code> immediately followed by a return. If tail calls are
+	 * {@link #setTailCalls enabled}, the callee's frame replaces the current
+	 * one if it can, and otherwise this is an ordinary
+	 * {@link #call <code>call</code>}. Either way, the caller is responsible
+	 * for the jump.
+	 *
+	 * @param params
+	 *            The number of parameters already pushed above the stack mark.
+	 * @param returnPoint
+	 *            The zero-based address of the return after the call.
+	 * @see TaggedDataStack#tailCall
+	 */
+	void tailCall(int params, int returnPoint) {
+		if (!tailCalls || !dataStack.tailCall(params)) {
+			call(params, returnPoint);
+		}
+		return;
+	}
+
+	/**
+	 * <code>JIF</code>: pop a boolean, and determine whether to jump.
+	 *
+	 * @param i
+	 *            The index of the instruction.
+	 * @param inCode
+	 *            <code>true</code> if the destination is inside the code.
+	 * @return <code>true</code> if the jump should be taken.
+	 */
+	boolean jumpIfFalse(int i, boolean inCode) {
+		final TaggedDataStack stack = dataStack;
+
+		if (stack.peekType() != Data.BOOL) {
+			throw abort(i, "JIF - top of stack not a boolean.");
+		}
+
+		boolean jump = !stack.peekBool();
+		if (jump && !inCode) {
+			throw abort(i, "JIF - attempt to jump outside code.");
+		}
+		stack.drop();
+		return jump;
+	}
+
+	/**
+	 * <code>JMP</code> to a destination outside the code.
+	 *
+	 * @param i
+	 *            The index of the instruction.
+	 */
+	void jumpOutside(int i) {
+		throw abort(i, "JMP - attempt to jump outside code.");
+	}
+
+	/**
+	 * <code>LCI</code>: load an integer constant.
+	 *
+	 * @param value
+	 *            The constant.
+	 */
+	void loadInt(int value) {
+		dataStack.pushInt(value);
+		return;
+	}
+
+	/**
+	 * <code>LCR</code>: load a real constant.
+	 *
+	 * @param bits
+	 *            The bits of the constant, as stored by the loader.
+	 */
+	void loadReal(int bits) {
+		dataStack.pushReal(Float.intBitsToFloat(bits));
+		return;
+	}
+
+	/**
+	 * <code>LCS</code>: load a string constant. The quotes have already been
+	 * stripped by the loader.
+	 *
+	 * @param index
+	 *            The index of the constant in the constant pool.
+	 */
+	void loadString(int index) {
+		dataStack.pushString((String) code.constants[index]);
+		return;
+	}
+
+	/**
+	 * <code>LDA</code>: load the address of a stack location.
+	 *
+	 * @param level
+	 *            The level difference.
+	 * @param offset
+	 *            The offset into the target frame.
+	 */
+	void loadAddress(int level, int offset) {
+		final TaggedDataStack stack = dataStack;
+		stack.pushInt(stack.getAddress(level, offset));
+		return;
+	}
+
+	/**
+	 * <code>LDI</code>: load the value addressed by the top of stack.
+	 *
+	 * @param i
+	 *            The index of the instruction.
+	 */
+	void loadIndirect(int i) {
+		final TaggedDataStack stack = dataStack;
+
+		if (stack.peekType() != Data.INT) {
+			throw abort(i, "LDI - top of stack must be an integer.");
+		}
+
+		stack.pushCopy(stack.popInt());
+		return;
+	}
+
+	/**
+	 * <code>LDV</code>: load a value from elsewhere in the stack.
+	 *
+	 * @param level
+	 *            The level difference.
+	 * @param offset
+	 *            The offset into the target frame.
+	 */
+	void loadValue(int level, int offset) {
+		final TaggedDataStack stack = dataStack;
+		stack.pushCopy(stack.getAddress(level, offset));
+		return;
+	}
+
+	/**
+	 * <code>LDU</code>: load an uninitialised value.
+	 */
+	void loadUndefined() {
+		dataStack.pushUndef();
+		return;
+	}
+
+	/**
+	 * <code>INC</code>: push space onto the stack.
+	 *
+	 * @param amount
+	 *            The number of locations to push.
+	 */
+	void increment(int amount) {
+		dataStack.incTop(amount);
+		return;
+	}
+
+	/**
+	 * <code>MST</code>: mark the stack in preparation for a procedure or
+	 * function call.
+	 *
+	 * @param level
+	 *            The level difference to the callee's enclosing scope.
+	 */
+	void markStack(int level) {
+		dataStack.markStack(level);
+		return;
+	}
 
-				String realLine = "";
-				try {
-					realLine = inputReader.readLine();
-					if (realLine == null) {
-						// EOF reached.
-						currentException = reachedEOF;
-						ExitStatus exceptionStatus = raiseException(currInst);
-						if (exceptionStatus == ExitStatus.ABNORMAL) {
-							return ExitStatus.ABNORMAL;
-						}
-						break;
-					}
-					float realVal = Float.parseFloat(realLine);
-					// Put the val in the stack.
-					loadedVal = dataStack.get(currInst.getFirst(),
-							((Integer) o).intValue());
-					loadedVal.setType(Data.REAL);
-					loadedVal.setValue(new Float(realVal));
-				} catch (IOException e1) {
-					System.err.println(e1);
-				} catch (NumberFormatException e2) {
-					currentException = typeMismatch;
-					ExitStatus exceptionStatus = raiseException(currInst);
-					if (exceptionStatus == ExitStatus.ABNORMAL) {
-						return ExitStatus.ABNORMAL;
-					}
-				}
-				break;
-			case Mnemonic.REH:
-				// Register an exception handler with the current
-				// stack mark.
+	/**
+	 * <code>OPR 0 0</code> and <code>OPR 0 1</code>: procedure or function
+	 * return.
+	 *
+	 * @param opr
+	 *            0 for a procedure return, 1 for a function return.
+	 * @return The zero-based address to continue at.
+	 */
+	int doReturn(int opr) {
+		final TaggedDataStack stack = dataStack;
 
-				if (!(o instanceof Integer)) {
-					error(currInst, "Argument to REH must be an integer.");
-					return ExitStatus.ABNORMAL;
-				}
+		// Find the return point.
+		int returnPoint = stack.getInt(stack.getAddress(0, -2));
 
-				// Get the location of the exception handler pointer
-				// in the highest stack mark.
-				loadedVal = dataStack.get(0, -1);
+		// Remember the dynamic link.
+		int dynamicLink = stack.getInt(stack.getAddress(0, -3));
 
-				loadedVal.setType(Data.INT);
-				loadedVal.setValue(o);
+		// Pop data from the stack back down to the last frame, leaving
+		// the return value on top of the stack for a function.
+		if (opr == 0) {
+			stack.truncate(stack.getAddress(0, -4));
+		} else {
+			stack.moveTop(stack.getAddress(0, -4));
+		}
 
-				break;
-			case Mnemonic.SIG:
-				// If the argument is 0 (the predefined "re-raise"
-				// code), re-raise the current exception. Otherwise,
-				// raise the exception specified by the argument.
+		// Set the new frame base using the remembered dynamic link.
+		stack.returnTo(dynamicLink);
 
-				if (!(o instanceof Integer)) {
-					error(currInst, "Argument to SIG must be an integer.");
-					return ExitStatus.ABNORMAL;
-				}
+		return code.address(returnPoint);
+	}
 
-				int excType = ((Integer) o).intValue();
-				if (excType != reraise) {
-					currentException = excType;
-				} else {
-					// Re-raise the current exception. SIG 0 0 is
-					// typically called by an exception handler when
-					// it can't handle the current exception type. We
-					// don't want to run that same handler again! A
-					// simple way to achieve this is to nullify the
-					// current exception handler pointer.
-					Data handlerLocation = dataStack.get(0, -1);
-					handlerLocation.setValue(new Integer(0));
-				}
+	/**
+	 * <code>RDI</code>: read an integer from stdin.
+	 *
+	 * @param i
+	 *            The index of the instruction.
+	 * @param level
+	 *            The level difference of the target location.
+	 * @param offset
+	 *            The offset of the target location.
+	 * @param next
+	 *            The zero-based address of the next instruction.
+	 * @return The zero-based address to continue at: <code>next</code>, or an
+	 *         exception handler.
+	 */
+	int readInt(int i, int level, int offset, int next) {
+		final TaggedDataStack stack = dataStack;
 
-				// Raise the exception...
-				ExitStatus exceptionStatus = raiseException(currInst);
-				if (exceptionStatus == ExitStatus.ABNORMAL) {
-					return ExitStatus.ABNORMAL;
-				}
+		try {
+			output.flush();
+			if (!input.nextLine()) {
+				// EOF reached.
+				currentException = reachedEOF;
+				return raiseException(i);
+			}
+			int intVal = input.parseInt();
+			// Put the val in the stack.
+			stack.setInt(stack.getAddress(level, offset), intVal);
+		} catch (IOException e1) {
+			err.println(e1);
+			// The variable may not hold the type inferred for it.
+			stack.setIrregular();
+		} catch (NumberFormatException e2) {
+			currentException = typeMismatch;
+			return raiseException(i);
+		}
+		return next;
+	}
 
-				break;
-			case Mnemonic.STI:
-				// Store the value in the top-of-stack - 1 in the
-				// address specified by the number in top-of-stack.
+	/**
+	 * <code>RDR</code>: read a real from stdin.
+	 *
+	 * @param i
+	 *            The index of the instruction.
+	 * @param level
+	 *            The level difference of the target location.
+	 * @param offset
+	 *            The offset of the target location.
+	 * @param next
+	 *            The zero-based address of the next instruction.
+	 * @return The zero-based address to continue at: <code>next</code>, or an
+	 *         exception handler.
+	 */
+	int readReal(int i, int level, int offset, int next) {
+		final TaggedDataStack stack = dataStack;
 
-				tos = dataStack.pop();
+		try {
+			output.flush();
+			if (!input.nextLine()) {
+				// EOF reached.
+				currentException = reachedEOF;
+				return raiseException(i);
+			}
+			float realVal = input.parseFloat();
+			// Put the val in the stack.
+			stack.setReal(stack.getAddress(level, offset), realVal);
+		} catch (IOException e1) {
+			err.println(e1);
+			// The variable may not hold the type inferred for it.
+			stack.setIrregular();
+		} catch (NumberFormatException e2) {
+			currentException = typeMismatch;
+			return raiseException(i);
+		}
+		return next;
+	}
 
-				if (tos.getType() != Data.INT) {
-					dataStack.push(tos);
-					error(currInst, "STI - top of stack must be an integer.");
-					return ExitStatus.ABNORMAL;
-				}
+	/**
+	 * <code>REH</code>: register an exception handler with the current stack
+	 * mark.
+	 *
+	 * @param handler
+	 *            The (one-based) address of the handler.
+	 */
+	void registerHandler(int handler) {
+		// Set the exception handler pointer in the highest stack mark,
+		// numbered as in the original program.
+		dataStack.setHandler(handler == 0 ? 0 : code
+				.originalAddress(handler - 1) + 1);
+		return;
+	}
 
-				ntos = dataStack.pop();
-				int loadAddress = ((Integer) tos.getValue()).intValue();
-				loadedVal = dataStack.get(loadAddress);
+	/**
+	 * <code>SIG</code>: raise an exception.
+	 *
+	 * @param i
+	 *            The index of the instruction.
+	 * @param excType
+	 *            The exception to raise, or 0 to re-raise the current one.
+	 * @return The zero-based address of the exception handler.
+	 */
+	int signal(int i, int excType) {
+		// If the argument is 0 (the predefined "re-raise" code),
+		// re-raise the current exception. Otherwise, raise the exception
+		// specified by the argument.
+		if (excType != reraise) {
+			currentException = excType;
+		} else {
+			// Re-raise the current exception. SIG 0 0 is typically
+			// called by an exception handler when it can't handle the
+			// current exception type. We don't want to run that same
+			// handler again! A simple way to achieve this is to nullify
+			// the current exception handler pointer.
+			dataStack.setHandler(0);
+		}
 
-				loadedVal.setType(ntos.getType());
-				loadedVal.setValue(ntos.getValue());
+		// Raise the exception...
+		return raiseException(i);
+	}
 
-				break;
-			case Mnemonic.STO:
-				// Store the value on top of the stack in the location
-				// indicated.
+	/**
+	 * <code>STI</code>: store the value in the top-of-stack - 1 in the
+	 * address specified by the number in top-of-stack.
+	 *
+	 * @param i
+	 *            The index of the instruction.
+	 */
+	void storeIndirect(int i) {
+		final TaggedDataStack stack = dataStack;
 
-				if (!(o instanceof Integer)) {
-					error(currInst, "Argument to STO must be an integer.");
-					return ExitStatus.ABNORMAL;
-				}
+		if (stack.peekType() != Data.INT) {
+			throw abort(i, "STI - top of stack must be an integer.");
+		}
 
-				tos = dataStack.pop();
-				loadedVal = dataStack.get(currInst.getFirst(),
-						((Integer) o).intValue());
+		int address = stack.popInt();
+		stack.popTo(address);
+		return;
+	}
 
-				loadedVal.setType(tos.getType());
-				loadedVal.setValue(tos.getValue());
+	/**
+	 * <code>STO</code>: store the value on top of the stack in the location
+	 * indicated.
+	 *
+	 * @param level
+	 *            The level difference of the target location.
+	 * @param offset
+	 *            The offset of the target location.
+	 */
+	void store(int level, int offset) {
+		final TaggedDataStack stack = dataStack;
+		stack.popTo(stack.getAddress(level, offset));
+		return;
+	}
 
-				break;
-			default:
-				System.out.println(currInst.getMnemonic()
-						+ ": not implemented.");
+	/**
+	 * <code>LDV; LCI; OPR 0 3; STO</code> (or <code>OPR 0 4</code>): add a
+	 * constant to, or subtract it from, an integer, and store the result. If
+	 * the sequence would not complete as written, only the <code>LDV</code> is
+	 * executed, leaving the rest of the sequence to report any error.
+	 *
+	 * @param i
+	 *            The index of the first instruction.
+	 * @return The zero-based address to continue at.
+	 */
+	int addConstant(int i) {
+		final TaggedDataStack stack = dataStack;
+		final int[] levels = code.levels;
+		final int[] operands = code.operands;
+
+		int from = stack.getAddress(levels[i], operands[i]);
+		int to = address(levels[i + 3], operands[i + 3]);
+		if (valid(from) && stack.getType(from) == Data.INT && valid(to)
+				&& stack.tryReserve(2)) {
+			int value = stack.getInt(from);
+			int constant = operands[i + 1];
+			stack.setInt(to, operands[i + 2] == 3 ? value + constant : value
+					- constant);
+			return i + 4;
+		}
+
+		loadValue(levels[i], operands[i]);
+		return i + 1;
+	}
+
+	/**
+	 * <code>LDV; LDV; OPR; JIF</code>: compare two integers or two reals, and
+	 * jump if the comparison is false. The <code>OPR</code> is one of the
+	 * comparisons 10-15, and the destination is known to be in the code. If
+	 * the sequence would not complete as written, only the first
+	 * <code>LDV</code> is executed, leaving the rest of the sequence to report
+	 * any error.
+	 *
+	 * @param i
+	 *            The index of the first instruction.
+	 * @return The zero-based address to continue at.
+	 */
+	int compareAndJump(int i) {
+		final TaggedDataStack stack = dataStack;
+		final int[] levels = code.levels;
+		final int[] operands = code.operands;
+
+		int left = stack.getAddress(levels[i], operands[i]);
+		int right = address(levels[i + 1], operands[i + 1]);
+		if (valid(left) && valid(right)) {
+			int type = stack.getType(left);
+			if (stack.getType(right) == type
+					&& (type == Data.INT || type == Data.REAL)
+					&& stack.tryReserve(2)) {
+				boolean result;
+				if (type == Data.INT) {
+					result = compare(operands[i + 2], stack.getInt(left),
+							stack.getInt(right));
+				} else {
+					result = compare(operands[i + 2], stack.getReal(left),
+							stack.getReal(right));
+				}
+				return result ? i + 4 : operands[i + 3];
 			}
 		}
 
-		System.err.println("Program failed to execute a termination"
-				+ " instruction (JMP 0 0).");
-		return ExitStatus.ABNORMAL;
+		loadValue(levels[i], operands[i]);
+		return i + 1;
 	}
 
 	/**
-	 * Perform the operation referenced by an <code>OPR</code> instruction. This
-	 * method is provided separately to {@link PAL#execute <code>execute</code>}
-	 * to avoid placing the rather lengthy <code>switch</code> statement in that
-	 * method.
-	 * 
-	 * @param currInst
-	 *            The current <code>Code</code> object to be executed. If it
-	 *            reaches here, that object contains an <code>OPR</code>
-	 *            mnemonic.
-	 */
-	public ExitStatus doOperation(Code currInst) {
-		Object o = currInst.getSecond();
-		int opr;
-		if (!(o instanceof Integer)) {
-			error(currInst, "Argument to OPR must be an integer.");
-			return ExitStatus.ABNORMAL;
+	 * <code>LCI; STO</code>: store an integer constant. If the sequence would
+	 * not complete as written, only the <code>LCI</code> is executed, leaving
+	 * the <code>STO</code> to report any error.
+	 *
+	 * @param i
+	 *            The index of the first instruction.
+	 * @return The zero-based address to continue at.
+	 */
+	int storeConstant(int i) {
+		final TaggedDataStack stack = dataStack;
+		final int[] operands = code.operands;
+
+		int to = address(code.levels[i + 1], operands[i + 1]);
+		if (valid(to) && stack.tryReserve(1)) {
+			stack.setInt(to, operands[i]);
+			return i + 2;
 		}
-		opr = ((Integer) o).intValue();
-		if (opr < 0 || opr > 31) {
-			error(currInst, "Argument to OPR must be in range 0-31.");
-			return ExitStatus.ABNORMAL;
+
+		loadInt(operands[i]);
+		return i + 1;
+	}
+
+	/**
+	 * Computes the address of a stack location for a superinstruction, which
+	 * falls back to its first instruction on any error, without throwing.
+	 *
+	 * @param level
+	 *            The level difference.
+	 * @param offset
+	 *            The offset into the target frame.
+	 * @return The address, or -1 if there is no such location.
+	 */
+	private int address(int level, int offset) {
+		try {
+			return dataStack.getAddress(level, offset);
+		} catch (IndexOutOfBoundsException e) {
+			return -1;
 		}
+	}
 
-		Data returnPoint, tos, ntos, dynamicLink;
+	/**
+	 * Tests whether an address is a valid location in the stack.
+	 *
+	 * @param address
+	 *            An absolute address.
+	 * @return <code>true</code> if <code>address</code> is below the top of
+	 *         the stack.
+	 */
+	private boolean valid(int address) {
+		return address >= 0 && address < dataStack.getTop();
+	}
 
-		switch (opr) {
-		case 0:
-			// Procedure return.
+	/**
+	 * <code>OPR 0 3</code> to <code>OPR 0 6</code>, where the operands are
+	 * known to be integers. If the stack is no longer {@link
+	 * TaggedDataStack#isRegular regular}, what is known can't be relied on,
+	 * and the generic operation is performed instead.
+	 *
+	 * @param i
+	 *            The index of the instruction.
+	 * @param opr
+	 *            The operation number.
+	 */
+	void intArithmetic(int i, int opr) {
+		final TaggedDataStack stack = dataStack;
 
-			// Set program counter.
-			returnPoint = dataStack.get(0, -2);
-			pc = ((Integer) returnPoint.getValue()).intValue();
+		if (!stack.isRegular()) {
+			doOperation(i, opr);
+			return;
+		}
+		if (opr == 6 && stack.peekInt() == 0) {
+			throw abort(i, "Attempt to divide by zero.");
+		}
+		int int2 = stack.popInt();
+		int int1 = stack.popInt();
+		switch (opr) {
+		case 3:
+			stack.pushInt(int1 + int2);
+			break;
+		case 4:
+			stack.pushInt(int1 - int2);
+			break;
+		case 5:
+			stack.pushInt(int1 * int2);
+			break;
+		default:
+			stack.pushInt(int1 / int2);
+		}
+		return;
+	}
 
-			// Remember the dynamic link.
-			dynamicLink = dataStack.get(0, -3);
+	/**
+	 * <code>OPR 0 3</code> to <code>OPR 0 6</code>, where the operands are
+	 * known to be reals. See {@link #intArithmetic <code>intArithmetic</code>}.
+	 *
+	 * @param i
+	 *            The index of the instruction.
+	 * @param opr
+	 *            The operation number.
+	 */
+	void realArithmetic(int i, int opr) {
+		final TaggedDataStack stack = dataStack;
 
-			// Pop data from the stack back down to the last frame.
-			int popCount = dataStack.getTop() - dataStack.getAddress(0, -4);
+		if (!stack.isRegular()) {
+			doOperation(i, opr);
+			return;
+		}
+		if (opr == 6 && stack.peekReal() == 0) {
+			throw abort(i, "Attempt to divide by zero.");
+		}
+		float flt2 = stack.popReal();
+		float flt1 = stack.popReal();
+		switch (opr) {
+		case 3:
+			stack.pushReal(flt1 + flt2);
+			break;
+		case 4:
+			stack.pushReal(flt1 - flt2);
+			break;
+		case 5:
+			stack.pushReal(flt1 * flt2);
+			break;
+		default:
+			stack.pushReal(flt1 / flt2);
+		}
+		return;
+	}
 
-			for (int i = 0; i < popCount; i++) {
-				dataStack.pop();
-			}
+	/**
+	 * <code>OPR 0 10</code> to <code>OPR 0 15</code>, where the operands are
+	 * known to be integers. See {@link #intArithmetic
+	 * <code>intArithmetic</code>}.
+	 *
+	 * @param i
+	 *            The index of the instruction.
+	 * @param opr
+	 *            The operation number.
+	 */
+	void intComparison(int i, int opr) {
+		final TaggedDataStack stack = dataStack;
 
-			// Set the new frame base using the remembered dynamic
-			// link.
-			dataStack.setBase(((Integer) dynamicLink.getValue()).intValue());
+		if (!stack.isRegular()) {
+			doOperation(i, opr);
+			return;
+		}
+		int int2 = stack.popInt();
+		int int1 = stack.popInt();
+		stack.pushBool(compare(opr, int1, int2));
+		return;
+	}
 
-			break;
-		case 1:
-			// Function return.
+	/**
+	 * <code>OPR 0 10</code> to <code>OPR 0 15</code>, where the operands are
+	 * known to be reals. See {@link #intArithmetic
+	 * <code>intArithmetic</code>}.
+	 *
+	 * @param i
+	 *            The index of the instruction.
+	 * @param opr
+	 *            The operation number.
+	 */
+	void realComparison(int i, int opr) {
+		final TaggedDataStack stack = dataStack;
 
-			tos = dataStack.pop();
+		if (!stack.isRegular()) {
+			doOperation(i, opr);
+			return;
+		}
+		float flt2 = stack.popReal();
+		float flt1 = stack.popReal();
+		stack.pushBool(compare(opr, flt1, flt2));
+		return;
+	}
 
-			// Set program counter.
-			returnPoint = dataStack.get(0, -2);
-			pc = ((Integer) returnPoint.getValue()).intValue();
+	/**
+	 * Compares two integers, as <code>OPR 0 10</code> to <code>OPR 0 15</code>.
+	 *
+	 * @param opr
+	 *            The operation number.
+	 * @param int1
+	 *            The left operand.
+	 * @param int2
+	 *            The right operand.
+	 * @return The result of the comparison.
+	 */
+	private static boolean compare(int opr, int int1, int int2) {
+		switch (opr) {
+		case 10:
+			return int1 == int2;
+		case 11:
+			return int1 != int2;
+		case 12:
+			return int1 < int2;
+		case 13:
+			return int1 >= int2;
+		case 14:
+			return int1 > int2;
+		default:
+			return int1 <= int2;
+		}
+	}
 
-			// Remember the dynamic link.
-			dynamicLink = dataStack.get(0, -3);
+	/**
+	 * Compares two reals, as <code>OPR 0 10</code> to <code>OPR 0 15</code>.
+	 *
+	 * @param opr
+	 *            The operation number.
+	 * @param flt1
+	 *            The left operand.
+	 * @param flt2
+	 *            The right operand.
+	 * @return The result of the comparison.
+	 */
+	private static boolean compare(int opr, float flt1, float flt2) {
+		switch (opr) {
+		case 10:
+			return flt1 == flt2;
+		case 11:
+			return flt1 != flt2;
+		case 12:
+			return flt1 < flt2;
+		case 13:
+			return flt1 >= flt2;
+		case 14:
+			return flt1 > flt2;
+		default:
+			return flt1 <= flt2;
+		}
+	}
 
-			// Pop data from the stack back down to the last frame.
-			popCount = dataStack.getTop() - dataStack.getAddress(0, -4);
+	/**
+	 * Executes an instruction with malformed operands, reporting the error
+	 * recorded by the loader.
+	 *
+	 * @param i
+	 *            The index of the instruction.
+	 */
+	void illegal(int i) {
+		throw abort(i, (String) code.constants[code.operands[i]]);
+	}
 
-			for (int i = 0; i < popCount; i++) {
-				dataStack.pop();
-			}
+	/**
+	 * Executes an instruction with an unrecognised mnemonic, which is reported
+	 * and otherwise ignored.
+	 *
+	 * @param i
+	 *            The index of the instruction.
+	 */
+	void unknown(int i) {
+		output.println(code.constants[code.operands[i]]);
+		return;
+	}
 
-			// Set the new frame base using the remembered dynamic
-			// link.
-			dataStack.setBase(((Integer) dynamicLink.getValue()).intValue());
+	/**
+	 * Called when control leaves the code store without executing a
+	 * termination instruction.
+	 *
+	 * @param pc
+	 *            The zero-based address control was transferred to.
+	 * @return The status of the machine.
+	 */
+	private ExitStatus leave(int pc) {
+		if (pc == STOPPED) {
+			return ExitStatus.ABNORMAL;
+		}
+		if (pc < 0) {
+			// As if we had tried to fetch the instruction.
+			throw new ArrayIndexOutOfBoundsException("Index " + pc
+					+ " out of bounds for length " + code.originalSize());
+		}
+		output.flush();
+		err.println("Program failed to execute a termination"
+				+ " instruction (JMP 0 0).");
+		return ExitStatus.ABNORMAL;
+	}
 
-			// Leave the return value on top of the stack.
-			dataStack.push(tos);
+	/**
+	 * Perform the operation referenced by an <code>OPR</code> instruction. This
+	 * method is provided separately to {@link PAL#execute <code>execute</code>}
+	 * to avoid placing the rather lengthy <code>switch</code> statement in that
+	 * method.
+	 * 
+	 * @param i
+	 *            The index of the current instruction in the code store. If it
+	 *            reaches here, that instruction is an <code>OPR</code>.
+	 * @param opr
+	 *            The operation number, already checked by the loader to be in
+	 *            the range 2-31. (Returns are decoded separately.)
+	 */
+	void doOperation(int i, int opr) {
+		final TaggedDataStack stack = dataStack;
+		int type;
 
-			break;
+		switch (opr) {
 		case 2:
 			// Negate the value on TOS if it is an integer or real.
 
-			tos = dataStack.peek();
-			if (tos.getType() == Data.INT) {
-				int oldValue = ((Integer) tos.getValue()).intValue();
-				tos.setValue(new Integer(-oldValue));
-			} else if (tos.getType() == Data.REAL) {
-				float oldValue = ((Float) tos.getValue()).floatValue();
-				tos.setValue(new Float(-oldValue));
+			type = stack.peekType();
+			if (type == Data.INT) {
+				stack.pushInt(-stack.popInt());
+			} else if (type == Data.REAL) {
+				stack.pushReal(-stack.popReal());
 			} else {
-				error(currInst, "Cannot negate boolean, string or UNDEF value.");
-				return ExitStatus.ABNORMAL;
+				throw abort(i, "Cannot negate boolean, string or UNDEF value.");
 			}
 			break;
 		case 3:
@@ -669,78 +1963,54 @@ public class PAL {
 			// add/subtract/multiply/divide them (depending on the
 			// opcode) and push result onto TOS.
 
-			tos = dataStack.pop();
-			ntos = dataStack.pop();
-			if (ntos.getType() != tos.getType()) {
-				dataStack.push(ntos);
-				dataStack.push(tos);
-				error(currInst, "Values for arithmetic operations must be"
+			type = stack.peekType(0);
+			if (stack.peekType(1) != type) {
+				throw abort(i, "Values for arithmetic operations must be"
 						+ " of same type.");
-				return ExitStatus.ABNORMAL;
 			} else {
-				int type = tos.getType();
 				if (type != Data.INT && type != Data.REAL) {
-					dataStack.push(ntos);
-					dataStack.push(tos);
-					error(currInst, "Values for arithmetic operations must be"
+					throw abort(i, "Values for arithmetic operations must be"
 							+ " of type integer or real.");
-					return ExitStatus.ABNORMAL;
 				}
 				if (type == Data.INT) {
-					int int1 = ((Integer) ntos.getValue()).intValue();
-					int int2 = ((Integer) tos.getValue()).intValue();
+					if (opr == 6 && stack.peekInt() == 0) {
+						throw abort(i, "Attempt to divide by zero.");
+					}
+					int int2 = stack.popInt();
+					int int1 = stack.popInt();
 					switch (opr) {
 					case 3:
-						dataStack.push(new Data(Data.INT, new Integer(int1
-								+ int2)));
+						stack.pushInt(int1 + int2);
 						break;
 					case 4:
-						dataStack.push(new Data(Data.INT, new Integer(int1
-								- int2)));
+						stack.pushInt(int1 - int2);
 						break;
 					case 5:
-						dataStack.push(new Data(Data.INT, new Integer(int1
-								* int2)));
+						stack.pushInt(int1 * int2);
 						break;
 					case 6:
-						if (int2 == 0) {
-							dataStack.push(ntos);
-							dataStack.push(tos);
-							error(currInst, "Attempt to divide by zero.");
-							return ExitStatus.ABNORMAL;
-						}
-
-						dataStack.push(new Data(Data.INT, new Integer(int1
-								/ int2)));
+						stack.pushInt(int1 / int2);
 						break;
 					default:
 					}
 				} else {
-					float flt1 = ((Float) ntos.getValue()).floatValue();
-					float flt2 = ((Float) tos.getValue()).floatValue();
+					if (opr == 6 && stack.peekReal() == 0) {
+						throw abort(i, "Attempt to divide by zero.");
+					}
+					float flt2 = stack.popReal();
+					float flt1 = stack.popReal();
 					switch (opr) {
 					case 3:
-						dataStack.push(new Data(Data.REAL, new Float(flt1
-								+ flt2)));
+						stack.pushReal(flt1 + flt2);
 						break;
 					case 4:
-						dataStack.push(new Data(Data.REAL, new Float(flt1
-								- flt2)));
+						stack.pushReal(flt1 - flt2);
 						break;
 					case 5:
-						dataStack.push(new Data(Data.REAL, new Float(flt1
-								* flt2)));
+						stack.pushReal(flt1 * flt2);
 						break;
 					case 6:
-						if (flt2 == 0) {
-							dataStack.push(ntos);
-							dataStack.push(tos);
-							error(currInst, "Attempt to divide by zero.");
-							return ExitStatus.ABNORMAL;
-						}
-
-						dataStack.push(new Data(Data.REAL, new Float(flt1
-								/ flt2)));
+						stack.pushReal(flt1 / flt2);
 						break;
 					default:
 					}
@@ -751,60 +2021,45 @@ public class PAL {
 			// Raise the value at TOS-1 to the power of the value at
 			// TOS, pop both and push the result.
 
-			if (dataStack.peek().getType() != Data.INT) {
-				error(currInst, "Exponent must be of type integer.");
-				return ExitStatus.ABNORMAL;
+			if (stack.peekType() != Data.INT) {
+				throw abort(i, "Exponent must be of type integer.");
 			}
-			tos = dataStack.pop();
-			int exponent = ((Integer) tos.getValue()).intValue();
+			int exponent = stack.popInt();
 
-			int baseType = dataStack.peek().getType();
+			int baseType = stack.peekType();
 			if (baseType != Data.INT && baseType != Data.REAL) {
-				error(currInst, "Base must be of type integer or real.");
-				return ExitStatus.ABNORMAL;
+				throw abort(i, "Base must be of type integer or real.");
 			}
-			ntos = dataStack.pop();
 			if (baseType == Data.INT) {
-				int base = ((Integer) ntos.getValue()).intValue();
+				int base = stack.popInt();
 				int intAnswer = (int) Math.pow(base, exponent);
-				dataStack.push(new Data(Data.INT, new Integer(intAnswer)));
+				stack.pushInt(intAnswer);
 			} else {
-				float base = ((Float) ntos.getValue()).floatValue();
+				float base = stack.popReal();
 				float floatAnswer = (float) Math.pow(base, exponent);
-				dataStack.push(new Data(Data.REAL, new Float(floatAnswer)));
+				stack.pushReal(floatAnswer);
 			}
 			break;
 		case 8:
 			// String concatenation.
 
-			tos = dataStack.pop();
-			ntos = dataStack.pop();
-			if (tos.getType() != Data.STRING || ntos.getType() != Data.STRING) {
-				dataStack.push(ntos);
-				dataStack.push(tos);
-				error(currInst,
-						"Both arguments to OPR 8 must be of type string.");
-				return ExitStatus.ABNORMAL;
+			if (stack.peekType(0) != Data.STRING
+					|| stack.peekType(1) != Data.STRING) {
+				throw abort(i, "Both arguments to OPR 8 must be of type string.");
 			}
-			String sResult = (String) ntos.getValue();
-			sResult += (String) tos.getValue();
-			dataStack.push(new Data(Data.STRING, sResult));
+			CharSequence sRight = stack.popCharSequence();
+			CharSequence sLeft = stack.popCharSequence();
+			stack.pushString(ConcatString.concat(sLeft, sRight));
 			break;
 		case 9:
 			// Test if TOS is an odd integer.
 
-			if (dataStack.peek().getType() != Data.INT) {
-				error(currInst, "Argument to OPR 9 must be of type integer.");
-				return ExitStatus.ABNORMAL;
+			if (stack.peekType() != Data.INT) {
+				throw abort(i, "Argument to OPR 9 must be of type integer.");
 			} else {
-				tos = dataStack.pop();
 				// NB the % operator will give a negative for a
 				// negative number.
-				if (Math.abs(((Integer) tos.getValue()).intValue() % 2) == 1) {
-					dataStack.push(new Data(Data.BOOL, new Boolean(true)));
-				} else {
-					dataStack.push(new Data(Data.BOOL, new Boolean(false)));
-				}
+				stack.pushBool(Math.abs(stack.popInt() % 2) == 1);
 			}
 			break;
 		case 10:
@@ -816,81 +2071,60 @@ public class PAL {
 			// Pop values at TOS and TOS-1, compare them (depending on
 			// the opcode) and push result onto TOS.
 
-			tos = dataStack.pop();
-			ntos = dataStack.pop();
-
-			if (ntos.getType() != tos.getType()) {
-				dataStack.push(ntos);
-				dataStack.push(tos);
-				error(currInst, "Values for arithmetic operations must be"
+			type = stack.peekType(0);
+			if (stack.peekType(1) != type) {
+				throw abort(i, "Values for arithmetic operations must be"
 						+ " of same type.");
-				return ExitStatus.ABNORMAL;
 			} else {
-				int type = tos.getType();
 				if (type != Data.INT && type != Data.REAL) {
-					dataStack.push(ntos);
-					dataStack.push(tos);
-					error(currInst, "Values for arithmetic operations must be"
+					throw abort(i, "Values for arithmetic operations must be"
 							+ " of type integer or real.");
-					return ExitStatus.ABNORMAL;
 				}
 				if (type == Data.INT) {
-					int int1 = ((Integer) ntos.getValue()).intValue();
-					int int2 = ((Integer) tos.getValue()).intValue();
+					int int2 = stack.popInt();
+					int int1 = stack.popInt();
 					switch (opr) {
 					case 10:
-						dataStack.push(new Data(Data.BOOL, new Boolean(
-								int1 == int2)));
+						stack.pushBool(int1 == int2);
 						break;
 					case 11:
-						dataStack.push(new Data(Data.BOOL, new Boolean(
-								int1 != int2)));
+						stack.pushBool(int1 != int2);
 						break;
 					case 12:
-						dataStack.push(new Data(Data.BOOL, new Boolean(
-								int1 < int2)));
+						stack.pushBool(int1 < int2);
 						break;
 					case 13:
-						dataStack.push(new Data(Data.BOOL, new Boolean(
-								int1 >= int2)));
+						stack.pushBool(int1 >= int2);
 						break;
 					case 14:
-						dataStack.push(new Data(Data.BOOL, new Boolean(
-								int1 > int2)));
+						stack.pushBool(int1 > int2);
 						break;
 					case 15:
-						dataStack.push(new Data(Data.BOOL, new Boolean(
-								int1 <= int2)));
+						stack.pushBool(int1 <= int2);
 						break;
 					default:
 					}
 				} else {
-					float flt1 = ((Float) ntos.getValue()).floatValue();
-					float flt2 = ((Float) tos.getValue()).floatValue();
+					float flt2 = stack.popReal();
+					float flt1 = stack.popReal();
 					switch (opr) {
 					case 10:
-						dataStack.push(new Data(Data.BOOL, new Boolean(
-								flt1 == flt2)));
+						stack.pushBool(flt1 == flt2);
 						break;
 					case 11:
-						dataStack.push(new Data(Data.BOOL, new Boolean(
-								flt1 != flt2)));
+						stack.pushBool(flt1 != flt2);
 						break;
 					case 12:
-						dataStack.push(new Data(Data.BOOL, new Boolean(
-								flt1 < flt2)));
+						stack.pushBool(flt1 < flt2);
 						break;
 					case 13:
-						dataStack.push(new Data(Data.BOOL, new Boolean(
-								flt1 >= flt2)));
+						stack.pushBool(flt1 >= flt2);
 						break;
 					case 14:
-						dataStack.push(new Data(Data.BOOL, new Boolean(
-								flt1 > flt2)));
+						stack.pushBool(flt1 > flt2);
 						break;
 					case 15:
-						dataStack.push(new Data(Data.BOOL, new Boolean(
-								flt1 <= flt2)));
+						stack.pushBool(flt1 <= flt2);
 						break;
 					default:
 					}
@@ -900,206 +2134,147 @@ public class PAL {
 		case 16:
 			// Logical complement the top element of the stack.
 
-			tos = dataStack.pop();
-
-			if (tos.getType() != Data.BOOL) {
-				dataStack.push(tos);
-				error(currInst, "Top of stack must be a boolean.");
-				return ExitStatus.ABNORMAL;
+			if (stack.peekType() != Data.BOOL) {
+				throw abort(i, "Top of stack must be a boolean.");
 			}
 
-			boolean bResult = !((Boolean) tos.getValue()).booleanValue();
-			dataStack.push(new Data(Data.BOOL, new Boolean(bResult)));
+			stack.pushBool(!stack.popBool());
 			break;
 		case 17:
 			// Push boolean true on TOS.
 
-			dataStack.push(new Data(Data.BOOL, new Boolean(true)));
+			stack.pushBool(true);
 			break;
 		case 18:
 			// Push boolean false on TOS
 
-			dataStack.push(new Data(Data.BOOL, new Boolean(false)));
+			stack.pushBool(false);
 			break;
 		case 19:
 			// Test for EOF.
 
 			try {
-				int nextByte = pushBack.read();
-				if (nextByte == -1) {
-					dataStack.push(new Data(Data.BOOL, new Boolean(true)));
-				} else {
-					dataStack.push(new Data(Data.BOOL, new Boolean(false)));
-					pushBack.unread(nextByte);
-				}
+				output.flush();
+				stack.pushBool(input.atEOF());
 			} catch (IOException e) {
-				System.err.println(e);
+				err.println(e);
+				// Nothing was pushed.
+				stack.setIrregular();
 			}
 			break;
 		case 20:
 			// Pop value on TOS and print it.
 
-			if (dataStack.peek().getType() == Data.BOOL
-					|| dataStack.peek().getType() == Data.UNDEF) {
-				error(currInst, "OPR 20 can only print values"
+			type = stack.peekType();
+			if (type == Data.BOOL || type == Data.UNDEF) {
+				throw abort(i, "OPR 20 can only print values"
 						+ " of type integer, real or string.");
-				return ExitStatus.ABNORMAL;
+			} else if (type == Data.INT) {
+				output.print(stack.popInt());
+			} else if (type == Data.REAL) {
+				output.print(stack.popReal());
 			} else {
-				tos = dataStack.pop();
-				System.out.print(tos);
+				output.print(stack.popString());
 			}
 			break;
 		case 21:
 			// Print a newline.
 
-			System.out.println();
+			output.println();
 			break;
 		case 22:
 			// Swap the top two elements on the stack.
 
-			tos = dataStack.pop();
-			ntos = dataStack.pop();
-			dataStack.push(tos);
-			dataStack.push(ntos);
+			stack.swap();
 			break;
 		case 23:
 			// Duplicate the element at the top of the stack.
 
-			tos = dataStack.peek();
-			dataStack.push((Data) tos.clone());
+			stack.dup();
 			break;
 		case 24:
 			// Discard the element at the top of the stack.
 
-			dataStack.pop();
+			stack.drop();
 			break;
 		case 25:
 			// Convert the integer at TOS to a real.
 
-			if (dataStack.peek().getType() != Data.INT) {
-				error(currInst, "Integer to real conversion can only be"
+			if (stack.peekType() != Data.INT) {
+				throw abort(i, "Integer to real conversion can only be"
 						+ " performed on a value of type integer.");
-				return ExitStatus.ABNORMAL;
 			}
-			float fAns = ((Integer) dataStack.pop().getValue()).floatValue();
-			dataStack.push(new Data(Data.REAL, new Float(fAns)));
+			stack.pushReal((float) stack.popInt());
 			break;
 		case 26:
 			// Convert the real at TOS to an integer.
 
-			if (dataStack.peek().getType() != Data.REAL) {
-				error(currInst, "Real to integer conversion can only be"
+			if (stack.peekType() != Data.REAL) {
+				throw abort(i, "Real to integer conversion can only be"
 						+ " performed on a value of type real.");
-				return ExitStatus.ABNORMAL;
 			}
-			int iResult = ((Float) dataStack.pop().getValue()).intValue();
-			dataStack.push(new Data(Data.INT, new Integer(iResult)));
+			stack.pushInt((int) stack.popReal());
 			break;
 		case 27:
 			// Convert the integer at TOS to a string.
 
-			if (dataStack.peek().getType() != Data.INT) {
-				error(currInst, "Integer to string conversion can only be"
+			if (stack.peekType() != Data.INT) {
+				throw abort(i, "Integer to string conversion can only be"
 						+ " performed on a value of type integer.");
-				return ExitStatus.ABNORMAL;
 			}
-			dataStack.push(new Data(Data.STRING, dataStack.pop().getValue()
-					.toString()));
+			stack.pushString(Integer.toString(stack.popInt()));
 			break;
 		case 28:
 			// Convert the real at TOS to a string.
 
-			if (dataStack.peek().getType() != Data.REAL) {
-				error(currInst, "Real to string conversion can only be"
+			if (stack.peekType() != Data.REAL) {
+				throw abort(i, "Real to string conversion can only be"
 						+ " performed on value of type real.");
-				return ExitStatus.ABNORMAL;
 			}
-			dataStack.push(new Data(Data.STRING, dataStack.pop().getValue()
-					.toString()));
+			stack.pushString(Float.toString(stack.popReal()));
 			break;
 		case 29:
 			// Logical and of two booleans.
 
-			tos = dataStack.pop();
-			ntos = dataStack.pop();
-			if (tos.getType() != Data.BOOL || ntos.getType() != Data.BOOL) {
-				dataStack.push(ntos);
-				dataStack.push(tos);
-				error(currInst, "Logical and can only be"
+			if (stack.peekType(0) != Data.BOOL
+					|| stack.peekType(1) != Data.BOOL) {
+				throw abort(i, "Logical and can only be"
 						+ " performed on values of type boolean.");
-				return ExitStatus.ABNORMAL;
 			}
-			boolean bool1 = ((Boolean) tos.getValue()).booleanValue();
-			boolean bool2 = ((Boolean) ntos.getValue()).booleanValue();
-			dataStack.push(new Data(Data.BOOL, new Boolean(bool1 && bool2)));
+			boolean bool1 = stack.popBool();
+			boolean bool2 = stack.popBool();
+			stack.pushBool(bool1 && bool2);
 			break;
 		case 30:
 			// Logical or of two booleans.
 
-			tos = dataStack.pop();
-			ntos = dataStack.pop();
-			if (tos.getType() != Data.BOOL || ntos.getType() != Data.BOOL) {
-				dataStack.push(ntos);
-				dataStack.push(tos);
-				error(currInst, "Logical or can only be"
+			if (stack.peekType(0) != Data.BOOL
+					|| stack.peekType(1) != Data.BOOL) {
+				throw abort(i, "Logical or can only be"
 						+ " performed on values of type boolean.");
-				return ExitStatus.ABNORMAL;
 			}
-			bool1 = ((Boolean) tos.getValue()).booleanValue();
-			bool2 = ((Boolean) ntos.getValue()).booleanValue();
-			dataStack.push(new Data(Data.BOOL, new Boolean(bool1 || bool2)));
+			bool1 = stack.popBool();
+			bool2 = stack.popBool();
+			stack.pushBool(bool1 || bool2);
 			break;
 		case 31:
 			// Test whether the current exception code is the same as
 			// the integer on TOS.
 
-			tos = dataStack.pop();
-			if (tos.getType() != Data.INT) {
-				dataStack.push(tos);
-				error(currInst, "OPR 0 31 expects an integer value"
+			if (stack.peekType() != Data.INT) {
+				throw abort(i, "OPR 0 31 expects an integer value"
 						+ "on top of the stack.");
-				return ExitStatus.ABNORMAL;
 			}
 
-			int testValue = ((Integer) tos.getValue()).intValue();
+			int testValue = stack.popInt();
 			boolean pushValue = testValue == currentException;
 
-			dataStack.push(new Data(Data.BOOL, new Boolean(pushValue)));
+			stack.pushBool(pushValue);
 			break;
 		default:
-			System.out.println("OPR " + opr + ": not implemented.");
-		}
-		return ExitStatus.NORMAL;
-	}
-
-	/**
-	 * Make an <code>Object</code> from a <code>String</code>. Because the type
-	 * of the third field in a single instruction is not pre-defined, we need to
-	 * be able to expect an <code>int</code>, a <code>float</code> or a
-	 * <code>String</code>. To simplify the storage, we handle each of them as
-	 * an <code>Object</code> anyway, so <code>int</code>s and
-	 * <code>float</code>s are wrapped by <code>Integer</code> and
-	 * <code>Float</code> respectively.
-	 * 
-	 * @param input
-	 *            A <code>String</code>.
-	 * @return An <code>Object</code> which is either a <code>String,</code>
-	 *         <code>Integer</code> or <code>Float</code>.
-	 */
-	private Object makeObject(String input) {
-		// We are expecting an integer, real or string.
-		Object output;
-		try {
-			output = new Integer(input);
-			return output;
-		} catch (NumberFormatException e1) {
-			try {
-				output = new Float(input);
-				return output;
-			} catch (NumberFormatException e2) {
-				return input;
-			}
+			output.println("OPR " + opr + ": not implemented.");
 		}
+		return;
 	}
 
 	/**
@@ -1111,79 +2286,69 @@ public class PAL {
 	 * raise. Exception 1 (Program Abort) cannot be caught, so the program just
 	 * terminates. All other exceptions are treated equally.
 	 * 
-	 * @param currInst
-	 *            The <code>Code</code> object which caused the exception. Used
+	 * @param i
+	 *            The index of the instruction which caused the exception. Used
 	 *            to add information to error messages.
+	 * @return The zero-based address of the exception handler.
+	 * @exception Abort
+	 *                if no handler can be found.
 	 */
-	private ExitStatus raiseException(Code currInst) {
+	private int raiseException(int i) throws Abort {
+		if (profile != null) {
+			profile.raised(i, currentException);
+		}
+
 		// The Program Abort signal cannot be caught.
 		if (currentException == programAbort) {
-			error(currInst, "A Program Abort signal was raised.");
-			return ExitStatus.ABNORMAL;
+			throw abort(i, "A Program Abort signal was raised.");
 		}
 
-		Data handlerLocation, dynamicLink;
-		int handlerAddress;
+		final TaggedDataStack stack = dataStack;
+		int handlerLocation, handlerAddress;
 
-		boolean moreFrames = true;
+		// Usually the stack can go straight to the frame with the nearest
+		// handler. If not, the loop below throws away one frame at a time
+		// until it finds one.
+		stack.unwindToHandler();
 
 		while (true) {
-			handlerLocation = dataStack.get(0, -1);
+			handlerLocation = stack.getAddress(0, -1);
 
-			if (handlerLocation.getType() != Data.INT) {
-				error(currInst, "Exception handler address must be an integer.");
-				return ExitStatus.ABNORMAL;
+			if (stack.getType(handlerLocation) != Data.INT) {
+				throw abort(i, "Exception handler address must be an integer.");
 			}
 
-			handlerAddress = ((Integer) handlerLocation.getValue()).intValue();
+			handlerAddress = stack.getInt(handlerLocation);
 
-			if (handlerAddress < 0 || handlerAddress > codeMem.size()) {
-				error(currInst, "Exception handler address out of code range.");
-				return ExitStatus.ABNORMAL;
+			if (handlerAddress < 0 || handlerAddress > code.originalSize()) {
+				throw abort(i, "Exception handler address out of code range.");
 			}
 
-			if (handlerAddress == 0) {
-				// An address of 0 means no handler - throw away this
-				// frame and keep searching.
-
-				// First, check if this is the lowest frame - the
-				// lowest frame's stack mark begins at address 0.
-				if (dataStack.getAddress(0, -4) == 0) {
-					moreFrames = false;
-					break;
-				}
-
-				// Remember the dynamic link.
-				dynamicLink = dataStack.get(0, -3);
+			if (handlerAddress != 0) {
+				// There is an exception handler.
+				return code.address(handlerAddress - 1);
+			}
 
-				// Pop data from the stack back down to the previous
-				// frame.
-				int pops = dataStack.getTop() - dataStack.getAddress(0, -4);
+			// An address of 0 means no handler - throw away this frame
+			// and keep searching.
 
-				for (int i = 0; i < pops; i++) {
-					dataStack.pop();
-				}
+			// First, check if this is the lowest frame - the lowest
+			// frame's stack mark begins at address 0.
+			if (stack.getAddress(0, -4) == 0) {
+				// No handler was found.
+				throw abort(i, "Exception #" + currentException
+						+ " never handled!");
+			}
 
-				// Set the new frame base using the remembered dynamic
-				// link.
-				int baseAddr = ((Integer) dynamicLink.getValue()).intValue();
-				dataStack.setBase(baseAddr);
-			} else {
-				// There is an exception handler.
-				pc = handlerAddress - 1;
+			// Remember the dynamic link.
+			int baseAddr = stack.getInt(stack.getAddress(0, -3));
 
-				// Stop throwing out frames.
-				break;
-			}
-		}
+			// Pop data from the stack back down to the previous frame.
+			stack.truncate(stack.getAddress(0, -4));
 
-		if (!moreFrames) {
-			// No handler was found.
-			error(currInst, "Exception #" + currentException
-					+ " never handled!");
-			return ExitStatus.ABNORMAL;
+			// Set the new frame base using the remembered dynamic link.
+			stack.returnTo(baseAddr);
 		}
-		return ExitStatus.NORMAL;
 	}
 
 	/**
@@ -1191,28 +2356,62 @@ public class PAL {
 	 * method announces the error, prints the offending instruction and dumps
 	 * the stack.
 	 * 
-	 * @param currInst
-	 *            The offending <code>Code</code> object.
+	 * @param i
+	 *            The index of the offending instruction in the code store.
 	 * @param s
 	 *            A context-dependent error message to be printed.
 	 */
-	private void error(Code currInst, String s) {
+	private void error(int i, String s) {
+		Code currInst = code.getCode(i);
+
+		// Anything the program has printed so far must come first.
+		output.flush();
+
 		// Ensure the error is always started on a new line.
-		System.err.println();
-		System.err.println("Runtime Error:");
-		System.err.println(filename + ":" + currInst.getLineNo() + ":" + s);
-		System.err.println(currInst);
-		System.err.println("\nStack dump:");
-		System.err.println("----------");
-		System.err.print(dataStack);
+		err.println();
+		err.println("Runtime Error:");
+		err.println(program.getName() + ":" + currInst.getLineNo() + ":" + s);
+		err.println(currInst);
+		err.println("\nStack dump:");
+		err.println("----------");
+		try {
+			if (dumpTopFrames < 0) {
+				dataStack.dump(err);
+			} else {
+				dataStack.dump(err, dumpTopFrames, dumpBottomFrames);
+			}
+		} catch (IOException e) {
+			// A PrintWriter doesn't throw them.
+		}
+		err.flush();
 		return;
 	}
 
+	/**
+	 * Report a runtime error, and return an exception to stop execution.
+	 * 
+	 * @param i
+	 *            The index of the offending instruction in the code store.
+	 * @param s
+	 *            A context-dependent error message to be printed.
+	 * @return An <code>Abort</code> for the caller to throw.
+	 * @see PAL#error
+	 */
+	private Abort abort(int i, String s) {
+		error(i, s);
+		return Abort.INSTANCE;
+	}
+
 	/**
 	 * Simple usage information.
 	 */
 	private static void usage() {
-		System.out.println("usage: java -jar PAL.jar [filename]");
+		System.out.println("usage: java -jar PAL.jar"
+				+ " [-engine interpreter|closure|bytecode] [-o objectfile]"
+				+ " [-cfg dotfile] [-codesize n] [-datasize n] [-stats] [-verify]"
+				+ " [-profile name] [-batch] [-outdir dir] [-threads n]"
+				+ " [-snapshot file] [-restore file] [-stackdump top[,bottom]]"
+				+ " [-tailcalls] [-optimise] [filename]");
 		return;
 	}
 }
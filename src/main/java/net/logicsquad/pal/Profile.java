@@ -0,0 +1,252 @@
+package net.logicsquad.pal;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An execution profile of a program, as recorded by
+ * {@link PAL#execute(Profile) <code>execute(Profile)</code>}: the number of
+ * times each instruction was executed, and the exceptions raised. The
+ * histograms of mnemonics and <code>OPR</code> numbers, and the number of
+ * calls to each procedure, are derived from the instruction counts when the
+ * profile is reported.
+ *
+ * <p>
+ * Everything is reported against the line numbers of the source file, either
+ * as JSON by {@link #writeJson <code>writeJson</code>}, or as an annotated
+ * listing of the source by {@link #writeListing <code>writeListing</code>}.
+ * </p>
+ *
+ * @author Paul Hoadley &lt;paulh@logicsquad.net&gt;
+ */
+final class Profile {
+	/** The program. */
+	private final CodeStore code;
+
+	/** The number of times each instruction has been executed. */
+	final long[] counts;
+
+	/** The number of exceptions raised by each instruction. */
+	private final long[] raises;
+
+	/** The number of times each exception has been raised. */
+	private final Map<Integer, Long> exceptions = new TreeMap<Integer, Long>();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param code
+	 *            The program to be profiled.
+	 */
+	Profile(CodeStore code) {
+		this.code = code;
+		counts = new long[code.size()];
+		raises = new long[code.size()];
+		return;
+	}
+
+	/**
+	 * Records an exception.
+	 *
+	 * @param i
+	 *            The index of the instruction raising it.
+	 * @param exception
+	 *            The exception number.
+	 */
+	void raised(int i, int exception) {
+		raises[i]++;
+		exceptions.merge(exception, 1L, Long::sum);
+		return;
+	}
+
+	/**
+	 * Writes the profile as a JSON object, with these members:
+	 *
+	 * <ul>
+	 * <li><code>executed</code>: the total number of instructions executed;</li>
+	 * <li><code>instructions</code>: the <code>line</code>,
+	 * <code>source</code> and execution <code>count</code> of each
+	 * instruction;</li>
+	 * <li><code>mnemonics</code>: the number of instructions executed with each
+	 * mnemonic;</li>
+	 * <li><code>operations</code>: the number of <code>OPR</code> instructions
+	 * executed with each operation number;</li>
+	 * <li><code>calls</code>: the <code>line</code> of each procedure that was
+	 * called, and the <code>count</code> of calls to it;</li>
+	 * <li><code>exceptions</code>: the total number <code>raised</code>, the
+	 * number raised of each exception number (<code>byNumber</code>), and the
+	 * <code>line</code> and <code>count</code> of each instruction that raised
+	 * any (<code>bySource</code>).</li>
+	 * </ul>
+	 *
+	 * @param out
+	 *            The destination.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	void writeJson(Appendable out) throws IOException {
+		final int size = code.size();
+		Map<String, Long> mnemonics = new TreeMap<String, Long>();
+		Map<Integer, Long> operations = new TreeMap<Integer, Long>();
+		long[] calls = new long[size];
+		long executed = 0;
+
+		for (int i = 0; i < size; i++) {
+			long count = counts[i];
+			if (count == 0) {
+				continue;
+			}
+			executed += count;
+			Code c = code.getCode(i);
+			mnemonics.merge(c.getMnemonic(), count, Long::sum);
+			if (c.getMnemonic().equals("OPR") && c.getSecond() instanceof Integer) {
+				operations.merge((Integer) c.getSecond(), count, Long::sum);
+			}
+			int target = code.operands[i];
+			if ((code.opcodes[i] == Mnemonic.CAL
+					|| code.opcodes[i] == CodeStore.TAIL_CALL) && target >= 0
+					&& target < size) {
+				calls[target] += count;
+			}
+		}
+
+		out.append("{\n  \"executed\": ").append(Long.toString(executed));
+		out.append(",\n  \"instructions\": [");
+		for (int i = 0; i < size; i++) {
+			Code c = code.getCode(i);
+			out.append(i == 0 ? "\n" : ",\n").append("    {\"line\": ")
+					.append(Integer.toString(c.getLineNo()))
+					.append(", \"source\": ").append(quote(c.toString()))
+					.append(", \"count\": ").append(Long.toString(counts[i]))
+					.append('}');
+		}
+		out.append("\n  ],\n  \"mnemonics\": {");
+		writeMembers(out, mnemonics, "    ");
+		out.append("},\n  \"operations\": {");
+		writeMembers(out, operations, "    ");
+		out.append("},\n  \"calls\": [");
+		writeLines(out, calls);
+		long raised = 0;
+		for (long count : raises) {
+			raised += count;
+		}
+		out.append("],\n  \"exceptions\": {\n    \"raised\": ")
+				.append(Long.toString(raised))
+				.append(",\n    \"byNumber\": {");
+		writeMembers(out, exceptions, "      ");
+		out.append("},\n    \"bySource\": [");
+		writeLines(out, raises);
+		out.append("]\n  }\n}\n");
+		return;
+	}
+
+	/**
+	 * Writes an annotated listing of the source, with the execution count of
+	 * each instruction before it. Lines that are not instructions, and
+	 * instructions that were never executed, have no count.
+	 *
+	 * @param out
+	 *            The destination.
+	 * @param source
+	 *            The lines of the source file, or <code>null</code> if it is
+	 *            not available, in which case the instructions are listed as
+	 *            the loader read them.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	void writeListing(Appendable out, List<String> source) throws IOException {
+		final int size = code.size();
+
+		if (source == null) {
+			for (int i = 0; i < size; i++) {
+				Code c = code.getCode(i);
+				writeListingLine(out, counts[i], c.getLineNo() + ": " + c);
+			}
+			return;
+		}
+
+		// Instructions are in line number order, but blank lines are
+		// skipped by the loader.
+		int i = 0;
+		for (int line = 1; line <= source.size(); line++) {
+			long count = 0;
+			if (i < size && code.getCode(i).getLineNo() == line) {
+				count = counts[i++];
+			}
+			writeListingLine(out, count, source.get(line - 1));
+		}
+		return;
+	}
+
+	/**
+	 * Writes a line of the listing.
+	 */
+	private static void writeListingLine(Appendable out, long count,
+			String text) throws IOException {
+		String annotation = count == 0 ? "" : Long.toString(count);
+		for (int pad = annotation.length(); pad < 12; pad++) {
+			out.append(' ');
+		}
+		out.append(annotation).append("  ").append(text).append('\n');
+		return;
+	}
+
+	/**
+	 * Writes the members of a JSON object, each on its own line.
+	 */
+	private static void writeMembers(Appendable out, Map<?, Long> members,
+			String indent) throws IOException {
+		boolean first = true;
+		for (Map.Entry<?, Long> entry : members.entrySet()) {
+			out.append(first ? "\n" : ",\n").append(indent)
+					.append(quote(entry.getKey().toString())).append(": ")
+					.append(entry.getValue().toString());
+			first = false;
+		}
+		if (!first) {
+			out.append('\n').append(indent, 0, indent.length() - 2);
+		}
+		return;
+	}
+
+	/**
+	 * Writes the line number and count of each instruction with a nonzero
+	 * count, as the elements of a JSON array.
+	 */
+	private void writeLines(Appendable out, long[] lineCounts)
+			throws IOException {
+		boolean first = true;
+		for (int i = 0; i < lineCounts.length; i++) {
+			if (lineCounts[i] == 0) {
+				continue;
+			}
+			out.append(first ? "" : ", ").append("{\"line\": ")
+					.append(Integer.toString(code.getCode(i).getLineNo()))
+					.append(", \"count\": ")
+					.append(Long.toString(lineCounts[i])).append('}');
+			first = false;
+		}
+		return;
+	}
+
+	/**
+	 * Quotes a string for JSON.
+	 */
+	private static String quote(String s) {
+		StringBuilder result = new StringBuilder(s.length() + 2);
+		result.append('"');
+		for (int k = 0; k < s.length(); k++) {
+			char c = s.charAt(k);
+			if (c == '"' || c == '\\') {
+				result.append('\\').append(c);
+			} else if (c < 0x20) {
+				result.append(String.format("\\u%04x", (int) c));
+			} else {
+				result.append(c);
+			}
+		}
+		return result.append('"').toString();
+	}
+}
@@ -0,0 +1,386 @@
+package net.logicsquad.pal;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.StringTokenizer;
+
+/**
+ * A PAL program, loaded, verified and decoded once, ready to be run by any
+ * number of {@link Machine <code>Machine</code>}s.
+ *
+ * <p>
+ * A <code>Program</code> is immutable once loaded, and may be shared freely
+ * between threads. The machines running it each have their own data stack
+ * and I/O streams, and share only the decoded code, and the translated forms
+ * of it used by the {@link PAL.Engine#CLOSURE <code>CLOSURE</code>} and
+ * {@link PAL.Engine#BYTECODE <code>BYTECODE</code>} engines, each of which is
+ * made the first time it is needed.
+ * </p>
+ *
+ * @author Paul Hoadley &lt;paulh@logicsquad.net&gt;
+ */
+public final class Program {
+	/** The name used in runtime error messages when none is given. */
+	static final String DEFAULT_NAME = "CODE";
+
+	/** The name of the program, used in runtime error messages. */
+	private final String name;
+
+	/** The decoded instructions. */
+	final CodeStore code;
+
+	/**
+	 * The instructions as loaded, which differ from {@link #code} if the
+	 * program has been {@link #optimise optimised}.
+	 */
+	private final CodeStore loaded;
+
+	/** Whether {@link #compiled} has been set yet. */
+	private boolean compileAttempted;
+
+	/**
+	 * The compiled program, or <code>null</code> if it could not be
+	 * compiled.
+	 */
+	private Compiler.Compiled compiled;
+
+	/**
+	 * The program translated into handler objects, or <code>null</code> until
+	 * it is first needed.
+	 */
+	private Closures closures;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param name
+	 *            The name of the program.
+	 * @param code
+	 *            The decoded instructions.
+	 */
+	private Program(String name, CodeStore code) {
+		this(name, code, code);
+		return;
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param name
+	 *            The name of the program.
+	 * @param code
+	 *            The decoded instructions to run.
+	 * @param loaded
+	 *            The instructions as loaded.
+	 */
+	private Program(String name, CodeStore code, CodeStore loaded) {
+		this.name = name;
+		this.code = code;
+		this.loaded = loaded;
+		return;
+	}
+
+	/**
+	 * Loads a program from its source, with the default code memory limit of
+	 * {@value PAL#CODESIZE} lines. Runtime errors are reported against the
+	 * name <code>CODE</code>.
+	 *
+	 * @param source
+	 *            The program source, which is read to the end, but not
+	 *            closed.
+	 * @return The program.
+	 * @throws LoadException
+	 *             if the source does not have the prescribed form.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	public static Program load(InputStream source) throws IOException {
+		return load(source, DEFAULT_NAME, PAL.CODESIZE);
+	}
+
+	/**
+	 * Loads a program from its source. The lexical analysis of the source is
+	 * quite rigid: each non-blank line must be a mnemonic followed by two
+	 * operands, the first an integer, and the second an integer, a real, or a
+	 * string in single quotes.
+	 *
+	 * @param source
+	 *            The program source, which is read to the end, but not
+	 *            closed.
+	 * @param name
+	 *            The name of the program, used in runtime error messages.
+	 * @param codeSize
+	 *            The code memory limit, in lines, or 0 for no limit.
+	 * @return The program.
+	 * @throws LoadException
+	 *             if the source does not have the prescribed form, or exceeds
+	 *             the code memory limit.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	public static Program load(InputStream source, String name, int codeSize)
+			throws IOException {
+		// The code memory grows as required, so there is no need to
+		// allocate all of the limit up front.
+		ArrayList<Code> codeMem = new ArrayList<Code>();
+		BufferedReader br = new BufferedReader(new InputStreamReader(source));
+		int lineno = 1;
+		String line = br.readLine();
+		String mnemonic = "";
+		int first = 0;
+		Object second = null;
+		StringTokenizer st;
+
+		while (line != null) {
+			if (codeSize > 0 && lineno > codeSize) {
+				throw new LoadException("Exceeded code storage limit at line "
+						+ lineno, lineno);
+			}
+			st = new StringTokenizer(line);
+
+			// It seems reasonable to allow blank lines in the source.
+			if (!(st.hasMoreTokens())) {
+				line = br.readLine();
+				lineno++;
+				continue;
+			}
+
+			// May not come in groups of three, in which case, catch the
+			// error.
+			try {
+				mnemonic = st.nextToken();
+				first = Integer.parseInt(st.nextToken());
+				String s = st.nextToken();
+				if (s.startsWith("'")) {
+					int start = line.indexOf('\'');
+					int end = line.indexOf('\'', start + 1);
+					second = line.substring(start, end + 1);
+				} else {
+					second = makeObject(s);
+					if (second instanceof String) {
+						throw new LoadException("Unrecognised second operand"
+								+ " on line " + lineno, lineno);
+					}
+				}
+			} catch (NoSuchElementException e) {
+				throw new LoadException("Not enough tokens on line " + lineno,
+						lineno);
+			} catch (NumberFormatException e) {
+				throw new LoadException("First operand non-integer on line "
+						+ lineno, lineno);
+			}
+			codeMem.add(new Code(mnemonic, first, second, lineno));
+			line = br.readLine();
+			lineno++;
+		}
+		return new Program(name, new CodeStore(codeMem));
+	}
+
+	/**
+	 * Loads a program from an object file, with the default code memory limit
+	 * of {@value PAL#CODESIZE} lines. Runtime errors are reported against the
+	 * name of the file.
+	 *
+	 * @param objectFile
+	 *            The object file.
+	 * @return The program.
+	 * @throws LoadException
+	 *             if the program exceeds the code memory limit.
+	 * @throws IOException
+	 *             if the file cannot be read, or is not a valid object file.
+	 * @see #write
+	 */
+	public static Program read(Path objectFile) throws IOException {
+		return read(objectFile, objectFile.toString(), PAL.CODESIZE);
+	}
+
+	/**
+	 * Loads a program from an object file previously written by
+	 * {@link #write <code>write</code>}, without re-parsing the source.
+	 *
+	 * @param objectFile
+	 *            The object file.
+	 * @param name
+	 *            The name of the program, used in runtime error messages.
+	 * @param codeSize
+	 *            The code memory limit, in lines, or 0 for no limit.
+	 * @return The program.
+	 * @throws LoadException
+	 *             if the program exceeds the code memory limit.
+	 * @throws IOException
+	 *             if the file cannot be read, or is not a valid object file.
+	 * @see ObjectFile
+	 */
+	public static Program read(Path objectFile, String name, int codeSize)
+			throws IOException {
+		CodeStore code = ObjectFile.read(objectFile);
+		int size = code.size();
+		if (codeSize > 0 && size > 0
+				&& code.getCode(size - 1).getLineNo() > codeSize) {
+			throw new LoadException("Exceeded code storage limit at line "
+					+ (codeSize + 1), codeSize + 1);
+		}
+		return new Program(name, code);
+	}
+
+	/**
+	 * Returns an optimised version of this program, with operations on
+	 * constants folded, jumps to jumps shortened, and unreachable code
+	 * removed. It produces the same output, and reports runtime errors
+	 * against the same lines, but may run faster. Code addresses are
+	 * renumbered, so a program that computes a return point or exception
+	 * handler address at runtime, other than by loading it as an integer
+	 * constant, should not be optimised. A program with problems found by
+	 * the verifier is returned as it is.
+	 *
+	 * @return The optimised program.
+	 * @see Optimiser
+	 */
+	public Program optimise() {
+		if (code != loaded) {
+			// Already optimised.
+			return this;
+		}
+		CodeStore optimised = Optimiser.optimise(loaded);
+		return optimised == loaded ? this : new Program(name, optimised, loaded);
+	}
+
+	/**
+	 * Writes the program to an object file, which can later be loaded with
+	 * {@link #read(Path) <code>read</code>}. The program is written as it was
+	 * loaded, even if it has been optimised.
+	 *
+	 * @param objectFile
+	 *            The file to write.
+	 * @throws IOException
+	 *             if the file cannot be written.
+	 */
+	public void write(Path objectFile) throws IOException {
+		ObjectFile.write(loaded, objectFile);
+		return;
+	}
+
+	/**
+	 * Returns the name of the program.
+	 *
+	 * @return The name used in runtime error messages.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Returns the number of instructions in the program.
+	 *
+	 * @return The number of instructions.
+	 */
+	public int size() {
+		return code.size();
+	}
+
+	/**
+	 * Returns the problems found by the verifier when the program was loaded.
+	 * They are not fatal: each is reported at runtime if, and only if, the
+	 * offending instruction is executed.
+	 *
+	 * @return The problems, each in the form
+	 *         <code><i>line</i>:<i>message</i></code>.
+	 * @see Verifier
+	 */
+	public List<String> getProblems() {
+		return loaded.problems();
+	}
+
+	/**
+	 * Returns the program compiled to JVM bytecode, compiling it on the
+	 * first call.
+	 *
+	 * @return The compiled program, or <code>null</code> if it could not be
+	 *         compiled.
+	 */
+	synchronized Compiler.Compiled compiled() {
+		if (!compileAttempted) {
+			compiled = Compiler.compile(code);
+			compileAttempted = true;
+		}
+		return compiled;
+	}
+
+	/**
+	 * Returns the program translated into handler objects, translating it on
+	 * the first call.
+	 *
+	 * @return The translated program.
+	 */
+	synchronized Closures closures() {
+		if (closures == null) {
+			closures = Closures.build(code);
+		}
+		return closures;
+	}
+
+	/**
+	 * Make an <code>Object</code> from a <code>String</code>. Because the type
+	 * of the third field in a single instruction is not pre-defined, we need to
+	 * be able to expect an <code>int</code>, a <code>float</code> or a
+	 * <code>String</code>. To simplify the storage, we handle each of them as
+	 * an <code>Object</code> anyway, so <code>int</code>s and
+	 * <code>float</code>s are wrapped by <code>Integer</code> and
+	 * <code>Float</code> respectively.
+	 *
+	 * @param input
+	 *            A <code>String</code>.
+	 * @return An <code>Object</code> which is either a <code>String,</code>
+	 *         <code>Integer</code> or <code>Float</code>.
+	 */
+	private static Object makeObject(String input) {
+		// We are expecting an integer, real or string. Check the form of the
+		// token first, so that the common cases don't rely on a
+		// NumberFormatException to fall through to the next type.
+		if (isInteger(input)) {
+			try {
+				return Integer.valueOf(input);
+			} catch (NumberFormatException e) {
+				// Too large for an int, but still a valid real.
+			}
+		}
+		char c = input.charAt(0);
+		if (!(c == '+' || c == '-' || c == '.' || c == 'N' || c == 'I'
+				|| Character.isDigit(c))) {
+			return input;
+		}
+		try {
+			return Float.valueOf(input);
+		} catch (NumberFormatException e) {
+			return input;
+		}
+	}
+
+	/**
+	 * Tests whether a token has the form of an integer: an optional sign
+	 * followed by one or more decimal digits.
+	 *
+	 * @param s
+	 *            A non-empty <code>String</code>.
+	 * @return <code>true</code> if <code>s</code> looks like an integer.
+	 */
+	private static boolean isInteger(String s) {
+		int start = (s.charAt(0) == '+' || s.charAt(0) == '-') ? 1 : 0;
+		if (start == s.length()) {
+			return false;
+		}
+		for (int i = start; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c < '0' || c > '9') {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,223 @@
+package net.logicsquad.pal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * The complete state of a {@link Machine <code>Machine</code>} part way
+ * through running a program: its data stack, program counter, current
+ * exception, and any input it has read but not yet consumed. A snapshot is
+ * taken by {@link Machine#snapshot <code>Machine.snapshot</code>}, usually
+ * once a program has done the work it does before reading any input, and
+ * then any number of machines can be {@link #fork forked} from it to continue
+ * from that point with different input, without repeating that work.
+ *
+ * <p>
+ * A snapshot is immutable, and may be shared freely between threads. Each
+ * fork copies the slots of the data stack in use, which is no more work than
+ * the program did to fill them, and usually much less. A snapshot can also be
+ * written to a file, and read back to run with the same program later.
+ * </p>
+ *
+ * <p>
+ * A snapshot file consists of the magic number <code>PALS</code>, a 16-bit
+ * major and minor version, the number of instructions in the program and a
+ * hash of them, the program counter, the current exception, whether a line
+ * feed is to be skipped, the number of bytes of unread input followed by the
+ * bytes themselves, and the data stack. All values are big-endian.
+ * </p>
+ *
+ * @author Paul Hoadley &lt;paulh@logicsquad.net&gt;
+ */
+public final class Snapshot {
+	/** The magic number, "PALS" in ASCII. */
+	private static final int MAGIC = 0x50414c53;
+
+	/** The major version of the format. */
+	private static final int MAJOR_VERSION = 1;
+
+	/** The minor version of the format. */
+	private static final int MINOR_VERSION = 0;
+
+	/** The program. */
+	final Program program;
+
+	/** The data stack, which is never changed. */
+	final TaggedDataStack stack;
+
+	/** The zero-based address of the next instruction. */
+	final int pc;
+
+	/** The number of the present exception. */
+	final int currentException;
+
+	/** The input that had been read but not consumed. */
+	final byte[] unread;
+
+	/** Whether a line feed at the start of the input is to be skipped. */
+	final boolean skipLF;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param program
+	 *            The program.
+	 * @param stack
+	 *            The data stack, which must not be changed afterwards.
+	 * @param pc
+	 *            The zero-based address of the next instruction.
+	 * @param currentException
+	 *            The number of the present exception.
+	 * @param unread
+	 *            The input that had been read but not consumed.
+	 * @param skipLF
+	 *            Whether a line feed at the start of the input is to be
+	 *            skipped.
+	 */
+	Snapshot(Program program, TaggedDataStack stack, int pc,
+			int currentException, byte[] unread, boolean skipLF) {
+		this.program = program;
+		this.stack = stack;
+		this.pc = pc;
+		this.currentException = currentException;
+		this.unread = unread;
+		this.skipLF = skipLF;
+		return;
+	}
+
+	/**
+	 * Returns the program the snapshot is of.
+	 *
+	 * @return The program.
+	 */
+	public Program getProgram() {
+		return program;
+	}
+
+	/**
+	 * Makes a new machine in the state recorded by this snapshot. Its input
+	 * is any input the snapshot had read but not consumed, followed by
+	 * <code>in</code>. It can be run or stepped as any other machine, and
+	 * continues from where the snapshot was taken, with the same data stack
+	 * size limit.
+	 *
+	 * @param in
+	 *            The program's input.
+	 * @param out
+	 *            The program's output.
+	 * @param err
+	 *            The destination for runtime error reports.
+	 * @return The machine.
+	 */
+	public Machine fork(InputStream in, Writer out, Writer err) {
+		return new Machine(this, in, out, err);
+	}
+
+	/**
+	 * Makes a new machine in the state recorded by this snapshot, whose
+	 * input is supplied by {@link Machine#supplyInput(byte[])
+	 * <code>supplyInput</code>}.
+	 *
+	 * @param out
+	 *            The program's output.
+	 * @param err
+	 *            The destination for runtime error reports.
+	 * @return The machine.
+	 * @see #fork(InputStream, Writer, Writer)
+	 */
+	public Machine fork(Writer out, Writer err) {
+		return new Machine(this, out, err);
+	}
+
+	/**
+	 * Writes the snapshot to a file.
+	 *
+	 * @param file
+	 *            The file to write.
+	 * @throws IOException
+	 *             if the file cannot be written.
+	 */
+	public void write(Path file) throws IOException {
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(Files.newOutputStream(file)))) {
+			out.writeInt(MAGIC);
+			out.writeShort(MAJOR_VERSION);
+			out.writeShort(MINOR_VERSION);
+			out.writeInt(program.size());
+			out.writeInt(fingerprint(program.code));
+			out.writeInt(pc);
+			out.writeInt(currentException);
+			out.writeBoolean(skipLF);
+			out.writeInt(unread.length);
+			out.write(unread);
+			stack.write(out);
+		}
+		return;
+	}
+
+	/**
+	 * Reads a snapshot from a file written by {@link #write
+	 * <code>write</code>}.
+	 *
+	 * @param file
+	 *            The file to read.
+	 * @param program
+	 *            The program the snapshot was taken of.
+	 * @return The snapshot.
+	 * @throws IOException
+	 *             if the file cannot be read, is not a snapshot, or is a
+	 *             snapshot of some other program.
+	 */
+	public static Snapshot read(Path file, Program program) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+				Files.newInputStream(file)))) {
+			if (in.readInt() != MAGIC) {
+				throw new IOException(file + " is not a snapshot.");
+			}
+			int major = in.readUnsignedShort();
+			in.readUnsignedShort();
+			if (major != MAJOR_VERSION) {
+				throw new IOException(file
+						+ " is a snapshot of an unsupported version: " + major);
+			}
+			if (in.readInt() != program.size()
+					|| in.readInt() != fingerprint(program.code)) {
+				throw new IOException(file + " is not a snapshot of "
+						+ program.getName() + ".");
+			}
+			int pc = in.readInt();
+			if (pc < 0 || pc >= program.size()) {
+				throw new IOException("Invalid program counter: " + pc);
+			}
+			int currentException = in.readInt();
+			boolean skipLF = in.readBoolean();
+			int unreadLength = in.readInt();
+			if (unreadLength < 0) {
+				throw new IOException("corrupt snapshot");
+			}
+			byte[] unread = new byte[unreadLength];
+			in.readFully(unread);
+			return new Snapshot(program, TaggedDataStack.read(in), pc,
+					currentException, unread, skipLF);
+		}
+	}
+
+	/**
+	 * Returns a hash of a program's decoded instructions, so that a snapshot
+	 * is not restored with a program other than its own.
+	 */
+	private static int fingerprint(CodeStore code) {
+		int hash = Arrays.hashCode(code.opcodes);
+		hash = 31 * hash + Arrays.hashCode(code.levels);
+		hash = 31 * hash + Arrays.hashCode(code.operands);
+		return 31 * hash + Arrays.hashCode(code.constants);
+	}
+}
@@ -0,0 +1,1755 @@
+package net.logicsquad.pal;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * An implementation of the PAL data stack that stores each slot as a primitive
+ * type tag and payload, rather than as a {@link Data <code>Data</code>} object.
+ * Integers, booleans and reals (as their bit pattern) are held directly in an
+ * <code>int</code> array, with strings in a parallel reference table, so that
+ * pushing, loading and storing values allocates nothing in the steady state.
+ *
+ * <p>
+ * The addressing model is the same as {@link DataStack
+ * <code>DataStack</code>}: locations are absolute addresses, or a level
+ * difference and offset relative to the current frame base. The type tags are
+ * the constants defined in <code>Data</code>. Methods returning
+ * <code>Data</code> objects are provided for compatibility, but always return
+ * a copy of the slot's contents.
+ * </p>
+ *
+ * <p>
+ * Non-local addressing is accelerated by a <em>display</em>: an array of the
+ * frame bases on the current frame's static chain, indexed by static nesting
+ * depth, so that {@link #getAddress <code>getAddress</code>} costs a single
+ * array load rather than a walk along the static links. The display is
+ * maintained by {@link #markStack(int) <code>markStack</code>},
+ * {@link #enterFrame <code>enterFrame</code>} and {@link #returnTo
+ * <code>returnTo</code>}. If a program overwrites a static link, or frames
+ * are entered in some way the display cannot follow, it is rebuilt from the
+ * static links on each change of frame, and if even that is not possible,
+ * addressing falls back to walking the static chain.
+ * </p>
+ *
+ * @author Philip Roberts &lt;philip.roberts@gmail.com&gt;
+ * @author Paul Hoadley &lt;paulh@logicsquad.net&gt;
+ */
+public final class TaggedDataStack {
+	/** Initial number of slots allocated. */
+	private static final int INITIAL_CAPACITY = 64;
+
+	/**
+	 * A marker stored in {@link #strings} for each slot of a stack mark, which
+	 * otherwise hold integers, so that a store into one of those slots by the
+	 * program can be detected.
+	 */
+	private static final class Marker {
+	}
+
+	/** Marks the static link slot of a stack mark. */
+	private static final Object LINK = new Marker();
+
+	/** Marks the dynamic link slot of a stack mark. */
+	private static final Object DYNAMIC_LINK = new Marker();
+
+	/** Marks the return point slot of a stack mark. */
+	private static final Object RETURN_POINT = new Marker();
+
+	/** Marks the exception handler slot of a stack mark. */
+	private static final Object HANDLER = new Marker();
+
+	// Offsets into meta for a stack mark.
+
+	/** The static depth of the frame the mark is for, or -1 if not known. */
+	private static final int META_DEPTH = 0;
+
+	/** The display entry saved when the frame was entered. */
+	private static final int META_SAVED = 1;
+
+	/**
+	 * Until the frame is entered, the base of the frame that was current when
+	 * the mark was made. Afterwards, the address of the mark of the frame this
+	 * one most recently entered.
+	 */
+	private static final int META_CREATOR = 2;
+
+	/** @see #META_CREATOR */
+	private static final int META_CALLEE = 2;
+
+	/**
+	 * If the frame has an exception handler registered, the base of the next
+	 * frame down the dynamic chain that also has one, or -1 if there is none.
+	 */
+	private static final int META_NEXT_HANDLER = 3;
+
+	/** The base of the main program's frame. */
+	private static final int MAIN_BASE = 4;
+
+	/** The type tag of each slot. */
+	private byte[] tags;
+
+	/**
+	 * The payload of each slot: an integer value, a boolean (0 or 1), or the
+	 * raw bits of a real.
+	 */
+	private int[] values;
+
+	/**
+	 * The string value of each slot of type string, and <code>null</code>
+	 * otherwise.
+	 */
+	private Object[] strings;
+
+	/**
+	 * Side information about stack marks, indexed by the address of the mark.
+	 * See the <code>META_</code> constants for the meaning of each of the
+	 * mark's four entries.
+	 */
+	private int[] meta;
+
+	/** The frame bases on the current static chain, indexed by depth. */
+	private int[] display;
+
+	/** The static depth of the current frame, or -1 if not known. */
+	private int depth;
+
+	/** Whether {@link #display} describes the current static chain. */
+	private boolean displayValid;
+
+	/**
+	 * Whether the display and handler chain have been maintained
+	 * incrementally, by saving and restoring one display entry on each call
+	 * and return, since the stack was created. This requires that every frame
+	 * was entered through a mark made for it, and that the program has never
+	 * stored into a stack mark. Once this is <code>false</code>, the display
+	 * is rebuilt on each change of frame, and the handler chain is not used.
+	 */
+	private boolean incremental;
+
+	/**
+	 * The base of the nearest frame down the dynamic chain with an exception
+	 * handler registered, or -1 if there is none. Only meaningful if
+	 * {@link #incremental} is <code>true</code>.
+	 */
+	private int handlerFrame;
+
+	/**
+	 * Whether the stack has only been changed in the ways a program's static
+	 * structure describes: in particular, whether the program has never
+	 * stored into a stack mark or popped one, so that every return and
+	 * exception has gone to the place recorded for it by <code>CAL</code> or
+	 * <code>REH</code>.
+	 * Once this is <code>false</code>, facts inferred from the program text,
+	 * such as the types of values on the stack, can no longer be relied on.
+	 */
+	private boolean regular;
+
+	/** The address of the current frame's base. */
+	private int frameBase;
+
+	/** Reference to the next free space on top of the stack (TOS). */
+	private int top;
+
+	/** Maximum stack size. A value &lt;= 0 indicates no limit. */
+	private int maxSize;
+
+	/** The number of times the backing arrays have been grown. */
+	private int growthCount;
+
+	/** The total number of slots copied while growing the backing arrays. */
+	private long copiedSlots;
+
+	/** The greatest value {@link #top} has reached. */
+	private int highWaterMark;
+
+	/**
+	 * Default constructor. Assumes no limit on stack size.
+	 */
+	public TaggedDataStack() {
+		this(0);
+	}
+
+	/**
+	 * Constructor. Allows user to specify a limit on maximum size.
+	 *
+	 * @param max
+	 *            Maximum stack size.
+	 */
+	public TaggedDataStack(int max) {
+		top = 0;
+
+		tags = new byte[INITIAL_CAPACITY];
+		values = new int[INITIAL_CAPACITY];
+		strings = new Object[INITIAL_CAPACITY];
+		meta = new int[INITIAL_CAPACITY];
+		display = new int[INITIAL_CAPACITY];
+
+		// Set up mark stack part for main program activation record.
+		markStack(0, 0);
+
+		// Sets the first frame's base address. The main program is at
+		// static depth 0.
+		frameBase = top;
+		meta[META_DEPTH] = 0;
+		handlerFrame = -1;
+		display[0] = frameBase;
+		depth = 0;
+		displayValid = true;
+		incremental = true;
+		regular = true;
+
+		maxSize = (max > 0 ? max : 0);
+		return;
+	}
+
+	/**
+	 * Copy constructor. The copy has the same contents, frames, and size
+	 * limit as <code>stack</code>, and the two can then be changed
+	 * independently. Only the slots in use are copied, so copying is cheap
+	 * even if the stack was once much deeper. String values are shared, since
+	 * they are immutable.
+	 *
+	 * @param stack
+	 *            The stack to copy.
+	 */
+	TaggedDataStack(TaggedDataStack stack) {
+		int capacity = Math.max(INITIAL_CAPACITY, stack.top);
+		tags = Arrays.copyOf(stack.tags, capacity);
+		values = Arrays.copyOf(stack.values, capacity);
+		strings = Arrays.copyOf(stack.strings, capacity);
+		meta = Arrays.copyOf(stack.meta, capacity);
+		display = stack.display.clone();
+		// Anything above the top of the stack is garbage.
+		if (capacity > stack.top) {
+			Arrays.fill(strings, stack.top, capacity, null);
+		}
+
+		depth = stack.depth;
+		displayValid = stack.displayValid;
+		incremental = stack.incremental;
+		handlerFrame = stack.handlerFrame;
+		regular = stack.regular;
+		frameBase = stack.frameBase;
+		top = stack.top;
+		maxSize = stack.maxSize;
+		growthCount = stack.growthCount;
+		copiedSlots = stack.copiedSlots;
+		highWaterMark = stack.highWaterMark;
+		return;
+	}
+
+	// Kinds of string reference, as written by write.
+	private static final int NO_STRING = 0;
+	private static final int STRING = 1;
+	private static final int LINK_MARKER = 2;
+	private static final int DYNAMIC_LINK_MARKER = 3;
+	private static final int RETURN_POINT_MARKER = 4;
+	private static final int HANDLER_MARKER = 5;
+
+	/**
+	 * Writes the stack's complete state, to be read back by {@link #read
+	 * <code>read</code>}. Only the slots in use are written: first the type
+	 * tags, then the payloads, then the stack mark information, and then the
+	 * string references, each as a kind (see the <code>_MARKER</code>
+	 * constants) and for a string, its length in bytes and UTF-8 encoding.
+	 *
+	 * @param out
+	 *            The destination.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	void write(DataOutput out) throws IOException {
+		out.writeInt(maxSize);
+		out.writeInt(top);
+		out.writeInt(frameBase);
+		out.writeInt(depth);
+		out.writeInt(handlerFrame);
+		out.writeBoolean(displayValid);
+		out.writeBoolean(incremental);
+		out.writeBoolean(regular);
+		out.writeInt(growthCount);
+		out.writeLong(copiedSlots);
+		out.writeInt(highWaterMark);
+
+		out.writeInt(display.length);
+		for (int d : display) {
+			out.writeInt(d);
+		}
+		out.write(tags, 0, top);
+		for (int i = 0; i < top; i++) {
+			out.writeInt(values[i]);
+		}
+		for (int i = 0; i < top; i++) {
+			out.writeInt(meta[i]);
+		}
+		for (int i = 0; i < top; i++) {
+			Object string = strings[i];
+			if (string == null) {
+				out.writeByte(NO_STRING);
+			} else if (string == LINK) {
+				out.writeByte(LINK_MARKER);
+			} else if (string == DYNAMIC_LINK) {
+				out.writeByte(DYNAMIC_LINK_MARKER);
+			} else if (string == RETURN_POINT) {
+				out.writeByte(RETURN_POINT_MARKER);
+			} else if (string == HANDLER) {
+				out.writeByte(HANDLER_MARKER);
+			} else {
+				byte[] bytes = string.toString().getBytes(
+						StandardCharsets.UTF_8);
+				out.writeByte(STRING);
+				out.writeInt(bytes.length);
+				out.write(bytes);
+			}
+		}
+		return;
+	}
+
+	/**
+	 * Reads a stack written by {@link #write <code>write</code>}.
+	 *
+	 * @param in
+	 *            The source.
+	 * @return The stack.
+	 * @throws IOException
+	 *             if an I/O error occurs, or the data is not a stack.
+	 */
+	static TaggedDataStack read(DataInput in) throws IOException {
+		TaggedDataStack stack = new TaggedDataStack();
+		stack.maxSize = in.readInt();
+		int top = in.readInt();
+		if (top < MAIN_BASE || (stack.maxSize != 0 && top >= stack.maxSize)) {
+			throw new IOException("Invalid stack size: " + top);
+		}
+		stack.top = top;
+		stack.frameBase = in.readInt();
+		stack.depth = in.readInt();
+		stack.handlerFrame = in.readInt();
+		stack.displayValid = in.readBoolean();
+		stack.incremental = in.readBoolean();
+		stack.regular = in.readBoolean();
+		stack.growthCount = in.readInt();
+		stack.copiedSlots = in.readLong();
+		stack.highWaterMark = in.readInt();
+
+		int displayLength = in.readInt();
+		if (displayLength < 1
+				|| displayLength > Math.max(INITIAL_CAPACITY, 2 * top)) {
+			throw new IOException("Invalid display size: " + displayLength);
+		}
+		stack.display = new int[displayLength];
+		for (int d = 0; d < displayLength; d++) {
+			stack.display[d] = in.readInt();
+		}
+		int capacity = Math.max(INITIAL_CAPACITY, top);
+		stack.tags = new byte[capacity];
+		stack.values = new int[capacity];
+		stack.strings = new Object[capacity];
+		stack.meta = new int[capacity];
+		in.readFully(stack.tags, 0, top);
+		for (int i = 0; i < top; i++) {
+			stack.values[i] = in.readInt();
+		}
+		for (int i = 0; i < top; i++) {
+			stack.meta[i] = in.readInt();
+		}
+		for (int i = 0; i < top; i++) {
+			switch (in.readUnsignedByte()) {
+			case NO_STRING:
+				break;
+			case STRING:
+				int length = in.readInt();
+				if (length < 0) {
+					throw new IOException("corrupt snapshot");
+				}
+				byte[] bytes = new byte[length];
+				in.readFully(bytes);
+				stack.strings[i] = new String(bytes, StandardCharsets.UTF_8);
+				break;
+			case LINK_MARKER:
+				stack.strings[i] = LINK;
+				break;
+			case DYNAMIC_LINK_MARKER:
+				stack.strings[i] = DYNAMIC_LINK;
+				break;
+			case RETURN_POINT_MARKER:
+				stack.strings[i] = RETURN_POINT;
+				break;
+			case HANDLER_MARKER:
+				stack.strings[i] = HANDLER;
+				break;
+			default:
+				throw new IOException("Invalid string reference at " + i);
+			}
+		}
+		if (!stack.isConsistent()) {
+			throw new IOException("corrupt snapshot");
+		}
+		return stack;
+	}
+
+	/**
+	 * Checks a stack just {@link #read <code>read</code>} for values that
+	 * would otherwise make it fail later with an array index out of bounds.
+	 * Every slot must hold a valid type, with a string for a string, and
+	 * every side value must lie within the high-water mark. While the display
+	 * and handler chain are maintained incrementally, the structure they
+	 * depend on is checked too: the dynamic chain from the current frame down
+	 * to the main program's, the static depths and saved display entries of
+	 * its frames, the handler chain through them, and the static depths
+	 * recorded in any marks above the current frame.
+	 *
+	 * @return <code>true</code> if the stack could have been written by
+	 *         {@link #write <code>write</code>}.
+	 */
+	private boolean isConsistent() {
+		if (highWaterMark < top
+				|| (maxSize != 0 && highWaterMark > maxSize)
+				|| frameBase < MAIN_BASE || frameBase > top
+				|| depth < -1 || depth >= display.length) {
+			return false;
+		}
+		for (int i = 0; i < top; i++) {
+			boolean string = strings[i] instanceof String;
+			if (tags[i] < Data.INT || tags[i] > Data.UNDEF
+					|| (tags[i] == Data.STRING) != string
+					|| meta[i] < -1 || meta[i] > highWaterMark) {
+				return false;
+			}
+		}
+		if (!incremental) {
+			// Only the parts of the stack that are still trusted are
+			// used, and they are guarded against anything else.
+			return true;
+		}
+
+		if (displayValid) {
+			for (int d = 0; d <= depth; d++) {
+				if (display[d] < 0 || display[d] > top) {
+					return false;
+				}
+			}
+		}
+
+		// The dynamic chain, whose frames have all been entered.
+		boolean[] frames = new boolean[top + 1];
+		for (int base = frameBase;; base = values[base - 3]) {
+			int mark = base - 4;
+			if (strings[mark] != LINK
+					|| meta[mark + META_DEPTH] < 0
+					|| meta[mark + META_DEPTH] >= display.length
+					|| (base != frameBase && meta[mark + META_CALLEE] < base)) {
+				return false;
+			}
+			frames[base] = true;
+			if (base == MAIN_BASE) {
+				break;
+			}
+			int caller = values[base - 3];
+			if (caller < MAIN_BASE || caller >= base) {
+				return false;
+			}
+		}
+		for (int base = handlerFrame; base >= 0;) {
+			if (base > top || !frames[base]) {
+				return false;
+			}
+			int next = meta[base - 4 + META_NEXT_HANDLER];
+			if (next >= base) {
+				return false;
+			}
+			base = next;
+		}
+
+		// Marks made for frames not yet entered.
+		for (int mark = frameBase; mark + 4 <= top; mark++) {
+			if (strings[mark] == LINK
+					&& meta[mark + META_DEPTH] > mark / 4) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Ensures the backing arrays can hold at least <code>required</code>
+	 * slots, growing them geometrically if necessary. Since the capacity
+	 * doubles each time, the cost of copying is amortised to a constant per
+	 * push, however deep the stack grows. Growth never exceeds the maximum
+	 * stack size, if there is one.
+	 *
+	 * @param required
+	 *            The number of slots required.
+	 */
+	private void ensureCapacity(int required) {
+		if (required > tags.length) {
+			grow(required);
+		}
+		if (required > highWaterMark) {
+			highWaterMark = required;
+		}
+		return;
+	}
+
+	/**
+	 * Grows the backing arrays to hold at least <code>required</code> slots.
+	 * This is kept out of {@link #ensureCapacity} so that the common case is
+	 * small enough to inline.
+	 *
+	 * @param required
+	 *            The number of slots required.
+	 */
+	private void grow(int required) {
+		int capacity = (int) Math.min(Integer.MAX_VALUE - 8,
+				Math.max(required, tags.length * 2L));
+		if (maxSize != 0) {
+			capacity = Math.max(required, Math.min(capacity, maxSize));
+		}
+		growthCount++;
+		copiedSlots += tags.length;
+		tags = Arrays.copyOf(tags, capacity);
+		values = Arrays.copyOf(values, capacity);
+		strings = Arrays.copyOf(strings, capacity);
+		meta = Arrays.copyOf(meta, capacity);
+		return;
+	}
+
+	/**
+	 * Called before a store into <code>address</code>. If it holds a static
+	 * link, the display can no longer be trusted.
+	 */
+	private void storing(int address) {
+		Object string = strings[address];
+		if (string instanceof Marker) {
+			incremental = false;
+			regular = false;
+			if (string == LINK) {
+				displayValid = false;
+			}
+		}
+		return;
+	}
+
+	/**
+	 * Returns the string reference to copy from <code>address</code>, which is
+	 * that of the slot unless it is the marker for a static link.
+	 */
+	private Object copyString(int address) {
+		Object string = strings[address];
+		return string instanceof Marker ? null : string;
+	}
+
+	/**
+	 * Makes room for one more slot on top of the stack.
+	 *
+	 * @exception java.lang.OutOfMemoryError
+	 *                if there is insufficient free stack space.
+	 */
+	private void reserve() throws OutOfMemoryError {
+		if (maxSize != 0 && top + 1 >= maxSize) {
+			throw new OutOfMemoryError("PAL Stack out of memory.");
+		}
+		ensureCapacity(top + 1);
+		return;
+	}
+
+	/**
+	 * Makes room for <code>slots</code> more values on top of the stack,
+	 * exactly as that many pushes would, but without pushing anything. This
+	 * lets a superinstruction do the work of a sequence of instructions
+	 * without its intermediate pushes, failing in the same circumstances.
+	 *
+	 * @param slots
+	 *            The number of values.
+	 * @return <code>false</code> if the pushes would run out of stack space,
+	 *         in which case nothing is done.
+	 */
+	public boolean tryReserve(int slots) {
+		if (maxSize != 0 && top + slots >= maxSize) {
+			return false;
+		}
+		ensureCapacity(top + slots);
+		return true;
+	}
+
+	/**
+	 * Returns the exception thrown when popping from an empty stack.
+	 *
+	 * @return An exception to throw.
+	 */
+	private static IndexOutOfBoundsException underflow() {
+		return new IndexOutOfBoundsException(
+				"Index -1 out of bounds for length 0");
+	}
+
+	/**
+	 * Called before popping a value that is not in the current frame, which
+	 * makes the stack {@link #isRegular irregular}.
+	 *
+	 * @exception java.lang.IndexOutOfBoundsException
+	 *                if the stack is empty.
+	 */
+	private void popBelowFrame() throws IndexOutOfBoundsException {
+		if (top == 0) {
+			throw underflow();
+		}
+		regular = false;
+		return;
+	}
+
+	/**
+	 * Checks that an absolute address lies within the stack.
+	 *
+	 * @param address
+	 *            The address to check.
+	 * @exception java.lang.IndexOutOfBoundsException
+	 *                if the supplied address is out of bounds.
+	 */
+	private void check(int address) throws IndexOutOfBoundsException {
+		if (address < 0 || address >= top) {
+			throw new IndexOutOfBoundsException("PAL address out of bounds.");
+		}
+		return;
+	}
+
+	/**
+	 * Pushes a slot with the given tag, payload and string reference.
+	 */
+	private void push(int tag, int value, Object string) {
+		reserve();
+		tags[top] = (byte) tag;
+		values[top] = value;
+		strings[top] = string;
+		top++;
+		return;
+	}
+
+	/**
+	 * Pushes an integer.
+	 *
+	 * @param value
+	 *            The value to push.
+	 * @exception java.lang.OutOfMemoryError
+	 *                if there is insufficient free stack space.
+	 */
+	public void pushInt(int value) throws OutOfMemoryError {
+		push(Data.INT, value, null);
+		return;
+	}
+
+	/**
+	 * Pushes a real.
+	 *
+	 * @param value
+	 *            The value to push.
+	 * @exception java.lang.OutOfMemoryError
+	 *                if there is insufficient free stack space.
+	 */
+	public void pushReal(float value) throws OutOfMemoryError {
+		push(Data.REAL, Float.floatToRawIntBits(value), null);
+		return;
+	}
+
+	/**
+	 * Pushes a boolean.
+	 *
+	 * @param value
+	 *            The value to push.
+	 * @exception java.lang.OutOfMemoryError
+	 *                if there is insufficient free stack space.
+	 */
+	public void pushBool(boolean value) throws OutOfMemoryError {
+		push(Data.BOOL, value ? 1 : 0, null);
+		return;
+	}
+
+	/**
+	 * Pushes a string.
+	 *
+	 * @param value
+	 *            The value to push: a <code>String</code>, or the
+	 *            {@link ConcatString <code>ConcatString</code>} result of a
+	 *            concatenation.
+	 * @exception java.lang.OutOfMemoryError
+	 *                if there is insufficient free stack space.
+	 */
+	public void pushString(CharSequence value) throws OutOfMemoryError {
+		push(Data.STRING, 0, value);
+		return;
+	}
+
+	/**
+	 * Pushes an undefined value.
+	 *
+	 * @exception java.lang.OutOfMemoryError
+	 *                if there is insufficient free stack space.
+	 */
+	public void pushUndef() throws OutOfMemoryError {
+		push(Data.UNDEF, 0, null);
+		return;
+	}
+
+	/**
+	 * Pushes a copy of the value at an absolute address.
+	 *
+	 * @param address
+	 *            The address of the value to copy.
+	 * @exception java.lang.IndexOutOfBoundsException
+	 *                if the supplied address is out of bounds.
+	 * @exception java.lang.OutOfMemoryError
+	 *                if there is insufficient free stack space.
+	 */
+	public void pushCopy(int address) throws IndexOutOfBoundsException,
+			OutOfMemoryError {
+		check(address);
+		push(tags[address], values[address], copyString(address));
+		return;
+	}
+
+	/**
+	 * Put a data object onto the top of the stack.
+	 *
+	 * @param datum
+	 *            A <code>Data</code> object to be pushed onto the stack.
+	 * @exception java.lang.OutOfMemoryError
+	 *                if there is insufficient free stack space.
+	 */
+	public void push(Data datum) throws OutOfMemoryError {
+		reserve();
+		top++;
+		set(top - 1, datum);
+		return;
+	}
+
+	/**
+	 * Returns the type of the value on top of the stack.
+	 *
+	 * @return The type tag of the top element.
+	 */
+	public int peekType() {
+		return peekType(0);
+	}
+
+	/**
+	 * Returns the type of a value near the top of the stack.
+	 *
+	 * @param depth
+	 *            The number of elements below the top: 0 for the top element,
+	 *            1 for the one beneath it, and so on.
+	 * @return The type tag of that element.
+	 */
+	public int peekType(int depth) {
+		int address = top - 1 - depth;
+		if (address < 0) {
+			throw underflow();
+		}
+		return tags[address];
+	}
+
+	/**
+	 * Returns the integer on top of the stack, without removing it. The caller
+	 * is responsible for checking its type.
+	 *
+	 * @return The integer on top of the stack.
+	 */
+	public int peekInt() {
+		if (top == 0) {
+			throw underflow();
+		}
+		return values[top - 1];
+	}
+
+	/**
+	 * Returns the real on top of the stack, without removing it. The caller is
+	 * responsible for checking its type.
+	 *
+	 * @return The real on top of the stack.
+	 */
+	public float peekReal() {
+		return Float.intBitsToFloat(peekInt());
+	}
+
+	/**
+	 * Returns the boolean on top of the stack, without removing it. The caller
+	 * is responsible for checking its type.
+	 *
+	 * @return The boolean on top of the stack.
+	 */
+	public boolean peekBool() {
+		return peekInt() != 0;
+	}
+
+	/**
+	 * Discards the value on top of the stack.
+	 */
+	public void drop() {
+		if (top <= frameBase) {
+			popBelowFrame();
+		}
+		top--;
+		return;
+	}
+
+	/**
+	 * Removes and returns the integer on top of the stack. The caller is
+	 * responsible for checking its type.
+	 *
+	 * @return The integer removed from the top of the stack.
+	 */
+	public int popInt() {
+		if (top <= frameBase) {
+			popBelowFrame();
+		}
+		return values[--top];
+	}
+
+	/**
+	 * Removes and returns the real on top of the stack. The caller is
+	 * responsible for checking its type.
+	 *
+	 * @return The real removed from the top of the stack.
+	 */
+	public float popReal() {
+		return Float.intBitsToFloat(popInt());
+	}
+
+	/**
+	 * Removes and returns the boolean on top of the stack. The caller is
+	 * responsible for checking its type.
+	 *
+	 * @return The boolean removed from the top of the stack.
+	 */
+	public boolean popBool() {
+		return popInt() != 0;
+	}
+
+	/**
+	 * Removes and returns the string on top of the stack. The caller is
+	 * responsible for checking its type.
+	 *
+	 * @return The string removed from the top of the stack.
+	 */
+	public String popString() {
+		return popCharSequence().toString();
+	}
+
+	/**
+	 * Removes and returns the string on top of the stack, without flattening
+	 * the result of a concatenation. The caller is responsible for checking
+	 * its type.
+	 *
+	 * @return The string removed from the top of the stack: a
+	 *         <code>String</code> or a {@link ConcatString
+	 *         <code>ConcatString</code>}.
+	 */
+	CharSequence popCharSequence() {
+		if (top <= frameBase) {
+			popBelowFrame();
+		}
+		return (CharSequence) strings[--top];
+	}
+
+	/**
+	 * Pop the top value from the stack.
+	 *
+	 * @return A <code>Data</code> object holding a copy of the value removed
+	 *         from the top of the stack.
+	 */
+	public Data pop() {
+		if (top <= frameBase) {
+			popBelowFrame();
+		}
+		return get(--top, false);
+	}
+
+	/**
+	 * Peek at the top of the stack.
+	 *
+	 * @return A <code>Data</code> object holding a copy of the value on the
+	 *         top of the stack.
+	 */
+	public Data peek() {
+		if (top == 0) {
+			throw underflow();
+		}
+		return get(top - 1, false);
+	}
+
+	/**
+	 * Exchanges the top two values on the stack.
+	 */
+	public void swap() {
+		if (top < 2) {
+			throw underflow();
+		}
+		int a = top - 1;
+		int b = top - 2;
+		storing(a);
+		storing(b);
+		byte tag = tags[a];
+		int value = values[a];
+		Object string = strings[a];
+		tags[a] = tags[b];
+		values[a] = values[b];
+		strings[a] = strings[b];
+		tags[b] = tag;
+		values[b] = value;
+		strings[b] = string;
+		return;
+	}
+
+	/**
+	 * Pushes a copy of the value on top of the stack.
+	 *
+	 * @exception java.lang.OutOfMemoryError
+	 *                if there is insufficient free stack space.
+	 */
+	public void dup() throws OutOfMemoryError {
+		if (top == 0) {
+			throw underflow();
+		}
+		int address = top - 1;
+		push(tags[address], values[address], copyString(address));
+		return;
+	}
+
+	/**
+	 * Removes the value on top of the stack, and stores it at an absolute
+	 * address.
+	 *
+	 * @param address
+	 *            The address to store the value in.
+	 * @exception java.lang.IndexOutOfBoundsException
+	 *                if the supplied address is out of bounds once the value
+	 *                has been removed.
+	 */
+	public void popTo(int address) throws IndexOutOfBoundsException {
+		if (top <= frameBase) {
+			popBelowFrame();
+		}
+		int from = --top;
+		check(address);
+		storing(address);
+		tags[address] = tags[from];
+		values[address] = values[from];
+		strings[address] = copyString(from);
+		return;
+	}
+
+	/**
+	 * Moves the value on top of the stack down to an absolute address,
+	 * discarding everything above it. This is the data movement required by a
+	 * function return. If the address is not below the top element, the stack
+	 * is left unchanged.
+	 *
+	 * @param address
+	 *            The address the top value should occupy.
+	 */
+	public void moveTop(int address) {
+		if (top == 0) {
+			throw underflow();
+		}
+		int from = top - 1;
+		if (address < from) {
+			tags[address] = tags[from];
+			values[address] = values[from];
+			strings[address] = copyString(from);
+			top = address + 1;
+		}
+		return;
+	}
+
+	/**
+	 * Discards every value at or above an absolute address. If the address is
+	 * at or above the top of the stack, nothing is discarded.
+	 *
+	 * @param address
+	 *            The address that will become the new top of the stack.
+	 */
+	public void truncate(int address) {
+		if (address < top) {
+			top = address;
+		}
+		return;
+	}
+
+	/**
+	 * Returns the type of the value at an absolute address.
+	 *
+	 * @param address
+	 *            The absolute address for the target location.
+	 * @return The type tag of the value at that location.
+	 * @exception java.lang.IndexOutOfBoundsException
+	 *                if the supplied address is out of bounds.
+	 */
+	public int getType(int address) throws IndexOutOfBoundsException {
+		check(address);
+		return tags[address];
+	}
+
+	/**
+	 * Returns the integer at an absolute address. The caller is responsible
+	 * for checking its type.
+	 *
+	 * @param address
+	 *            The absolute address for the target location.
+	 * @return The integer at that location.
+	 * @exception java.lang.IndexOutOfBoundsException
+	 *                if the supplied address is out of bounds.
+	 */
+	public int getInt(int address) throws IndexOutOfBoundsException {
+		check(address);
+		return values[address];
+	}
+
+	/**
+	 * Returns the real at an absolute address. The caller is responsible for
+	 * checking its type.
+	 *
+	 * @param address
+	 *            The absolute address for the target location.
+	 * @return The real at that location.
+	 * @exception java.lang.IndexOutOfBoundsException
+	 *                if the supplied address is out of bounds.
+	 */
+	public float getReal(int address) throws IndexOutOfBoundsException {
+		check(address);
+		return Float.intBitsToFloat(values[address]);
+	}
+
+	/**
+	 * Stores an integer at an absolute address.
+	 *
+	 * @param address
+	 *            The absolute address for the target location.
+	 * @param value
+	 *            The value to store.
+	 * @exception java.lang.IndexOutOfBoundsException
+	 *                if the supplied address is out of bounds.
+	 */
+	public void setInt(int address, int value)
+			throws IndexOutOfBoundsException {
+		check(address);
+		storing(address);
+		tags[address] = Data.INT;
+		values[address] = value;
+		strings[address] = null;
+		return;
+	}
+
+	/**
+	 * Stores the return point in a stack mark, for a call. The stack ceases to
+	 * be {@link #isRegular regular} if the location is not the return point
+	 * slot of a mark.
+	 *
+	 * @param address
+	 *            The absolute address of the return point slot.
+	 * @param value
+	 *            The return point.
+	 * @exception java.lang.IndexOutOfBoundsException
+	 *                if the supplied address is out of bounds.
+	 */
+	public void setReturnPoint(int address, int value)
+			throws IndexOutOfBoundsException {
+		check(address);
+		if (strings[address] != RETURN_POINT) {
+			setInt(address, value);
+			regular = false;
+			return;
+		}
+		tags[address] = Data.INT;
+		values[address] = value;
+		return;
+	}
+
+	/**
+	 * Stores a real at an absolute address.
+	 *
+	 * @param address
+	 *            The absolute address for the target location.
+	 * @param value
+	 *            The value to store.
+	 * @exception java.lang.IndexOutOfBoundsException
+	 *                if the supplied address is out of bounds.
+	 */
+	public void setReal(int address, float value)
+			throws IndexOutOfBoundsException {
+		check(address);
+		storing(address);
+		tags[address] = Data.REAL;
+		values[address] = Float.floatToRawIntBits(value);
+		strings[address] = null;
+		return;
+	}
+
+	/**
+	 * Stores the contents of a <code>Data</code> object at an absolute
+	 * address.
+	 *
+	 * @param address
+	 *            The absolute address for the target location.
+	 * @param datum
+	 *            The value to store.
+	 * @exception java.lang.IndexOutOfBoundsException
+	 *                if the supplied address is out of bounds.
+	 */
+	public void set(int address, Data datum) throws IndexOutOfBoundsException {
+		check(address);
+		storing(address);
+		int type = datum.getType();
+		Object value = datum.getValue();
+		tags[address] = (byte) type;
+		strings[address] = null;
+		switch (type) {
+		case Data.INT:
+			values[address] = ((Integer) value).intValue();
+			break;
+		case Data.REAL:
+			values[address] = Float.floatToRawIntBits(((Float) value)
+					.floatValue());
+			break;
+		case Data.BOOL:
+			values[address] = ((Boolean) value).booleanValue() ? 1 : 0;
+			break;
+		case Data.STRING:
+			values[address] = 0;
+			strings[address] = value;
+			break;
+		default:
+			values[address] = 0;
+		}
+		return;
+	}
+
+	/**
+	 * Read a data location elsewhere in the stack. The location is given as an
+	 * absolute stack address.
+	 *
+	 * @param address
+	 *            The absolute address for the target location.
+	 * @return A <code>Data</code> object holding a copy of the value at the
+	 *         target location.
+	 * @exception java.lang.IndexOutOfBoundsException
+	 *                if the supplied address is out of bounds.
+	 */
+	public Data get(int address) throws IndexOutOfBoundsException {
+		return get(address, true);
+	}
+
+	/**
+	 * Returns a <code>Data</code> object holding a slot's value, which is a
+	 * shared canonical instance where there is one.
+	 */
+	private Data get(int address, boolean checked) {
+		if (checked) {
+			check(address);
+		}
+		switch (tags[address]) {
+		case Data.INT:
+			return Data.valueOf(values[address]);
+		case Data.REAL:
+			return Data.valueOf(Float.intBitsToFloat(values[address]));
+		case Data.BOOL:
+			return Data.valueOf(values[address] != 0);
+		case Data.STRING:
+			return Data.valueOf(strings[address].toString());
+		default:
+			return Data.UNDEFINED;
+		}
+	}
+
+	/**
+	 * Read a data location elsewhere in the stack. The location is given as a
+	 * level difference and offset.
+	 *
+	 * @param levelDiff
+	 *            The difference in static scope level between the current
+	 *            activation record, and the activation record of the target
+	 *            location.
+	 * @param offset
+	 *            The offset into the target stack frame.
+	 * @return A <code>Data</code> object holding a copy of the value at the
+	 *         target address.
+	 * @exception java.lang.IndexOutOfBoundsException
+	 *                if the supplied address is out of bounds.
+	 */
+	public Data get(int levelDiff, int offset) throws IndexOutOfBoundsException {
+		int address = getAddress(levelDiff, offset);
+
+		return get(address);
+	}
+
+	/**
+	 * Advance the TOS pointer by a given amount, initialising memory to type
+	 * UNDEF as we go.
+	 *
+	 * @param amount
+	 *            The number of location to advance the TOS pointer.
+	 * @exception java.lang.OutOfMemoryError
+	 *                if an attempt is made to advance the TOS pointer beyond
+	 *                the limit of the stack memory.
+	 */
+	public void incTop(int amount) throws OutOfMemoryError {
+		if ((maxSize != 0) && (amount + top > maxSize)) {
+			throw new OutOfMemoryError("PAL Stack out of memory");
+		}
+
+		if (amount > 0) {
+			ensureCapacity(top + amount);
+			Arrays.fill(tags, top, top + amount, (byte) Data.UNDEF);
+			Arrays.fill(strings, top, top + amount, null);
+			top += amount;
+		}
+		return;
+	}
+
+	/**
+	 * Mark the stack.
+	 *
+	 * @param staticLink
+	 *            A pointer to the activation record one level below the current
+	 *            level in terms of <em>lexical scope</em>.
+	 * @param dynamicLink
+	 *            A pointer to the activation record one level below the current
+	 *            level in terms of <em>dynamic scope</em>.
+	 * @exception java.lang.OutOfMemoryError
+	 *                if the TOS pointer is advanced beyond the limit of stack
+	 *                memory.
+	 */
+	public void markStack(int staticLink, int dynamicLink)
+			throws OutOfMemoryError {
+		int mark = top;
+		push(Data.INT, staticLink, LINK);
+		push(Data.INT, dynamicLink, DYNAMIC_LINK);
+
+		// Leave space for return point.
+		push(Data.INT, 0, RETURN_POINT);
+
+		// Dummy exception handler address - indicates that no handler
+		// is registered.
+		push(Data.INT, 0, HANDLER);
+
+		// Nothing is known about the frame yet.
+		meta[mark + META_DEPTH] = -1;
+		meta[mark + META_CREATOR] = -1;
+		meta[mark + META_NEXT_HANDLER] = -1;
+		return;
+	}
+
+	/**
+	 * Mark the stack for a call to a procedure or function whose enclosing
+	 * scope is <code>level</code> levels out from the current frame. This is
+	 * equivalent to {@link #markStack(int, int) <code>markStack</code>} with the
+	 * addresses of that scope's frame and the current frame, but also records
+	 * the callee's static depth for the display.
+	 *
+	 * @param level
+	 *            The level difference to the callee's enclosing scope.
+	 * @exception java.lang.IndexOutOfBoundsException
+	 *                if the level difference is invalid.
+	 * @exception java.lang.OutOfMemoryError
+	 *                if the TOS pointer is advanced beyond the limit of stack
+	 *                memory.
+	 */
+	public void markStack(int level) throws IndexOutOfBoundsException,
+			OutOfMemoryError {
+		int staticLink = getAddress(level, 0);
+		int dynamicLink = getAddress(0, 0);
+		int mark = top;
+
+		markStack(staticLink, dynamicLink);
+
+		// A negative level difference names the current frame, as for
+		// getAddress().
+		int hops = Math.max(level, 0);
+		if (displayValid && hops <= depth) {
+			meta[mark + META_DEPTH] = depth - hops + 1;
+			meta[mark + META_CREATOR] = frameBase;
+		}
+		return;
+	}
+
+	/**
+	 * Enter a new frame: the frame base becomes <code>address</code>, which
+	 * should be 4 above a stack mark made by {@link #markStack(int)
+	 * <code>markStack</code>} in the current frame.
+	 *
+	 * @param address
+	 *            The base of the new frame.
+	 */
+	public void enterFrame(int address) {
+		int mark = address - 4;
+		int caller = frameBase;
+		int calleeDepth = -1;
+
+		if (mark >= 0 && address <= top && strings[mark] == LINK
+				&& meta[mark + META_CREATOR] == caller) {
+			calleeDepth = meta[mark + META_DEPTH];
+		}
+		frameBase = address;
+
+		if (calleeDepth < 0) {
+			// We have no idea where this frame sits.
+			incremental = false;
+			displayValid = false;
+			depth = -1;
+		} else if (incremental) {
+			meta[caller - 4 + META_CALLEE] = mark;
+			ensureDisplay(calleeDepth);
+			meta[mark + META_SAVED] = display[calleeDepth];
+			display[calleeDepth] = address;
+			depth = calleeDepth;
+		} else {
+			rebuildDisplay(calleeDepth);
+		}
+		return;
+	}
+
+	/**
+	 * Enter a new frame in place of the current one, for a call immediately
+	 * followed by a return. The stack mark and <code>params</code>
+	 * parameters on top of the stack are moved down over the current frame,
+	 * and the mark's dynamic link and return point are replaced with the
+	 * current frame's, so that the callee returns straight to the current
+	 * frame's caller. The effect is that of entering the new frame, and
+	 * returning from the current one when the callee returns, but in
+	 * constant stack space.
+	 *
+	 * <p>
+	 * This is only done if nothing could still refer to the current frame:
+	 * the stack must be {@link #isRegular regular}, with the display and
+	 * handler chain maintained incrementally; the current frame must not be
+	 * the main program's, or have an exception handler registered; and the
+	 * callee must not be nested inside it. Otherwise, nothing is done, and
+	 * the caller should make an ordinary call. Whether anything holds the
+	 * address of a slot in the current frame can't be told from the stack,
+	 * where addresses are plain integers, so that is left to the caller: see
+	 * {@link TypeInference#findTailCalls
+	 * <code>TypeInference.findTailCalls</code>}.
+	 * </p>
+	 *
+	 * @param params
+	 *            The number of parameters already pushed above the stack mark
+	 *            made for the callee.
+	 * @return <code>true</code> if the new frame was entered.
+	 */
+	public boolean tailCall(int params) {
+		int mark = frameBase - 4;
+		int calleeMark = top - params - 4;
+		if (!incremental || !regular || frameBase <= MAIN_BASE
+				|| calleeMark < frameBase || strings[calleeMark] != LINK
+				|| meta[calleeMark + META_CREATOR] != frameBase
+				|| meta[calleeMark + META_DEPTH] < 0
+				|| values[mark + 3] != 0 || values[calleeMark] >= frameBase) {
+			return false;
+		}
+
+		// Return from the current frame, as returnTo() would.
+		int caller = values[mark + 1];
+		int returnPoint = values[mark + 2];
+		display[meta[mark + META_DEPTH]] = meta[mark + META_SAVED];
+		frameBase = caller;
+		depth = meta[caller - 4 + META_DEPTH];
+
+		// Move the callee's mark and parameters into its place, as if the
+		// mark had been made by the caller.
+		int slots = params + 4;
+		System.arraycopy(tags, calleeMark, tags, mark, slots);
+		System.arraycopy(values, calleeMark, values, mark, slots);
+		System.arraycopy(strings, calleeMark, strings, mark, slots);
+		System.arraycopy(meta, calleeMark, meta, mark, 4);
+		values[mark + 1] = caller;
+		values[mark + 2] = returnPoint;
+		meta[mark + META_CREATOR] = caller;
+		top = mark + slots;
+
+		enterFrame(mark + 4);
+		return true;
+	}
+
+	/**
+	 * Return from the current frame to the frame based at
+	 * <code>address</code>, usually the current frame's dynamic link. Any
+	 * data should already have been removed from the stack.
+	 *
+	 * @param address
+	 *            The base of the frame to return to.
+	 */
+	public void returnTo(int address) {
+		int mark = frameBase - 4;
+
+		if (incremental && address >= MAIN_BASE && values[mark + 1] == address) {
+			// Returning to the frame that entered this one: undo the
+			// changes made to the display and handler chain.
+			display[meta[mark + META_DEPTH]] = meta[mark + META_SAVED];
+			if (handlerFrame == frameBase) {
+				handlerFrame = meta[mark + META_NEXT_HANDLER];
+			}
+			frameBase = address;
+			depth = meta[address - 4 + META_DEPTH];
+			return;
+		}
+
+		incremental = false;
+		frameBase = address;
+		int callerMark = address - 4;
+		if (callerMark >= 0 && address <= top && strings[callerMark] == LINK
+				&& meta[callerMark + META_DEPTH] >= 0) {
+			rebuildDisplay(meta[callerMark + META_DEPTH]);
+		} else {
+			displayValid = false;
+			depth = -1;
+		}
+		return;
+	}
+
+	/**
+	 * Registers an exception handler with the current frame, by storing its
+	 * address in the frame's stack mark. A handler address of 0 indicates that
+	 * no handler is registered.
+	 *
+	 * @param handler
+	 *            The handler address.
+	 * @exception java.lang.IndexOutOfBoundsException
+	 *                if the current frame has no stack mark.
+	 */
+	public void setHandler(int handler) throws IndexOutOfBoundsException {
+		int address = frameBase - 1;
+		check(address);
+		if (!incremental) {
+			setInt(address, handler);
+			return;
+		}
+
+		// The slot keeps its marker, as this is not a store by the
+		// program.
+		values[address] = handler;
+		int mark = frameBase - 4;
+		if (handler != 0 && handlerFrame != frameBase) {
+			meta[mark + META_NEXT_HANDLER] = handlerFrame;
+			handlerFrame = frameBase;
+		} else if (handler == 0 && handlerFrame == frameBase) {
+			handlerFrame = meta[mark + META_NEXT_HANDLER];
+		}
+		return;
+	}
+
+	/**
+	 * Prepares to raise an exception, by unwinding the stack directly to the
+	 * nearest frame with an exception handler registered, or if there is none,
+	 * to the main program's frame. This has the same effect as returning from
+	 * each intervening frame in turn, but takes time independent of the number
+	 * of frames. It is only possible if the handler chain is being maintained:
+	 * otherwise, nothing is done, and the caller must search for a handler
+	 * frame by frame.
+	 *
+	 * @return <code>true</code> if the stack was unwound.
+	 */
+	public boolean unwindToHandler() {
+		if (!incremental) {
+			return false;
+		}
+		int target = handlerFrame >= 0 ? handlerFrame : MAIN_BASE;
+		if (target != frameBase) {
+			int mark = target - 4;
+			truncate(meta[mark + META_CALLEE]);
+			frameBase = target;
+			// The display entries above the target's depth are no longer
+			// needed; those below are described by its static links.
+			rebuildDisplay(meta[mark + META_DEPTH]);
+		}
+		return true;
+	}
+
+	/**
+	 * Rebuilds the display for the current frame by walking its static chain.
+	 *
+	 * @param frameDepth
+	 *            The static depth of the current frame.
+	 */
+	private void rebuildDisplay(int frameDepth) {
+		ensureDisplay(frameDepth);
+		int result = frameBase;
+		for (int d = frameDepth; d > 0; d--) {
+			display[d] = result;
+			int link = result - 4;
+			if (link < 0 || link >= top) {
+				// The chain is broken, so getAddress() must find out
+				// where, if ever asked.
+				displayValid = false;
+				depth = -1;
+				return;
+			}
+			result = values[link];
+		}
+		display[0] = result;
+		depth = frameDepth;
+		displayValid = true;
+		return;
+	}
+
+	/**
+	 * Ensures the display has an entry for static depth <code>d</code>.
+	 */
+	private void ensureDisplay(int d) {
+		if (d >= display.length) {
+			display = Arrays.copyOf(display, Math.max(d + 1,
+					display.length * 2));
+		}
+		return;
+	}
+
+	/**
+	 * Set the current frame's base address. Since the stack cannot tell where
+	 * the new frame sits in the static chain, non-local addressing is slower
+	 * until the next {@link #enterFrame <code>enterFrame</code>} or
+	 * {@link #returnTo <code>returnTo</code>}.
+	 *
+	 * @param address
+	 *            The address to store as the current frame base.
+	 */
+	public void setBase(int address) {
+		frameBase = address;
+		incremental = false;
+		displayValid = false;
+		depth = -1;
+		return;
+	}
+
+	/**
+	 * Get the current frame's base address.
+	 *
+	 * @return The address of the current frame base.
+	 */
+	public int getBase() {
+		return frameBase;
+	}
+
+	/**
+	 * Get the absolute address for a stack location, given the level difference
+	 * and offset.
+	 *
+	 * @param levelDiff
+	 *            The difference in static scope level between the current
+	 *            activation record, and the activation record of the target
+	 *            location.
+	 * @param offset
+	 *            The offset into the target stack frame.
+	 * @return The absolute address for the target location.
+	 * @exception java.lang.IndexOutOfBoundsException
+	 *                if the supplied level difference is invalid.
+	 */
+	public int getAddress(int levelDiff, int offset)
+			throws IndexOutOfBoundsException {
+		if (levelDiff > 0 && displayValid && levelDiff <= depth) {
+			return display[depth - levelDiff] + offset;
+		}
+
+		int result = frameBase;
+
+		for (int i = 0; i < levelDiff; i++) {
+			// Extract the static link from the stack mark.
+			result = getInt(result - 4);
+		}
+
+		result += offset;
+
+		return result;
+	}
+
+	/**
+	 * Tests whether the stack has only been changed in the ways the program's
+	 * static structure describes.
+	 *
+	 * @return <code>true</code> if the program has not stored into or popped
+	 *         a stack mark, or otherwise departed from its static structure.
+	 */
+	public boolean isRegular() {
+		return regular;
+	}
+
+	/**
+	 * Records that the stack has departed from the program's static
+	 * structure, for a reason the stack cannot detect itself.
+	 */
+	public void setIrregular() {
+		regular = false;
+		return;
+	}
+
+	/**
+	 * Get the address of the stack top.
+	 *
+	 * @return The absolute address of the top element.
+	 */
+	public int getTop() {
+		return top;
+	}
+
+	/**
+	 * Returns the number of slots currently allocated.
+	 *
+	 * @return The capacity of the backing arrays.
+	 */
+	public int getCapacity() {
+		return tags.length;
+	}
+
+	/**
+	 * Returns the number of times the backing arrays have been grown.
+	 *
+	 * @return The number of growth steps.
+	 */
+	public int getGrowthCount() {
+		return growthCount;
+	}
+
+	/**
+	 * Returns the total number of slots copied while growing the backing
+	 * arrays. Because growth is geometric, this is always less than twice the
+	 * high water mark.
+	 *
+	 * @return The number of slots copied.
+	 */
+	public long getCopiedSlots() {
+		return copiedSlots;
+	}
+
+	/**
+	 * Returns the greatest number of slots the stack has held.
+	 *
+	 * @return The high water mark.
+	 */
+	public int getHighWaterMark() {
+		return highWaterMark;
+	}
+
+	/**
+	 * Returns a <code>String</code> representation of the value at an
+	 * absolute address, as it appears in a stack dump.
+	 *
+	 * @param address
+	 *            The absolute address for the target location.
+	 * @return A <code>String</code> representation of the value.
+	 */
+	String format(int address) {
+		switch (tags[address]) {
+		case Data.INT:
+			return Integer.toString(values[address]);
+		case Data.REAL:
+			return Float.toString(Float.intBitsToFloat(values[address]));
+		case Data.BOOL:
+			return Boolean.toString(values[address] != 0);
+		case Data.STRING:
+			return strings[address].toString();
+		default:
+			return "UNDEF";
+		}
+	}
+
+	/**
+	 * Writes a dump of the stack from the uppermost element to the
+	 * lowermost, one slot per line.
+	 *
+	 * @param out
+	 *            The destination.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	void dump(Appendable out) throws IOException {
+		for (int i = top - 1; i >= 0; i--) {
+			out.append(format(i)).append('\n');
+		}
+		return;
+	}
+
+	/**
+	 * Writes a dump of the stack from the uppermost element to the
+	 * lowermost, a frame at a time, showing at most the uppermost
+	 * <code>topFrames</code> and the lowermost <code>bottomFrames</code>
+	 * frames. Each frame starts at a stack mark, and is headed by its number,
+	 * counting up from the main program's frame as 0, and the address of its
+	 * mark. Each slot of a mark is annotated with its role, unless the
+	 * program has stored into it. Any frames not shown are summarised in a
+	 * single line. This takes time proportional to the depth of the stack,
+	 * plus the size of the frames shown.
+	 *
+	 * @param out
+	 *            The destination.
+	 * @param topFrames
+	 *            The number of frames to show at the top of the stack.
+	 * @param bottomFrames
+	 *            The number of frames to show at the bottom of the stack.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	void dump(Appendable out, int topFrames, int bottomFrames)
+			throws IOException {
+		// The address at which each frame starts, from the bottom up. Slots
+		// below the lowest mark, if it has been overwritten, are a frame of
+		// their own.
+		int[] starts = new int[16];
+		int frames = 0;
+		for (int i = 0; i < top; i++) {
+			if (i == 0 || strings[i] == LINK) {
+				if (frames == starts.length) {
+					starts = Arrays.copyOf(starts, frames * 2);
+				}
+				starts[frames++] = i;
+			}
+		}
+
+		for (int k = frames - 1; k >= 0; k--) {
+			int end = k + 1 < frames ? starts[k + 1] : top;
+			if (k == frames - 1 - topFrames && k >= bottomFrames) {
+				out.append("[").append(Integer.toString(k - bottomFrames + 1))
+						.append(" frames, ")
+						.append(Integer.toString(end - starts[bottomFrames]))
+						.append(" slots omitted]\n");
+				k = bottomFrames;
+				continue;
+			}
+			int start = starts[k];
+			out.append("[frame ").append(Integer.toString(k));
+			if (strings[start] == LINK) {
+				out.append(": mark at ").append(Integer.toString(start));
+			}
+			out.append("]\n");
+			for (int i = end - 1; i >= start; i--) {
+				out.append(format(i));
+				Object string = strings[i];
+				if (string == LINK) {
+					out.append("\t<- static link");
+				} else if (string == DYNAMIC_LINK) {
+					out.append("\t<- dynamic link");
+				} else if (string == RETURN_POINT) {
+					out.append("\t<- return point");
+				} else if (string == HANDLER) {
+					out.append("\t<- handler");
+				}
+				out.append('\n');
+			}
+		}
+		return;
+	}
+
+	/**
+	 * Returns a <code>String</code> representation of the object. Effectively,
+	 * this is a dump of the stack from the uppermost element to the lowermost.
+	 *
+	 * @return A <code>String</code> representation of the object.
+	 */
+	public String toString() {
+		StringBuilder result = new StringBuilder();
+		try {
+			dump(result);
+		} catch (IOException e) {
+			// A StringBuilder doesn't throw them.
+		}
+		return result.toString();
+	}
+}
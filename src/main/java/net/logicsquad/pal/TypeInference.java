@@ -0,0 +1,557 @@
+package net.logicsquad.pal;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Infers the types of the values in each stack frame at each instruction of a
+ * program, by dataflow analysis over its
+ * {@link ControlFlowGraph <code>ControlFlowGraph</code>}, and replaces
+ * arithmetic (<code>OPR 0 3</code> to <code>6</code>) and comparisons
+ * (<code>OPR 0 10</code> to <code>15</code>) whose operands are known to be
+ * two integers or two reals with type-specialised opcodes. These skip the
+ * tag checks of the generic operation.
+ *
+ * <p>
+ * The state at an instruction is the type of each slot from the base of the
+ * current frame to the top of the stack, or unknown. Frames are entered at
+ * the start of the program, where the frame is empty, and at the destination
+ * of each <code>CAL</code>, where it holds the parameters, whose types are
+ * unknown. Nothing is known on entry to an exception handler. After a
+ * <code>CAL</code>, the frame is as it was before the stack mark, with the
+ * result of a function call on top, and the types of its variables survive
+ * the call unless some instruction in the program could store into another
+ * frame.
+ * </p>
+ *
+ * <p>
+ * This relies on returns and exceptions going where <code>CAL</code> and
+ * <code>REH</code> said they would, which is true unless the program stores
+ * into, or pops, a stack mark. The data stack detects that, and a
+ * specialised opcode then falls back to the generic operation: see
+ * {@link TaggedDataStack#isRegular()}.
+ * </p>
+ *
+ * @author Paul Hoadley &lt;paulh@logicsquad.net&gt;
+ */
+final class TypeInference {
+	/** The type of a slot whose type is not known. */
+	private static final int ANY = -1;
+
+	/** The state of an instruction at which nothing is known. */
+	private static final int[] UNKNOWN = new int[0];
+
+	/** The program. */
+	private final CodeStore code;
+
+	/** Its blocks and procedures. */
+	private final ControlFlowGraph graph;
+
+	/** The number of instructions. */
+	private final int size;
+
+	/**
+	 * The state before each instruction: <code>null</code> if not (yet)
+	 * reached, {@link #UNKNOWN}, or the type of each slot in the frame.
+	 */
+	private final int[][] states;
+
+	/** Instructions whose state has changed since they were last visited. */
+	private final BitSet work;
+
+	/**
+	 * Whether any instruction could store into a frame other than the
+	 * current one.
+	 */
+	private final boolean nonLocalStores;
+
+	private TypeInference(CodeStore code, ControlFlowGraph graph) {
+		this.code = code;
+		this.graph = graph;
+		size = code.size();
+		states = new int[size][];
+		work = new BitSet(size);
+		nonLocalStores = hasNonLocalStores();
+		return;
+	}
+
+	/**
+	 * Analyses a program, and specialises what operations it can.
+	 *
+	 * @param code
+	 *            The program.
+	 * @param graph
+	 *            The {@link ControlFlowGraph#structure structure} of the
+	 *            program.
+	 * @return The number of operations specialised.
+	 */
+	static int specialise(CodeStore code, ControlFlowGraph graph) {
+		if (code.size() == 0) {
+			return 0;
+		}
+		TypeInference inference = new TypeInference(code, graph);
+		inference.analyse();
+		return inference.rewrite();
+	}
+
+	/**
+	 * Replaces each <code>CAL</code> immediately followed by a return with
+	 * {@link CodeStore#TAIL_CALL <code>TAIL_CALL</code>}, if the callee can
+	 * only return in the same way, by <code>OPR 0 0</code> or
+	 * <code>OPR 0 1</code>. The callee's return then does what the return
+	 * after the call would have done. If the callee could also return in the
+	 * other way, the call must be left as it is.
+	 *
+	 * <p>
+	 * A frame address could be saved anywhere, and would be left dangling
+	 * when the frame is replaced, so a call is also left as it is if the
+	 * procedure making it takes the address of its own frame with
+	 * <code>LDA</code>, and every call is if any <code>LDA</code> takes the
+	 * address of an enclosing frame, since that could be the frame of the
+	 * procedure making it.
+	 * </p>
+	 *
+	 * @param code
+	 *            The program.
+	 * @param graph
+	 *            The {@link ControlFlowGraph#structure structure} of the
+	 *            program.
+	 * @return The number of tail calls.
+	 */
+	static int findTailCalls(CodeStore code, ControlFlowGraph graph) {
+		final int[] opcodes = code.opcodes;
+		final int[] operands = code.operands;
+		final int size = code.size();
+		BitSet addressed = null;
+		int count = 0;
+
+		for (int i = 0; i < size; i++) {
+			if (opcodes[i] == Mnemonic.LDA && code.levels[i] > 0) {
+				return 0;
+			}
+		}
+		for (int i = 0; i + 1 < size; i++) {
+			if (opcodes[i] != Mnemonic.CAL || opcodes[i + 1] != CodeStore.RETURN
+					|| operands[i] < 0 || operands[i] >= size) {
+				continue;
+			}
+			if (addressed == null) {
+				addressed = frameAddressTakers(code, graph);
+			}
+			int kind = operands[i + 1] == 0 ? ControlFlowGraph.PROCEDURE
+					: ControlFlowGraph.FUNCTION;
+			if (!addressed.get(i)
+					&& (graph.procedure(operands[i]).returns & ~kind) == 0) {
+				opcodes[i] = CodeStore.TAIL_CALL;
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Runs the analysis to a fixed point.
+	 */
+	private void analyse() {
+		final int[] levels = code.levels;
+		final int[] operands = code.operands;
+
+		// A return from the main program goes back to the start.
+		merge(0, returnKinds(0) == 0 ? new int[0] : UNKNOWN);
+		for (int i = 0; i < size; i++) {
+			int opcode = graph.opcode(i);
+			if (opcode == Mnemonic.CAL && inCode(operands[i])) {
+				merge(operands[i], slots(levels[i]));
+			} else if (opcode == Mnemonic.REH && operands[i] > 0
+					&& operands[i] <= size) {
+				merge(operands[i] - 1, UNKNOWN);
+			}
+		}
+
+		for (int i = work.nextSetBit(0); i >= 0; i = work.nextSetBit(0)) {
+			work.clear(i);
+			flow(i, states[i]);
+		}
+		return;
+	}
+
+	/**
+	 * Replaces each operation whose operand types are known with its
+	 * specialised form.
+	 *
+	 * @return The number of operations specialised.
+	 */
+	private int rewrite() {
+		final int[] opcodes = code.opcodes;
+		final int[] operands = code.operands;
+		int count = 0;
+
+		for (int i = 0; i < size; i++) {
+			int[] state = states[i];
+			if (opcodes[i] != Mnemonic.OPR || state == null
+					|| state == UNKNOWN || state.length < 2) {
+				continue;
+			}
+			int h = state.length;
+			int type = state[h - 1];
+			if (state[h - 2] != type || (type != Data.INT && type != Data.REAL)) {
+				continue;
+			}
+			int opr = operands[i];
+			if (opr >= 3 && opr <= 6) {
+				opcodes[i] = type == Data.INT ? CodeStore.INT_ARITHMETIC
+						: CodeStore.REAL_ARITHMETIC;
+				count++;
+			} else if (opr >= 10 && opr <= 15) {
+				opcodes[i] = type == Data.INT ? CodeStore.INT_COMPARISON
+						: CodeStore.REAL_COMPARISON;
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Propagates the state before instruction <code>i</code> to its
+	 * successors.
+	 */
+	private void flow(int i, int[] in) {
+		final int opcode = graph.opcode(i);
+		final int level = code.levels[i];
+		final int operand = code.operands[i];
+		final int next = i + 1;
+
+		if (in == UNKNOWN) {
+			switch (opcode) {
+			case Mnemonic.CAL:
+				if (inCode(operand) && returnKinds(operand) != 0) {
+					merge(next, UNKNOWN);
+				}
+				break;
+			case Mnemonic.JIF:
+				merge(operand, UNKNOWN);
+				merge(next, UNKNOWN);
+				break;
+			case Mnemonic.JMP:
+				merge(operand, UNKNOWN);
+				break;
+			default:
+				if (ControlFlowGraph.fallsThrough(opcode)) {
+					merge(next, UNKNOWN);
+				}
+			}
+			return;
+		}
+
+		int h = in.length;
+		int[] out;
+		switch (opcode) {
+		case Mnemonic.CAL:
+			// The destination was seeded as an entry point by analyse().
+			if (!inCode(operand)) {
+				return;
+			}
+			int kinds = returnKinds(operand);
+			int mark = h - level - 4;
+			if (kinds == 0) {
+				// The call never returns.
+				return;
+			} else if (kinds == (ControlFlowGraph.PROCEDURE
+					| ControlFlowGraph.FUNCTION) || level < 0 || mark < 0) {
+				merge(next, UNKNOWN);
+				return;
+			}
+			boolean function = kinds == ControlFlowGraph.FUNCTION;
+			out = Arrays.copyOf(in, function ? mark + 1 : mark);
+			if (nonLocalStores) {
+				Arrays.fill(out, ANY);
+			} else if (function) {
+				out[mark] = ANY;
+			}
+			merge(next, out);
+			return;
+		case Mnemonic.INC:
+			merge(next, operand < 0 ? pop(in, -operand, 0, ANY) : push(in,
+					operand, Data.UNDEF));
+			return;
+		case Mnemonic.JIF:
+			// A destination outside the code is ignored by merge().
+			out = pop(in, 1, 0, ANY);
+			merge(operand, out);
+			merge(next, out);
+			return;
+		case Mnemonic.JMP:
+			merge(operand, in);
+			return;
+		case Mnemonic.LCI:
+		case Mnemonic.LDA:
+			merge(next, push(in, 1, Data.INT));
+			return;
+		case Mnemonic.LCR:
+			merge(next, push(in, 1, Data.REAL));
+			return;
+		case Mnemonic.LCS:
+			merge(next, push(in, 1, Data.STRING));
+			return;
+		case Mnemonic.LDU:
+			merge(next, push(in, 1, Data.UNDEF));
+			return;
+		case Mnemonic.LDV:
+			merge(next, push(in, 1, local(level, operand, h) ? in[operand]
+					: ANY));
+			return;
+		case Mnemonic.LDI:
+			merge(next, pop(in, 1, 1, ANY));
+			return;
+		case Mnemonic.MST:
+			merge(next, push(in, 4, ANY));
+			return;
+		case Mnemonic.OPR:
+			merge(next, operation(in, operand));
+			return;
+		case Mnemonic.RDI:
+		case Mnemonic.RDR:
+			out = in;
+			if (local(level, operand, h)) {
+				out = in.clone();
+				out[operand] = opcode == Mnemonic.RDI ? Data.INT : Data.REAL;
+			}
+			merge(next, out);
+			return;
+		case Mnemonic.STI:
+			out = pop(in, 2, 0, ANY);
+			if (out != UNKNOWN) {
+				// It could have stored anywhere in the frame.
+				Arrays.fill(out, ANY);
+			}
+			merge(next, out);
+			return;
+		case Mnemonic.STO:
+			out = pop(in, 1, 0, ANY);
+			if (out != UNKNOWN && local(level, operand, h - 1)) {
+				out[operand] = in[h - 1];
+			}
+			merge(next, out);
+			return;
+		default:
+			// REH and unknown mnemonics don't change the stack; everything
+			// else transfers control elsewhere or stops.
+			if (ControlFlowGraph.fallsThrough(opcode)) {
+				merge(next, in);
+			}
+		}
+		return;
+	}
+
+	/**
+	 * Computes the state after an <code>OPR</code> other than a return. The
+	 * number of values it pops and pushes is given by
+	 * {@link ControlFlowGraph#pops <code>ControlFlowGraph.pops</code>} and
+	 * {@link ControlFlowGraph#pushes <code>pushes</code>}.
+	 */
+	private static int[] operation(int[] in, int opr) {
+		int h = in.length;
+		int top = h > 0 ? in[h - 1] : ANY;
+		int second = h > 1 ? in[h - 2] : ANY;
+		boolean numeric = top == Data.INT || top == Data.REAL;
+		int pops = ControlFlowGraph.pops(opr);
+		int type;
+
+		switch (opr) {
+		case 2:
+			type = numeric ? top : ANY;
+			break;
+		case 3:
+		case 4:
+		case 5:
+		case 6:
+			type = numeric && second == top ? top : ANY;
+			break;
+		case 7:
+			type = second == Data.INT || second == Data.REAL ? second : ANY;
+			break;
+		case 8:
+		case 27:
+		case 28:
+			type = Data.STRING;
+			break;
+		case 22:
+			if (h < 2) {
+				return UNKNOWN;
+			}
+			int[] out = in.clone();
+			out[h - 1] = second;
+			out[h - 2] = top;
+			return out;
+		case 23:
+			type = top;
+			break;
+		case 25:
+			type = Data.REAL;
+			break;
+		case 26:
+			type = Data.INT;
+			break;
+		default:
+			// The comparisons, boolean operations and EOF tests give a
+			// boolean; the rest push nothing.
+			type = Data.BOOL;
+		}
+		if (pops < 0) {
+			return UNKNOWN;
+		}
+		return pop(in, pops, ControlFlowGraph.pushes(opr), type);
+	}
+
+	/**
+	 * Returns the state after pushing <code>n</code> values of a type.
+	 */
+	private static int[] push(int[] in, int n, int type) {
+		int h = in.length;
+		if (n <= 0) {
+			return in;
+		}
+		if (h + n > ControlFlowGraph.MAX_HEIGHT) {
+			return UNKNOWN;
+		}
+		int[] out = Arrays.copyOf(in, h + n);
+		Arrays.fill(out, h, h + n, type);
+		return out;
+	}
+
+	/**
+	 * Returns the state after popping <code>n</code> values, then pushing
+	 * <code>m</code> values of a type. Popping values below the frame leaves
+	 * nothing known.
+	 */
+	private static int[] pop(int[] in, int n, int m, int type) {
+		int h = in.length;
+		if (h < n || h - n + m > ControlFlowGraph.MAX_HEIGHT) {
+			return UNKNOWN;
+		}
+		int[] out = Arrays.copyOf(in, h - n + m);
+		Arrays.fill(out, h - n, h - n + m, type);
+		return out;
+	}
+
+	/**
+	 * Returns the state on entry to a procedure with <code>params</code>
+	 * parameters.
+	 */
+	private static int[] slots(int params) {
+		if (params < 0 || params > ControlFlowGraph.MAX_HEIGHT) {
+			return UNKNOWN;
+		}
+		int[] out = new int[params];
+		Arrays.fill(out, ANY);
+		return out;
+	}
+
+	/**
+	 * Tests whether a level and offset name a slot below height
+	 * <code>h</code> in the current frame. A negative level difference also
+	 * names the current frame.
+	 */
+	private static boolean local(int level, int offset, int h) {
+		return level <= 0 && offset >= 0 && offset < h;
+	}
+
+	/**
+	 * Merges a state into that of instruction <code>i</code>, and queues the
+	 * instruction if its state changes.
+	 */
+	private void merge(int i, int[] state) {
+		if (!inCode(i)) {
+			return;
+		}
+		int[] old = states[i];
+		int[] merged;
+		if (old == null) {
+			merged = state;
+		} else if (old == UNKNOWN) {
+			return;
+		} else if (state == UNKNOWN || state.length != old.length) {
+			merged = UNKNOWN;
+		} else {
+			merged = null;
+			for (int k = 0; k < old.length; k++) {
+				if (old[k] != ANY && old[k] != state[k]) {
+					if (merged == null) {
+						merged = old.clone();
+					}
+					merged[k] = ANY;
+				}
+			}
+			if (merged == null) {
+				return;
+			}
+		}
+		states[i] = merged;
+		work.set(i);
+		return;
+	}
+
+	/**
+	 * Returns the kinds of return (a combination of
+	 * {@link ControlFlowGraph#PROCEDURE} and
+	 * {@link ControlFlowGraph#FUNCTION}) executed in the frame of a procedure
+	 * entered at <code>entry</code>. This includes returns from its exception
+	 * handlers, but not from the procedures it calls.
+	 */
+	private int returnKinds(int entry) {
+		return graph.procedure(entry).returns;
+	}
+
+	/**
+	 * Returns the instructions in the body of any procedure (or the main
+	 * program) that takes the address of a slot in its own frame, with an
+	 * <code>LDA</code> whose level difference is not positive.
+	 */
+	private static BitSet frameAddressTakers(CodeStore code,
+			ControlFlowGraph graph) {
+		BitSet result = new BitSet(code.size());
+
+		for (ControlFlowGraph.Procedure procedure : graph.procedures()) {
+			BitSet body = graph.body(procedure);
+			for (int i = body.nextSetBit(0); i >= 0; i = body.nextSetBit(i + 1)) {
+				if (code.opcodes[i] == Mnemonic.LDA && code.levels[i] <= 0) {
+					result.or(body);
+					break;
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Tests whether any instruction could store into a frame other than the
+	 * current one: a <code>STO</code>, <code>RDI</code> or <code>RDR</code>
+	 * with a positive level difference, or a negative offset (which reaches
+	 * below the frame base, into the stack mark or the caller's frame), or
+	 * any <code>STI</code>.
+	 */
+	private boolean hasNonLocalStores() {
+		for (int i = 0; i < size; i++) {
+			switch (code.opcodes[i]) {
+			case Mnemonic.STO:
+			case Mnemonic.RDI:
+			case Mnemonic.RDR:
+				if (code.levels[i] > 0 || code.operands[i] < 0) {
+					return true;
+				}
+				break;
+			case Mnemonic.STI:
+				return true;
+			default:
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Tests whether an address is in the code.
+	 */
+	private boolean inCode(int address) {
+		return address >= 0 && address < size;
+	}
+}
@@ -0,0 +1,110 @@
+package net.logicsquad.pal;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks the static properties of a decoded program once, after loading, so
+ * that the execution engines can trust them. Every problem found is reported,
+ * in program order, with the line number of the offending instruction.
+ *
+ * <p>
+ * Finding a problem does not stop the program from running: as always, an
+ * error is only reported at runtime if the offending instruction is executed.
+ * To make that possible without runtime checks, the verifier rewrites a jump
+ * to a destination outside the code into a trapping instruction, which
+ * reports the error only if the jump is taken. Malformed operands and
+ * unrecognised mnemonics have already been decoded into trapping
+ * instructions by the {@link CodeStore <code>CodeStore</code>}. The checks
+ * are:
+ * </p>
+ *
+ * <ul>
+ * <li>operands are of the right kind, and <code>OPR</code> numbers are in the
+ * range 0-31;</li>
+ * <li>every mnemonic is recognised;</li>
+ * <li><code>CAL</code>, <code>JIF</code> and <code>JMP</code> destinations
+ * are inside the code;</li>
+ * <li><code>REH</code> handler addresses are inside the code, or 0.</li>
+ * </ul>
+ *
+ * @author Paul Hoadley &lt;paulh@logicsquad.net&gt;
+ */
+final class Verifier {
+	private Verifier() {
+		return;
+	}
+
+	/**
+	 * Verifies a program, rewriting its jumps as required.
+	 *
+	 * @param code
+	 *            The program.
+	 * @return The problems found, each in the form
+	 *         <code><i>line</i>:<i>message</i></code>. The list is empty if
+	 *         the program is sound.
+	 */
+	static List<String> verify(CodeStore code) {
+		final int[] opcodes = code.opcodes;
+		final int[] operands = code.operands;
+		final int size = code.size();
+		List<String> problems = new ArrayList<String>();
+
+		for (int i = 0; i < size; i++) {
+			int operand = operands[i];
+			boolean inCode = operand >= 0 && operand < size;
+
+			switch (opcodes[i]) {
+			case Mnemonic.CAL:
+				if (!inCode) {
+					report(problems, code, i,
+							"CAL - attempt to call outside code.");
+				}
+				break;
+			case Mnemonic.JIF:
+				if (!inCode) {
+					opcodes[i] = CodeStore.JIF_OUTSIDE;
+				}
+				break;
+			case Mnemonic.JMP:
+				if (!inCode) {
+					opcodes[i] = CodeStore.JMP_OUTSIDE;
+				}
+				break;
+			case Mnemonic.REH:
+				// REH addresses are one-based, and 0 means no handler.
+				if (operand < 0 || operand > size) {
+					report(problems, code, i,
+							"Exception handler address out of code range.");
+				}
+				break;
+			case CodeStore.ILLEGAL:
+			case CodeStore.UNKNOWN:
+				report(problems, code, i, (String) code.constants[operand]);
+				break;
+			default:
+			}
+
+			// Including any already rewritten in an object file.
+			switch (opcodes[i]) {
+			case CodeStore.JIF_OUTSIDE:
+				report(problems, code, i, "JIF - attempt to jump outside code.");
+				break;
+			case CodeStore.JMP_OUTSIDE:
+				report(problems, code, i, "JMP - attempt to jump outside code.");
+				break;
+			default:
+			}
+		}
+		return problems;
+	}
+
+	/**
+	 * Records a problem with the instruction at index <code>i</code>.
+	 */
+	private static void report(List<String> problems, CodeStore code, int i,
+			String message) {
+		problems.add(code.getCode(i).getLineNo() + ":" + message);
+		return;
+	}
+}
@@ -1,15 +1,27 @@
 package net.logicsquad.pal;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 /**
  * "Functional tests" on {@link PAL}. What we're doing here is just running the existing "test suite" using JUnit. We already have expected
@@ -21,8 +33,12 @@ public class PALTest {
 	private static final List<String> NON_INTERACTIVE_INPUTS = List.of(
 	"BASICS",
 	"BOOLS",
+	"CONCAT",
+	"DEEPSIG",
 	"INC",
 	"LOCALS",
+	"NESTED",
+	"NONLOCAL",
 	"OPR-11",
 	"OPR-12",
 	"OPR-13",
@@ -37,6 +53,7 @@ public class PALTest {
 	"OPR-7",
 	"OPR-8",
 	"OPR-8-27-28",
+	"RETPOINT",
 	"SIGa",
 	"SIGb",
 	"SIGc",
@@ -57,23 +74,713 @@ public class PALTest {
 	
 	@Test
 	public void nonInteractiveTests() throws IOException {
+		runNonInteractive(PAL.Engine.INTERPRETER);
+		return;
+	}
+
+	@Test
+	public void interactiveTests() throws IOException {
+		runInteractive(PAL.Engine.INTERPRETER);
+		return;
+	}
+
+	@Test
+	public void nonInteractiveBytecodeTests() throws IOException {
+		runNonInteractive(PAL.Engine.BYTECODE);
+		return;
+	}
+
+	@Test
+	public void interactiveBytecodeTests() throws IOException {
+		runInteractive(PAL.Engine.BYTECODE);
+		return;
+	}
+
+	@Test
+	public void nonInteractiveClosureTests() throws IOException {
+		runNonInteractive(PAL.Engine.CLOSURE);
+		return;
+	}
+
+	@Test
+	public void interactiveClosureTests() throws IOException {
+		runInteractive(PAL.Engine.CLOSURE);
+		return;
+	}
+
+	@Test
+	public void objectFileTests(@TempDir Path dir) throws IOException {
 		for (String input : NON_INTERACTIVE_INPUTS) {
+			Path objectFile = dir.resolve(input + ".palc");
+			new PAL(PALTest.class.getResourceAsStream("/basic/" + input)).writeObjectFile(objectFile);
 			ByteArrayOutputStream baos = new ByteArrayOutputStream();
 			System.setOut(new PrintStream(baos));
 			System.setErr(new PrintStream(baos));
-			InputStream is = PALTest.class.getResourceAsStream("/basic/" + input);
-			PAL pal = new PAL(is);
+			PAL pal = new PAL(objectFile);
 			pal.execute();
 			baos.flush();
 			String output = new String(baos.toByteArray());
 			String expected = new String(PALTest.class.getResourceAsStream("/basic/" + input + ".ref").readAllBytes(), StandardCharsets.UTF_8);
-			assertEquals(expected, output);
+			assertEquals(expected, output, input);
 		}
 		return;
 	}
 
+	/**
+	 * A procedure that recurses to a depth of 20000, using some 100000 stack
+	 * locations.
+	 */
+	private static final String DEEP_RECURSION = String.join("\n",
+			"JMP 0 12", "LDV 0 0", "LCI 0 0", "OPR 0 14", "JIF 0 11", "MST 1 0",
+			"LDV 0 0", "LCI 0 1", "OPR 0 4", "CAL 1 2", "OPR 0 0", "MST 0 0",
+			"LCI 0 20000", "CAL 1 2", "LCS 0 'done'", "OPR 0 20", "JMP 0 0");
+
 	@Test
-	public void interactiveTests() throws IOException {
+	public void configurableLimitsTests() throws IOException {
+		for (PAL.Engine engine : PAL.Engine.values()) {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			System.setOut(new PrintStream(baos));
+			PAL pal = new PAL(new ByteArrayInputStream(DEEP_RECURSION.getBytes(StandardCharsets.UTF_8)), 0, 0);
+			pal.execute(engine);
+			assertEquals("done", baos.toString());
+			PAL limited = new PAL(new ByteArrayInputStream(DEEP_RECURSION.getBytes(StandardCharsets.UTF_8)));
+			assertThrows(OutOfMemoryError.class, () -> limited.execute(engine));
+		}
+		return;
+	}
+
+	@Test
+	public void sharedDataTests() {
+		assertSame(Data.valueOf(7), Data.valueOf(7));
+		assertSame(Data.TRUE, Data.valueOf(true));
+		Data big = Data.valueOf(100000);
+		assertSame(big, big.clone());
+		TaggedDataStack stack = new TaggedDataStack(0);
+		stack.pushBool(false);
+		stack.pushUndef();
+		assertSame(Data.UNDEFINED, stack.pop());
+		assertSame(Data.FALSE, stack.pop());
+		return;
+	}
+
+	@Test
+	public void stackDumpTests() throws IOException {
+		// Raises an unhandled exception at the bottom of the recursion.
+		Program program = Program.load(new ByteArrayInputStream(DEEP_RECURSION.replace("OPR 0 0", "SIG 0 1")
+				.getBytes(StandardCharsets.UTF_8)));
+		StringWriter output = new StringWriter();
+		Machine machine = new Machine(program, InputStream.nullInputStream(), output, output, 0);
+		machine.setStackDump(2, 1);
+		machine.run();
+		String dump = output.toString();
+		assertTrue(dump.endsWith("Stack dump:\n----------\n[frame 20001: mark at 100004]\n0\n0\t<- handler\n10\t<- return point\n"
+				+ "100003\t<- dynamic link\n4\t<- static link\n[frame 20000: mark at 99999]\n1\n"
+				+ "0\t<- handler\n10\t<- return point\n99998\t<- dynamic link\n4\t<- static link\n"
+				+ "[19999 frames, 99995 slots omitted]\n[frame 0: mark at 0]\n0\t<- handler\n0\t<- return point\n"
+				+ "0\t<- dynamic link\n0\t<- static link\n"), dump);
+		StringWriter plain = new StringWriter();
+		new TaggedDataStack(0).dump(plain);
+		assertEquals("0\n0\n0\n0\n", plain.toString());
+		return;
+	}
+
+	/**
+	 * A procedure that counts up from 0 to 100000 by tail recursion, passing
+	 * a parameter that passes through every address on the way, and prints
+	 * it.
+	 */
+	private static final String RISING_RECURSION = String.join("\n",
+			"JMP 0 15", "LDV 0 0", "LCI 0 100000", "OPR 0 12", "JIF 0 12",
+			"MST 1 0", "LDV 0 0", "LCI 0 1", "OPR 0 3", "CAL 1 2", "OPR 0 0",
+			"LDV 0 0", "OPR 0 20", "OPR 0 0", "MST 0 0", "LCI 0 0", "CAL 1 2",
+			"JMP 0 0");
+
+	/**
+	 * A procedure that passes the address of its local variable to another,
+	 * which prints the variable, in a call that is followed by a return.
+	 */
+	private static final String ADDRESS_PARAMETER = String.join("\n",
+			"JMP 0 13", "LDV 0 0", "LDI 0 0", "OPR 0 20", "OPR 0 0", "INC 0 1",
+			"LCI 0 42", "STO 0 0", "MST 1 0", "LDA 0 0", "CAL 1 2", "OPR 0 0",
+			"MST 0 0", "CAL 0 6", "JMP 0 0");
+
+	/**
+	 * A procedure that saves the address of its local variable in a global,
+	 * and tail-calls a sibling that prints the variable through it.
+	 */
+	private static final String SAVED_ADDRESS = String.join("\n",
+			"JMP 0 14", "INC 0 1", "LCI 0 42", "STO 0 0", "LDA 0 0", "STO 1 0",
+			"MST 1 0", "CAL 0 10", "OPR 0 0", "LDV 1 0", "LDI 0 0", "OPR 0 20",
+			"OPR 0 0", "INC 0 1", "MST 0 0", "CAL 0 2", "JMP 0 0");
+
+	@Test
+	public void tailCallTests() throws IOException {
+		Program program = Program.load(new ByteArrayInputStream(DEEP_RECURSION.getBytes(StandardCharsets.UTF_8)));
+		assertEquals(1, program.code.tailCallCount());
+		Program rising = Program.load(new ByteArrayInputStream(RISING_RECURSION.getBytes(StandardCharsets.UTF_8)));
+		assertEquals(1, rising.code.tailCallCount());
+		// A procedure that passes the address of its own frame makes no tail
+		// calls.
+		Program address = Program.load(new ByteArrayInputStream(ADDRESS_PARAMETER.getBytes(StandardCharsets.UTF_8)));
+		assertEquals(0, address.code.tailCallCount());
+		// A procedure that takes the address of its own frame makes no tail
+		// calls.
+		Program saved = Program.load(new ByteArrayInputStream(SAVED_ADDRESS.getBytes(StandardCharsets.UTF_8)));
+		assertEquals(0, saved.code.tailCallCount());
+		for (PAL.Engine engine : PAL.Engine.values()) {
+			// The recursion runs in constant space within the default limit.
+			StringWriter output = new StringWriter();
+			Machine machine = new Machine(program, InputStream.nullInputStream(), output, output);
+			machine.setTailCalls(true);
+			assertEquals(PAL.ExitStatus.ABNORMAL, machine.run(engine));
+			assertEquals("done", output.toString());
+			Machine deep = new Machine(program, InputStream.nullInputStream(), new StringWriter(), new StringWriter());
+			assertThrows(OutOfMemoryError.class, () -> deep.run(engine));
+			// So does one whose parameter looks like an address in its frame.
+			StringWriter counted = new StringWriter();
+			Machine counter = new Machine(rising, InputStream.nullInputStream(), counted, counted);
+			counter.setTailCalls(true);
+			assertEquals(PAL.ExitStatus.ABNORMAL, counter.run(engine));
+			assertEquals("100000", counted.toString());
+			// The caller's frame is still needed, so it is an ordinary call.
+			StringWriter printed = new StringWriter();
+			Machine caller = new Machine(address, InputStream.nullInputStream(), printed, printed);
+			caller.setTailCalls(true);
+			caller.run(engine);
+			assertEquals("42", printed.toString());
+			StringWriter global = new StringWriter();
+			Machine sibling = new Machine(saved, InputStream.nullInputStream(), global, global);
+			sibling.setTailCalls(true);
+			sibling.run(engine);
+			assertEquals("42", global.toString());
+		}
+		// Programs behave as before, apart from the frames in a stack dump.
+		for (String input : INTERACTIVE_INPUTS) {
+			Program golden = Program.load(PALTest.class.getResourceAsStream("/interactive/" + input));
+			byte[] response = PALTest.class.getResourceAsStream("/interactive/" + input + ".in").readAllBytes();
+			String expected = new String(PALTest.class.getResourceAsStream("/interactive/" + input + ".ref").readAllBytes(), StandardCharsets.UTF_8);
+			for (PAL.Engine engine : PAL.Engine.values()) {
+				StringWriter output = new StringWriter();
+				Machine machine = new Machine(golden, new ByteArrayInputStream(response), output, output);
+				machine.setTailCalls(true);
+				machine.run(engine);
+				assertEquals(expected.split("Stack dump:")[0], output.toString().split("Stack dump:")[0], input);
+			}
+		}
+		return;
+	}
+
+	/**
+	 * Adds an integer constant to a real, in a sequence fused into
+	 * <code>ADD_CONSTANT</code>, which fails at the <code>OPR</code> on line 6.
+	 */
+	private static final String ADD_CONSTANT_ERROR = String.join("\n",
+			"INC 0 1", "LCR 0 2.5", "STO 0 0", "LDV 0 0", "LCI 0 1", "OPR 0 3",
+			"STO 0 0", "JMP 0 0");
+
+	/**
+	 * Compares an integer with a real, in a sequence fused into
+	 * <code>COMPARE_JUMP</code>, which fails at the <code>OPR</code> on line 8.
+	 */
+	private static final String COMPARE_JUMP_ERROR = String.join("\n",
+			"INC 0 2", "LCI 0 1", "STO 0 0", "LCR 0 1.0", "STO 0 1", "LDV 0 0",
+			"LDV 0 1", "OPR 0 10", "JIF 0 8", "JMP 0 0");
+
+	/**
+	 * Stores a constant above the top of the stack, in a sequence fused into
+	 * <code>STORE_CONSTANT</code>, which fails at the <code>STO</code> on line
+	 * 5.
+	 */
+	private static final String STORE_CONSTANT_ERROR = String.join("\n",
+			"INC 0 1", "LCI 0 7", "STO 0 0", "LCI 0 7", "STO 0 5", "JMP 0 0");
+
+	@Test
+	public void fusedErrorTests() throws IOException {
+		// Each program fails inside a superinstruction, and must fail exactly
+		// as it does when the first instruction is replaced by one that
+		// leaves the same value on the stack, so that nothing is fused.
+		assertFailsAsUnfused(ADD_CONSTANT_ERROR, 4, "LCR 0 2.5", 6);
+		assertFailsAsUnfused(COMPARE_JUMP_ERROR, 6, "LCI 0 1", 8);
+
+		// A store out of bounds is not reported with a line number, fused or
+		// not, but it must still fail in the same way.
+		Program fused = program(STORE_CONSTANT_ERROR);
+		Program unfused = program(unfuse(STORE_CONSTANT_ERROR, 4, "LDV 0 0"));
+		assertEquals(fused.code.fusedCount(), unfused.code.fusedCount() + 1);
+		for (PAL.Engine engine : PAL.Engine.values()) {
+			StringWriter output = new StringWriter();
+			Exception expected = assertThrows(IndexOutOfBoundsException.class,
+					() -> new Machine(unfused, InputStream.nullInputStream(), output, output).run(engine));
+			Exception actual = assertThrows(IndexOutOfBoundsException.class,
+					() -> new Machine(fused, InputStream.nullInputStream(), output, output).run(engine));
+			assertEquals(expected.getMessage(), actual.getMessage(), engine.toString());
+		}
+		return;
+	}
+
+	/**
+	 * Asserts that a program fails inside a superinstruction with the same
+	 * error, line number and stack dump as an equivalent unfused program, on
+	 * every engine.
+	 *
+	 * @param source
+	 *            The program.
+	 * @param line
+	 *            The line of the first instruction of the superinstruction.
+	 * @param replacement
+	 *            An instruction to replace it with, pushing the same value.
+	 * @param errorLine
+	 *            The line the error must be reported at.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	private void assertFailsAsUnfused(String source, int line, String replacement, int errorLine) throws IOException {
+		Program fused = program(source);
+		Program unfused = program(unfuse(source, line, replacement));
+		assertEquals(fused.code.fusedCount(), unfused.code.fusedCount() + 1, source);
+		for (PAL.Engine engine : PAL.Engine.values()) {
+			StringWriter expected = new StringWriter();
+			new Machine(unfused, InputStream.nullInputStream(), expected, expected).run(engine);
+			StringWriter output = new StringWriter();
+			new Machine(fused, InputStream.nullInputStream(), output, output).run(engine);
+			assertTrue(expected.toString().contains("CODE:" + errorLine + ":"), expected.toString());
+			assertEquals(expected.toString(), output.toString(), engine.toString());
+		}
+		return;
+	}
+
+	private static Program program(String source) throws IOException {
+		return Program.load(new ByteArrayInputStream(source.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	private static String unfuse(String source, int line, String replacement) {
+		String[] lines = source.split("\n");
+		lines[line - 1] = replacement;
+		return String.join("\n", lines);
+	}
+
+	/**
+	 * Prints (2 + 3) * 4, then skips some dead code to divide by zero on line
+	 * 15.
+	 */
+	private static final String FOLDABLE = String.join("\n",
+			"LCI 0 2", "LCI 0 3", "OPR 0 3", "LCI 0 4", "OPR 0 5", "OPR 0 20",
+			"LCI 0 7", "OPR 0 24", "OPR 0 17", "JIF 0 1", "JMP 0 13",
+			"LCS 0 'dead'", "LCI 0 1", "LCI 0 0", "OPR 0 6", "JMP 0 0");
+
+	@Test
+	public void optimiserTests() throws IOException {
+		Program program = Program.load(new ByteArrayInputStream(FOLDABLE.getBytes(StandardCharsets.UTF_8)));
+		Program optimised = program.optimise();
+		assertEquals(6, optimised.size());
+		assertSame(optimised, optimised.optimise());
+		for (PAL.Engine engine : PAL.Engine.values()) {
+			StringWriter expected = new StringWriter();
+			new Machine(program, InputStream.nullInputStream(), expected, expected).run(engine);
+			StringWriter output = new StringWriter();
+			new Machine(optimised, InputStream.nullInputStream(), output, output).run(engine);
+			assertTrue(output.toString().startsWith("20"), output.toString());
+			assertTrue(output.toString().contains("15"), output.toString());
+			assertEquals(expected.toString(), output.toString());
+		}
+		// The golden programs behave exactly as before.
+		for (String input : NON_INTERACTIVE_INPUTS) {
+			assertOptimised("/basic/" + input, InputStream.nullInputStream().readAllBytes());
+		}
+		for (String input : INTERACTIVE_INPUTS) {
+			assertOptimised("/interactive/" + input,
+					PALTest.class.getResourceAsStream("/interactive/" + input + ".in").readAllBytes());
+		}
+		return;
+	}
+
+	@Test
+	public void controlFlowTests() throws IOException {
+		// A for loop in the main program, with two variables.
+		ControlFlowGraph iterative = ControlFlowGraph.build(Program.load(PALTest.class.getResourceAsStream("/interactive/FACTITER")).code);
+		assertEquals(1, iterative.procedures().size());
+		ControlFlowGraph.Procedure main = iterative.procedures().get(0);
+		assertEquals("{0, 1}", main.variables.toString());
+		assertEquals(1, main.loops.size());
+		assertSame(iterative.block(10), main.loops.get(0).header);
+		assertEquals(4, iterative.height(10));
+		// "n" is dead until it is read, and only "temp" is live in the loop.
+		assertEquals("{}", iterative.liveVariables(1).toString());
+		assertEquals("{1}", iterative.liveVariables(7).toString());
+		assertEquals("{0, 1}", iterative.liveVariables(9).toString());
+		assertEquals("{1}", iterative.liveVariables(10).toString());
+		StringBuilder dot = new StringBuilder();
+		iterative.writeDot(dot);
+		assertTrue(dot.toString().startsWith("digraph PAL {"), dot.toString());
+		assertTrue(dot.toString().contains("b2 -> b4 [label=\"false\"];"), dot.toString());
+
+		// A recursive function, and some unreachable code.
+		ControlFlowGraph recursive = ControlFlowGraph.build(Program.load(PALTest.class.getResourceAsStream("/interactive/FACTREC")).code);
+		assertEquals(2, recursive.procedures().size());
+		ControlFlowGraph.Procedure eval = recursive.procedures().get(1);
+		assertSame(recursive.block(1), eval.entry);
+		assertEquals(1, eval.params);
+		assertEquals(ControlFlowGraph.FUNCTION, eval.returns);
+		assertEquals(1, recursive.block(13).callee);
+		assertEquals(3, recursive.height(14));
+		assertEquals(ControlFlowGraph.UNKNOWN, recursive.height(16));
+		return;
+	}
+
+	private void assertOptimised(String input, byte[] response) throws IOException {
+		Program program = Program.load(PALTest.class.getResourceAsStream(input)).optimise();
+		String expected = new String(PALTest.class.getResourceAsStream(input + ".ref").readAllBytes(), StandardCharsets.UTF_8);
+		for (PAL.Engine engine : PAL.Engine.values()) {
+			StringWriter output = new StringWriter();
+			new Machine(program, new ByteArrayInputStream(response), output, output).run(engine);
+			assertEquals(expected, output.toString(), input + " " + engine);
+		}
+		return;
+	}
+
+	private static final String UNSOUND = String.join("\n",
+			"LCI 0 'x'", "FOO 0 0", "JMP 0 99", "JIF 0 0", "CAL 0 50", "REH 0 99",
+			"OPR 0 40", "REH 0 0", "JMP 0 1");
+
+	@Test
+	public void verifierTests() throws IOException {
+		PAL pal = new PAL(new ByteArrayInputStream(UNSOUND.getBytes(StandardCharsets.UTF_8)));
+		assertEquals(List.of("1:Argument to LCI must be an integer.", "2:FOO: not implemented.",
+				"3:JMP - attempt to jump outside code.", "4:JIF - attempt to jump outside code.",
+				"5:CAL - attempt to call outside code.", "6:Exception handler address out of code range.",
+				"7:Argument to OPR must be in range 0-31."), pal.problems());
+		PAL sound = new PAL(new ByteArrayInputStream(DEEP_RECURSION.getBytes(StandardCharsets.UTF_8)));
+		assertEquals(List.of(), sound.problems());
+		return;
+	}
+
+	@Test
+	public void profileTests() throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		System.setOut(new PrintStream(baos));
+		PAL pal = new PAL(new ByteArrayInputStream(DEEP_RECURSION.getBytes(StandardCharsets.UTF_8)), 0, 0);
+		Profile profile = pal.newProfile();
+		pal.execute(profile);
+		assertEquals("done", baos.toString());
+		assertEquals(20001, profile.counts[1]);
+		assertEquals(20000, profile.counts[5]);
+		StringBuilder json = new StringBuilder();
+		profile.writeJson(json);
+		assertTrue(json.toString().contains("\"calls\": [{\"line\": 2, \"count\": 20001}]"));
+		assertTrue(json.toString().contains("\"CAL\": 20001"));
+		StringBuilder listing = new StringBuilder();
+		profile.writeListing(listing, null);
+		assertTrue(listing.toString().startsWith("           1  1: JMP 0 12\n       20001  2: LDV 0 0\n"));
+		return;
+	}
+
+	@Test
+	public void machineTests() throws Exception {
+		List<Throwable> failures = new CopyOnWriteArrayList<>();
+		for (String input : INTERACTIVE_INPUTS) {
+			Program program = Program.load(PALTest.class.getResourceAsStream("/interactive/" + input));
+			byte[] response = PALTest.class.getResourceAsStream("/interactive/" + input + ".in").readAllBytes();
+			String expected = new String(PALTest.class.getResourceAsStream("/interactive/" + input + ".ref").readAllBytes(), StandardCharsets.UTF_8);
+			List<Thread> threads = new ArrayList<>();
+			for (PAL.Engine engine : PAL.Engine.values()) {
+				for (int k = 0; k < 4; k++) {
+					StringWriter output = new StringWriter();
+					Machine machine = new Machine(program, new ByteArrayInputStream(response), output, output);
+					Thread thread = new Thread(() -> {
+						machine.run(engine);
+						assertEquals(expected, output.toString(), input);
+					});
+					thread.setUncaughtExceptionHandler((t, e) -> failures.add(e));
+					threads.add(thread);
+					thread.start();
+				}
+			}
+			for (Thread thread : threads) {
+				thread.join();
+			}
+		}
+		assertEquals(List.of(), failures);
+		LoadException e = assertThrows(LoadException.class,
+				() -> Program.load(new ByteArrayInputStream("JMP 0 0\nLCI 0\n".getBytes(StandardCharsets.UTF_8))));
+		assertEquals("Not enough tokens on line 2", e.getMessage());
+		assertEquals(2, e.getLineNo());
+		Machine machine = new Machine(Program.load(new ByteArrayInputStream("JMP 0 0".getBytes(StandardCharsets.UTF_8))),
+				InputStream.nullInputStream(), new StringWriter(), new StringWriter());
+		assertEquals(PAL.ExitStatus.ABNORMAL, machine.run());
+		assertThrows(IllegalStateException.class, () -> machine.run());
+		return;
+	}
+
+	@Test
+	public void stepTests() throws IOException {
+		for (String input : INTERACTIVE_INPUTS) {
+			Program program = Program.load(PALTest.class.getResourceAsStream("/interactive/" + input));
+			byte[] response = PALTest.class.getResourceAsStream("/interactive/" + input + ".in").readAllBytes();
+			String expected = new String(PALTest.class.getResourceAsStream("/interactive/" + input + ".ref").readAllBytes(), StandardCharsets.UTF_8);
+			for (int slice = 1; slice < 8; slice++) {
+				// Input supplied a byte at a time, only when the machine is blocked.
+				StringWriter output = new StringWriter();
+				Machine machine = new Machine(program, output, output, PAL.DATASIZE);
+				int supplied = 0;
+				Machine.State state;
+				while ((state = machine.step(slice)) != Machine.State.TERMINATED) {
+					if (state == Machine.State.BLOCKED_ON_INPUT) {
+						if (supplied < response.length) {
+							machine.supplyInput(new byte[] { response[supplied++] });
+						} else {
+							machine.closeInput();
+						}
+					}
+				}
+				assertEquals(expected, output.toString(), input);
+				assertEquals(PAL.ExitStatus.ABNORMAL, machine.getExitStatus());
+			}
+		}
+		Machine runaway = new Machine(Program.load(new ByteArrayInputStream("JMP 0 1".getBytes(StandardCharsets.UTF_8))),
+				InputStream.nullInputStream(), new StringWriter(), new StringWriter());
+		for (int k = 0; k < 100; k++) {
+			assertEquals(Machine.State.RUNNING, runaway.step(1000));
+		}
+		assertThrows(IllegalStateException.class, () -> runaway.run());
+		return;
+	}
+
+	@Test
+	public void snapshotTests(@TempDir Path dir) throws IOException {
+		Path file = dir.resolve("snapshot");
+		for (String input : INTERACTIVE_INPUTS) {
+			Program program = Program.load(PALTest.class.getResourceAsStream("/interactive/" + input));
+			byte[] response = PALTest.class.getResourceAsStream("/interactive/" + input + ".in").readAllBytes();
+			String expected = new String(PALTest.class.getResourceAsStream("/interactive/" + input + ".ref").readAllBytes(), StandardCharsets.UTF_8);
+			// Run to the first read.
+			StringWriter prefix = new StringWriter();
+			Machine machine = new Machine(program, prefix, prefix, PAL.DATASIZE);
+			Machine.State state;
+			while ((state = machine.step(1000)) == Machine.State.RUNNING) {
+			}
+			assertEquals(Machine.State.BLOCKED_ON_INPUT, state, input);
+			Snapshot snapshot = machine.snapshot();
+			snapshot.write(file);
+			for (Snapshot image : List.of(snapshot, Snapshot.read(file, program))) {
+				for (PAL.Engine engine : PAL.Engine.values()) {
+					StringWriter output = new StringWriter();
+					Machine fork = image.fork(new ByteArrayInputStream(response), output, output);
+					assertEquals(PAL.ExitStatus.ABNORMAL, fork.run(engine));
+					assertEquals(expected, prefix + output.toString(), input + " " + engine);
+				}
+			}
+		}
+		for (String input : NON_INTERACTIVE_INPUTS) {
+			Program program = Program.load(PALTest.class.getResourceAsStream("/basic/" + input));
+			String expected = new String(PALTest.class.getResourceAsStream("/basic/" + input + ".ref").readAllBytes(), StandardCharsets.UTF_8);
+			for (int count = 1; count < 40; count += 3) {
+				StringWriter prefix = new StringWriter();
+				Machine machine = new Machine(program, InputStream.nullInputStream(), prefix, prefix);
+				if (machine.step(count) == Machine.State.TERMINATED) {
+					assertThrows(IllegalStateException.class, () -> machine.snapshot());
+					break;
+				}
+				Snapshot snapshot = machine.snapshot();
+				snapshot.write(file);
+				StringWriter output = new StringWriter();
+				Snapshot.read(file, program).fork(InputStream.nullInputStream(), output, output).run();
+				assertEquals(expected, prefix + output.toString(), input + " after " + count);
+				// The original machine is unaffected by the fork.
+				while (machine.step(1000) != Machine.State.TERMINATED) {
+				}
+				assertEquals(expected, prefix.toString(), input);
+			}
+		}
+		Program other = Program.load(new ByteArrayInputStream("JMP 0 0".getBytes(StandardCharsets.UTF_8)));
+		assertThrows(IOException.class, () -> Snapshot.read(file, other));
+
+		// A snapshot in a recursion with a handler registered, damaged in
+		// each of the values the stack relies on.
+		Program deep = Program.load(PALTest.class.getResourceAsStream("/basic/DEEPSIG"));
+		Machine machine = new Machine(deep, InputStream.nullInputStream(), new StringWriter(), new StringWriter());
+		assertEquals(Machine.State.RUNNING, machine.step(30));
+		machine.snapshot().write(file);
+		ByteBuffer image = ByteBuffer.wrap(Files.readAllBytes(file));
+		// The stack follows the header and any unread input.
+		int stack = 29 + image.getInt(25);
+		int top = image.getInt(stack + 4);
+		int frameBase = image.getInt(stack + 8);
+		int displayLength = image.getInt(stack + 39);
+		int values = stack + 43 + 4 * displayLength + top;
+		int meta = values + 4 * top;
+		assertTrue(frameBase > 4 && image.getInt(stack + 16) >= 0);
+		int[][] damage = { { stack + 8, top + 1 }, { stack + 12, displayLength }, { stack + 16, frameBase - 1 },
+				{ meta + 4 * (frameBase - 4), displayLength }, { meta + 4 * 3, 4 },
+				{ values + 4 * (frameBase - 3), frameBase } };
+		for (int[] change : damage) {
+			ByteBuffer damaged = ByteBuffer.wrap(image.array().clone());
+			damaged.putInt(change[0], change[1]);
+			Files.write(file, damaged.array());
+			IOException e = assertThrows(IOException.class, () -> Snapshot.read(file, deep));
+			assertEquals("corrupt snapshot", e.getMessage());
+		}
+		return;
+	}
+
+	@Test
+	public void batchTests(@TempDir Path dir) throws Exception {
+		Path interactive = Path.of(PALTest.class.getResource("/interactive").toURI());
+		List<Batch.Result> results = new Batch(PAL.Engine.BYTECODE, PAL.CODESIZE, PAL.DATASIZE, 4, dir)
+				.run(Batch.jobs(interactive));
+		assertEquals(INTERACTIVE_INPUTS.size(), results.size());
+		List<String> summary = Files.readAllLines(dir.resolve(Batch.SUMMARY), Charset.defaultCharset());
+		for (Batch.Result result : results) {
+			assertEquals(PAL.ExitStatus.ABNORMAL, result.status, result.job.name);
+			String output = Files.readString(dir.resolve(result.job.name + ".out"), Charset.defaultCharset());
+			Path err = dir.resolve(result.job.name + ".err");
+			// Each SIG program ends with a runtime error.
+			assertEquals(result.job.name.startsWith("SIG"), Files.exists(err), result.job.name);
+			if (Files.exists(err)) {
+				// The error follows all the output, and names the program
+				// by its path.
+				output += Files.readString(err, Charset.defaultCharset())
+						.replace(result.job.program + ":", Program.DEFAULT_NAME + ":");
+			}
+			String expected = Files.readString(interactive.resolve(result.job.name + ".ref"), Charset.defaultCharset());
+			assertEquals(expected, output, result.job.name);
+			// Only the time varies.
+			assertTrue(summary.stream().anyMatch(line -> line.startsWith(result.job.name + "\tABNORMAL\t")), result.job.name);
+		}
+		return;
+	}
+
+	@Test
+	public void numberParsingTests() throws IOException {
+		for (String line : List.of("0", "42", "+42", "-42", "-0", "+", "-", "", "--1", "2147483647", "-2147483648",
+				"2147483648", "-2147483649", "9999999999", "-9999999999", "12345678901", "007", " 7", "7 ", "\t7",
+				"7x", "\u0667")) {
+			assertParsesLikeLibrary(line);
+		}
+		for (String line : List.of("1.5", "+1.5", "-1.5", "-0", "-0.0", ".5", "5.", ".", "+", "", "1.2.3", "16777216",
+				"16777217", "0.1234567891", "0.12345678901", "1e5", "1E-5", "-2.5e+3", "NaN", "-NaN", "Infinity",
+				"-Infinity", "+Infinity", "0x1p3", "2.5f", " 2.5", "2.5 ", "\t-2.5\t", "1 .5", "3.4028236e38")) {
+			assertParsesLikeLibrary(line);
+		}
+
+		// A token cut short by EOF, read a byte at a time so that it spans
+		// refills of the buffer.
+		InputBuffer ints = new InputBuffer(new TrickleInputStream("17\r\n-2147483648"));
+		assertTrue(ints.nextLine());
+		assertEquals(17, ints.parseInt());
+		assertTrue(ints.nextLine());
+		assertEquals(Integer.MIN_VALUE, ints.parseInt());
+		assertTrue(!ints.nextLine());
+		InputBuffer reals = new InputBuffer(new TrickleInputStream("-0.25\n1e-3"));
+		assertTrue(reals.nextLine());
+		assertEquals(-0.25f, reals.parseFloat());
+		assertTrue(reals.nextLine());
+		assertEquals(1e-3f, reals.parseFloat());
+		assertTrue(reals.atEOF());
+		InputBuffer partial = new InputBuffer(new TrickleInputStream("-"));
+		assertTrue(partial.nextLine());
+		assertThrows(NumberFormatException.class, () -> partial.parseInt());
+		assertThrows(NumberFormatException.class, () -> partial.parseFloat());
+		return;
+	}
+
+	/**
+	 * Asserts that {@link InputBuffer <code>InputBuffer</code>} parses a line
+	 * as an integer and as a real exactly as <code>Integer.parseInt</code> and
+	 * <code>Float.parseFloat</code> do, including whether they throw.
+	 *
+	 * @param line
+	 *            The line, without a terminator.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	private void assertParsesLikeLibrary(String line) throws IOException {
+		InputBuffer buffer = new InputBuffer(new ByteArrayInputStream((line + "\n").getBytes(Charset.defaultCharset())));
+		assertTrue(buffer.nextLine(), line);
+		try {
+			assertEquals(Integer.parseInt(line), buffer.parseInt(), line);
+		} catch (NumberFormatException e) {
+			assertThrows(NumberFormatException.class, () -> buffer.parseInt(), line);
+		}
+		try {
+			// Compare bits, to tell -0.0 from 0.0.
+			assertEquals(Float.floatToIntBits(Float.parseFloat(line)), Float.floatToIntBits(buffer.parseFloat()), line);
+		} catch (NumberFormatException e) {
+			assertThrows(NumberFormatException.class, () -> buffer.parseFloat(), line);
+		}
+		return;
+	}
+
+	/**
+	 * An input stream that returns at most one byte from each read.
+	 */
+	private static final class TrickleInputStream extends InputStream {
+		/** The bytes to return. */
+		private final byte[] bytes;
+
+		/** The index of the next byte to return. */
+		private int position;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param input
+		 *            The input to return.
+		 */
+		TrickleInputStream(String input) {
+			this.bytes = input.getBytes(Charset.defaultCharset());
+			return;
+		}
+
+		/**
+		 * Reads a byte.
+		 *
+		 * @return The byte, or -1 at EOF.
+		 */
+		public int read() {
+			return position < bytes.length ? bytes[position++] & 0xff : -1;
+		}
+
+		/**
+		 * Reads at most one byte into an array.
+		 *
+		 * @param b
+		 *            The array.
+		 * @param off
+		 *            The offset at which to store the byte.
+		 * @param len
+		 *            The maximum number of bytes to read.
+		 * @return The number of bytes read, or -1 at EOF.
+		 */
+		public int read(byte[] b, int off, int len) {
+			if (len == 0) {
+				return 0;
+			}
+			int c = read();
+			if (c < 0) {
+				return -1;
+			}
+			b[off] = (byte) c;
+			return 1;
+		}
+	}
+
+	private void runNonInteractive(PAL.Engine engine) throws IOException {
+		for (String input : NON_INTERACTIVE_INPUTS) {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			System.setOut(new PrintStream(baos));
+			System.setErr(new PrintStream(baos));
+			InputStream is = PALTest.class.getResourceAsStream("/basic/" + input);
+			PAL pal = new PAL(is);
+			pal.execute(engine);
+			baos.flush();
+			String output = new String(baos.toByteArray());
+			String expected = new String(PALTest.class.getResourceAsStream("/basic/" + input + ".ref").readAllBytes(), StandardCharsets.UTF_8);
+			assertEquals(expected, output, input);
+		}
+		return;
+	}
+
+	private void runInteractive(PAL.Engine engine) throws IOException {
 		for (String input : INTERACTIVE_INPUTS) {
 			ByteArrayOutputStream baos = new ByteArrayOutputStream();
 			System.setOut(new PrintStream(baos));
@@ -82,11 +789,11 @@ public class PALTest {
 			System.setIn(response);
 			InputStream is = PALTest.class.getResourceAsStream("/interactive/" + input);
 			PAL pal = new PAL(is);
-			pal.execute();
+			pal.execute(engine);
 			baos.flush();
 			String output = new String(baos.toByteArray());
 			String expected = new String(PALTest.class.getResourceAsStream("/interactive/" + input + ".ref").readAllBytes(), StandardCharsets.UTF_8);
-			assertEquals(expected, output);
+			assertEquals(expected, output, input);
 		}
 		return;
 	}